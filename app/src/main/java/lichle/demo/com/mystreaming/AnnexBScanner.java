@@ -0,0 +1,114 @@
+package lichle.demo.com.mystreaming;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an Annex-B byte stream (an encoder output buffer) into NAL units.
+ * Start codes may be 3 or 4 bytes long. The search reads 8 bytes at a time and only looks at single bytes
+ * in words which contain a zero byte. NAL boundaries are kept in arrays which are reused between calls,
+ * so scanning does not allocate once the arrays are large enough.
+ */
+
+public class AnnexBScanner {
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private int[] mOffsets;
+    private int[] mLengths;
+    private int mCount;
+
+    public AnnexBScanner() {
+        this(16);
+    }
+
+    public AnnexBScanner(int initialCapacity) {
+        mOffsets = new int[initialCapacity];
+        mLengths = new int[initialCapacity];
+    }
+
+    /**
+     * Finds the NAL units between offset and offset + length (absolute indexes, the buffer position is not used).
+     * Bytes before the first start code are ignored, trailing zero bytes are not part of a NAL.
+     *
+     * @return the number of NAL units found
+     */
+    public int scan(ByteBuffer buffer, int offset, int length) {
+        mCount = 0;
+        int end = offset + length;
+        int startCode = findStartCode(buffer, offset, end);
+        while (startCode >= 0) {
+            int nalStart = startCode + 3;
+            int next = findStartCode(buffer, nalStart, end);
+            int nalEnd = next >= 0 ? next : end;
+            while (nalEnd > nalStart && buffer.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                add(nalStart, nalEnd - nalStart);
+            }
+            startCode = next;
+        }
+        return mCount;
+    }
+
+    public int getNalCount() {
+        return mCount;
+    }
+
+    /**
+     * Absolute index of the NAL header byte of the i-th NAL unit.
+     */
+    public int getNalOffset(int i) {
+        return mOffsets[i];
+    }
+
+    /**
+     * Length of the i-th NAL unit, header byte included.
+     */
+    public int getNalLength(int i) {
+        return mLengths[i];
+    }
+
+    /**
+     * Returns the index of the first 0x000001 sequence in [from, end), or -1.
+     */
+    public static int findStartCode(ByteBuffer buffer, int from, int end) {
+        int i = from;
+        // 8 bytes at a time while a whole word and the 2 bytes after it are in range
+        while (i + 10 <= end) {
+            long word = buffer.getLong(i);
+            if (((word - ONES) & ~word & HIGHS) == 0) {
+                // no zero byte in this word, a start code can only begin in a later word
+                i += 8;
+                continue;
+            }
+            for (int last = i + 8; i < last; i++) {
+                if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                    return i;
+                }
+            }
+        }
+        for (; i + 3 <= end; i++) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void add(int offset, int length) {
+        if (mCount == mOffsets.length) {
+            int[] offsets = new int[mCount * 2];
+            int[] lengths = new int[mCount * 2];
+            System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+            System.arraycopy(mLengths, 0, lengths, 0, mCount);
+            mOffsets = offsets;
+            mLengths = lengths;
+        }
+        mOffsets[mCount] = offset;
+        mLengths[mCount] = length;
+        mCount++;
+    }
+
+}
@@ -0,0 +1,87 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+/**
+ * Picks the H.264 profile and level to configure the encoder with: the first profile of an allow-list, in order of
+ * preference, for which the encoder supports a level high enough for the resolution, frame rate and bitrate.
+ * Without a profile most encoders fall back to Baseline, Main and High add CABAC and better prediction.
+ */
+
+public class AvcProfileSelector {
+
+    /**
+     * Best first. Servers which can not take High or Main get a shorter list.
+     */
+    public static final int[] DEFAULT_PROFILES = {
+            CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCProfileMain, CodecProfileLevel.AVCProfileBaseline};
+
+    //H.264 table A-1: level, max macroblocks per second, max frame size in macroblocks, max bitrate in kbit/s
+    private static final int[][] LEVELS = {
+            {CodecProfileLevel.AVCLevel1, 1485, 99, 64},
+            {CodecProfileLevel.AVCLevel11, 3000, 396, 192},
+            {CodecProfileLevel.AVCLevel12, 6000, 396, 384},
+            {CodecProfileLevel.AVCLevel13, 11880, 396, 768},
+            {CodecProfileLevel.AVCLevel2, 11880, 396, 2000},
+            {CodecProfileLevel.AVCLevel21, 19800, 792, 4000},
+            {CodecProfileLevel.AVCLevel22, 20250, 1620, 4000},
+            {CodecProfileLevel.AVCLevel3, 40500, 1620, 10000},
+            {CodecProfileLevel.AVCLevel31, 108000, 3600, 14000},
+            {CodecProfileLevel.AVCLevel32, 216000, 5120, 20000},
+            {CodecProfileLevel.AVCLevel4, 245760, 8192, 20000},
+            {CodecProfileLevel.AVCLevel41, 245760, 8192, 50000},
+            {CodecProfileLevel.AVCLevel42, 522240, 8704, 50000},
+            {CodecProfileLevel.AVCLevel5, 589824, 22080, 135000},
+            {CodecProfileLevel.AVCLevel51, 983040, 36864, 240000},
+            {CodecProfileLevel.AVCLevel52, 2073600, 36864, 240000},
+    };
+
+    private AvcProfileSelector() {
+    }
+
+    /**
+     * @param profileLevels the profile and level pairs of the encoder, see {@link EncoderInfo#getProfileLevels()}
+     * @param allowed       profiles the server accepts, best first
+     * @return {profile, level}, null if no allowed profile fits
+     */
+    public static int[] select(int[] profileLevels, int[] allowed, int width, int height, int fps, int bitRate) {
+        for (int profile : allowed) {
+            int required = getRequiredLevel(profile, width, height, fps, bitRate);
+            if (required >= 0 && getMaxLevel(profileLevels, profile) >= required) {
+                return new int[]{profile, required};
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Highest level the encoder supports for a profile, -1 if it does not support the profile.
+     */
+    static int getMaxLevel(int[] profileLevels, int profile) {
+        int max = -1;
+        for (int i = 0; i + 1 < profileLevels.length; i += 2) {
+            if (profileLevels[i] == profile && profileLevels[i + 1] > max) {
+                max = profileLevels[i + 1];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Lowest level whose limits the stream fits in, -1 if it exceeds level 5.2.
+     */
+    static int getRequiredLevel(int profile, int width, int height, int fps, int bitRate) {
+        long frameSize = (long) ((width + 15) / 16) * ((height + 15) / 16);
+        long macroblockRate = frameSize * fps;
+        // High allows 1.25 times the bitrate of the Baseline and Main limits
+        long bps = profile == CodecProfileLevel.AVCProfileHigh ? bitRate * 4L / 5 : bitRate;
+        long kbps = (bps + 999) / 1000;
+        for (int[] level : LEVELS) {
+            if (macroblockRate <= level[1] && frameSize <= level[2] && kbps <= level[3]) {
+                return level[0];
+            }
+        }
+        return -1;
+    }
+
+}
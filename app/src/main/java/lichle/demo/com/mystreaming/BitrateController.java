@@ -0,0 +1,122 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * AIMD bitrate control from receiver feedback and the local send queue. Times are passed by the caller, so the same
+ * feedback always leads to the same bitrates.
+ * <p>
+ * The bitrate is cut when a receiver report shows loss above {@link #LOSS_HIGH}, in proportion to the loss, or by
+ * {@link #DELAY_DECREASE_FACTOR} when the RTT grows above the lowest RTT seen, packets pile up in the send queue or wait
+ * too long for the pacer. Without any of these signals and with little loss it grows by a fixed amount per second.
+ * It stays between the floor and the ceiling.
+ */
+
+public class BitrateController {
+
+    //loss rates of draft-ietf-rmcat-gcc: cut above 10%, grow below 2%, hold in between
+    public static final float LOSS_HIGH = 0.10f;
+    public static final float LOSS_LOW = 0.02f;
+    public static final float DELAY_DECREASE_FACTOR = 0.85f;
+    //RTT above the lowest one seen by this much means a queue is building up on the path
+    public static final long RTT_RISE_MS = 100;
+    public static final int QUEUE_DEPTH_HIGH = 64;
+    public static final long PACING_DELAY_HIGH_MS = 100;
+    //after a cut the next one waits for the feedback of the lower bitrate
+    public static final long DECREASE_HOLD_MS = 1000;
+
+    private int mMinBitRate, mMaxBitRate;
+    private final int mIncreaseBitRatePerSecond;
+    private int mBitRate;
+    private long mLastUpdateMs = -1;
+    private long mLastDecreaseMs = Long.MIN_VALUE / 2;
+    private long mMinRttMs = Long.MAX_VALUE;
+    //loss of the latest receiver report, holds the bitrate until a report shows little loss
+    private float mLossRate;
+    private int mDecreaseCount, mIncreaseCount;
+
+    /**
+     * @param increaseBitRatePerSecond additive increase while there is no congestion, in bit/s per second
+     */
+    public BitrateController(int minBitRate, int maxBitRate, int startBitRate, int increaseBitRatePerSecond) {
+        mIncreaseBitRatePerSecond = increaseBitRatePerSecond;
+        setLimits(minBitRate, maxBitRate);
+        mBitRate = clamp(startBitRate);
+    }
+
+    public synchronized void setLimits(int minBitRate, int maxBitRate) {
+        if (minBitRate <= 0 || maxBitRate < minBitRate) {
+            throw new IllegalArgumentException("need 0 < floor <= ceiling");
+        }
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mBitRate = clamp(mBitRate);
+    }
+
+    public synchronized int getBitRate() {
+        return mBitRate;
+    }
+
+    public synchronized int getMinBitRate() {
+        return mMinBitRate;
+    }
+
+    public synchronized int getMaxBitRate() {
+        return mMaxBitRate;
+    }
+
+    public synchronized int getDecreaseCount() {
+        return mDecreaseCount;
+    }
+
+    public synchronized int getIncreaseCount() {
+        return mIncreaseCount;
+    }
+
+    /**
+     * Feeds one sample of the feedback and returns the new target bitrate.
+     *
+     * @param lossRate       fraction lost of a receiver report which arrived since the last update, -1 if none did
+     * @param rttMs          RTT of the latest receiver report, -1 if unknown
+     * @param queueDepth     packets waiting in the send queue
+     * @param pacingDelayMs  average time packets waited for the pacer since the last update
+     */
+    public synchronized int update(long nowMs, float lossRate, long rttMs, int queueDepth, long pacingDelayMs) {
+        long elapsedMs = mLastUpdateMs < 0 ? 0 : nowMs - mLastUpdateMs;
+        mLastUpdateMs = nowMs;
+        if (lossRate >= 0) {
+            mLossRate = lossRate;
+        }
+        if (rttMs >= 0) {
+            mMinRttMs = Math.min(mMinRttMs, rttMs);
+        }
+        boolean isDelayed = (rttMs >= 0 && rttMs > mMinRttMs + RTT_RISE_MS)
+                || queueDepth > QUEUE_DEPTH_HIGH
+                || pacingDelayMs > PACING_DELAY_HIGH_MS;
+        boolean canDecrease = nowMs - mLastDecreaseMs >= Math.max(DECREASE_HOLD_MS, rttMs);
+        if (lossRate > LOSS_HIGH && canDecrease) {
+            decrease(nowMs, 1 - 0.5f * lossRate);
+        } else if (isDelayed && canDecrease) {
+            decrease(nowMs, DELAY_DECREASE_FACTOR);
+        } else if (!isDelayed && mLossRate < LOSS_LOW && elapsedMs > 0) {
+            int bitRate = clamp(mBitRate + (int) ((long) mIncreaseBitRatePerSecond * elapsedMs / 1000));
+            if (bitRate > mBitRate) {
+                mIncreaseCount++;
+                mBitRate = bitRate;
+            }
+        }
+        return mBitRate;
+    }
+
+    private void decrease(long nowMs, float factor) {
+        int bitRate = clamp((int) (mBitRate * factor));
+        mLastDecreaseMs = nowMs;
+        if (bitRate < mBitRate) {
+            mDecreaseCount++;
+            mBitRate = bitRate;
+        }
+    }
+
+    private int clamp(int bitRate) {
+        return Math.max(mMinBitRate, Math.min(mMaxBitRate, bitRate));
+    }
+
+}
@@ -1,7 +1,6 @@
 package lichle.demo.com.mystreaming;
 
 import android.graphics.ImageFormat;
-import android.media.MediaCodecInfo;
 
 import java.util.regex.Pattern;
 
@@ -12,6 +11,21 @@ import java.util.regex.Pattern;
 public class Constants {
 
     public static final int RAW_DATA_QUEUE_SIZE = 20;
+    public static final boolean ENCODER_ASYNC_MODE = true;
+    public static final int RAW_QUEUE_POLICY = FrameQueue.POLICY_LATEST_FRAME;
+    //queues of the pipeline stages in front of and behind the encoder
+    public static final int CONVERT_QUEUE_SIZE = 2;
+    //camera buffers: the convert queue, the frame being scaled, the frame being encoded and two for the camera
+    public static final int FRAME_POOL_SIZE = CONVERT_QUEUE_SIZE + 4;
+    public static final int PACKETIZE_QUEUE_SIZE = 8;
+    //encoded frames: the packetize queue, the frame being packetized and a few held by other consumers
+    public static final int ENCODED_FRAME_POOL_SIZE = PACKETIZE_QUEUE_SIZE + 4;
+    public static final int ENCODED_FRAME_CAPACITY = 128 * 1024;
+    //a frame held longer than this is reported as leaked
+    public static final long ENCODED_FRAME_LEAK_MS = 2000;
+    //per frame latency histograms, see StreamEngine.dumpLatency()
+    public static final boolean LATENCY_TRACING = false;
+    public static final int LATENCY_TRACE_SLOTS = 64;
     public static final String USER_NAME = "lich";
     public static final String PASSWORD = "12345678";
     public static final String SERVER_URL = "rtsp://192.168.100.8:1935/live/myStream";
@@ -20,12 +34,55 @@ public class Constants {
     public static final int FPS = 30;
     public static final int BIT_RATE = 2000000;
     public static final int PAYLOAD_TYPE = 96;
-    public static final int MC_COLOR_FORMAT = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+    public static final int RTX_PAYLOAD_TYPE = 97;
+    public static final int FEC_PAYLOAD_TYPE = 98;
     public static final long CLOCK_VIDEO_FREQUENCY = 90000L;
     public static final int RTP_HEADER_LENGTH = 12;
+    public static final int RTP_EXTENSION_LENGTH = 12;
+    public static final int RTP_EXT_ABS_SEND_TIME_ID = 1;
+    public static final int RTP_EXT_TRANSPORT_SEQUENCE_ID = 2;
+    public static final String RTP_EXT_ABS_SEND_TIME_URI = "http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time";
+    public static final String RTP_EXT_TRANSPORT_SEQUENCE_URI =
+            "http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01";
     public static final String MIME_TYPE = "video/avc";
+    public static final String MIME_TYPE_HEVC = "video/hevc";
+    public static final boolean HEVC_ENABLED = true;
+    //rolling intra refresh, realtime priority, no B-frames and CBR where the encoder supports them
+    public static final boolean LOW_LATENCY_ENCODER = false;
+    public static final long INTRA_REFRESH_PERIOD_MS = 1000;
+    //IDRs left with intra refresh on, for receivers joining without asking for a keyframe
+    public static final int INTRA_REFRESH_I_FRAME_INTERVAL = 10;
     public static final int MTU = 1300;
+    public static final boolean RTP_ZERO_COPY = true;
+    public static final boolean RTP_NAL_AGGREGATION = true;
+    public static final boolean RTP_PACING = false;
+    public static final boolean RTP_TRANSPORT_WIDE_CC = false;
+    //retransmission of NACKed packets, on an RTX stream (RFC 4588) or as plain resends
+    public static final boolean RTP_RETRANSMISSION = false;
+    public static final boolean RTP_RTX = true;
+    public static final int RTX_HISTORY_PACKETS = 1024;
+    public static final int RTX_HISTORY_BYTES = 512 * 1024;
+    public static final int RTX_HISTORY_MS = 1000;
+    //retransmissions take at most this fraction of the bitrate
+    public static final float RTX_RATE_FRACTION = 0.25f;
+    //XOR FEC (RFC 5109) over rows of FEC_ROW_LENGTH packets, and columns when FEC_ROWS > 1
+    public static final boolean RTP_FEC = false;
+    public static final int FEC_ROW_LENGTH = 10;
+    public static final int FEC_ROWS = 1;
+    public static final float RTP_PACING_FRACTION = 0.5f;
+    public static final int RTP_PACING_BURST_MS = 5;
+    public static final boolean ABR_ENABLED = false;
+    public static final int ABR_MIN_BIT_RATE = 250000;
+    public static final int ABR_INCREASE_BIT_RATE = 100000;
+    public static final long ABR_INTERVAL_MS = 500;
+    //client_port of the SETUP request is RTCP_CLIENT_PORT - 1 to RTCP_CLIENT_PORT
+    public static final int RTCP_CLIENT_PORT = 5003;
+    public static final long RTCP_MIN_INTERVAL_MS = 5000;
+    //keyframes requested by PLI, FIR or stream events are at least this far apart
+    public static final long KEY_FRAME_MIN_INTERVAL_MS = 500;
+    public static final int RTP_WAIT_STRATEGY = SpscRing.WAIT_PARK;
     public static final Pattern RTSP_URL_PARTTERN = Pattern.compile("^rtsps?://([^/:]+)(?::(\\d+))*/([^/]+)/?([^*]*)$");
     public static final int CAMERA_DATA_FORMAT = ImageFormat.NV21;
+    public static final String ENCODER_CACHE_FILE = "encoder_probe.properties";
 
 }
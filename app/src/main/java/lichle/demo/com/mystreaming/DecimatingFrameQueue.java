@@ -0,0 +1,91 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Thins the camera frame rate down to a target rate before handing frames to another queue.
+ * Frames are kept on the capture timestamps, so the output cadence stays even when the camera runs faster.
+ */
+
+public class DecimatingFrameQueue extends FrameQueue {
+
+    private final FrameQueue mTarget;
+    private long mIntervalNs;
+    private long mNextFrameNs;
+    private long mDecimatedCount;
+
+    public DecimatingFrameQueue(int targetFps, FrameQueue target) {
+        super(target.getCapacity());
+        mTarget = target;
+        setTargetFps(targetFps);
+    }
+
+    public synchronized void setTargetFps(int targetFps) {
+        mIntervalNs = 1000000000L / Math.max(targetFps, 1);
+        mNextFrameNs = 0;
+    }
+
+    @Override
+    public void offer(NV21Frame frame) {
+        synchronized (this) {
+            long timestamp = frame.getTimestampNs();
+            // A little tolerance so capture jitter does not drop frames which are on time
+            if (mNextFrameNs != 0 && timestamp < mNextFrameNs - mIntervalNs / 4) {
+                mDecimatedCount++;
+                frame.release();
+                return;
+            }
+            // Advance on the ideal grid, but resynchronize after a gap larger than one interval
+            mNextFrameNs = mNextFrameNs == 0 || timestamp - mNextFrameNs > mIntervalNs
+                    ? timestamp + mIntervalNs : mNextFrameNs + mIntervalNs;
+        }
+        mTarget.offer(frame);
+    }
+
+    @Override
+    protected NV21Frame chooseFrameToDrop(NV21Frame incoming) {
+        return incoming;
+    }
+
+    @Override
+    public NV21Frame take() throws InterruptedException {
+        return mTarget.take();
+    }
+
+    @Override
+    public void clear() {
+        mTarget.clear();
+    }
+
+    @Override
+    public int size() {
+        return mTarget.size();
+    }
+
+    /**
+     * Frames removed to reach the target rate, counted apart from the overflow drops of the wrapped queue.
+     */
+    public synchronized long getDecimatedCount() {
+        return mDecimatedCount;
+    }
+
+    @Override
+    public synchronized long getDroppedCount() {
+        return mDecimatedCount + mTarget.getDroppedCount();
+    }
+
+    @Override
+    public long getAverageDwellUs() {
+        return mTarget.getAverageDwellUs();
+    }
+
+    @Override
+    public long getMaxDwellUs() {
+        return mTarget.getMaxDwellUs();
+    }
+
+    @Override
+    public synchronized void resetStats() {
+        mDecimatedCount = 0;
+        mTarget.resetStats();
+    }
+
+}
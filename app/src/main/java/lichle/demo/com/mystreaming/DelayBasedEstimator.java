@@ -0,0 +1,176 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Send side bandwidth estimation from transport-wide feedback. Packets are grouped in bursts of
+ * {@link #BURST_TIME_US} by send time, the delay variation between groups feeds a {@link TrendlineEstimator} and
+ * its state drives an AIMD rate control: overuse sets the target below the rate the receiver got, normal use grows it
+ * by {@link #INCREASE_PER_SECOND} per second, underuse holds it.
+ * <p>
+ * {@link #onPacketSent} is called on the sending threads, {@link #onFeedback} on the RTCP receive thread.
+ */
+
+public class DelayBasedEstimator {
+
+    public static final long BURST_TIME_US = 5000;
+    public static final double DECREASE_FACTOR = 0.85;
+    public static final double INCREASE_PER_SECOND = 0.08;
+    //the target does not run further ahead of the rate the receiver got than this
+    public static final double MAX_RATE_OVER_ACKED = 1.5;
+    private static final int HISTORY_SIZE = 1 << 12;
+    private static final long ACKED_RATE_WINDOW_US = 500000;
+
+    //send time and size by transport sequence number
+    private final long[] mSendTimeUs = new long[HISTORY_SIZE];
+    private final int[] mSize = new int[HISTORY_SIZE];
+    private final int[] mSequence = new int[HISTORY_SIZE];
+
+    private final TrendlineEstimator mTrendline = new TrendlineEstimator();
+    private int mMinBitRate, mMaxBitRate;
+    private double mTargetBitRate;
+
+    //current and previous packet group
+    private long mGroupFirstSendUs = -1, mGroupSendUs, mGroupArrivalUs;
+    private long mPreviousGroupSendUs = -1, mPreviousGroupArrivalUs;
+
+    //bytes acknowledged in the current window of arrival times
+    private long mAckedWindowStartUs = -1;
+    private long mAckedBytes;
+    private double mAckedBitRate = -1;
+
+    private long mLastUpdateUs = -1;
+    private long mLastDecreaseUs = -1;
+    private int mOveruseCount;
+
+    public DelayBasedEstimator(int minBitRate, int maxBitRate, int startBitRate) {
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mTargetBitRate = Math.max(minBitRate, Math.min(maxBitRate, startBitRate));
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            mSequence[i] = -1;
+        }
+    }
+
+    public synchronized void onPacketSent(int sequence, long sendTimeUs, int size) {
+        int slot = sequence & (HISTORY_SIZE - 1);
+        mSequence[slot] = sequence;
+        mSendTimeUs[slot] = sendTimeUs;
+        mSize[slot] = size;
+    }
+
+    /**
+     * Feeds the arrival times of a feedback packet in sequence order.
+     *
+     * @param nowUs local time the feedback arrived, in the clock of the send times
+     */
+    public synchronized void onFeedback(TransportFeedback feedback, long nowUs) {
+        for (int i = 0; i < feedback.getCount(); i++) {
+            if (!feedback.isReceived(i)) {
+                continue;
+            }
+            int sequence = feedback.getSequence(i);
+            int slot = sequence & (HISTORY_SIZE - 1);
+            if (mSequence[slot] != sequence) {
+                // too old, or never sent
+                continue;
+            }
+            onPacketArrived(mSendTimeUs[slot], feedback.getArrivalUs(i), mSize[slot]);
+        }
+        updateTarget(nowUs);
+    }
+
+    public synchronized int getTargetBitRate() {
+        return (int) mTargetBitRate;
+    }
+
+    /**
+     * Rate the receiver got over the last half second, -1 before the first window is complete.
+     */
+    public synchronized int getAckedBitRate() {
+        return (int) mAckedBitRate;
+    }
+
+    public synchronized int getState() {
+        return mTrendline.getState();
+    }
+
+    public synchronized int getOveruseCount() {
+        return mOveruseCount;
+    }
+
+    public synchronized void setLimits(int minBitRate, int maxBitRate) {
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mTargetBitRate = Math.max(minBitRate, Math.min(maxBitRate, mTargetBitRate));
+    }
+
+    private void onPacketArrived(long sendUs, long arrivalUs, int size) {
+        updateAckedRate(arrivalUs, size);
+        if (mGroupFirstSendUs < 0) {
+            startGroup(sendUs, arrivalUs);
+            return;
+        }
+        if (sendUs - mGroupFirstSendUs <= BURST_TIME_US) {
+            // same burst, a reordered packet does not move the group back
+            mGroupSendUs = Math.max(mGroupSendUs, sendUs);
+            mGroupArrivalUs = Math.max(mGroupArrivalUs, arrivalUs);
+            return;
+        }
+        if (mPreviousGroupSendUs >= 0) {
+            double sendDeltaMs = (mGroupSendUs - mPreviousGroupSendUs) / 1000.0;
+            double arrivalDeltaMs = (mGroupArrivalUs - mPreviousGroupArrivalUs) / 1000.0;
+            mTrendline.update(arrivalDeltaMs - sendDeltaMs, sendDeltaMs, mGroupArrivalUs / 1000);
+        }
+        mPreviousGroupSendUs = mGroupSendUs;
+        mPreviousGroupArrivalUs = mGroupArrivalUs;
+        startGroup(sendUs, arrivalUs);
+    }
+
+    private void startGroup(long sendUs, long arrivalUs) {
+        mGroupFirstSendUs = sendUs;
+        mGroupSendUs = sendUs;
+        mGroupArrivalUs = arrivalUs;
+    }
+
+    private void updateAckedRate(long arrivalUs, int size) {
+        if (mAckedWindowStartUs < 0 || arrivalUs < mAckedWindowStartUs) {
+            mAckedWindowStartUs = arrivalUs;
+            mAckedBytes = 0;
+        }
+        long windowUs = arrivalUs - mAckedWindowStartUs;
+        if (windowUs >= ACKED_RATE_WINDOW_US) {
+            double bitRate = mAckedBytes * 8 * 1e6 / windowUs;
+            mAckedBitRate = mAckedBitRate < 0 ? bitRate : 0.5 * mAckedBitRate + 0.5 * bitRate;
+            mAckedWindowStartUs = arrivalUs;
+            mAckedBytes = 0;
+        }
+        mAckedBytes += size;
+    }
+
+    private void updateTarget(long nowUs) {
+        long elapsedUs = mLastUpdateUs < 0 ? 0 : Math.min(nowUs - mLastUpdateUs, 1000000);
+        mLastUpdateUs = nowUs;
+        switch (mTrendline.getState()) {
+            case TrendlineEstimator.OVERUSING:
+                // one cut per 200 ms, the feedback of a cut takes about a round trip to show
+                if (mLastDecreaseUs < 0 || nowUs - mLastDecreaseUs >= 200000) {
+                    double base = mAckedBitRate > 0 ? mAckedBitRate : mTargetBitRate;
+                    mTargetBitRate = Math.min(mTargetBitRate, DECREASE_FACTOR * base);
+                    mLastDecreaseUs = nowUs;
+                    mOveruseCount++;
+                }
+                break;
+            case TrendlineEstimator.UNDERUSING:
+                // queues on the path are draining, wait for them to be empty
+                break;
+            default:
+                double increased = mTargetBitRate * Math.pow(1 + INCREASE_PER_SECOND, elapsedUs / 1e6);
+                if (mAckedBitRate > 0) {
+                    increased = Math.min(increased, Math.max(mTargetBitRate, MAX_RATE_OVER_ACKED * mAckedBitRate));
+                }
+                mTargetBitRate = increased;
+                break;
+        }
+        mTargetBitRate = Math.max(mMinBitRate, Math.min(mMaxBitRate, mTargetBitRate));
+    }
+
+}
@@ -0,0 +1,18 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * FIFO which discards its oldest frame when it is full, so the encoder always sees the most recent frames in order.
+ */
+
+public class DropOldestFrameQueue extends FrameQueue {
+
+    public DropOldestFrameQueue(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    protected NV21Frame chooseFrameToDrop(NV21Frame incoming) {
+        return mFrames.peekFirst();
+    }
+
+}
@@ -0,0 +1,123 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoder output buffer copied once into a direct buffer of an {@link EncodedFramePool}, with its
+ * {@link MediaCodec.BufferInfo} and NAL boundaries, so the codec gets its buffer back before the frame is
+ * packetized, recorded or sent on other threads. Every consumer reads the same copy and calls {@link #release()}
+ * when done, the last one returns the frame to its pool.
+ */
+
+public class EncodedFrame implements IRefCounted {
+
+    private final EncodedFramePool mPool;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private final AnnexBScanner mNals = new AnnexBScanner();
+    private final AtomicInteger mRefCount = new AtomicInteger(0);
+    private ByteBuffer mBuffer;
+    private volatile long mAcquiredNs;
+
+    EncodedFrame(EncodedFramePool pool, int capacity) {
+        mPool = pool;
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Copies info.size bytes from info.offset, the copy starts at offset 0, and finds its NAL units.
+     *
+     * @return true if the buffer had to grow
+     */
+    boolean copyFrom(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        boolean isGrown = false;
+        if (info.size > mBuffer.capacity()) {
+            mBuffer = ByteBuffer.allocateDirect(Math.max(info.size, mBuffer.capacity() * 2));
+            isGrown = true;
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.limit(info.offset + info.size).position(info.offset);
+        mBuffer.clear();
+        mBuffer.put(source).flip();
+        mInfo.set(0, info.size, info.presentationTimeUs, info.flags);
+        mNals.scan(mBuffer, 0, info.size);
+        return isGrown;
+    }
+
+    /**
+     * The encoded data, from 0 to {@link #getSize()}. It is shared by every consumer: read it with absolute gets, or
+     * through a {@link ByteBuffer#duplicate()} to use position and limit on another thread than the packetizer.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public MediaCodec.BufferInfo getInfo() {
+        return mInfo;
+    }
+
+    public int getSize() {
+        return mInfo.size;
+    }
+
+    public long getPresentationTimeUs() {
+        return mInfo.presentationTimeUs;
+    }
+
+    public boolean isKeyFrame() {
+        return (mInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isCodecConfig() {
+        return (mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+    }
+
+    /**
+     * NAL units of the frame, found when it was copied. Read only, do not scan with it.
+     */
+    public AnnexBScanner getNals() {
+        return mNals;
+    }
+
+    /**
+     * Time the frame was taken from the pool, from {@link System#nanoTime()}.
+     */
+    public long getAcquiredNs() {
+        return mAcquiredNs;
+    }
+
+    /**
+     * Called by the pool when the frame is handed out.
+     */
+    void acquire(long nowNs) {
+        mAcquiredNs = nowNs;
+        mRefCount.set(1);
+    }
+
+    @Override
+    public EncodedFrame retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drops one reference, the last one returns the frame to its pool.
+     */
+    @Override
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mPool.recycle(this);
+        } else if (count < 0) {
+            mRefCount.set(0);
+            throw new IllegalStateException("EncodedFrame released more times than retained");
+        }
+    }
+
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+}
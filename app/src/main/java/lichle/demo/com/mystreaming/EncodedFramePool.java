@@ -0,0 +1,111 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded pool of {@link EncodedFrame}s backed by direct buffers, so encoder output is copied once and no buffer is
+ * allocated per frame. A buffer too small for a frame is replaced by a larger one, which stays in the pool.
+ * Frames which are not back after a while are counted as leaked, see {@link #getLeakedCount(long)}.
+ */
+
+public class EncodedFramePool {
+
+    private final EncodedFrame[] mFrames;
+    private final EncodedFrame[] mFree;
+    private int mFreeCount;
+    private long mHitCount, mMissCount, mGrowCount;
+
+    public EncodedFramePool(int size, int capacity) {
+        mFrames = new EncodedFrame[size];
+        mFree = new EncodedFrame[size];
+        for (int i = 0; i < size; i++) {
+            mFrames[i] = new EncodedFrame(this, capacity);
+            mFree[i] = mFrames[i];
+        }
+        mFreeCount = size;
+    }
+
+    /**
+     * Copies an encoder output buffer into a free frame with a single reference, the codec buffer can be released
+     * right after. Returns null, counted as a miss, if every frame is in use.
+     */
+    public EncodedFrame copyOf(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        EncodedFrame frame;
+        synchronized (this) {
+            if (mFreeCount == 0) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+            frame = mFree[--mFreeCount];
+            mFree[mFreeCount] = null;
+        }
+        frame.acquire(System.nanoTime());
+        if (frame.copyFrom(buffer, info)) {
+            synchronized (this) {
+                mGrowCount++;
+            }
+        }
+        return frame;
+    }
+
+    synchronized void recycle(EncodedFrame frame) {
+        mFree[mFreeCount++] = frame;
+    }
+
+    public int getPoolSize() {
+        return mFrames.length;
+    }
+
+    public synchronized int getFreeCount() {
+        return mFreeCount;
+    }
+
+    /**
+     * Frames handed out and not released yet.
+     */
+    public synchronized int getInUseCount() {
+        return mFrames.length - mFreeCount;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Frames lost because the pool was exhausted.
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Buffers replaced because a frame did not fit.
+     */
+    public synchronized long getGrowCount() {
+        return mGrowCount;
+    }
+
+    /**
+     * Frames in use for longer than maxAgeMs, a consumer most likely forgot to release them.
+     */
+    public int getLeakedCount(long maxAgeMs) {
+        long oldestNs = System.nanoTime() - maxAgeMs * 1000000L;
+        int count = 0;
+        for (EncodedFrame frame : mFrames) {
+            if (frame.getRefCount() > 0 && frame.getAcquiredNs() - oldestNs < 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Encoded frames: " + (mFrames.length - mFreeCount) + "/" + mFrames.length + " in use, " + mMissCount
+                + " missed, " + mGrowCount + " grown, " + getLeakedCount(Constants.ENCODED_FRAME_LEAK_MS) + " leaked";
+    }
+
+}
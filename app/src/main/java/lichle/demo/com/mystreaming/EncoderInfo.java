@@ -0,0 +1,84 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * What {@link EncoderProbe} learned about one encoder: its capabilities and how fast it encoded at the probed size.
+ */
+
+public class EncoderInfo {
+
+    private final String mName;
+    private final int[] mColorFormats;
+    //pairs of MediaCodecInfo.CodecProfileLevel profile and level
+    private final int[] mProfileLevels;
+    private final int mColorFormat;
+    private final long mLatencyUs;
+    private final float mFps;
+
+    public EncoderInfo(String name, int[] colorFormats, int[] profileLevels, int colorFormat, long latencyUs, float fps) {
+        mName = name;
+        mColorFormats = colorFormats;
+        mProfileLevels = profileLevels;
+        mColorFormat = colorFormat;
+        mLatencyUs = latencyUs;
+        mFps = fps;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int[] getColorFormats() {
+        return mColorFormats;
+    }
+
+    /**
+     * Flattened profile/level pairs: profile at even indexes, its level at the following odd index.
+     */
+    public int[] getProfileLevels() {
+        return mProfileLevels;
+    }
+
+    /**
+     * The supported color format which is the cheapest to convert NV21 to, the one used when probing.
+     */
+    public int getColorFormat() {
+        return mColorFormat;
+    }
+
+    /**
+     * Average time from queueing an input frame to getting its output, in microseconds. -1 if the probe failed.
+     */
+    public long getLatencyUs() {
+        return mLatencyUs;
+    }
+
+    /**
+     * Frames per second the encoder sustained when fed as fast as possible, 0 if the probe failed.
+     */
+    public float getFps() {
+        return mFps;
+    }
+
+    public boolean isUsable() {
+        return mLatencyUs >= 0 && mFps > 0;
+    }
+
+    public boolean isHardware() {
+        return isHardware(mName);
+    }
+
+    /**
+     * True when the codec is not one of the platform software codecs.
+     * MediaCodecInfo.isHardwareAccelerated needs API 29, so the decision is made on the codec name.
+     */
+    public static boolean isHardware(String name) {
+        name = name.toLowerCase();
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.") && !name.contains(".sw.");
+    }
+
+    @Override
+    public String toString() {
+        return mName + " color " + mColorFormat + ", " + mLatencyUs + " us, " + mFps + " fps";
+    }
+
+}
@@ -0,0 +1,448 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Measures every encoder for a mime type once, at the configured resolution, and keeps the results in a small file.
+ * The file is keyed by device and OS build, so later starts pick the fastest encoder without touching
+ * {@link MediaCodecList}. A new build or another device invalidates the whole file.
+ * <p>
+ * Probing takes up to a few seconds per encoder: {@link #probeInBackground} runs it on a thread of its own while the
+ * caller reads what is already cached with {@link #getCachedEncoders}. It opens the same hardware encoders as the
+ * stream, so it should only run while no stream encoder is open, and is {@link #cancel() cancelled} before one is.
+ * <p>
+ * An encoder which failed to configure, start or encode in time may only have been busy: results with such a failure
+ * are kept for this session only and probed again on the next one. A cancelled probe keeps nothing.
+ */
+
+public class EncoderProbe {
+
+    private static final String TAG = "EncoderProbe";
+    private static final String KEY_BUILD = "build";
+    private static final int PROBE_FRAMES = 20;
+    private static final long PROBE_TIMEOUT_MS = 3000;
+    private static final long CANCEL_WAIT_MS = 1000;
+
+    private final File mCacheFile;
+    private final String mBuildKey;
+    private final Properties mCache = new Properties();
+    private boolean mIsLoaded;
+    private Thread mProbeThread;
+    private volatile boolean mIsCancelled;
+    //results with a failed encoder, not written to the cache file
+    private final Map<String, List<EncoderInfo>> mSessionEncoders = new HashMap<>();
+
+    public EncoderProbe(File cacheFile) {
+        this(cacheFile, Build.FINGERPRINT + "/" + Build.VERSION.INCREMENTAL);
+    }
+
+    /**
+     * @param buildKey identifies the device and OS build the results are valid for
+     */
+    EncoderProbe(File cacheFile, String buildKey) {
+        mCacheFile = cacheFile;
+        mBuildKey = buildKey;
+    }
+
+    /**
+     * Returns the encoder to use for this mime type and size, probing the encoders on the calling thread on the
+     * first call, see {@link #selectBest}.
+     *
+     * @return null if no encoder could be used
+     */
+    public EncoderInfo getBestEncoder(String mime, int width, int height, int fps, int bitRate) {
+        return selectBest(getEncoders(mime, width, height, fps, bitRate), fps);
+    }
+
+    /**
+     * Prefers the lowest latency among the encoders which keep up with the frame rate, else the fastest one.
+     *
+     * @return null if no encoder could be used
+     */
+    public static EncoderInfo selectBest(List<EncoderInfo> encoders, int fps) {
+        EncoderInfo best = null;
+        for (EncoderInfo info : encoders) {
+            if (!info.isUsable()) {
+                continue;
+            }
+            if (best == null) {
+                best = info;
+                continue;
+            }
+            boolean keepsUp = info.getFps() >= fps;
+            boolean bestKeepsUp = best.getFps() >= fps;
+            if (keepsUp && !bestKeepsUp
+                    || keepsUp && info.getLatencyUs() < best.getLatencyUs()
+                    || !keepsUp && !bestKeepsUp && info.getFps() > best.getFps()) {
+                best = info;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Probe results for every encoder of the mime type, read from the cache when available. Probes on the calling
+     * thread otherwise.
+     *
+     * @return an empty list if the probe was cancelled
+     */
+    public List<EncoderInfo> getEncoders(String mime, int width, int height, int fps, int bitRate) {
+        List<EncoderInfo> encoders = getCachedEncoders(mime, width, height);
+        if (encoders == null) {
+            encoders = probe(mime, width, height, fps, bitRate);
+            if (encoders == null) {
+                return new ArrayList<>();
+            }
+            keepResults(mime, width, height, encoders);
+        }
+        return encoders;
+    }
+
+    /**
+     * Caches the results of a probe, or keeps them for this session only when an encoder failed.
+     */
+    synchronized void keepResults(String mime, int width, int height, List<EncoderInfo> encoders) {
+        if (isComplete(encoders)) {
+            putEncoders(mime, width, height, encoders);
+        } else {
+            mSessionEncoders.put(getPrefix(mime, width, height), encoders);
+        }
+    }
+
+    /**
+     * Probe results of the mime type at this size, never probes.
+     *
+     * @return null if the encoders were not probed yet on this build
+     */
+    public synchronized List<EncoderInfo> getCachedEncoders(String mime, int width, int height) {
+        loadCache();
+        String prefix = getPrefix(mime, width, height);
+        List<EncoderInfo> encoders = readEncoders(prefix);
+        return encoders != null ? encoders : mSessionEncoders.get(prefix);
+    }
+
+    /**
+     * Stores probe results and writes the cache file.
+     */
+    public synchronized void putEncoders(String mime, int width, int height, List<EncoderInfo> encoders) {
+        loadCache();
+        writeEncoders(getPrefix(mime, width, height), encoders);
+        saveCache();
+    }
+
+    /**
+     * True when every encoder with a color format we can feed was measured. A failure may be transient, e.g. every
+     * hardware encode session of the SoC in use, and must not be cached for the whole build.
+     */
+    static boolean isComplete(List<EncoderInfo> encoders) {
+        for (EncoderInfo info : encoders) {
+            if (info.getColorFormat() != -1 && !info.isUsable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Probes the mime types which are not cached yet on a background thread, unless a probe is already running.
+     * The results are read by the next {@link #getCachedEncoders} once it is done.
+     */
+    public synchronized void probeInBackground(final String[] mimes, final int width, final int height, final int fps,
+                                               final int bitRate) {
+        if (mProbeThread != null && mProbeThread.isAlive()) {
+            return;
+        }
+        mIsCancelled = false;
+        mProbeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (String mime : mimes) {
+                    if (mIsCancelled) {
+                        return;
+                    }
+                    getEncoders(mime, width, height, fps, bitRate);
+                }
+            }
+        }, "EncoderProbe");
+        mProbeThread.start();
+    }
+
+    /**
+     * Stops a background probe and waits a bounded time for it to release the encoder it measures. Nothing of the
+     * cancelled probe is kept.
+     */
+    public void cancel() {
+        Thread thread;
+        synchronized (this) {
+            thread = mProbeThread;
+        }
+        if (thread == null || !thread.isAlive()) {
+            return;
+        }
+        mIsCancelled = true;
+        try {
+            thread.join(CANCEL_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            Log.w(TAG, "The encoder probe did not stop in " + CANCEL_WAIT_MS + " ms");
+        } else {
+            mIsCancelled = false;
+        }
+    }
+
+    public synchronized boolean isProbing() {
+        return mProbeThread != null && mProbeThread.isAlive();
+    }
+
+    private static String getPrefix(String mime, int width, int height) {
+        return mime + "." + width + "x" + height;
+    }
+
+    private void loadCache() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        if (mCacheFile.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(mCacheFile);
+                mCache.load(in);
+            } catch (IOException e) {
+                Log.e(TAG, "Can not read the encoder cache", e);
+                mCache.clear();
+            } finally {
+                closeQuietly(in);
+            }
+        }
+        if (!mBuildKey.equals(mCache.getProperty(KEY_BUILD))) {
+            mCache.clear();
+            mCache.setProperty(KEY_BUILD, mBuildKey);
+        }
+    }
+
+    private void saveCache() {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(mCacheFile);
+            mCache.store(out, "Encoder probe results");
+        } catch (IOException e) {
+            Log.e(TAG, "Can not write the encoder cache", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private List<EncoderInfo> readEncoders(String prefix) {
+        String count = mCache.getProperty(prefix + ".count");
+        if (count == null) {
+            return null;
+        }
+        try {
+            List<EncoderInfo> encoders = new ArrayList<>();
+            for (int i = 0; i < Integer.parseInt(count); i++) {
+                String key = prefix + "." + i;
+                encoders.add(new EncoderInfo(mCache.getProperty(key + ".name"),
+                        parseInts(mCache.getProperty(key + ".colorFormats")),
+                        parseInts(mCache.getProperty(key + ".profileLevels")),
+                        Integer.parseInt(mCache.getProperty(key + ".colorFormat")),
+                        Long.parseLong(mCache.getProperty(key + ".latencyUs")),
+                        Float.parseFloat(mCache.getProperty(key + ".fps"))));
+            }
+            return encoders;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Corrupted encoder cache, probing again", e);
+            return null;
+        }
+    }
+
+    private void writeEncoders(String prefix, List<EncoderInfo> encoders) {
+        mCache.setProperty(prefix + ".count", String.valueOf(encoders.size()));
+        for (int i = 0; i < encoders.size(); i++) {
+            EncoderInfo info = encoders.get(i);
+            String key = prefix + "." + i;
+            mCache.setProperty(key + ".name", info.getName());
+            mCache.setProperty(key + ".colorFormats", joinInts(info.getColorFormats()));
+            mCache.setProperty(key + ".profileLevels", joinInts(info.getProfileLevels()));
+            mCache.setProperty(key + ".colorFormat", String.valueOf(info.getColorFormat()));
+            mCache.setProperty(key + ".latencyUs", String.valueOf(info.getLatencyUs()));
+            mCache.setProperty(key + ".fps", String.valueOf(info.getFps()));
+        }
+    }
+
+    /**
+     * @return null if the probe was cancelled
+     */
+    private List<EncoderInfo> probe(String mime, int width, int height, int fps, int bitRate) {
+        List<EncoderInfo> encoders = new ArrayList<>();
+        MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
+        for (MediaCodecInfo mci : mediaCodecList.getCodecInfos()) {
+            if (mIsCancelled) {
+                return null;
+            }
+            if (!mci.isEncoder() || !supportsType(mci, mime)) {
+                continue;
+            }
+            MediaCodecInfo.CodecCapabilities capabilities = mci.getCapabilitiesForType(mime);
+            int colorFormat = -1;
+            int cost = Integer.MAX_VALUE;
+            for (int color : capabilities.colorFormats) {
+                int colorCost = YuvConverter.getConversionCost(YuvConverter.getFormatForColorFormat(color));
+                if (colorCost < cost) {
+                    cost = colorCost;
+                    colorFormat = color;
+                }
+            }
+            int[] profileLevels = new int[capabilities.profileLevels.length * 2];
+            for (int i = 0; i < capabilities.profileLevels.length; i++) {
+                profileLevels[2 * i] = capabilities.profileLevels[i].profile;
+                profileLevels[2 * i + 1] = capabilities.profileLevels[i].level;
+            }
+            long[] result = colorFormat == -1 ? new long[]{-1, 0}
+                    : measure(mci.getName(), mime, colorFormat, width, height, fps, bitRate);
+            if (mIsCancelled) {
+                return null;
+            }
+            EncoderInfo info = new EncoderInfo(mci.getName(), capabilities.colorFormats, profileLevels, colorFormat,
+                    result[0], result[1] / 1000f);
+            Log.i(TAG, "probed " + info);
+            encoders.add(info);
+        }
+        return encoders;
+    }
+
+    /**
+     * Encodes a few gray frames as fast as the encoder takes them.
+     *
+     * @return average input to output latency in us and throughput in frames per 1000 seconds, {-1, 0} on failure
+     */
+    private long[] measure(String name, String mime, int colorFormat, int width, int height, int fps, int bitRate) {
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createByCodecName(name);
+            MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+
+            int frameSize = width * height * 3 / 2;
+            byte[] gray = new byte[frameSize];
+            Arrays.fill(gray, (byte) 0x80);
+            long frameUs = 1000000L / fps;
+            long[] queuedAtNs = new long[PROBE_FRAMES];
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int queued = 0, received = 0;
+            long latencySumNs = 0;
+            long firstNs = System.nanoTime();
+            long lastNs = firstNs;
+            long deadline = firstNs + PROBE_TIMEOUT_MS * 1000000L;
+            while (received < PROBE_FRAMES && System.nanoTime() < deadline && !mIsCancelled) {
+                if (queued < PROBE_FRAMES) {
+                    int inIndex = codec.dequeueInputBuffer(0);
+                    if (inIndex >= 0) {
+                        ByteBuffer in = codec.getInputBuffer(inIndex);
+                        in.clear();
+                        in.put(gray);
+                        queuedAtNs[queued] = System.nanoTime();
+                        codec.queueInputBuffer(inIndex, 0, frameSize, queued * frameUs, 0);
+                        queued++;
+                    }
+                }
+                int outIndex = codec.dequeueOutputBuffer(info, 1000);
+                if (outIndex >= 0) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        int frame = (int) (info.presentationTimeUs / frameUs);
+                        lastNs = System.nanoTime();
+                        if (frame >= 0 && frame < PROBE_FRAMES) {
+                            latencySumNs += lastNs - queuedAtNs[frame];
+                        }
+                        received++;
+                    }
+                    codec.releaseOutputBuffer(outIndex, false);
+                }
+            }
+            if (received == 0) {
+                return new long[]{-1, 0};
+            }
+            return new long[]{latencySumNs / received / 1000, received * 1000000000000L / Math.max(lastNs - firstNs, 1)};
+        } catch (Exception e) {
+            Log.e(TAG, "Can not probe " + name, e);
+            return new long[]{-1, 0};
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                codec.release();
+            }
+        }
+    }
+
+    private static boolean supportsType(MediaCodecInfo mci, String mime) {
+        for (String type : mci.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String joinInts(int[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    private static int[] parseInts(String value) {
+        if (value.isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = value.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i]);
+        }
+        return values;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * XOR forward error correction of RFC 5109 over a block of rows x rowLength media packets, sent in order row by row.
+ * A row FEC packet protects each row, so one loss per row is repaired. With more than one row a column FEC packet
+ * protects each column, packets rowLength apart, so a burst of up to rowLength packets is repaired as well.
+ * <p>
+ * FEC packets are RTP packets of their own SSRC and {@link Constants#FEC_PAYLOAD_TYPE}, with the FEC header and one
+ * level 0 ULP header with the 48 bit mask. They are built in preallocated buffers, {@link #add} returns how many
+ * were completed by a media packet and they are valid until the next add.
+ */
+
+public class FecEncoder {
+
+    public static final int FEC_HEADER_LENGTH = 10;
+    public static final int ULP_HEADER_LENGTH = 8;
+    //RTP header, FEC header and ULP level header
+    public static final int HEADER_LENGTH = Constants.RTP_HEADER_LENGTH + FEC_HEADER_LENGTH + ULP_HEADER_LENGTH;
+    //the long mask covers 48 packets from the base sequence number
+    public static final int MAX_SPAN = 48;
+
+    private final int mSsrc;
+    private int mSeq;
+
+    private int mRowLength, mRows;
+    //set by setGroups, applied at the start of the next block
+    private int mNextRowLength, mNextRows;
+
+    //sequence number of the first packet of the block, and of the next packet expected
+    private int mBlockBase;
+    private int mExpected = -1;
+    private int mIndex;
+
+    private final Parity mRow = new Parity();
+    private Parity[] mColumns = new Parity[0];
+    private final Parity[] mCompleted = new Parity[2];
+    private volatile long mMediaPackets, mFecPackets;
+
+    public FecEncoder(int ssrc, int sequence) {
+        mSsrc = ssrc;
+        mSeq = sequence & 0xFFFF;
+    }
+
+    /**
+     * Changes the protection from the next block on, rowLength 0 turns it off. Overhead is 1 / rowLength with one
+     * row, 1 / rowLength + 1 / rows with more.
+     */
+    public synchronized void setGroups(int rowLength, int rows) {
+        if (rowLength < 0 || rows < 1 || rowLength > MAX_SPAN || (rows - 1) * rowLength >= MAX_SPAN) {
+            throw new IllegalArgumentException("rows x rowLength does not fit the 48 bit mask");
+        }
+        mNextRowLength = rowLength;
+        mNextRows = rows;
+        if (mExpected < 0) {
+            startBlock(mBlockBase);
+        }
+    }
+
+    /**
+     * Picks the groups for a measured loss rate: rows short enough for about one loss in two rows, and columns
+     * against bursts above 5% loss. No loss keeps light protection.
+     */
+    public synchronized void adaptToLoss(float lossRate) {
+        int rowLength = lossRate > 0 ? Math.round(0.5f / lossRate) : 24;
+        rowLength = Math.max(4, Math.min(24, rowLength));
+        int rows = lossRate > 0.05f ? Math.min(4, (MAX_SPAN - 1) / rowLength + 1) : 1;
+        setGroups(rowLength, rows);
+    }
+
+    public synchronized int getRowLength() {
+        return mNextRowLength;
+    }
+
+    public synchronized int getRows() {
+        return mNextRows;
+    }
+
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    public long getMediaPacketCount() {
+        return mMediaPackets;
+    }
+
+    public long getFecPacketCount() {
+        return mFecPackets;
+    }
+
+    /**
+     * Adds the media packet sent after the previous one. A gap in the sequence numbers drops the current block.
+     *
+     * @return FEC packets completed by this packet, see {@link #getPacket(int)}
+     */
+    public synchronized int add(byte[] packet, int offset, int length) {
+        int sequence = ((packet[offset + 2] & 0xFF) << 8) | (packet[offset + 3] & 0xFF);
+        if (sequence != mExpected) {
+            startBlock(sequence);
+        }
+        mExpected = (sequence + 1) & 0xFFFF;
+        if (mRowLength == 0) {
+            // picks up protection turned on
+            startBlock(mExpected);
+            return 0;
+        }
+        mMediaPackets++;
+        int row = mIndex / mRowLength;
+        int column = mIndex % mRowLength;
+        int completed = 0;
+
+        mRow.add(packet, offset, length, column == 0);
+        if (column == mRowLength - 1) {
+            mRow.finish(sequence - column, rowMask(), ++mSeq, mSsrc);
+            mCompleted[completed++] = mRow;
+        }
+        if (mRows > 1) {
+            Parity parity = mColumns[column];
+            parity.add(packet, offset, length, row == 0);
+            if (row == mRows - 1) {
+                parity.finish(mBlockBase + column, columnMask(), ++mSeq, mSsrc);
+                mCompleted[completed++] = parity;
+            }
+        }
+        if (++mIndex == mRowLength * mRows) {
+            startBlock(mExpected);
+        }
+        mFecPackets += completed;
+        return completed;
+    }
+
+    public synchronized byte[] getPacket(int i) {
+        return mCompleted[i].mBuffer;
+    }
+
+    public synchronized int getPacketLength(int i) {
+        return mCompleted[i].mLength;
+    }
+
+    private void startBlock(int sequence) {
+        mBlockBase = sequence & 0xFFFF;
+        mIndex = 0;
+        mRowLength = mNextRowLength;
+        mRows = mNextRows;
+        if (mRows > 1 && mColumns.length < mRowLength) {
+            Parity[] columns = new Parity[mRowLength];
+            System.arraycopy(mColumns, 0, columns, 0, mColumns.length);
+            for (int i = mColumns.length; i < mRowLength; i++) {
+                columns[i] = new Parity();
+            }
+            mColumns = columns;
+        }
+    }
+
+    private long rowMask() {
+        return ((1L << mRowLength) - 1) << (MAX_SPAN - mRowLength);
+    }
+
+    private long columnMask() {
+        long mask = 0;
+        for (int row = 0; row < mRows; row++) {
+            mask |= 1L << (MAX_SPAN - 1 - row * mRowLength);
+        }
+        return mask;
+    }
+
+    /**
+     * XOR of the protected packets: the recovery fields of their headers and everything after the fixed RTP header.
+     */
+    private static class Parity {
+        final byte[] mBuffer = new byte[HEADER_LENGTH + Constants.MTU];
+        int mLength;
+        int mFlags, mLengthRecovery, mProtectionLength;
+        int mTimestampRecovery, mTimestamp;
+
+        void add(byte[] packet, int offset, int length, boolean first) {
+            int protectedLength = length - Constants.RTP_HEADER_LENGTH;
+            int flags = ((packet[offset] & 0x3F) << 8) | (packet[offset + 1] & 0xFF);
+            int timestamp = ((packet[offset + 4] & 0xFF) << 24) | ((packet[offset + 5] & 0xFF) << 16)
+                    | ((packet[offset + 6] & 0xFF) << 8) | (packet[offset + 7] & 0xFF);
+            mTimestamp = timestamp;
+            if (first) {
+                mFlags = flags;
+                mTimestampRecovery = timestamp;
+                mLengthRecovery = protectedLength;
+                mProtectionLength = protectedLength;
+                System.arraycopy(packet, offset + Constants.RTP_HEADER_LENGTH, mBuffer, HEADER_LENGTH,
+                        protectedLength);
+                return;
+            }
+            mFlags ^= flags;
+            mTimestampRecovery ^= timestamp;
+            mLengthRecovery ^= protectedLength;
+            if (protectedLength > mProtectionLength) {
+                // shorter packets are padded with zeros
+                for (int i = mProtectionLength; i < protectedLength; i++) {
+                    mBuffer[HEADER_LENGTH + i] = 0;
+                }
+                mProtectionLength = protectedLength;
+            }
+            int source = offset + Constants.RTP_HEADER_LENGTH;
+            for (int i = 0; i < protectedLength; i++) {
+                mBuffer[HEADER_LENGTH + i] ^= packet[source + i];
+            }
+        }
+
+        /**
+         * Writes the RTP, FEC and ULP headers, the timestamp is the one of the last packet protected.
+         */
+        void finish(int base, long mask, int sequence, int ssrc) {
+            byte[] b = mBuffer;
+            b[0] = (byte) 0x80;
+            b[1] = (byte) Constants.FEC_PAYLOAD_TYPE;
+            writeShort(b, 2, sequence);
+            writeInt(b, 4, mTimestamp);
+            writeInt(b, 8, ssrc);
+            int fec = Constants.RTP_HEADER_LENGTH;
+            // E = 0, L = 1 (long mask), then the P, X, CC, M and PT recovery
+            b[fec] = (byte) (0x40 | ((mFlags >> 8) & 0x3F));
+            b[fec + 1] = (byte) mFlags;
+            writeShort(b, fec + 2, base);
+            writeInt(b, fec + 4, mTimestampRecovery);
+            writeShort(b, fec + 8, mLengthRecovery);
+            int ulp = fec + FEC_HEADER_LENGTH;
+            writeShort(b, ulp, mProtectionLength);
+            writeShort(b, ulp + 2, (int) (mask >> 32));
+            writeInt(b, ulp + 4, (int) mask);
+            mLength = HEADER_LENGTH + mProtectionLength;
+        }
+
+        private static void writeShort(byte[] b, int offset, int value) {
+            b[offset] = (byte) (value >> 8);
+            b[offset + 1] = (byte) value;
+        }
+
+        private static void writeInt(byte[] b, int offset, int value) {
+            writeShort(b, offset, value >> 16);
+            writeShort(b, offset + 2, value);
+        }
+    }
+
+}
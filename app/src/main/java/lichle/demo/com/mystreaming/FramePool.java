@@ -0,0 +1,115 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Bounded pool of preallocated {@link NV21Frame}s, so no buffer is allocated per frame.
+ * A frame is handed out by {@link #acquire()} and comes back here when its last reference is released.
+ */
+
+public class FramePool {
+
+    public interface OnFrameRecycledListener {
+
+        void onFrameRecycled(FramePool pool);
+
+    }
+
+    private final NV21Frame[] mFrames;
+    private final NV21Frame[] mFree;
+    private final int mWidth, mHeight;
+    private int mFreeCount;
+    private long mHitCount, mMissCount, mDroppedCount;
+    private OnFrameRecycledListener mListener;
+
+    public FramePool(int size, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mFrames = new NV21Frame[size];
+        mFree = new NV21Frame[size];
+        for (int i = 0; i < size; i++) {
+            mFrames[i] = new NV21Frame(this, new byte[width * height * 3 / 2], width, height);
+            mFree[i] = mFrames[i];
+        }
+        mFreeCount = size;
+    }
+
+    public void setOnFrameRecycledListener(OnFrameRecycledListener listener) {
+        mListener = listener;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns a free frame with a single reference, or null if every frame is in use.
+     * A null result is counted as a miss and as a dropped frame.
+     */
+    public synchronized NV21Frame acquire() {
+        if (mFreeCount == 0) {
+            mMissCount++;
+            mDroppedCount++;
+            return null;
+        }
+        mHitCount++;
+        NV21Frame frame = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        frame.setSize(mWidth, mHeight);
+        frame.acquire();
+        return frame;
+    }
+
+    /**
+     * Finds the frame which wraps the given array, or null if the array does not belong to this pool.
+     */
+    public NV21Frame find(byte[] data) {
+        for (NV21Frame frame : mFrames) {
+            if (frame.getData() == data) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    void recycle(NV21Frame frame) {
+        OnFrameRecycledListener listener;
+        synchronized (this) {
+            mFree[mFreeCount++] = frame;
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onFrameRecycled(this);
+        }
+    }
+
+    /**
+     * Counts frames which were lost upstream because no pooled buffer was available.
+     */
+    public synchronized void recordDropped(long count) {
+        mDroppedCount += count;
+    }
+
+    public int getPoolSize() {
+        return mFrames.length;
+    }
+
+    public synchronized int getFreeCount() {
+        return mFreeCount;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+}
@@ -0,0 +1,133 @@
+package lichle.demo.com.mystreaming;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded hand-off of camera frames to the encoder thread.
+ * Subclasses decide which frame is dropped when the encoder falls behind; a dropped frame is released
+ * immediately so its buffer goes back to the camera. Every queue reports its drop count and how long
+ * frames waited before the encoder took them.
+ */
+
+public abstract class FrameQueue {
+
+    public static final int POLICY_DROP_OLDEST = 0;
+    public static final int POLICY_LATEST_FRAME = 1;
+    public static final int POLICY_DECIMATE = 2;
+
+    protected final ArrayDeque<NV21Frame> mFrames;
+    private final int mCapacity;
+    private long mDroppedCount;
+    private long mTakenCount, mDwellTotalNs, mDwellMaxNs;
+
+    protected FrameQueue(int capacity) {
+        mCapacity = capacity;
+        mFrames = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Creates a queue for one of the POLICY_ constants.
+     *
+     * @param targetFps only used by {@link #POLICY_DECIMATE}, which keeps a single slot behind the decimation
+     */
+    public static FrameQueue create(int policy, int targetFps) {
+        switch (policy) {
+            case POLICY_DROP_OLDEST:
+                return new DropOldestFrameQueue(Constants.RAW_DATA_QUEUE_SIZE);
+            case POLICY_LATEST_FRAME:
+                return new LatestFrameQueue();
+            case POLICY_DECIMATE:
+                return new DecimatingFrameQueue(targetFps, new LatestFrameQueue());
+            default:
+                throw new IllegalArgumentException("Unknown queue policy " + policy);
+        }
+    }
+
+    /**
+     * Queues a frame. The queue takes over the caller's reference.
+     */
+    public synchronized void offer(NV21Frame frame) {
+        frame.setQueuedNs(System.nanoTime());
+        if (mFrames.size() >= mCapacity) {
+            NV21Frame dropped = chooseFrameToDrop(frame);
+            if (dropped == frame) {
+                dropFrame(frame);
+                return;
+            }
+            mFrames.remove(dropped);
+            dropFrame(dropped);
+        }
+        mFrames.addLast(frame);
+        notifyAll();
+    }
+
+    /**
+     * Called when the queue is full, returns the queued frame to discard or the incoming one.
+     */
+    protected abstract NV21Frame chooseFrameToDrop(NV21Frame incoming);
+
+    /**
+     * Blocks until a frame is available. The caller owns the returned reference.
+     */
+    public synchronized NV21Frame take() throws InterruptedException {
+        while (mFrames.isEmpty()) {
+            wait();
+        }
+        NV21Frame frame = mFrames.pollFirst();
+        long now = System.nanoTime();
+        long dwell = now - frame.getQueuedNs();
+        frame.setDequeuedNs(now);
+        mTakenCount++;
+        mDwellTotalNs += dwell;
+        if (dwell > mDwellMaxNs) {
+            mDwellMaxNs = dwell;
+        }
+        return frame;
+    }
+
+    /**
+     * Releases every queued frame.
+     */
+    public synchronized void clear() {
+        NV21Frame frame;
+        while ((frame = mFrames.pollFirst()) != null) {
+            frame.release();
+        }
+    }
+
+    public synchronized int size() {
+        return mFrames.size();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    protected synchronized void dropFrame(NV21Frame frame) {
+        mDroppedCount++;
+        frame.release();
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Average time a frame spent in the queue, in microseconds.
+     */
+    public synchronized long getAverageDwellUs() {
+        return mTakenCount == 0 ? 0 : mDwellTotalNs / mTakenCount / 1000;
+    }
+
+    public synchronized long getMaxDwellUs() {
+        return mDwellMaxNs / 1000;
+    }
+
+    public synchronized void resetStats() {
+        mDroppedCount = 0;
+        mTakenCount = 0;
+        mDwellTotalNs = 0;
+        mDwellMaxNs = 0;
+    }
+
+}
@@ -0,0 +1,69 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * H.265 payload format (RFC 7798) without DONL: aggregation packets (type 48) and fragmentation units (type 49).
+ * The 2 bytes NAL unit header is F(1) Type(6) LayerId(6) TID(3).
+ */
+
+public class H265Packet extends NalPacketizer {
+
+    public static final int NAL_VPS = 32;
+    public static final int NAL_SPS = 33;
+    public static final int NAL_PPS = 34;
+    //BLA, IDR and CRA pictures
+    private static final int NAL_IRAP_FIRST = 16;
+    private static final int NAL_IRAP_LAST = 21;
+    private static final int AP = 48;
+    private static final int FU = 49;
+
+    public H265Packet(RtspClient rtspClient) {
+        super(rtspClient, 2);
+    }
+
+    @Override
+    public String getEncodingName() {
+        return "H265";
+    }
+
+    public void setVPSandSPSandPPS(byte[] vps, byte[] sps, byte[] pps) {
+        setParameterSets(vps, sps, pps);
+    }
+
+    /**
+     * NAL unit type read from the first byte of a NAL unit header.
+     */
+    public static int getNalTypeFromFirstByte(int firstByte) {
+        return (firstByte >> 1) & 0x3F;
+    }
+
+    @Override
+    protected int getNalType(int nalHeader) {
+        return (nalHeader >> 9) & 0x3F;
+    }
+
+    @Override
+    protected boolean isRandomAccess(int nalType) {
+        return nalType >= NAL_IRAP_FIRST && nalType <= NAL_IRAP_LAST;
+    }
+
+    @Override
+    protected int getAggregationHeader(int nalHeader) {
+        return (nalHeader & 0x81FF) | (AP << 9);
+    }
+
+    @Override
+    protected int mergeAggregationHeader(int aggregationHeader, int nalHeader) {
+        // F is set when any unit has it, LayerId and TID are the lowest of the units
+        int forbidden = (aggregationHeader | nalHeader) & 0x8000;
+        int layerId = Math.min((aggregationHeader >> 3) & 0x3F, (nalHeader >> 3) & 0x3F);
+        int tid = Math.min(aggregationHeader & 0x07, nalHeader & 0x07);
+        return forbidden | (AP << 9) | (layerId << 3) | tid;
+    }
+
+    @Override
+    protected int getFragmentationHeader(int nalHeader) {
+        // F, LayerId and TID of the NAL unit, type FU
+        return (nalHeader & 0x81FF) | (FU << 9);
+    }
+
+}
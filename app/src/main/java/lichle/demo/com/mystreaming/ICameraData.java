@@ -6,6 +6,6 @@ package lichle.demo.com.mystreaming;
 
 public interface ICameraData {
 
-    void onNV21Data(byte[] data);
+    void onNV21Data(NV21Frame frame);
 
 }
@@ -10,7 +10,10 @@ import java.nio.ByteBuffer;
 
 public interface IH264Data {
 
-    void onParametersDecoded(ByteBuffer sps, ByteBuffer pps);
+    /**
+     * Parameter sets of the stream, each behind a start code. vps is null for H.264.
+     */
+    void onParametersDecoded(ByteBuffer vps, ByteBuffer sps, ByteBuffer pps);
 
     void onH264Data(ByteBuffer buffer, MediaCodec.BufferInfo info);
 
@@ -0,0 +1,16 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Encoder which can be asked for a keyframe outside its regular keyframe interval.
+ */
+
+public interface IKeyFrameSource {
+
+    /**
+     * Asks for the next frame to be a keyframe.
+     *
+     * @return false if the encoder is not running or did not take the request
+     */
+    boolean requestKeyFrame();
+
+}
@@ -0,0 +1,70 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns encoder output into RTP packets for one video codec.
+ */
+
+public interface IPacketizer {
+
+    /**
+     * Payload format name used in the SDP rtpmap line, e.g. H264.
+     */
+    String getEncodingName();
+
+    /**
+     * Parameter sets without start codes, sent in one aggregation packet ahead of every random access picture.
+     */
+    void setParameterSets(byte[]... parameterSets);
+
+    void createAndSendPacket(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo);
+
+    /**
+     * Same as {@link #createAndSendPacket(ByteBuffer, MediaCodec.BufferInfo)} for a frame whose NAL units are known.
+     */
+    void createAndSendPacket(EncodedFrame frame);
+
+    void updateDestinationVideo();
+
+    void close();
+
+    RtpSocket getRtpSocket();
+
+    /**
+     * Aggregates consecutive small NAL units of the access unit in one packet.
+     */
+    void setAggregation(boolean enabled);
+
+    boolean isAggregating();
+
+    /**
+     * NAL units handed to the packetizer.
+     */
+    long getNalCount();
+
+    /**
+     * RTP packets sent, parameter sets and fragments included.
+     */
+    long getPacketCount();
+
+    /**
+     * NAL units which were sent inside an aggregation packet together with other NAL units of the same frame.
+     */
+    long getAggregatedNalCount();
+
+    /**
+     * Packets which aggregation avoided compared to one packet per small NAL unit.
+     */
+    long getPacketsSaved();
+
+    /**
+     * Average rate of saved packets since the first frame, in packets per second.
+     */
+    double getPacketsSavedPerSecond();
+
+    void resetStats();
+
+}
@@ -0,0 +1,17 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * A buffer shared by reference counting, e.g. between the stages of the pipeline. Whoever keeps it past the call
+ * which handed it over retains it, and each retain is matched by one {@link #release()}.
+ */
+
+public interface IRefCounted {
+
+    IRefCounted retain();
+
+    /**
+     * Drops one reference, the last one recycles the buffer.
+     */
+    void release();
+
+}
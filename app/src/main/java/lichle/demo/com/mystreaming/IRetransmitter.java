@@ -0,0 +1,11 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Resends RTP packets a generic NACK reported lost, called on the RTCP receive thread once per sequence number.
+ */
+
+public interface IRetransmitter {
+
+    void retransmit(int ssrc, int sequenceNumber);
+
+}
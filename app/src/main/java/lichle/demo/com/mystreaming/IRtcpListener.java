@@ -0,0 +1,27 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * RTCP feedback from the server, called on the RTCP receive thread.
+ */
+
+public interface IRtcpListener {
+
+    void onReceptionReport(ReceptionReport report);
+
+    /**
+     * Generic NACK (RFC 4585): the receiver misses these RTP sequence numbers of the source.
+     */
+    void onNack(int ssrc, int[] sequenceNumbers);
+
+    /**
+     * Picture loss indication (RFC 4585) or full intra request (RFC 5104), both ask for a keyframe.
+     *
+     * @param fullIntraRequest true for FIR, false for PLI
+     */
+    void onKeyFrameRequest(int ssrc, boolean fullIntraRequest);
+
+    void onSourceDescription(int ssrc, String cname);
+
+    void onBye(int ssrc);
+
+}
@@ -0,0 +1,72 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of {@link MediaCodec} used by {@link VideoEncoder}, so the feed/drain logic can run against a fake codec.
+ */
+
+public interface IVideoCodec {
+
+    /**
+     * Asynchronous mode notifications, see {@link MediaCodec.Callback}.
+     */
+    interface Callback {
+
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(Exception e);
+
+    }
+
+    /**
+     * Switches the codec to asynchronous mode, must be called before {@link #configure(MediaFormat)}.
+     */
+    void setCallback(Callback callback);
+
+    void configure(MediaFormat format);
+
+    void start();
+
+    void stop();
+
+    void flush();
+
+    void release();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    /**
+     * Input buffer as YUV planes with their strides, null if the codec only takes plain buffers.
+     */
+    Image getInputImage(int index);
+
+    void queueInputBuffer(int index, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    /**
+     * Format the codec was configured with, holding the settings it kept.
+     */
+    MediaFormat getInputFormat();
+
+    void setParameters(Bundle params);
+
+}
@@ -0,0 +1,132 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Forwards keyframe requests (API, PLI, FIR, connect, destination change, dropped frame) to the encoder, at most one
+ * per {@link Constants#KEY_FRAME_MIN_INTERVAL_MS} and not shortly after a keyframe. Requests arriving in between are
+ * coalesced into one pending request, which is sent with a later frame once the interval is over, or dropped when a
+ * keyframe comes first. Times are passed by the caller.
+ * <p>
+ * The encoder is called outside the lock of the requester: {@link #onFrame} runs on a thread of the pipeline, which
+ * may hold locks of the encoder itself.
+ */
+
+public class KeyFrameRequester {
+
+    public static final int REASON_API = 0;
+    public static final int REASON_PLI = 1;
+    public static final int REASON_FIR = 2;
+    public static final int REASON_CONNECT = 3;
+    public static final int REASON_DESTINATION = 4;
+    //an encoded frame was dropped before it was sent, the following ones can not be decoded
+    public static final int REASON_DROP = 5;
+    private static final int REASON_COUNT = 6;
+
+    private final IKeyFrameSource mSource;
+    private final long mMinIntervalMs;
+    private long mLastRequestMs = Long.MIN_VALUE / 2;
+    private long mLastKeyFrameMs = Long.MIN_VALUE / 2;
+    private boolean mIsPending;
+    private final long[] mRequestCounts = new long[REASON_COUNT];
+    private long mSentCount, mCoalescedCount;
+
+    public KeyFrameRequester(IKeyFrameSource source, long minIntervalMs) {
+        mSource = source;
+        mMinIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * @param reason one of the REASON constants
+     * @return true if the request reached the encoder now, false if it is pending or the encoder refused it
+     */
+    public boolean request(int reason, long nowMs) {
+        long previousRequestMs;
+        synchronized (this) {
+            mRequestCounts[reason]++;
+            if (!canSend(nowMs)) {
+                if (mIsPending) {
+                    mCoalescedCount++;
+                }
+                mIsPending = true;
+                return false;
+            }
+            previousRequestMs = reserve(nowMs);
+        }
+        return send(previousRequestMs);
+    }
+
+    /**
+     * Called for each encoded frame. A keyframe answers the pending request, any other frame sends it when the
+     * interval is over.
+     */
+    public void onFrame(boolean keyFrame, long nowMs) {
+        long previousRequestMs;
+        synchronized (this) {
+            if (keyFrame) {
+                mLastKeyFrameMs = nowMs;
+                mIsPending = false;
+                return;
+            }
+            if (!mIsPending || !canSend(nowMs)) {
+                return;
+            }
+            previousRequestMs = reserve(nowMs);
+        }
+        send(previousRequestMs);
+    }
+
+    public synchronized boolean isPending() {
+        return mIsPending;
+    }
+
+    /**
+     * Requests received for a reason, sent or not.
+     */
+    public synchronized long getRequestCount(int reason) {
+        return mRequestCounts[reason];
+    }
+
+    /**
+     * Requests which reached the encoder.
+     */
+    public synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * Requests merged into an already pending one.
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    private boolean canSend(long nowMs) {
+        return nowMs - Math.max(mLastRequestMs, mLastKeyFrameMs) >= mMinIntervalMs;
+    }
+
+    /**
+     * Takes the slot of the next request so a concurrent caller does not send a second one.
+     *
+     * @return the time of the previous request, restored if the encoder refuses this one
+     */
+    private long reserve(long nowMs) {
+        long previousRequestMs = mLastRequestMs;
+        mLastRequestMs = nowMs;
+        mIsPending = false;
+        return previousRequestMs;
+    }
+
+    private boolean send(long previousRequestMs) {
+        boolean sent = mSource.requestKeyFrame();
+        synchronized (this) {
+            if (sent) {
+                mSentCount++;
+            } else {
+                // retried with the next frame
+                mLastRequestMs = previousRequestMs;
+                mIsPending = true;
+            }
+        }
+        return sent;
+    }
+
+}
@@ -0,0 +1,99 @@
+package lichle.demo.com.mystreaming;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations in microseconds with logarithmic buckets: exact below 16 us, then 8 buckets per power of
+ * two, so a percentile is at most 12.5% above the true value. Recording is a few shifts and an increment, nothing is
+ * allocated. Not thread safe, the owner synchronizes.
+ */
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    //up to 2^40 us, about 12 days
+    private static final int MAX_EXPONENT = 40;
+
+    private final long[] mCounts = new long[LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS];
+    private long mCount, mSum, mMax;
+
+    public void record(long valueUs) {
+        if (valueUs < 0) {
+            valueUs = 0;
+        }
+        mCounts[getBucket(valueUs)]++;
+        mCount++;
+        mSum += valueUs;
+        if (valueUs > mMax) {
+            mMax = valueUs;
+        }
+    }
+
+    static int getBucket(long valueUs) {
+        if (valueUs < LINEAR_LIMIT) {
+            return (int) valueUs;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(valueUs), MAX_EXPONENT - 1);
+        int sub = (int) (valueUs >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Largest value which falls in a bucket.
+     */
+    static long getBucketLimit(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Value below or at which the given percentage of the recorded values are, capped by the maximum.
+     * 0 when nothing was recorded.
+     */
+    public long getPercentile(double percent) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percent / 100);
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(getBucketLimit(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public long getAverage() {
+        return mCount > 0 ? mSum / mCount : 0;
+    }
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    @Override
+    public String toString() {
+        return mCount + " frames, p50 " + getPercentile(50) + " us, p99 " + getPercentile(99) + " us, max " + mMax
+                + " us";
+    }
+
+}
@@ -0,0 +1,192 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Follows frames from the camera callback to the wire and keeps a {@link LatencyHistogram} per stage:
+ * <ul>
+ * <li>queue: camera callback to leaving the raw queue of the encoder (convert stage, scaler, raw queue)</li>
+ * <li>convert: raw queue to codec input (YUV conversion, waiting for an input buffer)</li>
+ * <li>encode: codec input to codec output</li>
+ * <li>handoff: codec output to packetization (copy and packetize queue)</li>
+ * <li>packetize: packetization to the first RTP packet sent (send ring, pacing)</li>
+ * <li>send: first to last RTP packet of the frame</li>
+ * <li>total: camera callback to the last RTP packet</li>
+ * </ul>
+ * A frame is known by its input presentation time in the codec, by its output presentation time once encoded and by
+ * its RTP timestamp once packetized. Traces are kept in preallocated slots, a frame the codec or a queue dropped
+ * stays in its slot until it is reused and is counted as lost. The pipeline only holds a tracer while tracing is
+ * enabled, so tracing disabled costs a null check per event.
+ */
+
+public class LatencyTracer {
+
+    public static final int STAGE_QUEUE = 0;
+    public static final int STAGE_CONVERT = 1;
+    public static final int STAGE_ENCODE = 2;
+    public static final int STAGE_HANDOFF = 3;
+    public static final int STAGE_PACKETIZE = 4;
+    public static final int STAGE_SEND = 5;
+    public static final int STAGE_TOTAL = 6;
+    public static final int STAGE_COUNT = 7;
+    private static final String[] STAGE_NAMES = {"queue", "convert", "encode", "handoff", "packetize", "send", "total"};
+
+    //events of a frame, in order
+    private static final int EVENT_CAPTURE = 0;
+    private static final int EVENT_DEQUEUE = 1;
+    private static final int EVENT_CODEC_INPUT = 2;
+    private static final int EVENT_CODEC_OUTPUT = 3;
+    private static final int EVENT_PACKETIZE = 4;
+    private static final int EVENT_FIRST_SENT = 5;
+    private static final int EVENT_LAST_SENT = 6;
+    private static final int EVENT_COUNT = 7;
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_IN_CODEC = 1;
+    private static final int STATE_ENCODED = 2;
+    private static final int STATE_PACKETIZED = 3;
+
+    private final long[][] mTimes;
+    private final long[] mKeys;
+    private final int[] mStates;
+    private int mNext;
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+    private long mLostCount;
+
+    public LatencyTracer(int slots) {
+        mTimes = new long[slots][EVENT_COUNT];
+        mKeys = new long[slots];
+        mStates = new int[slots];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * A frame was queued to the codec. Times are from {@link System#nanoTime()}, 0 if unknown.
+     */
+    public synchronized void onCodecInput(long ptsUs, long captureNs, long dequeuedNs, long nowNs) {
+        int slot = mNext;
+        mNext = (mNext + 1) % mStates.length;
+        if (mStates[slot] != STATE_FREE) {
+            mLostCount++;
+        }
+        long[] times = mTimes[slot];
+        times[EVENT_CAPTURE] = captureNs;
+        times[EVENT_DEQUEUE] = dequeuedNs;
+        times[EVENT_CODEC_INPUT] = nowNs;
+        times[EVENT_FIRST_SENT] = 0;
+        mKeys[slot] = ptsUs;
+        mStates[slot] = STATE_IN_CODEC;
+    }
+
+    /**
+     * The codec output the frame queued with inputPtsUs, it goes on with outputPtsUs.
+     */
+    public synchronized void onCodecOutput(long inputPtsUs, long outputPtsUs, long nowNs) {
+        int slot = find(STATE_IN_CODEC, inputPtsUs);
+        if (slot >= 0) {
+            mTimes[slot][EVENT_CODEC_OUTPUT] = nowNs;
+            mKeys[slot] = outputPtsUs;
+            mStates[slot] = STATE_ENCODED;
+        }
+    }
+
+    /**
+     * The packetizer took the frame, its packets will carry the RTP timestamp of ptsUs.
+     */
+    public synchronized void onPacketize(long ptsUs, long nowNs) {
+        int slot = find(STATE_ENCODED, ptsUs);
+        if (slot >= 0) {
+            mTimes[slot][EVENT_PACKETIZE] = nowNs;
+            mKeys[slot] = getRtpTimestamp(ptsUs);
+            mStates[slot] = STATE_PACKETIZED;
+        }
+    }
+
+    /**
+     * An RTP packet left the socket, the marker ends the frame.
+     */
+    public synchronized void onPacketSent(long rtpTimestamp, boolean marker, long nowNs) {
+        int slot = find(STATE_PACKETIZED, rtpTimestamp);
+        if (slot < 0) {
+            return;
+        }
+        long[] times = mTimes[slot];
+        if (times[EVENT_FIRST_SENT] == 0) {
+            times[EVENT_FIRST_SENT] = nowNs;
+        }
+        if (marker) {
+            times[EVENT_LAST_SENT] = nowNs;
+            record(times);
+            mStates[slot] = STATE_FREE;
+        }
+    }
+
+    /**
+     * The timestamp {@link RtpSocket} writes for a presentation time, computed the same way.
+     */
+    static long getRtpTimestamp(long ptsUs) {
+        return ptsUs * 1000L * Constants.CLOCK_VIDEO_FREQUENCY / 1000000000L;
+    }
+
+    private int find(int state, long key) {
+        for (int i = 0; i < mStates.length; i++) {
+            if (mStates[i] == state && mKeys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void record(long[] times) {
+        boolean isCaptured = times[EVENT_CAPTURE] != 0;
+        if (isCaptured && times[EVENT_DEQUEUE] != 0) {
+            mHistograms[STAGE_QUEUE].record((times[EVENT_DEQUEUE] - times[EVENT_CAPTURE]) / 1000);
+        }
+        if (times[EVENT_DEQUEUE] != 0) {
+            mHistograms[STAGE_CONVERT].record((times[EVENT_CODEC_INPUT] - times[EVENT_DEQUEUE]) / 1000);
+        }
+        mHistograms[STAGE_ENCODE].record((times[EVENT_CODEC_OUTPUT] - times[EVENT_CODEC_INPUT]) / 1000);
+        mHistograms[STAGE_HANDOFF].record((times[EVENT_PACKETIZE] - times[EVENT_CODEC_OUTPUT]) / 1000);
+        mHistograms[STAGE_PACKETIZE].record((times[EVENT_FIRST_SENT] - times[EVENT_PACKETIZE]) / 1000);
+        mHistograms[STAGE_SEND].record((times[EVENT_LAST_SENT] - times[EVENT_FIRST_SENT]) / 1000);
+        if (isCaptured) {
+            mHistograms[STAGE_TOTAL].record((times[EVENT_LAST_SENT] - times[EVENT_CAPTURE]) / 1000);
+        }
+    }
+
+    /**
+     * Histogram of a stage, see the STAGE constants. The tracer keeps recording into it, read it while holding the
+     * tracer's lock or through {@link #toString()}.
+     */
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    /**
+     * Frames whose trace was overwritten before their last packet was sent.
+     */
+    public synchronized long getLostCount() {
+        return mLostCount;
+    }
+
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mLostCount = 0;
+    }
+
+    /**
+     * One line per stage with p50, p99 and max.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            builder.append(STAGE_NAMES[i]).append(": ").append(mHistograms[i]).append('\n');
+        }
+        builder.append("lost: ").append(mLostCount).append(" frames\n");
+        return builder.toString();
+    }
+
+}
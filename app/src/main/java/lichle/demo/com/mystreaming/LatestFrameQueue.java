@@ -0,0 +1,19 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Single slot queue, a new frame replaces the one waiting. A stale frame never reaches the encoder,
+ * which keeps glass-to-glass latency at one frame at the cost of completeness.
+ */
+
+public class LatestFrameQueue extends FrameQueue {
+
+    public LatestFrameQueue() {
+        super(1);
+    }
+
+    @Override
+    protected NV21Frame chooseFrameToDrop(NV21Frame incoming) {
+        return mFrames.peekFirst();
+    }
+
+}
@@ -0,0 +1,185 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * Encoder settings which keep frame sizes even and the encoder from holding frames back: rolling intra refresh
+ * instead of periodic IDRs, low latency and realtime priority, no B-frames and a constant or variable bitrate mode.
+ * Only what the codec advertises is requested, and what it echoes in its input format after configure counts as
+ * honored.
+ */
+
+public class LowLatencyFeatures {
+
+    public static final int FEATURE_INTRA_REFRESH = 1;
+    public static final int FEATURE_LATENCY = 1 << 1;
+    public static final int FEATURE_PRIORITY = 1 << 2;
+    public static final int FEATURE_NO_B_FRAMES = 1 << 3;
+    public static final int FEATURE_CBR = 1 << 4;
+    public static final int FEATURE_VBR = 1 << 5;
+
+    //MediaFormat.KEY_LATENCY (API 30) and MediaFormat.KEY_MAX_B_FRAMES (API 29) are newer than the compile SDK
+    static final String KEY_LATENCY = "latency";
+    static final String KEY_MAX_B_FRAMES = "max-bframes";
+    private static final int SDK_Q = 29;
+    private static final int SDK_R = 30;
+    private static final String[] NAMES = {"intra-refresh", "latency", "priority", "no-b-frames", "cbr", "vbr"};
+
+    private final int mRequested;
+    private final int mHonored;
+
+    public LowLatencyFeatures(int requested, int honored) {
+        mRequested = requested;
+        mHonored = honored & requested;
+    }
+
+    /**
+     * Features set in the format given to the codec.
+     */
+    public int getRequested() {
+        return mRequested;
+    }
+
+    /**
+     * Requested features the codec kept in its input format.
+     */
+    public int getHonored() {
+        return mHonored;
+    }
+
+    public boolean isHonored(int feature) {
+        return (mHonored & feature) != 0;
+    }
+
+    /**
+     * Features the codec can take on this OS version.
+     */
+    public static int getSupportedFeatures(MediaCodecInfo.CodecCapabilities capabilities) {
+        if (capabilities == null) {
+            return 0;
+        }
+        MediaCodecInfo.EncoderCapabilities encoder = capabilities.getEncoderCapabilities();
+        boolean intraRefresh = capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh);
+        return getSupportedFeatures(intraRefresh,
+                encoder != null && encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR),
+                encoder != null && encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR),
+                Build.VERSION.SDK_INT);
+    }
+
+    static int getSupportedFeatures(boolean intraRefresh, boolean cbr, boolean vbr, int sdk) {
+        // KEY_PRIORITY is API 23, below the min SDK
+        int features = FEATURE_PRIORITY;
+        if (intraRefresh) {
+            features |= FEATURE_INTRA_REFRESH;
+        }
+        if (sdk >= SDK_R) {
+            features |= FEATURE_LATENCY;
+        }
+        if (sdk >= SDK_Q) {
+            features |= FEATURE_NO_B_FRAMES;
+        }
+        if (cbr) {
+            features |= FEATURE_CBR;
+        }
+        if (vbr) {
+            features |= FEATURE_VBR;
+        }
+        return features;
+    }
+
+    /**
+     * Everything supported, with CBR over VBR: it bounds the size of each frame, VBR only the average.
+     */
+    public static int select(int supported) {
+        int features = supported & (FEATURE_INTRA_REFRESH | FEATURE_LATENCY | FEATURE_PRIORITY | FEATURE_NO_B_FRAMES);
+        if ((supported & FEATURE_CBR) != 0) {
+            features |= FEATURE_CBR;
+        } else if ((supported & FEATURE_VBR) != 0) {
+            features |= FEATURE_VBR;
+        }
+        return features;
+    }
+
+    /**
+     * Sets the keys of the features in a video format. With intra refresh the whole picture is refreshed every
+     * {@link Constants#INTRA_REFRESH_PERIOD_MS} and IDRs only come every
+     * {@link Constants#INTRA_REFRESH_I_FRAME_INTERVAL} seconds, or on request.
+     */
+    public static void apply(MediaFormat format, int features, int fps) {
+        if ((features & FEATURE_INTRA_REFRESH) != 0) {
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD,
+                    (int) Math.max(1, fps * Constants.INTRA_REFRESH_PERIOD_MS / 1000));
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, Constants.INTRA_REFRESH_I_FRAME_INTERVAL);
+        }
+        if ((features & FEATURE_LATENCY) != 0) {
+            // frames the encoder may hold before it outputs one
+            format.setInteger(KEY_LATENCY, 1);
+        }
+        if ((features & FEATURE_PRIORITY) != 0) {
+            // 0 is realtime
+            format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+        }
+        if ((features & FEATURE_NO_B_FRAMES) != 0) {
+            format.setInteger(KEY_MAX_B_FRAMES, 0);
+        }
+        if ((features & FEATURE_CBR) != 0) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+        } else if ((features & FEATURE_VBR) != 0) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+        }
+    }
+
+    /**
+     * Requested features the configured codec kept, read from its input format.
+     */
+    public static int getHonored(int requested, MediaFormat inputFormat) {
+        if (inputFormat == null) {
+            return 0;
+        }
+        int honored = 0;
+        if ((requested & FEATURE_INTRA_REFRESH) != 0
+                && inputFormat.containsKey(MediaFormat.KEY_INTRA_REFRESH_PERIOD)) {
+            honored |= FEATURE_INTRA_REFRESH;
+        }
+        if ((requested & FEATURE_LATENCY) != 0 && inputFormat.containsKey(KEY_LATENCY)) {
+            honored |= FEATURE_LATENCY;
+        }
+        if ((requested & FEATURE_PRIORITY) != 0 && inputFormat.containsKey(MediaFormat.KEY_PRIORITY)) {
+            honored |= FEATURE_PRIORITY;
+        }
+        if ((requested & FEATURE_NO_B_FRAMES) != 0 && inputFormat.containsKey(KEY_MAX_B_FRAMES)
+                && inputFormat.getInteger(KEY_MAX_B_FRAMES) == 0) {
+            honored |= FEATURE_NO_B_FRAMES;
+        }
+        if ((requested & (FEATURE_CBR | FEATURE_VBR)) != 0 && inputFormat.containsKey(MediaFormat.KEY_BITRATE_MODE)) {
+            int mode = inputFormat.getInteger(MediaFormat.KEY_BITRATE_MODE);
+            if (mode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR) {
+                honored |= requested & FEATURE_CBR;
+            } else if (mode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR) {
+                honored |= requested & FEATURE_VBR;
+            }
+        }
+        return honored;
+    }
+
+    static String toString(int features) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < NAMES.length; i++) {
+            if ((features & (1 << i)) != 0) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(NAMES[i]);
+            }
+        }
+        return builder.length() > 0 ? builder.toString() : "none";
+    }
+
+    @Override
+    public String toString() {
+        return "requested " + toString(mRequested) + ", honored " + toString(mHonored);
+    }
+
+}
@@ -56,9 +56,12 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 if (isSuccess) {
                     mStreamEngine.startStream(mServerUrl);
                 }
+            } else if (mStreamEngine.isPaused()) {
+                mButton.setText(R.string.pause);
+                mStreamEngine.resumeStream();
             } else {
                 mButton.setText(R.string.resume);
-                mStreamEngine.stopStream();
+                mStreamEngine.pauseStream();
             }
         }
     }
@@ -0,0 +1,138 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link IVideoCodec} backed by an encoder {@link MediaCodec}.
+ * In asynchronous mode the callbacks run on a dedicated thread, so output is drained as soon as it is ready.
+ */
+
+public class MediaCodecAdapter implements IVideoCodec {
+
+    private final MediaCodec mMediaCodec;
+    private HandlerThread mCallbackThread;
+
+    public MediaCodecAdapter(MediaCodec mediaCodec) {
+        mMediaCodec = mediaCodec;
+    }
+
+    public String getName() {
+        return mMediaCodec.getName();
+    }
+
+    @Override
+    public void setCallback(final Callback callback) {
+        if (mCallbackThread == null) {
+            mCallbackThread = new HandlerThread("VideoEncoderCallback");
+            mCallbackThread.start();
+        }
+        mMediaCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged(format);
+            }
+        }, new Handler(mCallbackThread.getLooper()));
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public void start() {
+        mMediaCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mMediaCodec.stop();
+    }
+
+    @Override
+    public void flush() {
+        mMediaCodec.flush();
+    }
+
+    @Override
+    public void release() {
+        mMediaCodec.release();
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mMediaCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mMediaCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public Image getInputImage(int index) {
+        return mMediaCodec.getInputImage(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        mMediaCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return mMediaCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mMediaCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mMediaCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mMediaCodec.getOutputFormat();
+    }
+
+    @Override
+    public MediaFormat getInputFormat() {
+        return mMediaCodec.getInputFormat();
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+        mMediaCodec.setParameters(params);
+    }
+
+}
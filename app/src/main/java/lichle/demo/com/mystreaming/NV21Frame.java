@@ -0,0 +1,124 @@
+package lichle.demo.com.mystreaming;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A raw NV21 picture owned by a {@link FramePool}.
+ * The frame goes back to its pool once every holder has called {@link #release()}.
+ */
+
+public class NV21Frame implements IRefCounted {
+
+    private final FramePool mPool;
+    private final byte[] mData;
+    private final ByteBuffer mBuffer;
+    private final AtomicInteger mRefCount = new AtomicInteger(0);
+    private int mWidth, mHeight;
+    private long mTimestampNs, mQueuedNs, mDequeuedNs;
+
+    NV21Frame(FramePool pool, byte[] data, int width, int height) {
+        mPool = pool;
+        mData = data;
+        mBuffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Little endian view of the data, created once so the converters can read it a word at a time.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Number of bytes used by the picture, which may be less than the capacity of the data array.
+     */
+    public int getSize() {
+        return mWidth * mHeight * 3 / 2;
+    }
+
+    /**
+     * Time the picture was captured, from {@link System#nanoTime()}.
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    public void setTimestampNs(long timestampNs) {
+        mTimestampNs = timestampNs;
+    }
+
+    /**
+     * Time the frame entered the raw queue, from {@link System#nanoTime()}.
+     */
+    public long getQueuedNs() {
+        return mQueuedNs;
+    }
+
+    public void setQueuedNs(long queuedNs) {
+        mQueuedNs = queuedNs;
+    }
+
+    /**
+     * Time the frame left the raw queue, from {@link System#nanoTime()}.
+     */
+    public long getDequeuedNs() {
+        return mDequeuedNs;
+    }
+
+    public void setDequeuedNs(long dequeuedNs) {
+        mDequeuedNs = dequeuedNs;
+    }
+
+    void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Called by the pool when the frame is handed out.
+     */
+    void acquire() {
+        mRefCount.set(1);
+    }
+
+    @Override
+    public NV21Frame retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drops one reference, the last one returns the frame to its pool.
+     */
+    @Override
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mPool.recycle(this);
+        } else if (count < 0) {
+            mRefCount.set(0);
+            throw new IllegalStateException("NV21Frame released more times than retained");
+        }
+    }
+
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+}
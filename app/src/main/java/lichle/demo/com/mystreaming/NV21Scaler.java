@@ -0,0 +1,205 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Crops and downscales NV21 frames, so the encoder can run below the camera preview resolution.
+ * An exact 2:1 reduction uses a box filter, any other ratio uses bilinear interpolation with precomputed tables.
+ * Output frames come from a pool owned by the scaler, nothing is allocated per frame.
+ */
+
+public class NV21Scaler {
+
+    private static final int OUTPUT_POOL_SIZE = 3;
+
+    private final int mOutWidth, mOutHeight;
+    private final FramePool mFramePool;
+    private int mCropX, mCropY, mCropWidth, mCropHeight;
+
+    //geometry the tables below were computed for
+    private int mSrcWidth, mSrcHeight, mRectX, mRectY, mRectWidth, mRectHeight;
+    private boolean mIsBox;
+    //first source sample, next source sample (clamped at the border) and 8 bit weight of the next one
+    private int[] mLumaX, mLumaX1, mLumaFx, mLumaY, mLumaY1, mLumaFy;
+    private int[] mChromaX, mChromaX1, mChromaFx, mChromaY, mChromaY1, mChromaFy;
+
+    public NV21Scaler(int outWidth, int outHeight) {
+        if ((outWidth & 1) != 0 || (outHeight & 1) != 0) {
+            throw new IllegalArgumentException("NV21 sizes must be even");
+        }
+        mOutWidth = outWidth;
+        mOutHeight = outHeight;
+        mFramePool = new FramePool(OUTPUT_POOL_SIZE, outWidth, outHeight);
+    }
+
+    public int getOutWidth() {
+        return mOutWidth;
+    }
+
+    public int getOutHeight() {
+        return mOutHeight;
+    }
+
+    public FramePool getFramePool() {
+        return mFramePool;
+    }
+
+    /**
+     * Restricts the scaled area to a rectangle of the source frame, a zero width or height means the whole frame.
+     * Coordinates are rounded down to even values to keep the chroma samples aligned.
+     */
+    public synchronized void setCrop(int x, int y, int width, int height) {
+        mCropX = x & ~1;
+        mCropY = y & ~1;
+        mCropWidth = width & ~1;
+        mCropHeight = height & ~1;
+        mSrcWidth = 0;
+    }
+
+    /**
+     * Scales the source frame into a pooled frame which the caller has to release.
+     * Returns null when every output frame is still in use, the pool counts it as dropped.
+     */
+    public synchronized NV21Frame scale(NV21Frame src) {
+        NV21Frame dst = mFramePool.acquire();
+        if (dst == null) {
+            return null;
+        }
+        if (src.getWidth() != mSrcWidth || src.getHeight() != mSrcHeight) {
+            computeGeometry(src.getWidth(), src.getHeight());
+        }
+        if (mIsBox) {
+            boxLuma(src.getData(), dst.getData());
+            boxChroma(src.getData(), dst.getData());
+        } else {
+            bilinearLuma(src.getData(), dst.getData());
+            bilinearChroma(src.getData(), dst.getData());
+        }
+        dst.setTimestampNs(src.getTimestampNs());
+        return dst;
+    }
+
+    private void computeGeometry(int srcWidth, int srcHeight) {
+        mSrcWidth = srcWidth;
+        mSrcHeight = srcHeight;
+        mRectX = Math.min(mCropX, srcWidth - 2);
+        mRectY = Math.min(mCropY, srcHeight - 2);
+        mRectWidth = mCropWidth == 0 ? srcWidth - mRectX : Math.min(mCropWidth, srcWidth - mRectX);
+        mRectHeight = mCropHeight == 0 ? srcHeight - mRectY : Math.min(mCropHeight, srcHeight - mRectY);
+        mIsBox = mRectWidth == 2 * mOutWidth && mRectHeight == 2 * mOutHeight;
+        if (!mIsBox) {
+            mLumaX = new int[mOutWidth];
+            mLumaX1 = new int[mOutWidth];
+            mLumaFx = new int[mOutWidth];
+            mLumaY = new int[mOutHeight];
+            mLumaY1 = new int[mOutHeight];
+            mLumaFy = new int[mOutHeight];
+            mChromaX = new int[mOutWidth / 2];
+            mChromaX1 = new int[mOutWidth / 2];
+            mChromaFx = new int[mOutWidth / 2];
+            mChromaY = new int[mOutHeight / 2];
+            mChromaY1 = new int[mOutHeight / 2];
+            mChromaFy = new int[mOutHeight / 2];
+            fillTable(mLumaX, mLumaX1, mLumaFx, mRectWidth, mRectX, 1);
+            fillTable(mLumaY, mLumaY1, mLumaFy, mRectHeight, mRectY, srcWidth);
+            // chroma samples are V,U pairs, so columns are indexed in bytes of the interleaved row
+            fillTable(mChromaX, mChromaX1, mChromaFx, mRectWidth / 2, mRectX / 2, 2);
+            fillTable(mChromaY, mChromaY1, mChromaFy, mRectHeight / 2, mRectY / 2, srcWidth);
+        }
+    }
+
+    /**
+     * For every output sample, the offsets of the two source samples around it and the 8 bit weight of the second one.
+     * Offsets are the absolute sample positions times scale. Sample centers are aligned, the last source sample
+     * is repeated at the border.
+     */
+    private static void fillTable(int[] index, int[] next, int[] weight, int srcLength, int srcOffset, int scale) {
+        int dstLength = index.length;
+        long step = ((long) srcLength << 16) / dstLength;
+        long pos = step / 2 - (1 << 15);
+        for (int i = 0; i < dstLength; i++, pos += step) {
+            long clamped = Math.max(pos, 0);
+            int i0 = (int) (clamped >> 16);
+            int fraction = (int) ((clamped & 0xFFFF) >> 8);
+            if (i0 >= srcLength - 1) {
+                i0 = srcLength - 1;
+                fraction = 0;
+            }
+            index[i] = (srcOffset + i0) * scale;
+            next[i] = (srcOffset + Math.min(i0 + 1, srcLength - 1)) * scale;
+            weight[i] = fraction;
+        }
+    }
+
+    private void boxLuma(byte[] src, byte[] dst) {
+        int stride = mSrcWidth;
+        int out = 0;
+        for (int y = 0; y < mOutHeight; y++) {
+            int row0 = (mRectY + 2 * y) * stride + mRectX;
+            int row1 = row0 + stride;
+            for (int x = 0; x < mOutWidth; x++, row0 += 2, row1 += 2) {
+                int sum = (src[row0] & 0xFF) + (src[row0 + 1] & 0xFF)
+                        + (src[row1] & 0xFF) + (src[row1 + 1] & 0xFF);
+                dst[out++] = (byte) ((sum + 2) >> 2);
+            }
+        }
+    }
+
+    private void boxChroma(byte[] src, byte[] dst) {
+        int stride = mSrcWidth;
+        int chromaBase = mSrcWidth * mSrcHeight;
+        int out = mOutWidth * mOutHeight;
+        int outPairs = mOutWidth / 2;
+        for (int y = 0; y < mOutHeight / 2; y++) {
+            int row0 = chromaBase + (mRectY / 2 + 2 * y) * stride + mRectX;
+            int row1 = row0 + stride;
+            for (int x = 0; x < outPairs; x++, row0 += 4, row1 += 4) {
+                int v = (src[row0] & 0xFF) + (src[row0 + 2] & 0xFF) + (src[row1] & 0xFF) + (src[row1 + 2] & 0xFF);
+                int u = (src[row0 + 1] & 0xFF) + (src[row0 + 3] & 0xFF)
+                        + (src[row1 + 1] & 0xFF) + (src[row1 + 3] & 0xFF);
+                dst[out++] = (byte) ((v + 2) >> 2);
+                dst[out++] = (byte) ((u + 2) >> 2);
+            }
+        }
+    }
+
+    private void bilinearLuma(byte[] src, byte[] dst) {
+        int[] xs = mLumaX, xs1 = mLumaX1, fxs = mLumaFx;
+        int out = 0;
+        for (int y = 0; y < mOutHeight; y++) {
+            int fy = mLumaFy[y];
+            int row0 = mLumaY[y];
+            int row1 = mLumaY1[y];
+            for (int x = 0; x < mOutWidth; x++) {
+                int sx = xs[x];
+                int sx1 = xs1[x];
+                int fx = fxs[x];
+                int top = (src[row0 + sx] & 0xFF) * (256 - fx) + (src[row0 + sx1] & 0xFF) * fx;
+                int bottom = (src[row1 + sx] & 0xFF) * (256 - fx) + (src[row1 + sx1] & 0xFF) * fx;
+                dst[out++] = (byte) ((top * (256 - fy) + bottom * fy + 32768) >> 16);
+            }
+        }
+    }
+
+    private void bilinearChroma(byte[] src, byte[] dst) {
+        int[] xs = mChromaX, xs1 = mChromaX1, fxs = mChromaFx;
+        int chromaBase = mSrcWidth * mSrcHeight;
+        int outPairs = mOutWidth / 2;
+        int out = mOutWidth * mOutHeight;
+        for (int y = 0; y < mOutHeight / 2; y++) {
+            int fy = mChromaFy[y];
+            int row0 = chromaBase + mChromaY[y];
+            int row1 = chromaBase + mChromaY1[y];
+            for (int x = 0; x < outPairs; x++) {
+                int p0 = xs[x];
+                int p1 = xs1[x];
+                int fx = fxs[x];
+                int top = (src[row0 + p0] & 0xFF) * (256 - fx) + (src[row0 + p1] & 0xFF) * fx;
+                int bottom = (src[row1 + p0] & 0xFF) * (256 - fx) + (src[row1 + p1] & 0xFF) * fx;
+                dst[out++] = (byte) ((top * (256 - fy) + bottom * fy + 32768) >> 16);
+                top = (src[row0 + p0 + 1] & 0xFF) * (256 - fx) + (src[row0 + p1 + 1] & 0xFF) * fx;
+                bottom = (src[row1 + p0 + 1] & 0xFF) * (256 - fx) + (src[row1 + p1 + 1] & 0xFF) * fx;
+                dst[out++] = (byte) ((top * (256 - fy) + bottom * fy + 32768) >> 16);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,383 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * RTP packetization shared by the NAL unit based payload formats (RFC 6184, RFC 7798): single NAL unit packets,
+ * aggregation packets and fragmentation units. Subclasses describe the NAL unit and payload headers of their codec.
+ */
+
+public abstract class NalPacketizer implements IPacketizer {
+
+    private static final String TAG = "NalPacketizer";
+
+    //used on all packets
+    private final static int MAX_PACKET_SIZE = Constants.MTU - 28;
+    //payload of an aggregation packet: payload header, then a 16 bits size before each NAL unit,
+    //room is kept for the transport-wide header extension so the sizes do not depend on it
+    private final static int MAX_AGGREGATION_SIZE = MAX_PACKET_SIZE - Constants.RTP_HEADER_LENGTH
+            - Constants.RTP_EXTENSION_LENGTH;
+
+    private final int mNalHeaderLength;
+    //largest payload of one packet when the payload header of a fragment is added
+    private final int mMaxFragmentSize;
+
+    private RtpSocket mRtpSocket;
+    private byte[] mBuffers;
+    private long mTimeStamp;
+    private RtspClient rtspClient;
+
+    //payload header and FU header of fragmentation units
+    private final byte[] mHeader;
+    private final AnnexBScanner mScanner = new AnnexBScanner();
+    //NAL units of the access unit being sent, from mScanner or from an EncodedFrame
+    private AnnexBScanner mNals;
+
+    private boolean mIsAggregating = Constants.RTP_NAL_AGGREGATION;
+    private final byte[] mAggregate = new byte[MAX_AGGREGATION_SIZE];
+    private final ByteBuffer mAggregateBuffer = ByteBuffer.wrap(mAggregate);
+
+    //written by the encoder output thread only
+    private volatile long mNalCount, mPacketCount, mAggregatedNalCount, mPacketsSaved;
+    private volatile long mFirstPacketNs, mLastPacketNs;
+    //parameter sets aggregated in one packet
+    private byte[] mParameterSets;
+    private ByteBuffer mParameterSetsBuffer;
+
+    protected NalPacketizer(RtspClient rtspClient, int nalHeaderLength) {
+        this.rtspClient = rtspClient;
+        mNalHeaderLength = nalHeaderLength;
+        mHeader = new byte[nalHeaderLength + 1];
+        mMaxFragmentSize = MAX_AGGREGATION_SIZE - mHeader.length;
+        mTimeStamp = new Random().nextInt();
+        mRtpSocket = new RtpSocket();
+        mRtpSocket.setSSRC(new Random().nextInt());
+        mRtpSocket.setZeroCopy(Constants.RTP_ZERO_COPY);
+        try {
+            mRtpSocket.setTimeToLive(64);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mRtpSocket.setClockFrequency(Constants.CLOCK_VIDEO_FREQUENCY);
+    }
+
+    /**
+     * NAL unit type read from a NAL unit header.
+     */
+    protected abstract int getNalType(int nalHeader);
+
+    /**
+     * True for the NAL unit types of a random access picture, which need the parameter sets in front of them.
+     */
+    protected abstract boolean isRandomAccess(int nalType);
+
+    /**
+     * Payload header of an aggregation packet holding a single NAL unit.
+     */
+    protected abstract int getAggregationHeader(int nalHeader);
+
+    /**
+     * Payload header of an aggregation packet after one more NAL unit has been added.
+     */
+    protected abstract int mergeAggregationHeader(int aggregationHeader, int nalHeader);
+
+    /**
+     * Payload header of the fragmentation units of a NAL unit, the FU header follows it.
+     */
+    protected abstract int getFragmentationHeader(int nalHeader);
+
+    @Override
+    public void close() {
+        mRtpSocket.reset(false);
+        mRtpSocket.close();
+    }
+
+    @Override
+    public RtpSocket getRtpSocket() {
+        return mRtpSocket;
+    }
+
+    @Override
+    public void updateDestinationVideo() {
+        mRtpSocket.setDestination(rtspClient.getHost(), rtspClient.getVideoPorts()[0], rtspClient.getVideoPorts()[1]);
+    }
+
+    @Override
+    public void setParameterSets(byte[]... parameterSets) {
+        int size = mNalHeaderLength;
+        int header = 0;
+        for (int i = 0; i < parameterSets.length; i++) {
+            byte[] nal = parameterSets[i];
+            size += 2 + nal.length;
+            int nalHeader = readHeader(ByteBuffer.wrap(nal), 0);
+            header = i == 0 ? getAggregationHeader(nalHeader) : mergeAggregationHeader(header, nalHeader);
+        }
+        byte[] packet = new byte[size];
+        writeHeader(packet, 0, header);
+        int position = mNalHeaderLength;
+        for (byte[] nal : parameterSets) {
+            packet[position++] = (byte) (nal.length >> 8);
+            packet[position++] = (byte) (nal.length & 0xFF);
+            System.arraycopy(nal, 0, packet, position, nal.length);
+            position += nal.length;
+        }
+        mParameterSets = packet;
+        mParameterSetsBuffer = ByteBuffer.wrap(packet);
+    }
+
+    @Override
+    public void createAndSendPacket(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+        // An output buffer is one access unit: access unit delimiter, SEI, parameter sets and one or more slices,
+        // each preceded with a 3 or 4 bytes start code
+        mScanner.scan(byteBuffer, bufferInfo.offset, bufferInfo.size);
+        send(byteBuffer, bufferInfo, mScanner);
+    }
+
+    /**
+     * Sends a frame with the NAL boundaries found when it was copied, it is not scanned again.
+     */
+    @Override
+    public void createAndSendPacket(EncodedFrame frame) {
+        send(frame.getBuffer(), frame.getInfo(), frame.getNals());
+    }
+
+    private void send(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo, AnnexBScanner nals) {
+        mTimeStamp = bufferInfo.presentationTimeUs * 1000L;
+        mNals = nals;
+        int count = nals.getNalCount();
+        // a codec config buffer is not a picture, the marker stays for the last packet of the next frame
+        boolean isPicture = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0;
+        boolean isParameterSetsSent = false;
+
+        try {
+            int i = 0;
+            while (i < count) {
+                int offset = mNals.getNalOffset(i);
+                int type = getNalType(readHeader(byteBuffer, offset));
+                if (isRandomAccess(type) && !isParameterSetsSent && mParameterSets != null) {
+                    sendParameterSets();
+                    isParameterSetsSent = true;
+                }
+                int last = mIsAggregating ? findAggregationEnd(byteBuffer, i, count, isParameterSetsSent) : i;
+                if (last > i) {
+                    sendAggregate(byteBuffer, i, last, isPicture && last == count - 1);
+                } else {
+                    sendNal(byteBuffer, offset, mNals.getNalLength(i), isPicture && i == count - 1);
+                }
+                i = last + 1;
+            }
+            mNalCount += count;
+            mLastPacketNs = System.nanoTime();
+            if (mFirstPacketNs == 0) {
+                mFirstPacketNs = mLastPacketNs;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "send packet error", e);
+        }
+    }
+
+    /**
+     * Aggregates consecutive small NAL units of the access unit in one packet, enabled by default.
+     */
+    @Override
+    public void setAggregation(boolean enabled) {
+        mIsAggregating = enabled;
+    }
+
+    @Override
+    public boolean isAggregating() {
+        return mIsAggregating;
+    }
+
+    @Override
+    public long getNalCount() {
+        return mNalCount;
+    }
+
+    @Override
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    @Override
+    public long getAggregatedNalCount() {
+        return mAggregatedNalCount;
+    }
+
+    @Override
+    public long getPacketsSaved() {
+        return mPacketsSaved;
+    }
+
+    @Override
+    public double getPacketsSavedPerSecond() {
+        long elapsedNs = mLastPacketNs - mFirstPacketNs;
+        return elapsedNs > 0 ? mPacketsSaved * 1e9 / elapsedNs : 0;
+    }
+
+    @Override
+    public void resetStats() {
+        mNalCount = 0;
+        mPacketCount = 0;
+        mAggregatedNalCount = 0;
+        mPacketsSaved = 0;
+        mFirstPacketNs = 0;
+        mLastPacketNs = 0;
+    }
+
+    private int readHeader(ByteBuffer byteBuffer, int offset) {
+        int header = 0;
+        for (int i = 0; i < mNalHeaderLength; i++) {
+            header = (header << 8) | (byteBuffer.get(offset + i) & 0xFF);
+        }
+        return header;
+    }
+
+    private void writeHeader(byte[] dst, int offset, int header) {
+        for (int i = mNalHeaderLength - 1; i >= 0; i--) {
+            dst[offset + i] = (byte) header;
+            header >>= 8;
+        }
+    }
+
+    /**
+     * Returns the index of the last NAL unit which fits in an aggregation packet starting with NAL unit first.
+     * A random access slice which still needs the parameter sets in front of it ends the aggregation.
+     */
+    private int findAggregationEnd(ByteBuffer byteBuffer, int first, int count, boolean isParameterSetsSent) {
+        int size = mNalHeaderLength;
+        int last = first - 1;
+        for (int i = first; i < count; i++) {
+            size += 2 + mNals.getNalLength(i);
+            if (size > MAX_AGGREGATION_SIZE) {
+                break;
+            }
+            if (i > first && !isParameterSetsSent && mParameterSets != null
+                    && isRandomAccess(getNalType(readHeader(byteBuffer, mNals.getNalOffset(i))))) {
+                break;
+            }
+            last = i;
+        }
+        return Math.max(last, first);
+    }
+
+    private void sendAggregate(ByteBuffer byteBuffer, int first, int last, boolean isLastOfAccessUnit)
+            throws IOException {
+        int size = mNalHeaderLength;
+        int header = 0;
+        for (int i = first; i <= last; i++) {
+            int offset = mNals.getNalOffset(i);
+            int length = mNals.getNalLength(i);
+            int nalHeader = readHeader(byteBuffer, offset);
+            header = i == first ? getAggregationHeader(nalHeader) : mergeAggregationHeader(header, nalHeader);
+            mAggregate[size++] = (byte) (length >> 8);
+            mAggregate[size++] = (byte) (length & 0xFF);
+            byteBuffer.position(offset);
+            byteBuffer.get(mAggregate, size, length);
+            size += length;
+        }
+        writeHeader(mAggregate, 0, header);
+        if (mRtpSocket.isZeroCopy()) {
+            mRtpSocket.sendGather(null, 0, mAggregateBuffer, 0, size, mTimeStamp, isLastOfAccessUnit);
+        } else {
+            mBuffers = mRtpSocket.requestBuffer();
+            int rtpHeaderLength = mRtpSocket.getHeaderLength();
+            System.arraycopy(mAggregate, 0, mBuffers, rtpHeaderLength, size);
+            mRtpSocket.updateTimestamp(mTimeStamp);
+            if (isLastOfAccessUnit) {
+                mRtpSocket.markNextPacket();
+            }
+            mRtpSocket.commitBuffer(size + rtpHeaderLength);
+        }
+        mPacketCount++;
+        mAggregatedNalCount += last - first + 1;
+        mPacketsSaved += last - first;
+    }
+
+    /**
+     * Sends the NAL unit starting at offset (its header) as a single NAL unit packet or as fragmentation units.
+     * The marker bit is set on the last packet when isLastOfAccessUnit is true.
+     */
+    private void sendNal(ByteBuffer byteBuffer, int offset, int naluLength, boolean isLastOfAccessUnit)
+            throws IOException {
+        // Small NAL unit => Single NAL unit
+        if (naluLength <= mMaxFragmentSize) {
+            mPacketCount++;
+            if (mRtpSocket.isZeroCopy()) {
+                mRtpSocket.sendGather(null, 0, byteBuffer, offset, naluLength, mTimeStamp, isLastOfAccessUnit);
+                return;
+            }
+            mBuffers = mRtpSocket.requestBuffer();
+            int rtpHeaderLength = mRtpSocket.getHeaderLength();
+            byteBuffer.position(offset);
+            byteBuffer.get(mBuffers, rtpHeaderLength, naluLength);
+            mRtpSocket.updateTimestamp(mTimeStamp);
+            if (isLastOfAccessUnit) {
+                mRtpSocket.markNextPacket();
+            }
+            mRtpSocket.commitBuffer(naluLength + rtpHeaderLength);
+        }
+        // Large NAL unit => Split nal unit
+        else {
+            int nalHeader = readHeader(byteBuffer, offset);
+            int headerLength = mHeader.length;
+            // payload header, then FU header with the start bit and the NAL unit type
+            writeHeader(mHeader, 0, getFragmentationHeader(nalHeader));
+            mHeader[mNalHeaderLength] = (byte) (0x80 | getNalType(nalHeader));
+
+            int sum = mNalHeaderLength;
+            while (sum < naluLength) {
+                int length = Math.min(naluLength - sum, mMaxFragmentSize);
+                int start = offset + sum;
+                sum += length;
+                mPacketCount++;
+                // Last packet before next NAL
+                boolean isLast = sum >= naluLength;
+                if (isLast) {
+                    // End bit on
+                    mHeader[mNalHeaderLength] |= 0x40;
+                }
+                if (mRtpSocket.isZeroCopy()) {
+                    mRtpSocket.sendGather(mHeader, headerLength, byteBuffer, start, length, mTimeStamp,
+                            isLast && isLastOfAccessUnit);
+                } else {
+                    mBuffers = mRtpSocket.requestBuffer();
+                    int rtpHeaderLength = mRtpSocket.getHeaderLength();
+                    System.arraycopy(mHeader, 0, mBuffers, rtpHeaderLength, headerLength);
+                    mRtpSocket.updateTimestamp(mTimeStamp);
+                    byteBuffer.position(start);
+                    byteBuffer.get(mBuffers, rtpHeaderLength + headerLength, length);
+                    if (isLast && isLastOfAccessUnit) {
+                        mRtpSocket.markNextPacket();
+                    }
+                    mRtpSocket.commitBuffer(length + rtpHeaderLength + headerLength);
+                }
+                // Switch start bit
+                mHeader[mNalHeaderLength] &= 0x7F;
+            }
+        }
+    }
+
+    /**
+     * Sends the parameter sets aggregated in one packet ahead of a random access picture,
+     * it is never the last packet of the frame.
+     */
+    private void sendParameterSets() throws IOException {
+        mPacketCount++;
+        if (mRtpSocket.isZeroCopy()) {
+            mRtpSocket.sendGather(null, 0, mParameterSetsBuffer, 0, mParameterSets.length, mTimeStamp, false);
+            return;
+        }
+        mBuffers = mRtpSocket.requestBuffer();
+        int rtpHeaderLength = mRtpSocket.getHeaderLength();
+        mRtpSocket.updateTimestamp(mTimeStamp);
+        System.arraycopy(mParameterSets, 0, mBuffers, rtpHeaderLength, mParameterSets.length);
+        mRtpSocket.commitBuffer(mParameterSets.length + rtpHeaderLength);
+    }
+
+}
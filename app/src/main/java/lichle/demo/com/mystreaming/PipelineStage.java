@@ -0,0 +1,320 @@
+package lichle.demo.com.mystreaming;
+
+import android.util.Log;
+
+/**
+ * One stage of the streaming pipeline: a bounded queue in front of a thread of its own which hands each item to a
+ * {@link Processor}. A slow stage fills its own queue and, by its overflow policy, drops items or makes the previous
+ * stage wait, instead of stalling the thread which produced the item.
+ * <p>
+ * The queue owns one reference of each item. It is released after the processor returned, or when the item is
+ * dropped; a processor keeping the item retains it. The processor can be replaced while the stage runs, e.g. by one
+ * which wraps it to insert a scaler or a recorder.
+ */
+
+public class PipelineStage<T extends IRefCounted> implements Runnable {
+
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+    //the producer waits for room, up to the stage being stopped
+    public static final int OVERFLOW_BLOCK = 2;
+
+    private static final String TAG = "PipelineStage";
+
+    public interface Processor<T> {
+
+        void process(T item);
+
+    }
+
+    public interface OnDropListener<T extends IRefCounted> {
+
+        /**
+         * Called on the producer thread before the dropped item is released.
+         */
+        void onDrop(PipelineStage<T> stage, T item);
+
+    }
+
+    private final String mName;
+    private final Object[] mItems;
+    private final long[] mQueuedNs;
+    private int mHead, mSize;
+    private volatile int mOverflowPolicy;
+    private volatile Processor<T> mProcessor;
+    private volatile OnDropListener<T> mDropListener;
+    private Thread mThread;
+    private boolean mIsRunning;
+
+    private long mOfferedCount, mDroppedCount, mProcessedCount;
+    private long mWaitSumNs, mWaitMaxNs, mProcessSumNs, mProcessMaxNs, mBlockedSumNs;
+    private int mMaxOccupancy;
+
+    public PipelineStage(String name, int capacity, int overflowPolicy, Processor<T> processor) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mName = name;
+        mItems = new Object[capacity];
+        mQueuedNs = new long[capacity];
+        mOverflowPolicy = overflowPolicy;
+        mProcessor = processor;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getCapacity() {
+        return mItems.length;
+    }
+
+    public void setOverflowPolicy(int overflowPolicy) {
+        mOverflowPolicy = overflowPolicy;
+        synchronized (this) {
+            // producers blocked by the previous policy
+            notifyAll();
+        }
+    }
+
+    public int getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    public Processor<T> getProcessor() {
+        return mProcessor;
+    }
+
+    /**
+     * Replaces the processor from the next item on.
+     */
+    public void setProcessor(Processor<T> processor) {
+        mProcessor = processor;
+    }
+
+    public void setOnDropListener(OnDropListener<T> listener) {
+        mDropListener = listener;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mIsRunning = true;
+        mThread = new Thread(this, mName);
+        mThread.start();
+    }
+
+    /**
+     * Stops the thread and releases the items still queued.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            mIsRunning = false;
+            notifyAll();
+        }
+        if (thread == null) {
+            return;
+        }
+        // the processor may be waiting, e.g. for room in the RTP ring
+        thread.interrupt();
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            while (mSize > 0) {
+                removeFirst().release();
+            }
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * Queues an item, the stage takes over the caller's reference. A stopped stage releases it at once.
+     *
+     * @return false if the item was dropped
+     */
+    public boolean offer(T item) {
+        T dropped = null;
+        boolean isCounted = true;
+        synchronized (this) {
+            if (!mIsRunning) {
+                dropped = item;
+                isCounted = false;
+            } else {
+                mOfferedCount++;
+                if (mSize == mItems.length && mOverflowPolicy == OVERFLOW_BLOCK) {
+                    long startNs = System.nanoTime();
+                    try {
+                        while (mSize == mItems.length && mIsRunning && mOverflowPolicy == OVERFLOW_BLOCK) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    mBlockedSumNs += System.nanoTime() - startNs;
+                }
+                if (!mIsRunning || mSize == mItems.length && mOverflowPolicy != OVERFLOW_DROP_OLDEST) {
+                    dropped = item;
+                } else {
+                    if (mSize == mItems.length) {
+                        dropped = removeFirst();
+                    }
+                    int tail = (mHead + mSize) % mItems.length;
+                    mItems[tail] = item;
+                    mQueuedNs[tail] = System.nanoTime();
+                    mSize++;
+                    if (mSize > mMaxOccupancy) {
+                        mMaxOccupancy = mSize;
+                    }
+                    notifyAll();
+                }
+                if (dropped != null) {
+                    mDroppedCount++;
+                }
+            }
+        }
+        if (dropped != null) {
+            OnDropListener<T> listener = mDropListener;
+            if (listener != null && isCounted) {
+                listener.onDrop(this, dropped);
+            }
+            dropped.release();
+        }
+        return dropped != item;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            T item;
+            long waitNs;
+            synchronized (this) {
+                while (mSize == 0 && mIsRunning) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // stop() interrupts after clearing mIsRunning
+                    }
+                }
+                if (!mIsRunning) {
+                    return;
+                }
+                long queuedNs = mQueuedNs[mHead];
+                item = removeFirst();
+                waitNs = System.nanoTime() - queuedNs;
+                // room for a blocked producer
+                notifyAll();
+            }
+            long startNs = System.nanoTime();
+            try {
+                mProcessor.process(item);
+            } catch (RuntimeException e) {
+                Log.e(TAG, mName + " failed to process an item", e);
+            } finally {
+                item.release();
+            }
+            long processNs = System.nanoTime() - startNs;
+            synchronized (this) {
+                mProcessedCount++;
+                mWaitSumNs += waitNs;
+                mProcessSumNs += processNs;
+                if (waitNs > mWaitMaxNs) {
+                    mWaitMaxNs = waitNs;
+                }
+                if (processNs > mProcessMaxNs) {
+                    mProcessMaxNs = processNs;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T removeFirst() {
+        T item = (T) mItems[mHead];
+        mItems[mHead] = null;
+        mHead = (mHead + 1) % mItems.length;
+        mSize--;
+        return item;
+    }
+
+    /**
+     * Items waiting in the queue.
+     */
+    public synchronized int getOccupancy() {
+        return mSize;
+    }
+
+    public synchronized int getMaxOccupancy() {
+        return mMaxOccupancy;
+    }
+
+    public synchronized long getOfferedCount() {
+        return mOfferedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getProcessedCount() {
+        return mProcessedCount;
+    }
+
+    /**
+     * Average time from offer to the processor taking the item, in microseconds.
+     */
+    public synchronized long getAverageWaitUs() {
+        return mProcessedCount > 0 ? mWaitSumNs / mProcessedCount / 1000 : 0;
+    }
+
+    public synchronized long getMaxWaitUs() {
+        return mWaitMaxNs / 1000;
+    }
+
+    /**
+     * Average time spent in the processor, in microseconds.
+     */
+    public synchronized long getAverageProcessUs() {
+        return mProcessedCount > 0 ? mProcessSumNs / mProcessedCount / 1000 : 0;
+    }
+
+    public synchronized long getMaxProcessUs() {
+        return mProcessMaxNs / 1000;
+    }
+
+    /**
+     * Total time producers waited for room with {@link #OVERFLOW_BLOCK}, in microseconds.
+     */
+    public synchronized long getBlockedUs() {
+        return mBlockedSumNs / 1000;
+    }
+
+    public synchronized void resetStats() {
+        mOfferedCount = 0;
+        mDroppedCount = 0;
+        mProcessedCount = 0;
+        mWaitSumNs = 0;
+        mWaitMaxNs = 0;
+        mProcessSumNs = 0;
+        mProcessMaxNs = 0;
+        mBlockedSumNs = 0;
+        mMaxOccupancy = mSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": " + mSize + "/" + mItems.length + " queued (max " + mMaxOccupancy + "), "
+                + mProcessedCount + " processed, " + mDroppedCount + " dropped, wait " + getAverageWaitUs() + " us (max "
+                + getMaxWaitUs() + "), process " + getAverageProcessUs() + " us (max " + getMaxProcessUs() + ")";
+    }
+
+}
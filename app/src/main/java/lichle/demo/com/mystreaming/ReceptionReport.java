@@ -0,0 +1,102 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * One report block of an RTCP receiver or sender report: what the receiver got from one of our sources.
+ */
+
+public class ReceptionReport {
+
+    private final int mSsrc;
+    private final int mReporterSsrc;
+    private final int mFractionLost;
+    private final int mCumulativeLost;
+    private final long mHighestSequence;
+    private final long mJitter;
+    private final float mJitterMs;
+    private final long mRttUs;
+    private final long mReceivedNs;
+
+    public ReceptionReport(int ssrc, int reporterSsrc, int fractionLost, int cumulativeLost, long highestSequence,
+                           long jitter, float jitterMs, long rttUs, long receivedNs) {
+        mSsrc = ssrc;
+        mReporterSsrc = reporterSsrc;
+        mFractionLost = fractionLost;
+        mCumulativeLost = cumulativeLost;
+        mHighestSequence = highestSequence;
+        mJitter = jitter;
+        mJitterMs = jitterMs;
+        mRttUs = rttUs;
+        mReceivedNs = receivedNs;
+    }
+
+    /**
+     * Our SSRC the block is about.
+     */
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    /**
+     * SSRC of the receiver which sent the report.
+     */
+    public int getReporterSsrc() {
+        return mReporterSsrc;
+    }
+
+    /**
+     * Packets lost since the previous report, in 1/256 of the packets expected.
+     */
+    public int getFractionLost() {
+        return mFractionLost;
+    }
+
+    public float getLossRate() {
+        return mFractionLost / 256f;
+    }
+
+    /**
+     * Packets lost since the beginning of the session, negative when duplicates arrived.
+     */
+    public int getCumulativeLost() {
+        return mCumulativeLost;
+    }
+
+    /**
+     * Highest sequence number received, with the wrap count in the upper 16 bits.
+     */
+    public long getHighestSequence() {
+        return mHighestSequence;
+    }
+
+    /**
+     * Interarrival jitter in RTP timestamp units.
+     */
+    public long getJitter() {
+        return mJitter;
+    }
+
+    public float getJitterMs() {
+        return mJitterMs;
+    }
+
+    /**
+     * Round trip time from the LSR and DLSR fields, in microseconds. -1 before the receiver got a sender report.
+     */
+    public long getRttUs() {
+        return mRttUs;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the report arrived.
+     */
+    public long getReceivedNs() {
+        return mReceivedNs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ssrc %08x: lost %.1f%% (%d total), jitter %.2f ms, rtt %d us", mSsrc,
+                getLossRate() * 100, mCumulativeLost, mJitterMs, mRttUs);
+    }
+
+}
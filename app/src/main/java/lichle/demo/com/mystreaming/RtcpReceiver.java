@@ -0,0 +1,350 @@
+package lichle.demo.com.mystreaming;
+
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses compound RTCP packets from the server (RR, SR, SDES, BYE, generic NACK, PLI and FIR) and keeps the latest
+ * reception report per SSRC. {@link #parse} is called by the receive thread of {@link RtcpSocket} only.
+ */
+
+public class RtcpReceiver {
+
+    public static final int PT_SR = 200;
+    public static final int PT_RR = 201;
+    public static final int PT_SDES = 202;
+    public static final int PT_BYE = 203;
+    public static final int PT_RTPFB = 205;
+    public static final int PT_PSFB = 206;
+    //feedback message types, in the count field of RTPFB and PSFB packets
+    public static final int FMT_NACK = 1;
+    public static final int FMT_PLI = 1;
+    public static final int FMT_FIR = 4;
+
+    private static final String TAG = "RtcpReceiver";
+    private static final int REPORT_BLOCK_LENGTH = 24;
+    private static final int SDES_CNAME = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long mClockFrequency;
+    private volatile IRtcpListener mListener;
+    private final Map<Integer, ReceptionReport> mReports = new HashMap<>();
+    private volatile long mPacketCount, mNackCount, mKeyFrameRequestCount;
+    private volatile DelayBasedEstimator mEstimator;
+    private volatile IRetransmitter mRetransmitter;
+    private volatile KeyFrameRequester mKeyFrameRequester;
+    //SSRC of our media stream, PLI and FIR for another SSRC (RTX, FEC, someone else) do not ask for a keyframe
+    private volatile int mMediaSsrc;
+    //sequence numbers of the last NACK, grown when a NACK has more
+    private int[] mLost = new int[17 * 16];
+    //reused by every transport-cc feedback, only touched by the receive thread
+    private final TransportFeedback mTransportFeedback = new TransportFeedback();
+    private volatile long mTransportFeedbackCount;
+
+    public RtcpReceiver(long clockFrequency) {
+        mClockFrequency = clockFrequency;
+    }
+
+    public void setListener(IRtcpListener listener) {
+        mListener = listener;
+    }
+
+    public void setMediaSsrc(int ssrc) {
+        mMediaSsrc = ssrc;
+    }
+
+    /**
+     * Asks for a keyframe on PLI and FIR of the media SSRC, on the thread calling {@link #parse}.
+     */
+    public void setKeyFrameRequester(KeyFrameRequester requester) {
+        mKeyFrameRequester = requester;
+    }
+
+    /**
+     * Resends the packets of generic NACKs, on the thread calling {@link #parse}.
+     */
+    public void setRetransmitter(IRetransmitter retransmitter) {
+        mRetransmitter = retransmitter;
+    }
+
+    /**
+     * Receives the transport-cc feedback, on the thread calling {@link #parse}.
+     */
+    public void setDelayBasedEstimator(DelayBasedEstimator estimator) {
+        mEstimator = estimator;
+    }
+
+    /**
+     * Latest reception report about one of our SSRCs, null if none arrived yet.
+     */
+    public ReceptionReport getReport(int ssrc) {
+        synchronized (mReports) {
+            return mReports.get(ssrc);
+        }
+    }
+
+    public List<ReceptionReport> getReports() {
+        synchronized (mReports) {
+            return new ArrayList<>(mReports.values());
+        }
+    }
+
+    /**
+     * RTCP packets parsed, each packet of a compound packet counts.
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * Sequence numbers asked for again by NACKs.
+     */
+    public long getNackCount() {
+        return mNackCount;
+    }
+
+    public long getKeyFrameRequestCount() {
+        return mKeyFrameRequestCount;
+    }
+
+    public long getTransportFeedbackCount() {
+        return mTransportFeedbackCount;
+    }
+
+    public void reset() {
+        synchronized (mReports) {
+            mReports.clear();
+        }
+        mPacketCount = 0;
+        mNackCount = 0;
+        mKeyFrameRequestCount = 0;
+        mTransportFeedbackCount = 0;
+    }
+
+    /**
+     * Parses a compound RTCP packet, stops at the first malformed packet.
+     *
+     * @param nowNs {@link System#nanoTime()} when the datagram arrived, the clock of our sender reports
+     * @return the number of RTCP packets parsed
+     */
+    public int parse(byte[] data, int offset, int length, long nowNs) {
+        int end = offset + length;
+        int count = 0;
+        while (end - offset >= 4) {
+            if ((data[offset] & 0xC0) != 0x80) {
+                Log.e(TAG, "not an RTCP version 2 packet");
+                break;
+            }
+            int itemCount = data[offset] & 0x1F;
+            int type = data[offset + 1] & 0xFF;
+            int packetLength = (readShort(data, offset + 2) + 1) * 4;
+            if (packetLength > end - offset) {
+                Log.e(TAG, "truncated RTCP packet, type " + type);
+                break;
+            }
+            int packetEnd = offset + packetLength;
+            if ((data[offset] & 0x20) != 0) {
+                // padding, the last byte holds its length
+                packetEnd -= data[offset + packetLength - 1] & 0xFF;
+            }
+            switch (type) {
+                case PT_SR:
+                    // sender info: SSRC, NTP timestamp, RTP timestamp, packet and octet count
+                    parseReportBlocks(data, offset + 28, packetEnd, itemCount, readInt(data, offset + 4), nowNs);
+                    break;
+                case PT_RR:
+                    parseReportBlocks(data, offset + 8, packetEnd, itemCount, readInt(data, offset + 4), nowNs);
+                    break;
+                case PT_SDES:
+                    parseSourceDescription(data, offset + 4, packetEnd, itemCount);
+                    break;
+                case PT_BYE:
+                    parseBye(data, offset + 4, packetEnd, itemCount);
+                    break;
+                case PT_RTPFB:
+                    if (itemCount == FMT_NACK) {
+                        parseNack(data, offset + 12, packetEnd, readInt(data, offset + 8));
+                    } else if (itemCount == TransportFeedback.FMT) {
+                        parseTransportFeedback(data, offset + 12, packetEnd, nowNs);
+                    }
+                    break;
+                case PT_PSFB:
+                    parsePayloadFeedback(data, offset, packetEnd, itemCount, nowNs);
+                    break;
+                default:
+                    break;
+            }
+            count++;
+            offset += packetLength;
+        }
+        mPacketCount += count;
+        return count;
+    }
+
+    private void parseTransportFeedback(byte[] data, int offset, int end, long nowNs) {
+        if (!mTransportFeedback.parse(data, offset, end)) {
+            Log.e(TAG, "malformed transport-cc feedback");
+            return;
+        }
+        mTransportFeedbackCount++;
+        DelayBasedEstimator estimator = mEstimator;
+        if (estimator != null) {
+            estimator.onFeedback(mTransportFeedback, nowNs / 1000);
+        }
+    }
+
+    private void parseReportBlocks(byte[] data, int offset, int end, int count, int reporterSsrc, long nowNs) {
+        IRtcpListener listener = mListener;
+        for (int i = 0; i < count && end - offset >= REPORT_BLOCK_LENGTH; i++, offset += REPORT_BLOCK_LENGTH) {
+            int ssrc = readInt(data, offset);
+            int fractionLost = data[offset + 4] & 0xFF;
+            // 24 bit signed
+            int cumulativeLost = (readInt(data, offset + 4) << 8) >> 8;
+            long highestSequence = readInt(data, offset + 8) & 0xFFFFFFFFL;
+            long jitter = readInt(data, offset + 12) & 0xFFFFFFFFL;
+            long lsr = readInt(data, offset + 16) & 0xFFFFFFFFL;
+            long dlsr = readInt(data, offset + 20) & 0xFFFFFFFFL;
+            ReceptionReport report = new ReceptionReport(ssrc, reporterSsrc, fractionLost, cumulativeLost,
+                    highestSequence, jitter, jitter * 1000f / mClockFrequency, getRttUs(lsr, dlsr, nowNs), nowNs);
+            synchronized (mReports) {
+                mReports.put(ssrc, report);
+            }
+            if (listener != null) {
+                listener.onReceptionReport(report);
+            }
+        }
+    }
+
+    /**
+     * RTT = arrival - LSR - DLSR (RFC 3550 6.4.1), all in 1/65536 seconds of the NTP timestamps we sent.
+     */
+    static long getRttUs(long lsr, long dlsr, long nowNs) {
+        if (lsr == 0) {
+            return -1;
+        }
+        long rtt = (RtcpSocket.toCompactNtp(nowNs) - lsr - dlsr) & 0xFFFFFFFFL;
+        // a negative RTT wraps to a huge value, e.g. a report about an SR of a previous session
+        if (rtt > 0x7FFFFFFFL) {
+            return -1;
+        }
+        return rtt * 1000000 / 65536;
+    }
+
+    private void parseSourceDescription(byte[] data, int offset, int end, int count) {
+        IRtcpListener listener = mListener;
+        for (int i = 0; i < count && end - offset >= 4; i++) {
+            int chunk = offset;
+            int ssrc = readInt(data, offset);
+            offset += 4;
+            String cname = null;
+            // items until a null item, then padding to the next 32 bit boundary
+            while (offset < end && data[offset] != 0) {
+                if (offset + 2 > end || offset + 2 + (data[offset + 1] & 0xFF) > end) {
+                    return;
+                }
+                int itemLength = data[offset + 1] & 0xFF;
+                if (data[offset] == SDES_CNAME) {
+                    cname = new String(data, offset + 2, itemLength, UTF_8);
+                }
+                offset += 2 + itemLength;
+            }
+            offset = chunk + ((offset - chunk + 4) & ~3);
+            if (listener != null && cname != null) {
+                listener.onSourceDescription(ssrc, cname);
+            }
+        }
+    }
+
+    private void parseBye(byte[] data, int offset, int end, int count) {
+        IRtcpListener listener = mListener;
+        for (int i = 0; i < count && end - offset >= 4; i++, offset += 4) {
+            if (listener != null) {
+                listener.onBye(readInt(data, offset));
+            }
+        }
+    }
+
+    /**
+     * Each FCI entry is a packet ID and a bitmask of the 16 following lost packets (RFC 4585 6.2.1).
+     */
+    private void parseNack(byte[] data, int offset, int end, int mediaSsrc) {
+        int entries = (end - offset) / 4;
+        if (entries <= 0) {
+            return;
+        }
+        if (mLost.length < entries * 17) {
+            mLost = new int[entries * 17];
+        }
+        int[] lost = mLost;
+        int count = 0;
+        for (int i = 0; i < entries; i++, offset += 4) {
+            int pid = readShort(data, offset);
+            int mask = readShort(data, offset + 2);
+            lost[count++] = pid;
+            for (int bit = 0; bit < 16; bit++) {
+                if ((mask & (1 << bit)) != 0) {
+                    lost[count++] = (pid + bit + 1) & 0xFFFF;
+                }
+            }
+        }
+        mNackCount += count;
+        IRetransmitter retransmitter = mRetransmitter;
+        if (retransmitter != null) {
+            for (int i = 0; i < count; i++) {
+                retransmitter.retransmit(mediaSsrc, lost[i]);
+            }
+        }
+        IRtcpListener listener = mListener;
+        if (listener != null) {
+            int[] sequenceNumbers = new int[count];
+            System.arraycopy(lost, 0, sequenceNumbers, 0, count);
+            listener.onNack(mediaSsrc, sequenceNumbers);
+        }
+    }
+
+    private void parsePayloadFeedback(byte[] data, int offset, int end, int format, long nowNs) {
+        IRtcpListener listener = mListener;
+        KeyFrameRequester requester = mKeyFrameRequester;
+        if (format == FMT_PLI && end - offset >= 12) {
+            int mediaSsrc = readInt(data, offset + 8);
+            if (mediaSsrc == mMediaSsrc) {
+                mKeyFrameRequestCount++;
+                if (requester != null) {
+                    requester.request(KeyFrameRequester.REASON_PLI, nowNs / 1000000);
+                }
+            }
+            if (listener != null) {
+                listener.onKeyFrameRequest(mediaSsrc, false);
+            }
+        } else if (format == FMT_FIR) {
+            // the media source field is unused, each FCI entry names an SSRC and a request sequence number
+            for (offset += 12; end - offset >= 8; offset += 8) {
+                int mediaSsrc = readInt(data, offset);
+                if (mediaSsrc == mMediaSsrc) {
+                    mKeyFrameRequestCount++;
+                    if (requester != null) {
+                        requester.request(KeyFrameRequester.REASON_FIR, nowNs / 1000000);
+                    }
+                }
+                if (listener != null) {
+                    listener.onKeyFrameRequest(mediaSsrc, true);
+                }
+            }
+        }
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+}
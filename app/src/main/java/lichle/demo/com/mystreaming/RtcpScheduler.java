@@ -0,0 +1,81 @@
+package lichle.demo.com.mystreaming;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One thread sending the sender reports of every {@link RtcpSocket}, each at its own randomized interval.
+ * The thread sleeps until the earliest report is due and stops when no socket is left.
+ */
+
+public class RtcpScheduler implements Runnable {
+
+    private static RtcpScheduler sInstance;
+
+    private final ArrayList<RtcpSocket> mSockets = new ArrayList<>();
+    private Thread mThread;
+
+    public static synchronized RtcpScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new RtcpScheduler();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts sending the reports of the socket at the time of its {@link RtcpSocket#getNextReportNs()}.
+     */
+    public void add(RtcpSocket socket) {
+        Thread thread;
+        synchronized (mSockets) {
+            if (!mSockets.contains(socket)) {
+                mSockets.add(socket);
+            }
+            if (mThread == null) {
+                mThread = new Thread(this, "RtcpScheduler");
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+            thread = mThread;
+        }
+        // the new report may be due before the one the thread sleeps for
+        LockSupport.unpark(thread);
+    }
+
+    public void remove(RtcpSocket socket) {
+        synchronized (mSockets) {
+            mSockets.remove(socket);
+        }
+    }
+
+    public int getSocketCount() {
+        synchronized (mSockets) {
+            return mSockets.size();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long now = System.nanoTime();
+            long sleepNs = Long.MAX_VALUE;
+            synchronized (mSockets) {
+                if (mSockets.isEmpty()) {
+                    mThread = null;
+                    return;
+                }
+                for (int i = 0; i < mSockets.size(); i++) {
+                    RtcpSocket socket = mSockets.get(i);
+                    if (socket.getNextReportNs() - now <= 0) {
+                        socket.report(now);
+                    }
+                    sleepNs = Math.min(sleepNs, socket.getNextReportNs() - now);
+                }
+            }
+            if (sleepNs > 0) {
+                LockSupport.parkNanos(this, sleepNs);
+            }
+        }
+    }
+
+}
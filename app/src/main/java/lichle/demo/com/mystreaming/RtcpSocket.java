@@ -4,25 +4,48 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by lich on 9/5/18.
  */
 
-public class RtcpSocket {
+public class RtcpSocket implements Runnable {
 
     public static final int MTU = 1500;
     public static final int PACKET_LENGTH = 28;
     private static final String TAG = "RtcpSocket";
+    //RFC 3550 6.3.1: e - 3/2 compensates the timer reconsideration the interval is computed for
+    private static final double COMPENSATION = Math.E - 1.5;
+    //IPv4 and UDP headers, counted in the average RTCP packet size
+    private static final int UDP_OVERHEAD = 28;
+    //only touched by the scheduler thread while it builds and sends a report
     private byte[] mBuffer = new byte[MTU];
-    private int mOctetCount = 0, mPacketCount = 0;
-    private long mInterval, mDelta, mNow, mOld;
+    //packet count in the upper 32 bits, octet count in the lower 32 bits, so a report reads both at once
+    private final AtomicLong mCounters = new AtomicLong();
+    //RTP timestamp of the last packet minus the RTP time of its send time, gives the RTP time of the report
+    private volatile long mRtpOffset;
+    private volatile int mSsrc;
+    private long mClockFrequency = Constants.CLOCK_VIDEO_FREQUENCY;
 
-    private MulticastSocket mSocket;
+    //RFC 3550 6.3 transmission interval
+    private volatile long mSessionBandwidth = Constants.BIT_RATE / 8;
+    private volatile long mMinIntervalNs = Constants.RTCP_MIN_INTERVAL_MS * 1000000L;
+    private volatile double mAverageRtcpSize = PACKET_LENGTH + UDP_OVERHEAD;
+    private boolean mIsInitial = true;
+    private volatile long mNextReportNs;
+    private final Random mRandom = new Random();
+
+    private DatagramSocket mSocket;
     private DatagramPacket mDatagramPacket;
 
+    //Receiver reports and feedback from the server arrive on the same socket
+    private final RtcpReceiver mReceiver = new RtcpReceiver(Constants.CLOCK_VIDEO_FREQUENCY);
+    private Thread mReceiveThread;
+
     public RtcpSocket() {
     /*							     Version(2)  Padding(0)					 					*/
     /*									 ^		  ^			PT = 0	    						*/
@@ -46,60 +69,82 @@ public class RtcpSocket {
     /* Byte 20,21,22,23  ->  packet count				 	 */
     /* Byte 24,25,26,27  ->  octet count			         */
 
-        // By default we sent one report every 3 second
-        mInterval = 3000;
-        mDelta = mInterval;
-
         try {
-            mSocket = new MulticastSocket();
+            // the client_port announced in SETUP, servers send their reports there
+            mSocket = new DatagramSocket(Constants.RTCP_CLIENT_PORT);
         } catch (IOException e) {
-            // Very unlikely to happen. Means that all UDP ports are already being used
-            throw new RuntimeException(e.getMessage());
+            Log.e(TAG, "RTCP port " + Constants.RTCP_CLIENT_PORT + " in use, using any port", e);
+            try {
+                mSocket = new DatagramSocket();
+            } catch (IOException e1) {
+                // Very unlikely to happen. Means that all UDP ports are already being used
+                throw new RuntimeException(e1.getMessage());
+            }
         }
         mDatagramPacket = new DatagramPacket(mBuffer, 1);
     }
 
     public void setSSRC(int ssrc) {
-        setLong(ssrc, 4, 8);
-        mPacketCount = 0;
-        mOctetCount = 0;
-        setLong(mPacketCount, 20, 24);
-        setLong(mOctetCount, 24, 28);
+        mSsrc = ssrc;
+        mReceiver.setMediaSsrc(ssrc);
+        reset();
+    }
+
+    public void setClockFrequency(long clockFrequency) {
+        mClockFrequency = clockFrequency;
     }
 
     /**
-     * Updates the number of packets sent, and the total amount of data sent.
+     * Session bandwidth of RFC 3550 6.2, 5% of it goes to RTCP.
      *
-     * @param length The length of the packet
+     * @param bitRate bitrate of the RTP stream in bit/s
      */
-    private boolean updateSend(int length) {
-        mPacketCount += 1;
-        mOctetCount += length;
-        setLong(mPacketCount, 20, 24);
-        setLong(mOctetCount, 24, 28);
-
-        mNow = System.currentTimeMillis();
-        mDelta += mOld != 0 ? mNow - mOld : 0;
-        mOld = mNow;
-        if (mInterval > 0) {
-            if (mDelta >= mInterval) {
-                // We send a Sender Report
-                mDelta = 0;
-                return true;
-            }
-        }
-        return false;
+    public void setSessionBandwidth(int bitRate) {
+        mSessionBandwidth = Math.max(1, bitRate / 8);
+    }
+
+    /**
+     * Minimum of the report interval, 5 s in RFC 3550. Half of it applies before the first report.
+     */
+    public void setMinInterval(long intervalMs) {
+        mMinIntervalNs = intervalMs * 1000000L;
+    }
+
+    /**
+     * Updates the number of packets sent, and the total amount of data sent. Sender thread only.
+     *
+     * @param length payload octets of the packet
+     * @param rtpts  RTP timestamp of the packet
+     */
+    public void update(int length, long rtpts) {
+        long counters;
+        long next;
+        do {
+            counters = mCounters.get();
+            // both counts wrap on their own 32 bits
+            next = ((counters + (1L << 32)) & 0xFFFFFFFF00000000L) | ((counters + length) & 0xFFFFFFFFL);
+        } while (!mCounters.compareAndSet(counters, next));
+        mRtpOffset = rtpts - toRtpTime(System.nanoTime());
     }
 
     /**
      * Resets the reports (total number of bytes sent, number of packets sent, etc.)
      */
     public void reset() {
-        mPacketCount = 0;
-        mOctetCount = 0;
-        setLong(mPacketCount, 20, 24);
-        setLong(mOctetCount, 24, 28);
-        mDelta = mNow = mOld = 0;
+        mCounters.set(0);
+        mRtpOffset = 0;
+    }
+
+    public long getPacketCount() {
+        return mCounters.get() >>> 32;
+    }
+
+    public long getOctetCount() {
+        return mCounters.get() & 0xFFFFFFFFL;
+    }
+
+    private long toRtpTime(long ns) {
+        return ns / 1000 * mClockFrequency / 1000000L;
     }
 
     private void setLong(long n, int begin, int end) {
@@ -117,50 +162,139 @@ public class RtcpSocket {
         setLong(rtpts, 16, 20);
     }
 
+    /**
+     * Middle 32 bits of the NTP timestamp {@link #setData} writes for ntpts, the format of the LSR field of reports.
+     */
+    static long toCompactNtp(long ntpts) {
+        long hb = ntpts / 1000000000;
+        long lb = ((ntpts - hb * 1000000000) * 4294967296L) / 1000000000;
+        return ((hb & 0xFFFF) << 16) | (lb >>> 16);
+    }
+
     public void close() {
+        RtcpScheduler.getInstance().remove(this);
         mSocket.close();
+        // the blocked receive fails once the socket is closed
+        mReceiveThread = null;
+    }
+
+    /**
+     * Local port reports from the server are received on.
+     */
+    public int getLocalPort() {
+        return mSocket.getLocalPort();
+    }
+
+    public RtcpReceiver getReceiver() {
+        return mReceiver;
+    }
+
+    public void setListener(IRtcpListener listener) {
+        mReceiver.setListener(listener);
     }
 
     public void setDestination(InetAddress dest, int dport) {
         mDatagramPacket.setPort(dport);
         mDatagramPacket.setAddress(dest);
+        if (mNextReportNs == 0) {
+            scheduleNextReport(System.nanoTime());
+        }
+        RtcpScheduler.getInstance().add(this);
+        if (mReceiveThread == null && !mSocket.isClosed()) {
+            mReceiveThread = new Thread(this, "RtcpReceiver");
+            mReceiveThread.setDaemon(true);
+            mReceiveThread.start();
+        }
     }
 
     /**
-     * Updates the number of packets sent, and the total amount of data sent.
-     *
-     * @param length The length of the packet
-     * @param rtpts  The RTP timestamp.
-     * @param port   to send packet
-     **/
-    public void update(int length, long rtpts, int port) {
-        if (updateSend(length)) {
-            send(System.nanoTime(), rtpts, port);
+     * Receive loop, hands every datagram to the {@link RtcpReceiver} until the socket is closed.
+     */
+    @Override
+    public void run() {
+        byte[] buffer = new byte[MTU];
+        DatagramPacket packet = new DatagramPacket(buffer, MTU);
+        while (!mSocket.isClosed()) {
+            try {
+                packet.setLength(MTU);
+                mSocket.receive(packet);
+                mReceiver.parse(buffer, packet.getOffset(), packet.getLength(), System.nanoTime());
+                updateAverageRtcpSize(packet.getLength());
+            } catch (IOException e) {
+                if (!mSocket.isClosed()) {
+                    Log.e(TAG, "receive RTCP error", e);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "bad RTCP packet", e);
+            }
         }
     }
 
     /**
-     * Sends the RTCP packet over the network.
+     * Time of the next report, {@link RtcpScheduler} thread only.
+     */
+    long getNextReportNs() {
+        return mNextReportNs;
+    }
+
+    /**
+     * Sends a sender report built from one snapshot of the counters, then schedules the next one.
+     * {@link RtcpScheduler} thread only, nothing is allocated.
+     */
+    void report(long nowNs) {
+        long counters = mCounters.get();
+        // nothing sent yet, there is nothing to report about
+        if (counters != 0) {
+            setLong(mSsrc, 4, 8);
+            setData(nowNs, toRtpTime(nowNs) + mRtpOffset);
+            setLong(counters >>> 32, 20, 24);
+            setLong(counters & 0xFFFFFFFFL, 24, 28);
+            mDatagramPacket.setLength(PACKET_LENGTH);
+            try {
+                mSocket.send(mDatagramPacket);
+                updateAverageRtcpSize(PACKET_LENGTH);
+                mIsInitial = false;
+            } catch (IOException e) {
+                Log.e(TAG, "send UDP report error", e);
+            }
+        }
+        scheduleNextReport(nowNs);
+    }
+
+    private void scheduleNextReport(long nowNs) {
+        // the peer of an RTSP session is the only other member, we are the only sender
+        mNextReportNs = nowNs + computeIntervalNs(2, 1, true, mSessionBandwidth * 0.05, mAverageRtcpSize,
+                mMinIntervalNs, mIsInitial, mRandom.nextDouble());
+    }
+
+    private void updateAverageRtcpSize(int length) {
+        mAverageRtcpSize += ((length + UDP_OVERHEAD) - mAverageRtcpSize) / 16;
+    }
+
+    /**
+     * RTCP transmission interval of RFC 3550 6.3.1 and A.7.
      *
-     * @param ntpts the NTP timestamp.
-     * @param rtpts the RTP timestamp.
+     * @param rtcpBandwidth  bytes per second available to RTCP, 5% of the session bandwidth
+     * @param averageRtcpSize average size of the RTCP packets sent and received, with UDP and IP headers
+     * @param random         uniformly distributed in [0, 1), spreads the reports of the members
      */
-    private void send(final long ntpts, final long rtpts, final int port) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                setData(ntpts, rtpts);
-                mDatagramPacket.setLength(PACKET_LENGTH);
-                mDatagramPacket.setPort(port);
-                try {
-                    mSocket.send(mDatagramPacket);
-                    Log.i(TAG, "send report, " + mDatagramPacket.getPort() + " Port");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    Log.e(TAG, "send UDP report error", e);
-                }
+    static long computeIntervalNs(int members, int senders, boolean weSent, double rtcpBandwidth,
+                                  double averageRtcpSize, long minIntervalNs, boolean initial, double random) {
+        double minInterval = (initial ? minIntervalNs / 2 : minIntervalNs) / 1e9;
+        int n = members;
+        // senders get a quarter of the RTCP bandwidth when they are at most a quarter of the members
+        if (senders <= members * 0.25) {
+            if (weSent) {
+                rtcpBandwidth *= 0.25;
+                n = senders;
+            } else {
+                rtcpBandwidth *= 0.75;
+                n -= senders;
             }
-        }).start();
+        }
+        double interval = Math.max(minInterval, averageRtcpSize * n / rtcpBandwidth);
+        interval = interval * (random + 0.5) / COMPENSATION;
+        return (long) (interval * 1e9);
     }
 
 }
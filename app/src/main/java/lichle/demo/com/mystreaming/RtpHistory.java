@@ -0,0 +1,130 @@
+package lichle.demo.com.mystreaming;
+
+import java.util.Arrays;
+
+/**
+ * Copies of the last RTP packets sent, by sequence number, for retransmission on NACK (RFC 4588). Packets leave the
+ * history, oldest put first, when it holds more than its maximum bytes or when they are older than its maximum age.
+ * The slots are allocated once, {@link #put} and {@link #get} only copy.
+ * <p>
+ * A packet goes to the slot of its sequence number and replaces the one there, so packets may come out of order,
+ * e.g. from the sender thread and the packetizer thread around a pacing switch, without losing the others.
+ */
+
+public class RtpHistory {
+
+    private final int mMask;
+    private final byte[][] mPackets;
+    private final int[] mLengths;
+    private final long[] mSentNs;
+    //sequence number in each slot, -1 if empty
+    private final int[] mSequences;
+    private final int mMaxBytes;
+    private final long mMaxAgeNs;
+
+    //sequence numbers in the order they were put, entries whose slot was reused since are skipped
+    private final int[] mOrder;
+    private int mOrderHead, mOrderCount;
+    private int mSize;
+    private int mBytes;
+
+    /**
+     * Memory is bounded by maxBytes: there are at most maxBytes / {@link Constants#MTU} slots.
+     *
+     * @param capacity most packets kept, rounded up to a power of two, then down to fit maxBytes
+     */
+    public RtpHistory(int capacity, int maxBytes, long maxAgeNs) {
+        int slots = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 15)) * 2 - 1);
+        slots = Math.min(slots, Integer.highestOneBit(Math.max(2, maxBytes / Constants.MTU)));
+        mMask = slots - 1;
+        mPackets = new byte[slots][Constants.MTU];
+        mLengths = new int[slots];
+        mSentNs = new long[slots];
+        mSequences = new int[slots];
+        Arrays.fill(mSequences, -1);
+        mOrder = new int[2 * slots];
+        mMaxBytes = maxBytes;
+        mMaxAgeNs = maxAgeNs;
+    }
+
+    public int getCapacity() {
+        return mPackets.length;
+    }
+
+    public synchronized void put(int sequence, byte[] data, int offset, int length, long nowNs) {
+        sequence &= 0xFFFF;
+        int slot = sequence & mMask;
+        if (mSequences[slot] >= 0) {
+            remove(slot);
+        }
+        if (mOrderCount == mOrder.length) {
+            // many puts out of order, the oldest goes as it would from a full history
+            removeFirstInOrder();
+        }
+        System.arraycopy(data, offset, mPackets[slot], 0, length);
+        mLengths[slot] = length;
+        mSentNs[slot] = nowNs;
+        mSequences[slot] = sequence;
+        mBytes += length;
+        mSize++;
+        mOrder[(mOrderHead + mOrderCount) % mOrder.length] = sequence;
+        mOrderCount++;
+        while (mOrderCount > 0) {
+            int oldest = mOrder[mOrderHead];
+            int oldestSlot = oldest & mMask;
+            boolean isLive = mSequences[oldestSlot] == oldest;
+            if (isLive && (mSize == 1 || (mBytes <= mMaxBytes && nowNs - mSentNs[oldestSlot] <= mMaxAgeNs))) {
+                break;
+            }
+            removeFirstInOrder();
+        }
+    }
+
+    /**
+     * Copies the packet with this sequence number to out.
+     *
+     * @return its length, -1 if it is not in the history or too old
+     */
+    public synchronized int get(int sequence, byte[] out, long nowNs) {
+        sequence &= 0xFFFF;
+        int slot = sequence & mMask;
+        if (mSequences[slot] != sequence || nowNs - mSentNs[slot] > mMaxAgeNs) {
+            return -1;
+        }
+        System.arraycopy(mPackets[slot], 0, out, 0, mLengths[slot]);
+        return mLengths[slot];
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int getBytes() {
+        return mBytes;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mSequences, -1);
+        mOrderHead = 0;
+        mOrderCount = 0;
+        mSize = 0;
+        mBytes = 0;
+    }
+
+    private void removeFirstInOrder() {
+        int sequence = mOrder[mOrderHead];
+        mOrderHead = (mOrderHead + 1) % mOrder.length;
+        mOrderCount--;
+        int slot = sequence & mMask;
+        if (mSequences[slot] == sequence) {
+            remove(slot);
+        }
+    }
+
+    private void remove(int slot) {
+        mBytes -= mLengths[slot];
+        mSequences[slot] = -1;
+        mSize--;
+    }
+
+}
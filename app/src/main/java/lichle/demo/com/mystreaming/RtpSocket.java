@@ -4,11 +4,21 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.io.InterruptedIOException;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by lich on 9/5/18.
@@ -18,31 +28,92 @@ public class RtpSocket implements Runnable {
 
     private static final String TAG = "RtpSocket";
 
+    //the sender thread stops after this long without packets, the next commit starts a new one
+    private static final long SENDER_IDLE_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(4);
+
     private byte[][] mBuffers;
     private long[] mTimestamps;
-    private Semaphore mBufferRequested, mBufferCommitted;
+    //packetizer thread -> sender thread
+    private final SpscRing mRing;
+    private final AtomicBoolean mIsSenderRunning = new AtomicBoolean();
     private Thread mThread;
-    private int mBufferOut;
     private long mClock = 0;
     private int mSeq = 0;
     private int mBufferCount, mBufferIn;
-    private boolean mIsRunning;
+    //sequence of the buffer handed out by requestBuffer and not committed yet, -1 if none
+    private long mClaimed = -1;
+    private volatile boolean mIsRunning;
 
     //For sending RTP reports
     private RtcpSocket mSenderReport;
 
-    private MulticastSocket mSocket;
+    //RTP, RTX and FEC all leave through this channel, bound to the RTP port announced in SETUP; the FIFO sends
+    //through its socket adaptor, the zero-copy path writes to the channel itself
+    private DatagramChannel mChannel;
+    private DatagramSocket mSocket;
     private DatagramPacket[] mPackets;
     private int mPort = -1;
 
+    //Zero-copy path: RTP header + payload header in a small direct buffer, the payload stays in the encoder buffer
+    private boolean mIsZeroCopy;
+    private final ByteBuffer mGatherHeader =
+            ByteBuffer.allocateDirect(Constants.RTP_HEADER_LENGTH + Constants.RTP_EXTENSION_LENGTH + 3);
+    private final ByteBuffer[] mGatherBuffers = new ByteBuffer[2];
+    //scratch extension of the gather path
+    private final byte[] mExtension = new byte[Constants.RTP_EXTENSION_LENGTH];
+    private int mSSRC;
+
+    //Pacing: the sender thread spreads packets with a token bucket instead of sending them back-to-back
+    private volatile boolean mIsPacing;
+    private final TokenBucket mTokenBucket = new TokenBucket(Constants.BIT_RATE / 8, 2 * Constants.MTU);
+    private final long[] mCommitNs;
+    private volatile long mPacingDelaySumNs, mPacingDelayMaxNs, mPacedPackets;
+    private volatile int mMaxQueueDepth;
+
+    //Transport-wide congestion control: an RFC 8285 header extension carries abs-send-time and a sequence number
+    //counting every packet sent, the server's feedback about them drives the delay based estimator
+    private volatile boolean mIsTransportWideCc;
+    private int mHeaderLength = Constants.RTP_HEADER_LENGTH;
+    private final AtomicInteger mTransportSequence = new AtomicInteger();
+    private volatile DelayBasedEstimator mEstimator;
+    private int mBitRate = Constants.BIT_RATE;
+
+    //Retransmission: copies of the packets sent, resent on NACK as RTX packets or as they were, rate limited
+    private volatile RtpHistory mHistory;
+    private volatile boolean mIsRtx;
+    private int mRtxSsrc;
+    private int mRtxSeq;
+    private final TokenBucket mRtxBucket = new TokenBucket(
+            (long) (Constants.BIT_RATE / 8 * Constants.RTX_RATE_FRACTION), 8 * Constants.MTU);
+    //the packet being resent, room for the original sequence number of RTX
+    private final byte[] mRtxBuffer = new byte[Constants.MTU + 2];
+    private final ByteBuffer mRtxByteBuffer = ByteBuffer.wrap(mRtxBuffer);
+    private final DatagramPacket mRtxPacket = new DatagramPacket(mRtxBuffer, 1);
+    //copy of the last packet of the gather path for the history
+    private final byte[] mGatherCopy = new byte[Constants.MTU];
+    private volatile long mRetransmittedPackets, mRetransmissionMisses, mRetransmissionDrops;
+
+    //Forward error correction: XOR parity packets on their own SSRC, sent right after the media packets they protect
+    private volatile FecEncoder mFec;
+    private final DatagramPacket mFecPacket = new DatagramPacket(new byte[1], 1);
+    private final ByteBuffer mFecByteBuffer = ByteBuffer.allocate(FecEncoder.HEADER_LENGTH + Constants.MTU);
+
+    private volatile LatencyTracer mLatencyTracer;
+    private volatile KeyFrameRequester mKeyFrameRequester;
+    //start of the delay to the next packet sent, 0 when not armed
+    private final AtomicLong mFirstPacketStartNs = new AtomicLong();
+    private volatile long mFirstPacketDelayUs = -1;
+
     /**
      * This RTP mRtpSocket implements a buffering mechanism relying on a FIFO of mBuffers and a Thread.
      */
     public RtpSocket() {
         mIsRunning = true;
-        mBufferCount = 300;
+        mRing = new SpscRing(300, Constants.RTP_WAIT_STRATEGY);
+        mBufferCount = mRing.getCapacity();
         mBuffers = new byte[mBufferCount][];
-        resetFifo();
+        mTimestamps = new long[mBufferCount];
+        mCommitNs = new long[mBufferCount];
 
         for (int i = 0; i < mBufferCount; i++) {
             mBuffers[i] = new byte[Constants.MTU];
@@ -67,46 +138,306 @@ public class RtpSocket implements Runnable {
         for (int i = 0; i < mBufferCount; i++) {
             mPackets[i] = new DatagramPacket(mBuffers[i], 1);
         }
+        mChannel = openChannel(mSenderReport.getLocalPort() - 1);
+        mSocket = mChannel.socket();
+    }
+
+    /**
+     * Opens the RTP channel on the port below the RTCP port, the client_port pair of SETUP, or on any port if it is
+     * in use.
+     */
+    private static DatagramChannel openChannel(int port) {
         try {
-            mSocket = new MulticastSocket();
+            DatagramChannel channel = DatagramChannel.open();
+            try {
+                channel.bind(new InetSocketAddress(port));
+            } catch (IOException e) {
+                Log.e(TAG, "RTP port " + port + " in use, using any port", e);
+                channel.bind(new InetSocketAddress(0));
+            }
+            return channel;
         } catch (IOException e) {
-            e.printStackTrace();
+            // Very unlikely to happen. Means that all UDP ports are already being used
+            throw new RuntimeException(e.getMessage());
         }
     }
 
     public void close() {
-        mSocket.close();
         mSenderReport.close();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mIsZeroCopy = false;
     }
 
-    protected void resetFifo() {
-        mBufferIn = 0;
-        mBufferOut = 0;
-        mTimestamps = new long[mBufferCount];
-        mBufferRequested = new Semaphore(mBufferCount);
-        mBufferCommitted = new Semaphore(0);
+    /**
+     * Local port the RTP, RTX and FEC packets are sent from, the first port of client_port in SETUP.
+     */
+    public int getLocalPort() {
+        return mSocket.getLocalPort();
+    }
+
+    /**
+     * Sends packets with gather writes on the channel, see {@link #sendGather}, instead of through the FIFO.
+     * Both leave from the same port.
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        mIsZeroCopy = zeroCopy;
+    }
+
+    /**
+     * True if the packetizer has to use {@link #sendGather} instead of requestBuffer/commitBuffer.
+     * Paced packets go through the FIFO, so this is false while pacing is on.
+     */
+    public boolean isZeroCopy() {
+        return mIsZeroCopy && !mIsPacing;
+    }
+
+    /**
+     * Spreads the packets of a frame over a fraction of the frame interval instead of sending them in one burst.
+     * The token bucket fills at bitRate / fraction, so a frame of average size takes fraction / fps seconds,
+     * larger frames (IDR) take longer. The bucket holds a few milliseconds of traffic, at least 2 packets.
+     *
+     * @param bitRate  target bitrate of the stream in bit/s
+     * @param fraction part of the frame interval a frame of average size is spread over, in (0, 1]
+     */
+    public void setPacing(boolean enabled, int bitRate, float fraction) {
+        if (enabled) {
+            setPacingRate(bitRate, fraction);
+        }
+        mIsPacing = enabled;
+    }
+
+    /**
+     * Updates the pacing rate when the target bitrate changes.
+     */
+    public void setPacingRate(int bitRate, float fraction) {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be in (0, 1]");
+        }
+        long rate = (long) (bitRate / 8 / fraction);
+        long capacity = Math.max(2 * Constants.MTU, rate * Constants.RTP_PACING_BURST_MS / 1000);
+        mTokenBucket.setRate(rate, capacity);
+    }
+
+    public boolean isPacing() {
+        return mIsPacing;
+    }
+
+    /**
+     * Packets committed and not sent yet.
+     */
+    public int getQueueDepth() {
+        return mRing.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
     }
 
+    /**
+     * Average time from commit to send of the paced packets, in microseconds.
+     */
+    public long getAveragePacingDelayUs() {
+        long packets = mPacedPackets;
+        return packets > 0 ? mPacingDelaySumNs / packets / 1000 : 0;
+    }
+
+    /**
+     * Paced packets since the last {@link #resetPacingStats()}, with {@link #getPacingDelaySumUs()} gives the
+     * average delay over any interval.
+     */
+    public long getPacedPacketCount() {
+        return mPacedPackets;
+    }
+
+    public long getPacingDelaySumUs() {
+        return mPacingDelaySumNs / 1000;
+    }
+
+    public long getMaxPacingDelayUs() {
+        return mPacingDelayMaxNs / 1000;
+    }
+
+    public void resetPacingStats() {
+        mPacingDelaySumNs = 0;
+        mPacingDelayMaxNs = 0;
+        mPacedPackets = 0;
+        mMaxQueueDepth = 0;
+    }
+
+    /**
+     * Packets committed while not running are dropped by the sender thread instead of being sent.
+     */
     public void reset(boolean running) {
         this.mIsRunning = running;
-        mBufferCommitted.drainPermits();
-        mBufferRequested.drainPermits();
-        resetFifo();
+    }
+
+    /**
+     * How the packetizer and the sender thread wait on each other, one of the {@link SpscRing} wait strategies.
+     */
+    public void setWaitStrategy(int waitStrategy) {
+        mRing.setWaitStrategy(waitStrategy);
+    }
+
+    /**
+     * Port the server sends its RTCP reports to.
+     */
+    public int getRtcpPort() {
+        return mSenderReport.getLocalPort();
+    }
+
+    /**
+     * Receiver reports and feedback about this stream, see {@link RtcpReceiver}.
+     */
+    public RtcpReceiver getRtcpReceiver() {
+        return mSenderReport.getReceiver();
+    }
+
+    public void setRtcpListener(IRtcpListener listener) {
+        mSenderReport.setListener(listener);
+    }
+
+    /**
+     * Receives the PLI and FIR of the server, and is asked for a keyframe when the destination changes.
+     */
+    public void setKeyFrameRequester(KeyFrameRequester requester) {
+        mKeyFrameRequester = requester;
+        mSenderReport.getReceiver().setKeyFrameRequester(requester);
+    }
+
+    /**
+     * Measures the delay from startNs, from {@link System#nanoTime()}, to the next packet leaving the socket,
+     * see {@link #getFirstPacketDelayUs()}.
+     */
+    public void armFirstPacket(long startNs) {
+        mFirstPacketDelayUs = -1;
+        mFirstPacketStartNs.set(startNs);
+    }
+
+    /**
+     * Delay measured since the last {@link #armFirstPacket}, in microseconds, -1 until a packet was sent.
+     */
+    public long getFirstPacketDelayUs() {
+        return mFirstPacketDelayUs;
+    }
+
+    private void onPacketSent(long nowNs) {
+        if (mFirstPacketStartNs.get() != 0) {
+            long startNs = mFirstPacketStartNs.getAndSet(0);
+            if (startNs != 0) {
+                mFirstPacketDelayUs = (nowNs - startNs) / 1000;
+            }
+        }
+    }
+
+    /**
+     * Gets the time each packet leaves the socket, null to stop.
+     */
+    public void setLatencyTracer(LatencyTracer tracer) {
+        mLatencyTracer = tracer;
     }
 
     /**
      * Sets the SSRC of the stream.
      */
     public void setSSRC(int ssrc) {
+        mSSRC = ssrc;
         setLongSSRC(ssrc);
         mSenderReport.setSSRC(ssrc);
     }
 
+    public int getSSRC() {
+        return mSSRC;
+    }
+
+    /**
+     * Keeps the packets sent for {@link Constants#RTX_HISTORY_MS} and resends the ones a generic NACK reports lost.
+     *
+     * @param rtx true to resend on an RTX stream (RFC 4588) with {@link Constants#RTX_PAYLOAD_TYPE} and
+     *            {@link #getRtxSsrc()}, false to resend the packets unchanged
+     */
+    public void setRetransmission(boolean enabled, boolean rtx) {
+        mIsRtx = rtx;
+        if (enabled && mHistory == null) {
+            mRtxSsrc = new Random().nextInt();
+            mRtxSeq = new Random().nextInt(0x10000);
+            mHistory = new RtpHistory(Constants.RTX_HISTORY_PACKETS, Constants.RTX_HISTORY_BYTES,
+                    TimeUnit.MILLISECONDS.toNanos(Constants.RTX_HISTORY_MS));
+            mSenderReport.getReceiver().setRetransmitter(new IRetransmitter() {
+                @Override
+                public void retransmit(int ssrc, int sequenceNumber) {
+                    RtpSocket.this.retransmit(ssrc, sequenceNumber);
+                }
+            });
+        } else if (!enabled && mHistory != null) {
+            mSenderReport.getReceiver().setRetransmitter(null);
+            mHistory = null;
+        }
+    }
+
+    /**
+     * Sends XOR FEC packets over groups of media packets, see {@link FecEncoder#setGroups(int, int)}.
+     * rowLength 0 turns FEC off. Changes apply from the next block of packets.
+     */
+    public void setFec(int rowLength, int rows) {
+        FecEncoder fec = mFec;
+        if (fec == null && rowLength > 0) {
+            fec = new FecEncoder(new Random().nextInt(), new Random().nextInt(0x10000));
+        }
+        if (fec != null) {
+            fec.setGroups(rowLength, rows);
+            mFec = fec;
+        }
+    }
+
+    /**
+     * Encoder of the FEC stream, null if FEC was never turned on.
+     */
+    public FecEncoder getFecEncoder() {
+        return mFec;
+    }
+
+    public boolean isRetransmission() {
+        return mHistory != null;
+    }
+
+    public boolean isRtx() {
+        return mIsRtx;
+    }
+
+    /**
+     * SSRC of the RTX stream, associated to the media SSRC in the SDP.
+     */
+    public int getRtxSsrc() {
+        return mRtxSsrc;
+    }
+
+    public long getRetransmittedPacketCount() {
+        return mRetransmittedPackets;
+    }
+
+    /**
+     * NACKed packets which had already left the history.
+     */
+    public long getRetransmissionMissCount() {
+        return mRetransmissionMisses;
+    }
+
+    /**
+     * NACKed packets not resent because retransmissions used up their share of the bitrate.
+     */
+    public long getRetransmissionDropCount() {
+        return mRetransmissionDrops;
+    }
+
     /**
      * Sets the Time To Live of the UDP mPackets.
      */
     public void setTimeToLive(int ttl) throws IOException {
-        mSocket.setTimeToLive(ttl);
+        mChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
     }
 
     /**
@@ -115,15 +446,33 @@ public class RtpSocket implements Runnable {
     public void setDestination(String dest, int dport, int rtcpPort) {
         try {
             if (dport != 0 && rtcpPort != 0) {
+                InetAddress address = InetAddress.getByName(dest);
+                InetSocketAddress destination = new InetSocketAddress(address, dport);
+                SocketAddress previous = mChannel.getRemoteAddress();
                 mPort = dport;
                 for (int i = 0; i < mBufferCount; i++) {
                     mPackets[i].setPort(dport);
-                    mPackets[i].setAddress(InetAddress.getByName(dest));
+                    mPackets[i].setAddress(address);
+                }
+                mRtxPacket.setPort(dport);
+                mRtxPacket.setAddress(address);
+                mFecPacket.setPort(dport);
+                mFecPacket.setAddress(address);
+                mSenderReport.setDestination(address, rtcpPort);
+                if (previous != null) {
+                    mChannel.disconnect();
+                }
+                mChannel.connect(destination);
+                KeyFrameRequester requester = mKeyFrameRequester;
+                if (previous != null && !previous.equals(destination) && requester != null) {
+                    // a receiver at a new destination has no reference picture
+                    requester.request(KeyFrameRequester.REASON_DESTINATION, System.nanoTime() / 1000000);
                 }
-                mSenderReport.setDestination(InetAddress.getByName(dest), rtcpPort);
             }
         } catch (UnknownHostException e) {
             e.printStackTrace();
+        } catch (IOException e) {
+            Log.e(TAG, "Can not connect the RTP channel", e);
         }
     }
 
@@ -138,24 +487,128 @@ public class RtpSocket implements Runnable {
      */
     public void setClockFrequency(long clock) {
         this.mClock = clock;
+        mSenderReport.setClockFrequency(clock);
+    }
+
+    /**
+     * Bitrate of the stream, sets the RTCP bandwidth and with it the interval of the sender reports.
+     */
+    public void setBitRate(int bitRate) {
+        mBitRate = bitRate;
+        mSenderReport.setSessionBandwidth(bitRate);
+        mRtxBucket.setRate(Math.max(1, (long) (bitRate / 8 * Constants.RTX_RATE_FRACTION)), 8 * Constants.MTU);
+    }
+
+    /**
+     * Adds the abs-send-time and transport-wide sequence number header extension to the packets requested from now on
+     * and feeds the transport-cc feedback of the server to a {@link DelayBasedEstimator}.
+     */
+    public void setTransportWideCc(boolean enabled) {
+        if (enabled && mEstimator == null) {
+            mEstimator = new DelayBasedEstimator(Constants.ABR_MIN_BIT_RATE, Integer.MAX_VALUE, mBitRate);
+            mSenderReport.getReceiver().setDelayBasedEstimator(mEstimator);
+        }
+        mIsTransportWideCc = enabled;
+    }
+
+    public boolean isTransportWideCc() {
+        return mIsTransportWideCc;
+    }
+
+    /**
+     * Estimator fed by transport-cc feedback, null until {@link #setTransportWideCc(boolean)} enabled it.
+     */
+    public DelayBasedEstimator getDelayBasedEstimator() {
+        return mEstimator;
+    }
+
+    /**
+     * Length of the RTP header of the buffer returned by the last requestBuffer, the payload starts there.
+     */
+    public int getHeaderLength() {
+        return mHeaderLength;
     }
 
     /**
      * Returns an available mBuffers from the FIFO, it can then be modified.
+     * Waits while every buffer is queued for sending, calling it again before commitBuffer returns the same buffer.
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting, no buffer is handed out then
      **/
-    public byte[] requestBuffer() {
-        try {
-            mBufferRequested.acquire();
-        } catch (InterruptedException ignored) {
-            Thread.currentThread().interrupt();
+    public byte[] requestBuffer() throws InterruptedIOException {
+        if (mClaimed < 0) {
             try {
-                Thread.currentThread().join(1000);
+                mClaimed = mRing.claim();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an RTP buffer");
+            }
+            mBufferIn = mRing.index(mClaimed);
+        }
+        return prepareBuffer();
+    }
+
+    /**
+     * Like {@link #requestBuffer()} but returns null instead of waiting when every buffer is queued,
+     * so the caller can decide what to drop.
+     */
+    public byte[] tryRequestBuffer() {
+        if (mClaimed < 0) {
+            mClaimed = mRing.tryClaim();
+            if (mClaimed < 0) {
+                return null;
             }
+            mBufferIn = mRing.index(mClaimed);
+        }
+        return prepareBuffer();
+    }
+
+    private byte[] prepareBuffer() {
+        byte[] buffer = mBuffers[mBufferIn];
+        buffer[1] &= 0x7F;
+        if (mIsTransportWideCc) {
+            // extension bit, the values are stamped when the packet is sent
+            buffer[0] = (byte) 0x90;
+            writeExtensionHeader(buffer, Constants.RTP_HEADER_LENGTH);
+            mHeaderLength = Constants.RTP_HEADER_LENGTH + Constants.RTP_EXTENSION_LENGTH;
+        } else {
+            buffer[0] = (byte) 0x80;
+            mHeaderLength = Constants.RTP_HEADER_LENGTH;
+        }
+        return buffer;
+    }
+
+    /**
+     * One-byte header extension (RFC 8285) of 2 words: abs-send-time (3 bytes), transport sequence number (2 bytes)
+     * and a padding byte.
+     */
+    private static void writeExtensionHeader(byte[] buffer, int offset) {
+        buffer[offset] = (byte) 0xBE;
+        buffer[offset + 1] = (byte) 0xDE;
+        buffer[offset + 2] = 0;
+        buffer[offset + 3] = 2;
+        buffer[offset + 4] = (byte) (Constants.RTP_EXT_ABS_SEND_TIME_ID << 4 | 2);
+        buffer[offset + 8] = (byte) (Constants.RTP_EXT_TRANSPORT_SEQUENCE_ID << 4 | 1);
+        buffer[offset + 11] = 0;
+    }
+
+    /**
+     * Writes the send time and the next transport sequence number into the extension and records the packet.
+     */
+    private void stampExtension(byte[] buffer, int offset, int length) {
+        long nowUs = System.nanoTime() / 1000;
+        int sequence = mTransportSequence.getAndIncrement() & 0xFFFF;
+        // seconds in 6.18 fixed point, 24 bits
+        long absSendTime = (nowUs << 18) / 1000000;
+        buffer[offset + 5] = (byte) (absSendTime >> 16);
+        buffer[offset + 6] = (byte) (absSendTime >> 8);
+        buffer[offset + 7] = (byte) absSendTime;
+        buffer[offset + 9] = (byte) (sequence >> 8);
+        buffer[offset + 10] = (byte) sequence;
+        DelayBasedEstimator estimator = mEstimator;
+        if (estimator != null) {
+            estimator.onPacketSent(sequence, nowUs, length);
         }
-        mBuffers[mBufferIn][1] &= 0x7F;
-        return mBuffers[mBufferIn];
     }
 
     /**
@@ -176,12 +629,15 @@ public class RtpSocket implements Runnable {
         //Increments the sequence number.
         setLong(mBuffers[mBufferIn], ++mSeq, 2, 4);
         implementCommitBuffer(length);
-        if (++mBufferIn >= mBufferCount) {
-            mBufferIn = 0;
+        mCommitNs[mBufferIn] = System.nanoTime();
+        mClaimed = -1;
+        mRing.publish();
+        int depth = mRing.size();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
         }
-        mBufferCommitted.release();
-        if (mThread == null) {
-            mThread = new Thread(this);
+        if (!mIsSenderRunning.get() && mIsSenderRunning.compareAndSet(false, true)) {
+            mThread = new Thread(this, "RtpSender");
             mThread.start();
         }
     }
@@ -190,6 +646,69 @@ public class RtpSocket implements Runnable {
         mPackets[mBufferIn].setLength(length);
     }
 
+    /**
+     * Sends one RTP packet right away, on the calling thread, as a gather write of a small header buffer and a slice
+     * of the payload buffer. When payload is the encoder output buffer its bytes are never copied onto the Java heap.
+     * The position of payload is changed, its limit is restored so later NAL units of the same buffer can be sent.
+     *
+     * @param payloadHeader bytes written between the RTP header and the payload (FU payload header and FU header), may be null
+     * @param timestamp     the timestamp in ns
+     */
+    public void sendGather(byte[] payloadHeader, int payloadHeaderLength, ByteBuffer payload, int offset, int length,
+                           long timestamp, boolean marker) throws IOException {
+        long ts = timestamp * mClock / 1000000000L;
+        ByteBuffer header = mGatherHeader;
+        boolean isExtension = mIsTransportWideCc;
+        header.clear();
+        header.put((byte) (isExtension ? 0x90 : 0x80));
+        header.put((byte) (marker ? Constants.PAYLOAD_TYPE | 0x80 : Constants.PAYLOAD_TYPE));
+        header.putShort((short) ++mSeq);
+        header.putInt((int) ts);
+        header.putInt(mSSRC);
+        if (isExtension) {
+            writeExtensionHeader(mExtension, 0);
+            stampExtension(mExtension, 0, Constants.RTP_HEADER_LENGTH + Constants.RTP_EXTENSION_LENGTH
+                    + payloadHeaderLength + length);
+            header.put(mExtension);
+        }
+        if (payloadHeaderLength > 0) {
+            header.put(payloadHeader, 0, payloadHeaderLength);
+        }
+        header.flip();
+        int limit = payload.limit();
+        payload.limit(offset + length).position(offset);
+        mGatherBuffers[0] = header;
+        mGatherBuffers[1] = payload;
+        int size = header.remaining() + length;
+        RtpHistory history = mHistory;
+        FecEncoder fec = mFec;
+        try {
+            int headerLength = header.remaining();
+            if (history != null || fec != null) {
+                // contiguous copy of the packet for the history and the FEC encoder
+                header.get(mGatherCopy, 0, headerLength).position(0);
+                payload.get(mGatherCopy, headerLength, length).position(offset);
+            }
+            if (history != null) {
+                // stored before it leaves, a NACK for it can come back right away
+                history.put(mSeq, mGatherCopy, 0, headerLength + length, System.nanoTime());
+            }
+            mChannel.write(mGatherBuffers);
+            onPacketSent(System.nanoTime());
+            LatencyTracer tracer = mLatencyTracer;
+            if (tracer != null) {
+                tracer.onPacketSent(ts, marker, System.nanoTime());
+            }
+            if (fec != null) {
+                protect(fec, mGatherCopy, headerLength + length);
+            }
+        } finally {
+            mGatherBuffers[1] = null;
+            payload.limit(limit);
+        }
+        mSenderReport.update(length + payloadHeaderLength, ts);
+    }
+
     /**
      * Sets the marker in the RTP packet.
      */
@@ -205,28 +724,151 @@ public class RtpSocket implements Runnable {
     }
 
     /**
-     * The Thread sends the mPackets in the FIFO one by one at a constant rate.
+     * The Thread sends the mPackets in the FIFO one by one, paced if enabled.
+     * Every packet published when it wakes up is sent before it looks at the ring again.
      */
     @Override
     public void run() {
         try {
-            while (mBufferCommitted.tryAcquire(4, TimeUnit.SECONDS)) {
-                if (mIsRunning) {
-                    mSenderReport.update(mPackets[mBufferOut].getLength(), mTimestamps[mBufferOut], mPort);
-                    mSocket.send(mPackets[mBufferOut]);
-                    Log.i(TAG, "send packet, " + mPackets[mBufferOut].getLength() + " Size, " + mPackets[mBufferOut].getPort() + " Port");
-                    if (++mBufferOut >= mBufferCount) {
-                        mBufferOut = 0;
+            while (true) {
+                int count = mRing.waitFor(SENDER_IDLE_TIMEOUT_NS);
+                if (count == 0) {
+                    mIsSenderRunning.set(false);
+                    // a commit racing with the timeout may have seen the thread as running,
+                    // give its publish time to become visible and take over again if it did
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    if (mRing.available() == 0 || !mIsSenderRunning.compareAndSet(false, true)) {
+                        break;
+                    }
+                    continue;
+                }
+                long sequence = mRing.getHead();
+                for (int i = 0; i < count; i++) {
+                    int out = mRing.index(sequence + i);
+                    if (mIsRunning) {
+                        if (mIsPacing) {
+                            pace(mPackets[out].getLength(), mCommitNs[out]);
+                        }
+                        int headerLength = Constants.RTP_HEADER_LENGTH;
+                        if ((mBuffers[out][0] & 0x10) != 0) {
+                            headerLength += Constants.RTP_EXTENSION_LENGTH;
+                            stampExtension(mBuffers[out], Constants.RTP_HEADER_LENGTH, mPackets[out].getLength());
+                        }
+                        mSenderReport.update(mPackets[out].getLength() - headerLength, mTimestamps[out]);
+                        RtpHistory history = mHistory;
+                        if (history != null) {
+                            // stored before it leaves, a NACK for it can come back right away
+                            history.put(((mBuffers[out][2] & 0xFF) << 8) | (mBuffers[out][3] & 0xFF),
+                                    mBuffers[out], 0, mPackets[out].getLength(), System.nanoTime());
+                        }
+                        mSocket.send(mPackets[out]);
+                        onPacketSent(System.nanoTime());
+                        LatencyTracer tracer = mLatencyTracer;
+                        if (tracer != null) {
+                            tracer.onPacketSent(mTimestamps[out], (mBuffers[out][1] & 0x80) != 0, System.nanoTime());
+                        }
+                        FecEncoder fec = mFec;
+                        if (fec != null) {
+                            protect(fec, mBuffers[out], mPackets[out].getLength());
+                        }
                     }
-                    mBufferRequested.release();
+                    // released one by one, a paced batch can take a while and the packetizer may be waiting
+                    mRing.release(1);
                 }
             }
         } catch (IOException | InterruptedException e) {
             e.printStackTrace();
+            mIsSenderRunning.set(false);
+        }
+    }
+
+    /**
+     * Adds a media packet to the FEC groups and sends the FEC packets it completed.
+     */
+    private void protect(FecEncoder fec, byte[] packet, int length) throws IOException {
+        int count = fec.add(packet, 0, length);
+        for (int i = 0; i < count; i++) {
+            byte[] data = fec.getPacket(i);
+            int fecLength = fec.getPacketLength(i);
+            if (mChannel.isConnected()) {
+                mFecByteBuffer.clear();
+                mFecByteBuffer.put(data, 0, fecLength).flip();
+                mChannel.write(mFecByteBuffer);
+            } else {
+                mFecPacket.setData(data, 0, fecLength);
+                mSocket.send(mFecPacket);
+            }
+        }
+    }
+
+    /**
+     * Resends a packet of the history, as an RTX packet: RTX payload type, SSRC and sequence number, the original
+     * sequence number in front of the payload (RFC 4588), or unchanged. The transport-wide sequence number is new.
+     */
+    private synchronized void retransmit(int ssrc, int sequenceNumber) {
+        RtpHistory history = mHistory;
+        if (history == null || ssrc != mSSRC) {
+            return;
+        }
+        long now = System.nanoTime();
+        byte[] buffer = mRtxBuffer;
+        int length = history.get(sequenceNumber, buffer, now);
+        if (length < 0) {
+            mRetransmissionMisses++;
+            return;
+        }
+        boolean isRtx = mIsRtx;
+        if (!mRtxBucket.tryConsume(isRtx ? length + 2 : length, now)) {
+            mRetransmissionDrops++;
+            return;
+        }
+        boolean isExtension = (buffer[0] & 0x10) != 0;
+        if (isRtx) {
+            int headerLength = Constants.RTP_HEADER_LENGTH + (isExtension ? Constants.RTP_EXTENSION_LENGTH : 0);
+            System.arraycopy(buffer, headerLength, buffer, headerLength + 2, length - headerLength);
+            buffer[headerLength] = buffer[2];
+            buffer[headerLength + 1] = buffer[3];
+            buffer[1] = (byte) ((buffer[1] & 0x80) | Constants.RTX_PAYLOAD_TYPE);
+            mRtxSeq = (mRtxSeq + 1) & 0xFFFF;
+            setLong(buffer, mRtxSeq, 2, 4);
+            setLong(buffer, mRtxSsrc, 8, 12);
+            length += 2;
+        }
+        if (isExtension) {
+            stampExtension(buffer, Constants.RTP_HEADER_LENGTH, length);
+        }
+        try {
+            if (mChannel.isConnected()) {
+                mRtxByteBuffer.clear();
+                mRtxByteBuffer.limit(length);
+                mChannel.write(mRtxByteBuffer);
+            } else {
+                mRtxPacket.setLength(length);
+                mSocket.send(mRtxPacket);
+            }
+            mRetransmittedPackets++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits on the sender thread until the token bucket allows length bytes, then takes them.
+     */
+    private void pace(int length, long commitNs) {
+        long now = System.nanoTime();
+        long delay;
+        while (mIsRunning && (delay = mTokenBucket.getDelayNs(length, now)) > 0) {
+            LockSupport.parkNanos(delay);
+            now = System.nanoTime();
+        }
+        mTokenBucket.tryConsume(length, now);
+        long waitedNs = now - commitNs;
+        mPacingDelaySumNs += waitedNs;
+        mPacedPackets++;
+        if (waitedNs > mPacingDelayMaxNs) {
+            mPacingDelayMaxNs = waitedNs;
         }
-        mThread = null;
-        resetFifo();
-        mSenderReport.reset();
     }
 
 }
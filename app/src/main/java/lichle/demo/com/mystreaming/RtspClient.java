@@ -42,29 +42,96 @@ public class RtspClient {
     private BufferedReader mReader;
     private BufferedWriter mWriter;
 
-    private byte[] mSps, mPps;
+    private String mMime = Constants.MIME_TYPE;
+    //parameter sets without start code, mVps is only used by H.265
+    private byte[] mVps, mSps, mPps;
     //for udp
     private int[] mVideoPorts = new int[]{5002, 5003};
 
     private volatile boolean mIsStreaming = false;
 
-    private H264Packet mH264Packet;
+    private IPacketizer mPacketizer;
+    private boolean mIsAggregating = Constants.RTP_NAL_AGGREGATION;
+    private boolean mIsPacing = Constants.RTP_PACING;
+    private float mPacingFraction = Constants.RTP_PACING_FRACTION;
+    private int mBitRate = Constants.BIT_RATE;
+    private IRtcpListener mRtcpListener;
+    private KeyFrameRequester mKeyFrameRequester;
+    private LatencyTracer mLatencyTracer;
+    private boolean mIsTransportWideCc = Constants.RTP_TRANSPORT_WIDE_CC;
+    private boolean mIsRetransmission = Constants.RTP_RETRANSMISSION;
+    private boolean mIsRtx = Constants.RTP_RTX;
+    private int mFecRowLength = Constants.RTP_FEC ? Constants.FEC_ROW_LENGTH : 0;
+    private int mFecRows = Constants.FEC_ROWS;
 
     public RtspClient() {
         long uptime = System.currentTimeMillis();
         mTimestamp = (uptime / 1000) << 32 & (((uptime - ((uptime / 1000) * 1000)) >> 32) / 1000); // NTP mTimestamp
     }
 
-    public static String createVideoBody(int trackVideo, String sps, String pps) {
+    /**
+     * SDP media description of an H.265 track (RFC 7798).
+     */
+    public static String createVideoBody(int trackVideo, String vps, String sps, String pps) {
+        return "m=video " + (5000 + 2 * trackVideo)
+                + " RTP/AVP " + Constants.PAYLOAD_TYPE + "\r\n"
+                + "a=rtpmap:" + Constants.PAYLOAD_TYPE
+                + " H265/" + Constants.CLOCK_VIDEO_FREQUENCY + "\r\n"
+                + "a=fmtp:" + Constants.PAYLOAD_TYPE
+                + " sprop-vps=" + vps + ";sprop-sps=" + sps + ";sprop-pps=" + pps + "\r\n"
+                + "a=control:trackID=" + trackVideo + "\r\n";
+    }
+
+    /**
+     * SDP media description of an H.264 track (RFC 6184).
+     *
+     * @param profileLevelId profile, constraints and level of the SPS, see {@link H264Packet#getProfileLevelId}, -1
+     *                       to leave it out
+     */
+    public static String createVideoBody(int trackVideo, String sps, String pps, int profileLevelId) {
+        String profile = profileLevelId >= 0 ? String.format("profile-level-id=%06X;", profileLevelId) : "";
         return "m=video " + (5000 + 2 * trackVideo)
                 + " RTP/AVP " + Constants.PAYLOAD_TYPE + "\r\n"
                 + "a=rtpmap:" + Constants.PAYLOAD_TYPE
                 + " H264/" + Constants.CLOCK_VIDEO_FREQUENCY + "\r\n"
                 + "a=fmtp:" + Constants.PAYLOAD_TYPE
-                + " packetization-mode=1;sprop-parameter-sets=" + sps + "," + pps + ";\r\n"
+                + " packetization-mode=1;" + profile + "sprop-parameter-sets=" + sps + "," + pps + ";\r\n"
                 + "a=control:trackID=" + trackVideo + "\r\n";
     }
 
+    /**
+     * SDP attributes announcing the transport-wide congestion control header extensions and feedback.
+     */
+    public static String createTransportWideCcBody() {
+        return "a=extmap:" + Constants.RTP_EXT_ABS_SEND_TIME_ID + " " + Constants.RTP_EXT_ABS_SEND_TIME_URI + "\r\n"
+                + "a=extmap:" + Constants.RTP_EXT_TRANSPORT_SEQUENCE_ID + " "
+                + Constants.RTP_EXT_TRANSPORT_SEQUENCE_URI + "\r\n"
+                + "a=rtcp-fb:" + Constants.PAYLOAD_TYPE + " transport-cc\r\n";
+    }
+
+    /**
+     * SDP attributes of NACK feedback and, with rtx, of the RTX stream associated to the video (RFC 4588).
+     * The RTX payload type has to be added to the m= line.
+     */
+    public static String createRetransmissionBody(boolean rtx, int ssrc, int rtxSsrc) {
+        String body = "a=rtcp-fb:" + Constants.PAYLOAD_TYPE + " nack\r\n";
+        if (rtx) {
+            body += "a=rtpmap:" + Constants.RTX_PAYLOAD_TYPE + " rtx/" + Constants.CLOCK_VIDEO_FREQUENCY + "\r\n"
+                    + "a=fmtp:" + Constants.RTX_PAYLOAD_TYPE + " apt=" + Constants.PAYLOAD_TYPE + "\r\n"
+                    + "a=ssrc-group:FID " + (ssrc & 0xFFFFFFFFL) + " " + (rtxSsrc & 0xFFFFFFFFL) + "\r\n";
+        }
+        return body;
+    }
+
+    /**
+     * SDP attributes of the XOR FEC stream (RFC 5109) protecting the video. The FEC payload type has to be added to
+     * the m= line.
+     */
+    public static String createFecBody(int ssrc, int fecSsrc) {
+        return "a=rtpmap:" + Constants.FEC_PAYLOAD_TYPE + " ulpfec/" + Constants.CLOCK_VIDEO_FREQUENCY + "\r\n"
+                + "a=ssrc-group:FEC-FR " + (ssrc & 0xFFFFFFFFL) + " " + (fecSsrc & 0xFFFFFFFFL) + "\r\n";
+    }
+
     public void setAuthorization(String user, String password) {
         this.mUserName = user;
         this.mPassword = password;
@@ -87,22 +154,71 @@ public class RtspClient {
     }
 
     public void setH264Parameters(ByteBuffer sps, ByteBuffer pps) {
-        byte[] mSPS = new byte[sps.capacity() - 4];
-        sps.position(4);
-        sps.get(mSPS, 0, mSPS.length);
-        byte[] mPPS = new byte[pps.capacity() - 4];
-        pps.position(4);
-        pps.get(mPPS, 0, mPPS.length);
-        this.mSps = mSPS;
-        this.mPps = mPPS;
+        setVideoParameters(Constants.MIME_TYPE, null, sps, pps);
+    }
+
+    /**
+     * Parameter sets of the encoder, each behind a start code. The mime type selects the RTP payload format.
+     *
+     * @param vps video parameter set of H.265, null for H.264
+     */
+    public void setVideoParameters(String mime, ByteBuffer vps, ByteBuffer sps, ByteBuffer pps) {
+        this.mMime = mime;
+        this.mVps = vps != null ? toNal(vps) : null;
+        this.mSps = toNal(sps);
+        this.mPps = toNal(pps);
+        if (mPacketizer != null) {
+            // The encoder was reconfigured during the session, the new parameters go in-band before the next IDR
+            setParameterSets(mPacketizer);
+        }
+    }
+
+    public boolean isHevc() {
+        return Constants.MIME_TYPE_HEVC.equalsIgnoreCase(mMime);
+    }
+
+    /**
+     * Copies the first NAL unit of the buffer without its start code, or the whole buffer when there is none.
+     */
+    private static byte[] toNal(ByteBuffer buffer) {
+        AnnexBScanner scanner = new AnnexBScanner(1);
+        int offset = buffer.position();
+        int length = buffer.remaining();
+        if (scanner.scan(buffer, offset, length) > 0) {
+            offset = scanner.getNalOffset(0);
+            length = scanner.getNalLength(0);
+        }
+        byte[] nal = new byte[length];
+        for (int i = 0; i < length; i++) {
+            nal[i] = buffer.get(offset + i);
+        }
+        return nal;
+    }
+
+    private void setParameterSets(IPacketizer packetizer) {
+        if (mSps == null || mPps == null) {
+            return;
+        }
+        if (mVps != null) {
+            packetizer.setParameterSets(mVps, mSps, mPps);
+        } else {
+            packetizer.setParameterSets(mSps, mPps);
+        }
     }
 
     public void connect() {
         if (!mIsStreaming) {
-            mH264Packet = new H264Packet(this);
-            if (mSps != null && mPps != null) {
-                mH264Packet.setSPSandPPS(mSps, mPps);
-            }
+            mPacketizer = isHevc() ? new H265Packet(this) : new H264Packet(this);
+            mPacketizer.setAggregation(mIsAggregating);
+            mPacketizer.getRtpSocket().setPacing(mIsPacing, mBitRate, mPacingFraction);
+            mPacketizer.getRtpSocket().setBitRate(mBitRate);
+            mPacketizer.getRtpSocket().setRtcpListener(mRtcpListener);
+            mPacketizer.getRtpSocket().setKeyFrameRequester(mKeyFrameRequester);
+            mPacketizer.getRtpSocket().setLatencyTracer(mLatencyTracer);
+            mPacketizer.getRtpSocket().setTransportWideCc(mIsTransportWideCc);
+            mPacketizer.getRtpSocket().setRetransmission(mIsRetransmission, mIsRtx);
+            mPacketizer.getRtpSocket().setFec(mFecRowLength, mFecRows);
+            setParameterSets(mPacketizer);
             mThread = new Thread(new Runnable() {
                 @Override
                 public void run() {
@@ -148,7 +264,7 @@ public class RtspClient {
                         mWriter.flush();
                         getResponse();
                         //update Server ports
-                        mH264Packet.updateDestinationVideo();
+                        mPacketizer.updateDestinationVideo();
 
                         //RECORD command
                         mWriter.write(requestRecord());
@@ -156,6 +272,8 @@ public class RtspClient {
                         getResponse();
 
                         mIsStreaming = true;
+                        // the pictures encoded before the session was up were dropped
+                        requestKeyFrame(KeyFrameRequester.REASON_CONNECT);
                     } catch (IOException | NullPointerException e) {
                         Log.e(TAG, "Connection error", e);
                         e.printStackTrace();
@@ -170,8 +288,8 @@ public class RtspClient {
     public void disconnect() {
         if (mIsStreaming) {
             mIsStreaming = false;
-            if (mH264Packet != null) {
-                mH264Packet.close();
+            if (mPacketizer != null) {
+                mPacketizer.close();
             }
             mThread = new Thread(new Runnable() {
                 @Override
@@ -187,6 +305,7 @@ public class RtspClient {
             });
             mThread.start();
             mCSeq = 0;
+            mVps = null;
             mSps = null;
             mPps = null;
             mSessionId = null;
@@ -215,13 +334,35 @@ public class RtspClient {
     }
 
     private String createBody() {
+        String sVPS = null;
         String sSPS = null;
         String sPPS = null;
         if (mSps != null && mPps != null) {
             sSPS = Base64.encodeToString(mSps, 0, mSps.length, Base64.NO_WRAP);
             sPPS = Base64.encodeToString(mPps, 0, mPps.length, Base64.NO_WRAP);
         }
-        String body = createVideoBody(mTrackID, sSPS, sPPS);
+        if (mVps != null) {
+            sVPS = Base64.encodeToString(mVps, 0, mVps.length, Base64.NO_WRAP);
+        }
+        String body = isHevc() ? createVideoBody(mTrackID, sVPS, sSPS, sPPS)
+                : createVideoBody(mTrackID, sSPS, sPPS, H264Packet.getProfileLevelId(mSps));
+        if (mIsTransportWideCc) {
+            body += createTransportWideCcBody();
+        }
+        RtpSocket socket = mPacketizer.getRtpSocket();
+        String payloadTypes = String.valueOf(Constants.PAYLOAD_TYPE);
+        if (mIsRetransmission) {
+            if (mIsRtx) {
+                payloadTypes += " " + Constants.RTX_PAYLOAD_TYPE;
+            }
+            body += createRetransmissionBody(mIsRtx, socket.getSSRC(), socket.getRtxSsrc());
+        }
+        if (socket.getFecEncoder() != null) {
+            payloadTypes += " " + Constants.FEC_PAYLOAD_TYPE;
+            body += createFecBody(socket.getSSRC(), socket.getFecEncoder().getSsrc());
+        }
+        // the other payload types of the stream join the video one on the m= line
+        body = body.replaceFirst(" RTP/AVP " + Constants.PAYLOAD_TYPE + "\r\n", " RTP/AVP " + payloadTypes + "\r\n");
         return "v=0\r\n"
                 + "o=- " + mTimestamp + " " + mTimestamp
                 + " IN IP4 " + "127.0.0.1" + "\r\n"
@@ -235,7 +376,10 @@ public class RtspClient {
     }
 
     private String requestSetup(int track) {
-        String params = "UDP;unicast;client_port=" + (5000 + 2 * track) + "-" + (5000 + 2 * track + 1) + ";mode=record";
+        // the ports may differ from Constants.RTCP_CLIENT_PORT - 1 and RTCP_CLIENT_PORT when another session holds them
+        RtpSocket socket = mPacketizer.getRtpSocket();
+        String params = "UDP;unicast;client_port=" + socket.getLocalPort() + "-" + socket.getRtcpPort()
+                + ";mode=record";
         String setup = "SETUP rtsp://"
                 + mHost + ":" + mPort + mPath
                 + "/trackID=" + track
@@ -363,13 +507,159 @@ public class RtspClient {
         }
     }
 
+    /**
+     * Packs consecutive small NAL units of a frame in aggregation packets, see {@link IPacketizer#setAggregation}.
+     */
+    public void setNalAggregation(boolean enabled) {
+        mIsAggregating = enabled;
+        if (mPacketizer != null) {
+            mPacketizer.setAggregation(enabled);
+        }
+    }
+
+    /**
+     * Paces the RTP packets of each frame, see {@link RtpSocket#setPacing(boolean, int, float)}.
+     */
+    public void setPacing(boolean enabled, float fraction) {
+        mIsPacing = enabled;
+        mPacingFraction = fraction;
+        if (mPacketizer != null) {
+            mPacketizer.getRtpSocket().setPacing(enabled, mBitRate, fraction);
+        }
+    }
+
+    public boolean isPacing() {
+        return mIsPacing;
+    }
+
+    /**
+     * Target bitrate of the video, used for pacing and the RTCP interval.
+     */
+    public void setBitRate(int bitRate) {
+        mBitRate = bitRate;
+        if (mPacketizer != null) {
+            mPacketizer.getRtpSocket().setBitRate(bitRate);
+            if (mIsPacing) {
+                mPacketizer.getRtpSocket().setPacingRate(bitRate, mPacingFraction);
+            }
+        }
+    }
+
+    /**
+     * Sends the transport-wide sequence number header extension and announces it in the SDP, the server's
+     * transport-cc feedback then drives {@link #getDelayBasedEstimator()}. Applies from the next connect.
+     */
+    public void setTransportWideCc(boolean enabled) {
+        mIsTransportWideCc = enabled;
+    }
+
+    public boolean isTransportWideCc() {
+        return mIsTransportWideCc;
+    }
+
+    /**
+     * Resends the packets the server NACKs, on an RTX stream or unchanged, see
+     * {@link RtpSocket#setRetransmission(boolean, boolean)}. Applies from the next connect.
+     */
+    public void setRetransmission(boolean enabled, boolean rtx) {
+        mIsRetransmission = enabled;
+        mIsRtx = rtx;
+    }
+
+    public boolean isRetransmission() {
+        return mIsRetransmission;
+    }
+
+    /**
+     * Protects the video with XOR FEC packets, see {@link FecEncoder#setGroups(int, int)}. FEC turned on before
+     * connect is announced in the SDP, the groups can change at any time.
+     */
+    public void setFec(int rowLength, int rows) {
+        mFecRowLength = rowLength;
+        mFecRows = rows;
+        if (mPacketizer != null && mPacketizer.getRtpSocket().getFecEncoder() != null) {
+            mPacketizer.getRtpSocket().setFec(rowLength, rows);
+        }
+    }
+
+    /**
+     * FEC encoder of the current session, null without FEC.
+     */
+    public FecEncoder getFecEncoder() {
+        return mPacketizer != null ? mPacketizer.getRtpSocket().getFecEncoder() : null;
+    }
+
+    /**
+     * Estimator of the current session, null before the first connect or without transport-wide feedback.
+     */
+    public DelayBasedEstimator getDelayBasedEstimator() {
+        return mPacketizer != null ? mPacketizer.getRtpSocket().getDelayBasedEstimator() : null;
+    }
+
+    /**
+     * Asks for keyframes on PLI and FIR of the server, when a session is up and when the destination changes.
+     */
+    public void setKeyFrameRequester(KeyFrameRequester requester) {
+        mKeyFrameRequester = requester;
+        if (mPacketizer != null) {
+            mPacketizer.getRtpSocket().setKeyFrameRequester(requester);
+        }
+    }
+
+    /**
+     * Traces when the packets of each frame are sent, null to stop.
+     */
+    public void setLatencyTracer(LatencyTracer tracer) {
+        mLatencyTracer = tracer;
+        if (mPacketizer != null) {
+            mPacketizer.getRtpSocket().setLatencyTracer(tracer);
+        }
+    }
+
+    private void requestKeyFrame(int reason) {
+        KeyFrameRequester requester = mKeyFrameRequester;
+        if (requester != null) {
+            requester.request(reason, System.nanoTime() / 1000000);
+        }
+    }
+
+    /**
+     * Receives the RTCP reports and feedback of the server, on the RTCP receive thread.
+     */
+    public void setRtcpListener(IRtcpListener listener) {
+        mRtcpListener = listener;
+        if (mPacketizer != null) {
+            mPacketizer.getRtpSocket().setRtcpListener(listener);
+        }
+    }
+
+    /**
+     * Latest reports of the current session, null before the first connect.
+     */
+    public RtcpReceiver getRtcpReceiver() {
+        return mPacketizer != null ? mPacketizer.getRtpSocket().getRtcpReceiver() : null;
+    }
+
+    /**
+     * Packetizer of the current session, null before the first connect.
+     */
+    public IPacketizer getPacketizer() {
+        return mPacketizer;
+    }
+
     public int[] getVideoPorts() {
         return mVideoPorts;
     }
 
-    public void sendDataToServer(ByteBuffer h264Buffer, MediaCodec.BufferInfo info) {
+    public void sendDataToServer(ByteBuffer videoBuffer, MediaCodec.BufferInfo info) {
+        if (isStreaming()) {
+            mPacketizer.createAndSendPacket(videoBuffer, info);
+        }
+    }
+
+    public void sendDataToServer(EncodedFrame frame) {
         if (isStreaming()) {
-            mH264Packet.createAndSendPacket(h264Buffer, info);
+            mPacketizer.createAndSendPacket(frame);
         }
     }
 
@@ -0,0 +1,230 @@
+package lichle.demo.com.mystreaming;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sequence coordination for a ring of preallocated slots with exactly one producer thread and one consumer thread.
+ * The ring holds no elements, the caller keeps its slots in an array indexed with {@link #index(long)}.
+ * <p>
+ * The producer claims the slot at the tail, fills it and publishes it. The consumer waits for published slots,
+ * handles all of them as a batch and releases them. Head and tail are padded against false sharing, each side
+ * caches the sequence of the other side so the shared counters are only read when the cached value runs out.
+ */
+
+public class SpscRing {
+
+    /**
+     * Waiting spins on the sequence: lowest latency, keeps a core busy.
+     */
+    public static final int WAIT_BUSY_SPIN = 0;
+    /**
+     * Waiting yields the processor between checks.
+     */
+    public static final int WAIT_YIELD = 1;
+    /**
+     * Waiting spins briefly, then parks. A parked consumer is unparked by the next publish.
+     */
+    public static final int WAIT_PARK = 2;
+
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NS = 100000;
+
+    private final int mCapacity;
+    private final int mMask;
+    private volatile int mWaitStrategy;
+    //next sequence to publish, cache holds the head as last seen by the producer
+    private final Sequence mTail = new Sequence();
+    //next sequence to consume, cache holds the tail as last seen by the consumer
+    private final Sequence mHead = new Sequence();
+    private volatile Thread mParkedConsumer;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public SpscRing(int capacity, int waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mCapacity = size;
+        mMask = size - 1;
+        mWaitStrategy = waitStrategy;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public void setWaitStrategy(int waitStrategy) {
+        mWaitStrategy = waitStrategy;
+    }
+
+    public int getWaitStrategy() {
+        return mWaitStrategy;
+    }
+
+    /**
+     * Slot of a sequence.
+     */
+    public int index(long sequence) {
+        return (int) (sequence & mMask);
+    }
+
+    /**
+     * Sequence of the free slot at the tail, or -1 if the ring is full. Producer only.
+     */
+    public long tryClaim() {
+        long tail = mTail.value;
+        if (tail - mTail.cache >= mCapacity) {
+            mTail.cache = mHead.value;
+            if (tail - mTail.cache >= mCapacity) {
+                return -1;
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Waits for a free slot at the tail with the wait strategy. Producer only.
+     */
+    public long claim() throws InterruptedException {
+        int tries = 0;
+        long sequence;
+        while ((sequence = tryClaim()) < 0) {
+            tries = idle(tries);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Makes the claimed slot visible to the consumer. Producer only.
+     */
+    public void publish() {
+        if (mWaitStrategy != WAIT_PARK) {
+            mTail.lazySet(mTail.value + 1);
+            return;
+        }
+        // a volatile write, so the consumer can not miss it between registering itself and parking
+        mTail.set(mTail.value + 1);
+        Thread parked = mParkedConsumer;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+    }
+
+    /**
+     * Number of published slots the consumer has not released yet, reads the tail. Consumer only.
+     */
+    public int available() {
+        mHead.cache = mTail.value;
+        return (int) (mHead.cache - mHead.value);
+    }
+
+    /**
+     * Sequence of the first published slot. Consumer only.
+     */
+    public long getHead() {
+        return mHead.value;
+    }
+
+    /**
+     * Waits until at least one slot is published. Consumer only.
+     *
+     * @return the number of published slots, all of them can be handled before calling again, 0 on timeout
+     */
+    public int waitFor(long timeoutNs) throws InterruptedException {
+        int available = (int) (mHead.cache - mHead.value);
+        if (available > 0) {
+            return available;
+        }
+        long deadline = System.nanoTime() + timeoutNs;
+        int tries = 0;
+        while ((available = available()) == 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return 0;
+            }
+            if (mWaitStrategy == WAIT_PARK && tries >= SPIN_TRIES) {
+                mParkedConsumer = Thread.currentThread();
+                // a publish between the check above and the park unparks us, the permit is kept
+                if (available() == 0) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                mParkedConsumer = null;
+            } else {
+                tries = idle(tries);
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Gives count slots back to the producer. Consumer only.
+     */
+    public void release(int count) {
+        mHead.lazySet(mHead.value + count);
+    }
+
+    /**
+     * Published slots not released yet, from any thread.
+     */
+    public int size() {
+        return (int) (mTail.value - mHead.value);
+    }
+
+    /**
+     * Empties the ring, only while neither side is using it.
+     */
+    public void reset() {
+        mHead.set(mTail.value);
+        mHead.cache = mTail.value;
+        mTail.cache = mTail.value;
+    }
+
+    private int idle(int tries) {
+        switch (mWaitStrategy) {
+            case WAIT_BUSY_SPIN:
+                break;
+            case WAIT_YIELD:
+                Thread.yield();
+                break;
+            default:
+                if (tries < SPIN_TRIES) {
+                    break;
+                }
+                LockSupport.parkNanos(PARK_NS);
+                break;
+        }
+        return tries + 1;
+    }
+
+    static class LhsPadding {
+        protected long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    static class Value extends LhsPadding {
+        protected volatile long value;
+        //plain copy of the other side's sequence, only touched by the thread owning this sequence
+        protected long cache;
+    }
+
+    static final class Sequence extends Value {
+        private static final AtomicLongFieldUpdater<Value> UPDATER =
+                AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+        protected long p9, p10, p11, p12, p13, p14, p15;
+
+        void lazySet(long newValue) {
+            UPDATER.lazySet(this, newValue);
+        }
+
+        void set(long newValue) {
+            value = newValue;
+        }
+    }
+
+}
@@ -4,18 +4,22 @@ import android.hardware.Camera;
 import android.view.SurfaceView;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by lich on 9/5/18.
  */
 
-public class StreamCamera implements Camera.PreviewCallback {
+public class StreamCamera implements Camera.PreviewCallback, FramePool.OnFrameRecycledListener {
 
     private SurfaceView mSurfaceView;
     private Camera mCamera;
     private ICameraData mOnRawData;
     private boolean mIsRunning, mIsPrepared;
-    private byte[] mYUVBuffers;
+    private FramePool mFramePool;
+    //number of pooled buffers currently queued in the camera
+    private final AtomicInteger mQueuedBuffers = new AtomicInteger(0);
+    private long mStarvedSinceNs;
 
     private int mWidth, mHeight, mFps, mImageFormat;
 
@@ -33,9 +37,12 @@ public class StreamCamera implements Camera.PreviewCallback {
         mImageFormat = Constants.CAMERA_DATA_FORMAT;
     }
 
-    public void start() {
-        mYUVBuffers = new byte[mWidth * mHeight * 3 / 2];
+    public synchronized void start() {
         if (mCamera == null && mIsPrepared) {
+            if (mFramePool == null || mFramePool.getWidth() != mWidth || mFramePool.getHeight() != mHeight) {
+                mFramePool = new FramePool(Constants.FRAME_POOL_SIZE, mWidth, mHeight);
+                mFramePool.setOnFrameRecycledListener(this);
+            }
             try {
                 mCamera = Camera.open();
                 Camera.Parameters parameters = mCamera.getParameters();
@@ -47,8 +54,10 @@ public class StreamCamera implements Camera.PreviewCallback {
 
                 mCamera.setParameters(parameters);
                 mCamera.setPreviewDisplay(mSurfaceView.getHolder());
-                mCamera.addCallbackBuffer(mYUVBuffers);
                 mCamera.setPreviewCallbackWithBuffer(this);
+                mQueuedBuffers.set(0);
+                mStarvedSinceNs = 0;
+                queueFreeBuffers();
 
                 mCamera.startPreview();
                 mIsRunning = true;
@@ -58,21 +67,69 @@ public class StreamCamera implements Camera.PreviewCallback {
         }
     }
 
-    public void stop() {
+    public synchronized void stop() {
         if (mCamera != null && mIsRunning) {
             mCamera.stopPreview();
             mCamera.setPreviewCallback(null);
             mCamera.setPreviewCallbackWithBuffer(null);
             mCamera.release();
             mCamera = null;
+            //buffers still queued in the released camera never come back, start again with a fresh pool
+            mFramePool = null;
             mIsRunning = mIsPrepared = false;
         }
     }
 
+    public FramePool getFramePool() {
+        return mFramePool;
+    }
+
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
-        mOnRawData.onNV21Data(data);
-        camera.addCallbackBuffer(mYUVBuffers);
+        long now = System.nanoTime();
+        FramePool pool = mFramePool;
+        NV21Frame frame = pool != null ? pool.find(data) : null;
+        if (frame == null) {
+            return;
+        }
+        if (mQueuedBuffers.decrementAndGet() <= 0) {
+            synchronized (this) {
+                mStarvedSinceNs = now;
+            }
+        }
+        frame.setTimestampNs(now);
+        mOnRawData.onNV21Data(frame);
+        //the camera reference, the buffer goes back to the camera once the consumers released it too
+        frame.release();
+    }
+
+    @Override
+    public void onFrameRecycled(FramePool pool) {
+        synchronized (this) {
+            if (pool == mFramePool) {
+                queueFreeBuffers();
+            }
+        }
+    }
+
+    /**
+     * Hands every free pooled buffer to the camera.
+     * Frames the camera could not deliver while it had no buffer are counted as dropped.
+     */
+    private void queueFreeBuffers() {
+        if (mCamera == null) {
+            return;
+        }
+        while (mFramePool.getFreeCount() > 0) {
+            NV21Frame frame = mFramePool.acquire();
+            if (mStarvedSinceNs != 0) {
+                long frameIntervalNs = 1000000000L / Math.max(mFps, 1);
+                mFramePool.recordDropped((System.nanoTime() - mStarvedSinceNs) / frameIntervalNs);
+                mStarvedSinceNs = 0;
+            }
+            mQueuedBuffers.incrementAndGet();
+            mCamera.addCallbackBuffer(frame.getData());
+        }
     }
 
     private int[] adaptFpsRange(int expectedFps, List<int[]> fpsRanges) {
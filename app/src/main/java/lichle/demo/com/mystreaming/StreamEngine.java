@@ -1,36 +1,152 @@
 package lichle.demo.com.mystreaming;
 
 import android.media.MediaCodec;
+import android.util.Log;
 import android.view.SurfaceView;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 
 /**
  * Created by lich on 9/5/18.
+ * <p>
+ * Frames go through a pipeline of stages, each on its own thread behind a bounded queue: capture (camera callback),
+ * convert ({@link #getConvertStage()}, scaling, skipped while frames are not scaled), encode ({@link VideoEncoder} and its raw queue), packetize
+ * ({@link #getPacketizeStage()}) and send (the ring and sender thread of {@link RtpSocket}). A stage falling behind
+ * drops by its overflow policy instead of stalling the one before, so the codec is drained even when the network
+ * is not.
  */
 
 public class StreamEngine implements IH264Data, ICameraData {
 
+    private static final String TAG = "StreamEngine";
+
     private StreamCamera mStreamCamera;
     private VideoEncoder mVideoEncoder;
     private boolean mIsStreaming = false;
     private boolean mIsPreviewed;
 
     private RtspClient mRtspClient;
+    private final KeyFrameRequester mKeyFrameRequester;
+    private final PipelineStage<NV21Frame> mConvertStage;
+    private final PipelineStage.Processor<NV21Frame> mConvertProcessor;
+    private final PipelineStage<EncodedFrame> mPacketizeStage;
+    private final EncodedFramePool mEncodedFramePool;
+    private volatile LatencyTracer mLatencyTracer;
+
+    //camera preview size and encoder settings, kept to reconfigure the encoder alone
+    private int mCaptureWidth, mCaptureHeight, mFps, mBitrate, mIFrameInterval;
+    private volatile NV21Scaler mScaler;
+
+    //adaptive bitrate: a thread feeds RTCP and send queue statistics to the controller and applies its bitrate
+    private boolean mIsAdaptiveBitrate = Constants.ABR_ENABLED;
+    private int mMinBitRate = Constants.ABR_MIN_BIT_RATE, mMaxBitRate;
+    private volatile BitrateController mBitrateController;
+    private Thread mBitrateThread;
+    private volatile int mAppliedBitRate;
+    private boolean mIsAdaptiveFec;
+    private long mLastReportNs, mLastPacedPackets, mLastPacingDelayUs;
 
     public StreamEngine(SurfaceView surfaceView) {
         mStreamCamera = new StreamCamera(surfaceView, this);
         mRtspClient = new RtspClient();
         mVideoEncoder = new VideoEncoder(this);
+        mKeyFrameRequester = new KeyFrameRequester(mVideoEncoder, Constants.KEY_FRAME_MIN_INTERVAL_MS);
+        mRtspClient.setKeyFrameRequester(mKeyFrameRequester);
+        mConvertProcessor = new PipelineStage.Processor<NV21Frame>() {
+            @Override
+            public void process(NV21Frame frame) {
+                convert(frame);
+            }
+        };
+        mConvertStage = new PipelineStage<>("Convert", Constants.CONVERT_QUEUE_SIZE,
+                PipelineStage.OVERFLOW_DROP_OLDEST, mConvertProcessor);
+        mEncodedFramePool = new EncodedFramePool(Constants.ENCODED_FRAME_POOL_SIZE, Constants.ENCODED_FRAME_CAPACITY);
+        mPacketizeStage = new PipelineStage<>("Packetize", Constants.PACKETIZE_QUEUE_SIZE,
+                PipelineStage.OVERFLOW_DROP_OLDEST, new PipelineStage.Processor<EncodedFrame>() {
+            @Override
+            public void process(EncodedFrame frame) {
+                packetize(frame);
+            }
+        });
+        mPacketizeStage.setOnDropListener(new PipelineStage.OnDropListener<EncodedFrame>() {
+            @Override
+            public void onDrop(PipelineStage<EncodedFrame> stage, EncodedFrame frame) {
+                if (!frame.isCodecConfig()) {
+                    // the next frames refer to the dropped one
+                    mKeyFrameRequester.request(KeyFrameRequester.REASON_DROP, System.nanoTime() / 1000000);
+                }
+            }
+        });
+        if (Constants.LATENCY_TRACING) {
+            setLatencyTracing(true);
+        }
+        File cacheDir = surfaceView.getContext().getCacheDir();
+        mVideoEncoder.setEncoderProbe(new EncoderProbe(new File(cacheDir, Constants.ENCODER_CACHE_FILE)));
     }
 
     public boolean prepareVideo(int width, int height, int fps, int bitrate, int iFrameInterval) {
+        return prepareVideo(width, height, width, height, fps, bitrate, iFrameInterval);
+    }
+
+    /**
+     * Prepares the camera at the capture size and the encoder at the encode size.
+     * When they differ, camera frames go through a {@link NV21Scaler} before the encoder.
+     */
+    public boolean prepareVideo(int captureWidth, int captureHeight, int encodeWidth, int encodeHeight,
+                                int fps, int bitrate, int iFrameInterval) {
         if (mIsPreviewed) {
             stopPreview();
             mIsPreviewed = false;
         }
-        mStreamCamera.setUpCamera(width, height, fps);
-        return mVideoEncoder.setUpMediaCodecEncoder(width, height, fps, bitrate, iFrameInterval);
+        mCaptureWidth = captureWidth;
+        mCaptureHeight = captureHeight;
+        mFps = fps;
+        mBitrate = bitrate;
+        mIFrameInterval = iFrameInterval;
+        mRtspClient.setBitRate(bitrate);
+        mStreamCamera.setUpCamera(captureWidth, captureHeight, fps);
+        updateScaler(encodeWidth, encodeHeight);
+        return mVideoEncoder.setUpMediaCodecEncoder(encodeWidth, encodeHeight, fps, bitrate, iFrameInterval);
+    }
+
+    /**
+     * Changes the encoded resolution while the camera keeps running, e.g. to drop from 1080p to 540p under load.
+     * Only the encoder is reconfigured, the new SPS/PPS are sent in-band before the next IDR. With adaptive bitrate
+     * the encoder keeps the bitrate the controller last applied.
+     */
+    public boolean setEncodeResolution(int width, int height) {
+        mVideoEncoder.reset();
+        updateScaler(width, height);
+        int bitRate = mBitrateController != null ? mAppliedBitRate : mBitrate;
+        boolean isSuccess = mVideoEncoder.setUpMediaCodecEncoder(width, height, mFps, bitRate, mIFrameInterval);
+        if (isSuccess && mIsStreaming) {
+            mVideoEncoder.start(false);
+        }
+        return isSuccess;
+    }
+
+    /**
+     * Crops camera frames before they are scaled, a zero width or height encodes the whole frame.
+     * The encode size must differ from the capture size for the crop to apply.
+     */
+    public void setCrop(int x, int y, int width, int height) {
+        NV21Scaler scaler = mScaler;
+        if (scaler != null) {
+            scaler.setCrop(x, y, width, height);
+        }
+    }
+
+    public NV21Scaler getScaler() {
+        return mScaler;
+    }
+
+    private void updateScaler(int encodeWidth, int encodeHeight) {
+        if (encodeWidth == mCaptureWidth && encodeHeight == mCaptureHeight) {
+            mScaler = null;
+        } else {
+            mScaler = new NV21Scaler(encodeWidth, encodeHeight);
+        }
     }
 
     public boolean isStreaming() {
@@ -54,19 +170,68 @@ public class StreamEngine implements IH264Data, ICameraData {
         if (!mIsStreaming) {
             mRtspClient.setUrl(url);
 
+            mPacketizeStage.start();
+            mConvertStage.start();
             mStreamCamera.start();
             mVideoEncoder.start(true);
 
             mIsStreaming = true;
             mIsPreviewed = true;
+            if (mIsAdaptiveBitrate) {
+                startBitrateControl();
+            }
         }
     }
 
+    /**
+     * Stops sending while the RTSP session and the configured encoder stay up, see {@link #resumeStream()}.
+     */
+    public void pauseStream() {
+        if (mIsStreaming) {
+            mVideoEncoder.pause();
+        }
+    }
+
+    /**
+     * Resumes a paused stream, the encoder is still warm and starts again on a sync frame.
+     */
+    public void resumeStream() {
+        if (mIsStreaming) {
+            IPacketizer packetizer = mRtspClient.getPacketizer();
+            long resumeNs = System.nanoTime();
+            if (mVideoEncoder.resume() && packetizer != null) {
+                packetizer.getRtpSocket().armFirstPacket(resumeNs);
+            }
+        }
+    }
+
+    public boolean isPaused() {
+        return mVideoEncoder.isPaused();
+    }
+
+    /**
+     * Time from the last resume to the first RTP packet sent after it, in microseconds, -1 before the first resume
+     * or until that packet left. The codec part of it is {@link VideoEncoder#getResumeLatencyUs()}.
+     */
+    public long getResumeLatencyUs() {
+        IPacketizer packetizer = mRtspClient.getPacketizer();
+        return packetizer != null ? packetizer.getRtpSocket().getFirstPacketDelayUs() : -1;
+    }
+
     public void stopStream() {
         if (mIsStreaming) {
+            stopBitrateControl();
             mRtspClient.disconnect();
             mIsStreaming = false;
+            mConvertStage.stop();
             mVideoEncoder.reset();
+            mPacketizeStage.stop();
+            int inUse = mEncodedFramePool.getInUseCount();
+            if (inUse > 0) {
+                Log.w(TAG, inUse + " encoded frames not released after the pipeline stopped");
+            }
+            // no encoder is open until the next prepareVideo, the encoders can be measured for the next stream
+            mVideoEncoder.probeEncoders();
         }
     }
 
@@ -75,21 +240,385 @@ public class StreamEngine implements IH264Data, ICameraData {
     }
 
     @Override
-    public void onParametersDecoded(ByteBuffer sps, ByteBuffer pps) {
+    public void onParametersDecoded(ByteBuffer vps, ByteBuffer sps, ByteBuffer pps) {
+        ByteBuffer newVps = vps != null ? vps.duplicate() : null;
         ByteBuffer newSps = sps.duplicate();
         ByteBuffer newPps = pps.duplicate();
-        mRtspClient.setH264Parameters(newSps, newPps);
+        mRtspClient.setVideoParameters(mVideoEncoder.getMime(), newVps, newSps, newPps);
         mRtspClient.connect();
     }
 
+    /**
+     * Copies the output once into a pooled frame so the codec gets its buffer back right away, packetizing happens
+     * on the next stage. With the pool exhausted the frame is lost and a keyframe requested.
+     */
     @Override
     public void onH264Data(ByteBuffer buffer, MediaCodec.BufferInfo info) {
-        mRtspClient.sendDataToServer(buffer, info);
+        if (mRtspClient.isStreaming() && mPacketizeStage.isRunning()) {
+            EncodedFrame frame = mEncodedFramePool.copyOf(buffer, info);
+            if (frame != null) {
+                mPacketizeStage.offer(frame);
+            } else if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mKeyFrameRequester.request(KeyFrameRequester.REASON_DROP, System.nanoTime() / 1000000);
+            }
+        }
+    }
+
+    private void packetize(EncodedFrame frame) {
+        if (!frame.isCodecConfig()) {
+            mKeyFrameRequester.onFrame(frame.isKeyFrame(), System.nanoTime() / 1000000);
+            LatencyTracer tracer = mLatencyTracer;
+            if (tracer != null) {
+                tracer.onPacketize(frame.getPresentationTimeUs(), System.nanoTime());
+            }
+        }
+        mRtspClient.sendDataToServer(frame);
+    }
+
+    /**
+     * Asks the encoder for a keyframe, so a receiver joining late or recovering from loss gets a picture without
+     * waiting for the keyframe interval. Requests closer than {@link Constants#KEY_FRAME_MIN_INTERVAL_MS} to the
+     * last one or to a keyframe are merged and sent once the interval is over. PLI and FIR of the server, a new
+     * session and a destination change request keyframes the same way.
+     *
+     * @return true if the encoder got the request now, false if it is pending
+     */
+    public boolean requestKeyFrame() {
+        return mKeyFrameRequester.request(KeyFrameRequester.REASON_API, System.nanoTime() / 1000000);
+    }
+
+    public KeyFrameRequester getKeyFrameRequester() {
+        return mKeyFrameRequester;
     }
 
     @Override
-    public void onNV21Data(byte[] data) {
-        mVideoEncoder.putDataToNV21Queue(data);
+    public void onNV21Data(NV21Frame frame) {
+        if (mScaler == null && mConvertStage.getProcessor() == mConvertProcessor) {
+            // nothing to do before the encoder, the raw queue takes the frame without a thread hop
+            mVideoEncoder.putDataToNV21Queue(frame);
+        } else {
+            mConvertStage.offer(frame.retain());
+        }
+    }
+
+    private void convert(NV21Frame frame) {
+        NV21Scaler scaler = mScaler;
+        if (scaler == null) {
+            mVideoEncoder.putDataToNV21Queue(frame);
+        } else {
+            NV21Frame scaled = scaler.scale(frame);
+            if (scaled != null) {
+                mVideoEncoder.putDataToNV21Queue(scaled);
+                scaled.release();
+            }
+        }
+    }
+
+    /**
+     * Stage scaling camera frames for the encoder. Its processor can be wrapped to process frames before they are
+     * encoded. Frames go straight to the raw queue of the encoder when there is no scaler and the processor was not
+     * replaced. YUV conversion runs on the encoder thread, when a frame is queued to the codec.
+     */
+    public PipelineStage<NV21Frame> getConvertStage() {
+        return mConvertStage;
+    }
+
+    /**
+     * Stage turning encoded frames into RTP packets. Its processor can be wrapped, e.g. to record the frames, and its
+     * overflow policy decides which frame goes when the network falls behind. A dropped frame asks for a keyframe.
+     * A consumer keeping a frame, or handing it to another thread, retains it instead of copying it.
+     */
+    public PipelineStage<EncodedFrame> getPacketizeStage() {
+        return mPacketizeStage;
+    }
+
+    /**
+     * Pool the encoder output is copied into, with its exhaustion and leak counters.
+     */
+    public EncodedFramePool getEncodedFramePool() {
+        return mEncodedFramePool;
+    }
+
+    /**
+     * Occupancy, drops and latency of every stage, one line per stage.
+     */
+    public String dumpPipeline() {
+        FrameQueue rawQueue = mVideoEncoder.getRawQueue();
+        IPacketizer packetizer = mRtspClient.getPacketizer();
+        StringBuilder builder = new StringBuilder();
+        builder.append(mConvertStage).append('\n');
+        builder.append("Encode: ").append(rawQueue.size()).append(" queued, ").append(rawQueue.getDroppedCount())
+                .append(" dropped, wait ").append(rawQueue.getAverageDwellUs()).append(" us (max ")
+                .append(rawQueue.getMaxDwellUs()).append(")\n");
+        builder.append(mEncodedFramePool).append('\n');
+        builder.append(mPacketizeStage).append('\n');
+        if (packetizer != null) {
+            RtpSocket socket = packetizer.getRtpSocket();
+            builder.append("Send: ").append(socket.getQueueDepth()).append(" queued (max ")
+                    .append(socket.getMaxQueueDepth()).append("), pacing delay ")
+                    .append(socket.getAveragePacingDelayUs()).append(" us (max ")
+                    .append(socket.getMaxPacingDelayUs()).append(")\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Traces every frame from the camera callback to its last RTP packet into per stage histograms, see
+     * {@link #dumpLatency()}. Disabled, the pipeline does not look at the clock for it.
+     */
+    public void setLatencyTracing(boolean enabled) {
+        LatencyTracer tracer = enabled ? new LatencyTracer(Constants.LATENCY_TRACE_SLOTS) : null;
+        mLatencyTracer = tracer;
+        mVideoEncoder.setLatencyTracer(tracer);
+        mRtspClient.setLatencyTracer(tracer);
+    }
+
+    public boolean isLatencyTracing() {
+        return mLatencyTracer != null;
+    }
+
+    /**
+     * The tracer of {@link #setLatencyTracing(boolean)}, null when disabled.
+     */
+    public LatencyTracer getLatencyTracer() {
+        return mLatencyTracer;
+    }
+
+    /**
+     * p50, p99 and max of each stage of the frames sent since tracing was enabled, in microseconds.
+     */
+    public String dumpLatency() {
+        LatencyTracer tracer = mLatencyTracer;
+        return tracer != null ? tracer.toString() : "Latency tracing disabled\n";
+    }
+
+    /**
+     * Selects how frames are dropped when the encoder falls behind, see {@link FrameQueue}.
+     */
+    public void setRawQueuePolicy(int policy, int targetFps) {
+        mVideoEncoder.setRawQueue(FrameQueue.create(policy, targetFps));
+    }
+
+    public FrameQueue getRawQueue() {
+        return mVideoEncoder.getRawQueue();
+    }
+
+    /**
+     * Pool of camera buffers, null until the camera has been started.
+     */
+    public FramePool getFramePool() {
+        return mStreamCamera.getFramePool();
+    }
+
+    /**
+     * Spreads the packets of each frame over a fraction of the frame interval, e.g. 0.5 for half of it,
+     * so keyframes do not leave in one burst. Paced packets are copied to the RTP FIFO.
+     */
+    public void setPacing(boolean enabled, float fraction) {
+        mRtspClient.setPacing(enabled, fraction);
+    }
+
+    public void setNalAggregation(boolean enabled) {
+        mRtspClient.setNalAggregation(enabled);
+    }
+
+    /**
+     * Packetizer of the current session with its packet statistics, null before the stream is connected.
+     */
+    public IPacketizer getPacketizer() {
+        return mRtspClient.getPacketizer();
+    }
+
+    /**
+     * Receives the RTCP receiver reports (loss, jitter, RTT) and feedback (NACK, PLI, FIR) sent by the server.
+     * Called on the RTCP receive thread.
+     */
+    public void setRtcpListener(IRtcpListener listener) {
+        mRtspClient.setRtcpListener(listener);
+    }
+
+    /**
+     * Latest RTCP reports of the session, null before the stream is connected.
+     */
+    public RtcpReceiver getRtcpReceiver() {
+        return mRtspClient.getRtcpReceiver();
+    }
+
+    /**
+     * Stamps a transport-wide sequence number on every RTP packet and follows the server's transport-cc feedback
+     * with a delay based estimate of the available rate, see {@link DelayBasedEstimator}. With adaptive bitrate the
+     * encoder and the pacer follow the lower of that estimate and the loss based one. Takes effect on the next
+     * startStream.
+     */
+    public void setTransportWideCc(boolean enabled) {
+        mRtspClient.setTransportWideCc(enabled);
+    }
+
+    /**
+     * Keeps the last second of RTP packets and resends the ones the server reports lost with a generic NACK,
+     * on an RTX stream advertised in the SDP or unchanged. A lost fragment then costs one round trip instead of
+     * corrupting the pictures up to the next keyframe. Takes effect on the next startStream.
+     */
+    public void setRetransmission(boolean enabled, boolean rtx) {
+        mRtspClient.setRetransmission(enabled, rtx);
+    }
+
+    /**
+     * Sends XOR parity packets over rows of rowLength media packets and, with more than one row, over the columns,
+     * so losses are repaired without a round trip. With adaptive groups, and adaptive bitrate on, the protection
+     * follows the loss of the receiver reports, see {@link FecEncoder#adaptToLoss(float)}. Announced in the SDP,
+     * takes effect on the next startStream.
+     *
+     * @param rowLength 0 to turn FEC off
+     */
+    public void setFec(int rowLength, int rows, boolean adaptive) {
+        mRtspClient.setFec(rowLength, rows);
+        mIsAdaptiveFec = adaptive;
+    }
+
+    /**
+     * Adapts the encoder bitrate to the RTCP loss and RTT and to the local send queue, see {@link BitrateController}.
+     * Takes effect on the next startStream.
+     *
+     * @param maxBitRate ceiling, 0 for the bitrate passed to prepareVideo
+     */
+    public void setAdaptiveBitrate(boolean enabled, int minBitRate, int maxBitRate) {
+        mIsAdaptiveBitrate = enabled;
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+    }
+
+    /**
+     * Controller of the running stream, null when the bitrate is fixed.
+     */
+    public BitrateController getBitrateController() {
+        return mBitrateController;
+    }
+
+    private void startBitrateControl() {
+        int maxBitRate = mMaxBitRate > 0 ? mMaxBitRate : mBitrate;
+        mBitrateController = new BitrateController(Math.min(mMinBitRate, maxBitRate), maxBitRate, mBitrate,
+                Constants.ABR_INCREASE_BIT_RATE);
+        mAppliedBitRate = mBitrateController.getBitRate();
+        mLastReportNs = 0;
+        mLastPacedPackets = 0;
+        mLastPacingDelayUs = 0;
+        mBitrateThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.interrupted()) {
+                    try {
+                        Thread.sleep(Constants.ABR_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    adaptBitrate();
+                }
+            }
+        }, "BitrateController");
+        mBitrateThread.start();
+    }
+
+    private void stopBitrateControl() {
+        if (mBitrateThread != null) {
+            mBitrateThread.interrupt();
+            // a pass already running must not set a bitrate once the stream is stopped or another one started
+            try {
+                mBitrateThread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mBitrateThread = null;
+        }
+        mBitrateController = null;
+    }
+
+    private void adaptBitrate() {
+        BitrateController controller = mBitrateController;
+        IPacketizer packetizer = mRtspClient.getPacketizer();
+        if (controller == null || packetizer == null || !mRtspClient.isStreaming() || mVideoEncoder.isPaused()) {
+            return;
+        }
+        RtpSocket socket = packetizer.getRtpSocket();
+        float lossRate = -1;
+        long rttMs = -1;
+        // the RTX and FEC streams have report blocks of their own, the loss of the media stream drives the bitrate
+        ReceptionReport report = socket.getRtcpReceiver().getReport(socket.getSSRC());
+        if (report != null) {
+            rttMs = report.getRttUs() >= 0 ? report.getRttUs() / 1000 : -1;
+            if (report.getReceivedNs() != mLastReportNs) {
+                mLastReportNs = report.getReceivedNs();
+                lossRate = report.getLossRate();
+                FecEncoder fec = socket.getFecEncoder();
+                if (mIsAdaptiveFec && fec != null) {
+                    fec.adaptToLoss(lossRate);
+                }
+            }
+        }
+        // average pacing delay of the packets sent since the previous update
+        long pacedPackets = socket.getPacedPacketCount();
+        long pacingDelayUs = socket.getPacingDelaySumUs();
+        if (pacedPackets < mLastPacedPackets) {
+            // the pacing statistics were reset
+            mLastPacedPackets = 0;
+            mLastPacingDelayUs = 0;
+        }
+        long packets = pacedPackets - mLastPacedPackets;
+        long pacingDelayMs = packets > 0 ? (pacingDelayUs - mLastPacingDelayUs) / packets / 1000 : 0;
+        mLastPacedPackets = pacedPackets;
+        mLastPacingDelayUs = pacingDelayUs;
+
+        int bitRate = controller.update(System.nanoTime() / 1000000, lossRate, rttMs, socket.getQueueDepth(),
+                pacingDelayMs);
+        DelayBasedEstimator estimator = socket.getDelayBasedEstimator();
+        if (estimator != null && socket.isTransportWideCc()) {
+            // the delay gradient reacts before loss does, the lower of both wins
+            bitRate = Math.max(controller.getMinBitRate(), Math.min(bitRate, estimator.getTargetBitRate()));
+        }
+        // small increases are batched, every call is a round trip to the codec
+        if (bitRate < mAppliedBitRate || bitRate >= mAppliedBitRate * 1.05f
+                || (bitRate > mAppliedBitRate && bitRate == controller.getMaxBitRate())) {
+            if (mVideoEncoder.setBitRate(bitRate)) {
+                mAppliedBitRate = bitRate;
+                mRtspClient.setBitRate(bitRate);
+            }
+        }
+    }
+
+    /**
+     * Uses H.265 when the device has a hardware HEVC encoder, takes effect on the next prepareVideo.
+     */
+    public void setHevcEnabled(boolean enabled) {
+        mVideoEncoder.setHevcEnabled(enabled);
+    }
+
+    /**
+     * Configures the encoder for low latency, takes effect on the next prepareVideo or resolution change.
+     */
+    public void setLowLatency(boolean enabled) {
+        mVideoEncoder.setLowLatency(enabled);
+    }
+
+    /**
+     * Low latency features the configured encoder was asked for and the ones it honored.
+     */
+    public LowLatencyFeatures getLowLatencyFeatures() {
+        return mVideoEncoder.getLowLatencyFeatures();
+    }
+
+    /**
+     * H.264 profiles the server accepts, best first, e.g. only Main and Baseline for servers which can not take
+     * High. Takes effect on the next prepareVideo or resolution change.
+     */
+    public void setAllowedProfiles(int... profiles) {
+        mVideoEncoder.setAllowedProfiles(profiles);
+    }
+
+    /**
+     * Mime type of the configured encoder.
+     */
+    public String getVideoMime() {
+        return mVideoEncoder.getMime();
     }
 
 
@@ -0,0 +1,72 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Byte based token bucket: tokens flow in at a fixed rate up to the bucket capacity, sending a packet takes as many
+ * tokens as it has bytes. Times are {@link System#nanoTime()} values passed by the caller.
+ */
+
+public class TokenBucket {
+
+    private long mRateBytesPerSecond;
+    private long mCapacity;
+    private double mTokens;
+    private long mLastRefillNs;
+
+    public TokenBucket(long rateBytesPerSecond, long capacity) {
+        setRate(rateBytesPerSecond, capacity);
+        mTokens = capacity;
+        mLastRefillNs = System.nanoTime();
+    }
+
+    /**
+     * Changes the fill rate and the capacity, the tokens already in the bucket are kept up to the new capacity.
+     */
+    public synchronized void setRate(long rateBytesPerSecond, long capacity) {
+        if (rateBytesPerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("rate and capacity must be positive");
+        }
+        mRateBytesPerSecond = rateBytesPerSecond;
+        mCapacity = capacity;
+        mTokens = Math.min(mTokens, capacity);
+    }
+
+    public synchronized long getRate() {
+        return mRateBytesPerSecond;
+    }
+
+    public synchronized long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Time to wait before bytes tokens are available, 0 if they are available now.
+     */
+    public synchronized long getDelayNs(int bytes, long nowNs) {
+        refill(nowNs);
+        double missing = Math.min(bytes, mCapacity) - mTokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing * 1e9 / mRateBytesPerSecond);
+    }
+
+    /**
+     * Takes bytes tokens if they are available.
+     */
+    public synchronized boolean tryConsume(int bytes, long nowNs) {
+        refill(nowNs);
+        // a packet larger than the bucket only needs a full bucket
+        double needed = Math.min(bytes, mCapacity);
+        if (mTokens < needed) {
+            return false;
+        }
+        mTokens -= bytes;
+        return true;
+    }
+
+    private void refill(long nowNs) {
+        long elapsedNs = nowNs - mLastRefillNs;
+        if (elapsedNs > 0) {
+            mTokens = Math.min(mCapacity, mTokens + elapsedNs * mRateBytesPerSecond / 1e9);
+            mLastRefillNs = nowNs;
+        }
+    }
+
+}
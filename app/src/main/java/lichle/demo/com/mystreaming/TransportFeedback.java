@@ -0,0 +1,141 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Transport-wide congestion control feedback (draft-holmer-rmcat-transport-wide-cc-extensions-01): which transport
+ * sequence numbers the receiver got, and when. The arrays are reused by every {@link #parse}.
+ */
+
+public class TransportFeedback {
+
+    //RTPFB format of transport-cc feedback
+    public static final int FMT = 15;
+    //receive deltas and the reference time are in these units
+    public static final int DELTA_UNIT_US = 250;
+    public static final int REFERENCE_TIME_UNIT_US = 64000;
+
+    public static final int SYMBOL_NOT_RECEIVED = 0;
+    public static final int SYMBOL_SMALL_DELTA = 1;
+    public static final int SYMBOL_LARGE_DELTA = 2;
+
+    private int mBaseSequence;
+    private int mCount;
+    private int mFeedbackCount;
+    private long mReferenceTimeUs;
+    private int[] mSymbols = new int[64];
+    //arrival time in the receiver clock, -1 if the packet was not received
+    private long[] mArrivalUs = new long[64];
+
+    public int getBaseSequence() {
+        return mBaseSequence;
+    }
+
+    /**
+     * Packets the feedback has a status for, starting at the base sequence number.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Sequence number of the feedback packet itself, counts up to detect lost feedback.
+     */
+    public int getFeedbackCount() {
+        return mFeedbackCount;
+    }
+
+    public int getSequence(int i) {
+        return (mBaseSequence + i) & 0xFFFF;
+    }
+
+    public boolean isReceived(int i) {
+        return mSymbols[i] != SYMBOL_NOT_RECEIVED;
+    }
+
+    /**
+     * Arrival time of the i-th packet in the clock of the receiver, -1 if it was not received.
+     */
+    public long getArrivalUs(int i) {
+        return mArrivalUs[i];
+    }
+
+    /**
+     * Parses the feedback control information of an RTPFB packet, from the base sequence number to the end.
+     *
+     * @return false if the feedback is malformed
+     */
+    public boolean parse(byte[] data, int offset, int end) {
+        if (end - offset < 8) {
+            return false;
+        }
+        mBaseSequence = readShort(data, offset);
+        mCount = readShort(data, offset + 2);
+        // 24 bit signed
+        int reference = (((data[offset + 4] & 0xFF) << 24) | ((data[offset + 5] & 0xFF) << 16)
+                | ((data[offset + 6] & 0xFF) << 8)) >> 8;
+        mReferenceTimeUs = (long) reference * REFERENCE_TIME_UNIT_US;
+        mFeedbackCount = data[offset + 7] & 0xFF;
+        offset += 8;
+        if (mSymbols.length < mCount) {
+            mSymbols = new int[mCount];
+            mArrivalUs = new long[mCount];
+        }
+
+        int status = 0;
+        while (status < mCount) {
+            if (end - offset < 2) {
+                return false;
+            }
+            int chunk = readShort(data, offset);
+            offset += 2;
+            if ((chunk & 0x8000) == 0) {
+                // run length chunk: one symbol repeated
+                int symbol = (chunk >> 13) & 0x3;
+                int run = chunk & 0x1FFF;
+                for (int i = 0; i < run && status < mCount; i++) {
+                    mSymbols[status++] = symbol;
+                }
+            } else if ((chunk & 0x4000) == 0) {
+                // status vector of 14 one bit symbols
+                for (int i = 13; i >= 0 && status < mCount; i--) {
+                    mSymbols[status++] = (chunk >> i) & 0x1;
+                }
+            } else {
+                // status vector of 7 two bit symbols
+                for (int i = 6; i >= 0 && status < mCount; i--) {
+                    mSymbols[status++] = (chunk >> (2 * i)) & 0x3;
+                }
+            }
+        }
+
+        long arrivalUs = mReferenceTimeUs;
+        for (int i = 0; i < mCount; i++) {
+            int symbol = mSymbols[i];
+            if (symbol == SYMBOL_NOT_RECEIVED) {
+                mArrivalUs[i] = -1;
+                continue;
+            }
+            int delta;
+            if (symbol == SYMBOL_SMALL_DELTA) {
+                if (end - offset < 1) {
+                    return false;
+                }
+                delta = data[offset] & 0xFF;
+                offset += 1;
+            } else {
+                if (end - offset < 2) {
+                    return false;
+                }
+                delta = (short) readShort(data, offset);
+                offset += 2;
+            }
+            arrivalUs += (long) delta * DELTA_UNIT_US;
+            mArrivalUs[i] = arrivalUs;
+        }
+        return true;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+}
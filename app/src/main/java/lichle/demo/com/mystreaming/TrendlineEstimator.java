@@ -0,0 +1,147 @@
+package lichle.demo.com.mystreaming;
+
+/**
+ * Delay gradient detector of Google congestion control (draft-ietf-rmcat-gcc): the slope of the smoothed one-way
+ * delay variation over the last packet groups, compared against an adaptive threshold.
+ */
+
+public class TrendlineEstimator {
+
+    public static final int NORMAL = 0;
+    public static final int OVERUSING = 1;
+    public static final int UNDERUSING = 2;
+
+    private static final int WINDOW_SIZE = 20;
+    private static final double SMOOTHING = 0.9;
+    private static final double THRESHOLD_GAIN = 4;
+    private static final int MAX_DELTAS = 60;
+    private static final double OVERUSE_TIME_MS = 10;
+    private static final double K_UP = 0.0087;
+    private static final double K_DOWN = 0.039;
+    private static final double MIN_THRESHOLD = 6;
+    private static final double MAX_THRESHOLD = 600;
+
+    //(arrival time since the first group, smoothed accumulated delay) of the last groups, a ring
+    private final double[] mArrivalMs = new double[WINDOW_SIZE];
+    private final double[] mSmoothedDelayMs = new double[WINDOW_SIZE];
+    private int mCount;
+    private int mNext;
+    private long mFirstArrivalMs = -1;
+    private double mAccumulatedDelayMs;
+    private double mSmoothedMs;
+    private int mDeltaCount;
+
+    private double mThreshold = 12.5;
+    private long mLastThresholdUpdateMs = -1;
+    private double mTrend;
+    private double mPreviousTrend;
+    private double mTimeOverUsingMs = -1;
+    private int mOverUseCount;
+    private int mState = NORMAL;
+
+    /**
+     * Adds the delay variation between two packet groups.
+     *
+     * @param delayDeltaMs  arrival time delta minus send time delta of the groups
+     * @param sendDeltaMs   send time delta of the groups
+     * @param arrivalMs     arrival time of the later group
+     * @return the new state, one of {@link #NORMAL}, {@link #OVERUSING}, {@link #UNDERUSING}
+     */
+    public int update(double delayDeltaMs, double sendDeltaMs, long arrivalMs) {
+        if (mFirstArrivalMs < 0) {
+            mFirstArrivalMs = arrivalMs;
+        }
+        mDeltaCount = Math.min(mDeltaCount + 1, MAX_DELTAS);
+        mAccumulatedDelayMs += delayDeltaMs;
+        mSmoothedMs = SMOOTHING * mSmoothedMs + (1 - SMOOTHING) * mAccumulatedDelayMs;
+        mArrivalMs[mNext] = arrivalMs - mFirstArrivalMs;
+        mSmoothedDelayMs[mNext] = mSmoothedMs;
+        mNext = (mNext + 1) % WINDOW_SIZE;
+        if (mCount < WINDOW_SIZE) {
+            mCount++;
+        }
+        if (mCount == WINDOW_SIZE) {
+            mTrend = linearFitSlope();
+        }
+        detect(sendDeltaMs, arrivalMs);
+        return mState;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public double getTrend() {
+        return mTrend;
+    }
+
+    public double getThreshold() {
+        return mThreshold;
+    }
+
+    private double linearFitSlope() {
+        double sumX = 0, sumY = 0;
+        for (int i = 0; i < mCount; i++) {
+            sumX += mArrivalMs[i];
+            sumY += mSmoothedDelayMs[i];
+        }
+        double meanX = sumX / mCount;
+        double meanY = sumY / mCount;
+        double numerator = 0, denominator = 0;
+        for (int i = 0; i < mCount; i++) {
+            double dx = mArrivalMs[i] - meanX;
+            numerator += dx * (mSmoothedDelayMs[i] - meanY);
+            denominator += dx * dx;
+        }
+        return denominator == 0 ? mTrend : numerator / denominator;
+    }
+
+    private void detect(double sendDeltaMs, long nowMs) {
+        double modifiedTrend = mDeltaCount * mTrend * THRESHOLD_GAIN;
+        if (modifiedTrend > mThreshold) {
+            if (mTimeOverUsingMs < 0) {
+                // the overuse started in the middle of the last send delta
+                mTimeOverUsingMs = sendDeltaMs / 2;
+            } else {
+                mTimeOverUsingMs += sendDeltaMs;
+            }
+            mOverUseCount++;
+            if (mTimeOverUsingMs > OVERUSE_TIME_MS && mOverUseCount > 1 && mTrend >= mPreviousTrend) {
+                mTimeOverUsingMs = 0;
+                mOverUseCount = 0;
+                mState = OVERUSING;
+            }
+        } else if (modifiedTrend < -mThreshold) {
+            mTimeOverUsingMs = -1;
+            mOverUseCount = 0;
+            mState = UNDERUSING;
+        } else {
+            mTimeOverUsingMs = -1;
+            mOverUseCount = 0;
+            mState = NORMAL;
+        }
+        mPreviousTrend = mTrend;
+        updateThreshold(modifiedTrend, nowMs);
+    }
+
+    /**
+     * The threshold follows the trend slowly upwards and faster downwards, so it is neither starved by concurrent
+     * TCP flows nor triggered by noise. Outliers do not move it.
+     */
+    private void updateThreshold(double modifiedTrend, long nowMs) {
+        if (mLastThresholdUpdateMs < 0) {
+            mLastThresholdUpdateMs = nowMs;
+        }
+        double absTrend = Math.abs(modifiedTrend);
+        if (absTrend > mThreshold + 15) {
+            mLastThresholdUpdateMs = nowMs;
+            return;
+        }
+        double k = absTrend < mThreshold ? K_DOWN : K_UP;
+        long elapsedMs = Math.min(nowMs - mLastThresholdUpdateMs, 100);
+        mThreshold += k * (absTrend - mThreshold) * elapsedMs;
+        mThreshold = Math.max(MIN_THRESHOLD, Math.min(MAX_THRESHOLD, mThreshold));
+        mLastThresholdUpdateMs = nowMs;
+    }
+
+}
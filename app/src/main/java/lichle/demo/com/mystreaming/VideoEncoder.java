@@ -1,224 +1,713 @@
 package lichle.demo.com.mystreaming;
 
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Bundle;
 import android.util.Log;
-import android.util.Pair;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Created by lich on 9/5/18.
  */
 
-public class VideoEncoder {
+public class VideoEncoder implements IKeyFrameSource {
 
     private static final String TAG = "VideoEncoder";
     private static final Object sLock = new Object();
 
-    private MediaCodec mMediaCodec;
+    private IVideoCodec mCodec;
+    //serializes output handling in asynchronous mode against reset()
+    private final Object mCodecLock = new Object();
     private Thread mThread;
     private IH264Data mH264DataListener;
     private MediaCodec.BufferInfo mVideoInfo = new MediaCodec.BufferInfo();
     private long mPresentTimeUs;
-    private boolean mIsRunning, mIsH264ParametersSet;
-    private BlockingDeque<byte[]> mRawQueue;
+    private volatile boolean mIsRunning, mIsPaused;
+    private long mResumeNs;
+    private volatile long mResumeLatencyUs = -1;
+    private volatile boolean mIsAwaitingResumeOutput;
+    private boolean mIsH264ParametersSet;
+    private FrameQueue mRawQueue;
+    private boolean mIsAsync = Constants.ENCODER_ASYNC_MODE;
+    //input buffers the codec reported as free in asynchronous mode, indexes are small so boxing does not allocate
+    private final BlockingQueue<Integer> mFreeInputBuffers = new ArrayBlockingQueue<>(64);
 
     private int mVideoEncoderFormat;
+    private int mYuvFormat;
+    //input layout of the configured codec, image input for COLOR_FormatYUV420Flexible, 0 stride when not reported
+    private boolean mIsImageInput;
+    private int mInputStride, mInputSliceHeight;
+    private EncoderProbe mEncoderProbe;
+    //settings of the last set up which found no probe results, null when nothing is left to probe
+    private String[] mProbeMimes;
+    private int mProbeWidth, mProbeHeight, mProbeFps, mProbeBitRate;
+    private boolean mIsHevcEnabled = Constants.HEVC_ENABLED;
+    private String mMime = Constants.MIME_TYPE;
+    private boolean mIsLowLatency = Constants.LOW_LATENCY_ENCODER;
+    private volatile LowLatencyFeatures mLowLatencyFeatures = new LowLatencyFeatures(0, 0);
+    private int[] mAllowedProfiles = AvcProfileSelector.DEFAULT_PROFILES;
+    //H.264 profile and level set in the format of the configured codec, -1 if left to the codec
+    private volatile int mProfile = -1, mLevel = -1;
+    private volatile LatencyTracer mLatencyTracer;
+    //only used on the output thread
+    private final AnnexBScanner mScanner = new AnnexBScanner();
 
     public VideoEncoder(IH264Data onH264Data) {
         mH264DataListener = onH264Data;
-        mRawQueue = new LinkedBlockingDeque<>(Constants.RAW_DATA_QUEUE_SIZE);
+        mRawQueue = FrameQueue.create(Constants.RAW_QUEUE_POLICY, Constants.FPS);
+    }
+
+    /**
+     * Lets the encoder be chosen from cached probe results instead of walking {@link MediaCodecList} on every set up.
+     * A set up without results leaves the encoders of its size to {@link #probeEncoders()}.
+     */
+    public void setEncoderProbe(EncoderProbe encoderProbe) {
+        mEncoderProbe = encoderProbe;
+    }
+
+    /**
+     * Probes in the background the encoders a previous set up had no results for. Does nothing while a codec is
+     * configured: the probe would compete with it for the hardware encode sessions. The next set up cancels it.
+     */
+    public void probeEncoders() {
+        synchronized (sLock) {
+            if (mEncoderProbe == null || mProbeMimes == null || mCodec != null) {
+                return;
+            }
+            mEncoderProbe.probeInBackground(mProbeMimes, mProbeWidth, mProbeHeight, mProbeFps, mProbeBitRate);
+            mProbeMimes = null;
+        }
+    }
+
+    /**
+     * Selects H.265 over H.264 when a hardware HEVC encoder is available, takes effect on the next set up.
+     */
+    public void setHevcEnabled(boolean enabled) {
+        mIsHevcEnabled = enabled;
+    }
+
+    /**
+     * Asks for the {@link LowLatencyFeatures} the encoder supports, takes effect on the next set up.
+     */
+    public void setLowLatency(boolean enabled) {
+        mIsLowLatency = enabled;
+    }
+
+    /**
+     * Low latency features requested from and honored by the configured codec.
+     */
+    public LowLatencyFeatures getLowLatencyFeatures() {
+        return mLowLatencyFeatures;
+    }
+
+    /**
+     * H.264 profiles the server accepts, best first, see {@link AvcProfileSelector}. Takes effect on the next set up,
+     * an empty list leaves the profile to the codec.
+     */
+    public void setAllowedProfiles(int... profiles) {
+        mAllowedProfiles = profiles.clone();
+    }
+
+    /**
+     * MediaCodecInfo.CodecProfileLevel profile of the configured codec, -1 if it was left to the codec.
+     */
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Traces frames from codec input to codec output, null to stop.
+     */
+    public void setLatencyTracer(LatencyTracer tracer) {
+        mLatencyTracer = tracer;
+    }
+
+    /**
+     * Mime type of the configured codec.
+     */
+    public String getMime() {
+        return mMime;
     }
 
     public boolean setUpMediaCodecEncoder(int width, int height, int fps, int bitRate, int iFrameInterval) {
-        MediaCodecInfo encoder = chooseVideoEncoder(Constants.MIME_TYPE, Constants.MC_COLOR_FORMAT);
+        String mime = null;
+        String encoderName = null;
+        if (mEncoderProbe != null) {
+            // the probe opens the same hardware encoders, it must not compete with the one opened below
+            mEncoderProbe.cancel();
+            String[] mimes = mIsHevcEnabled ? new String[]{Constants.MIME_TYPE_HEVC, Constants.MIME_TYPE}
+                    : new String[]{Constants.MIME_TYPE};
+            EncoderInfo best = null;
+            for (String candidate : mimes) {
+                List<EncoderInfo> encoders = mEncoderProbe.getCachedEncoders(candidate, width, height);
+                if (encoders == null) {
+                    // the codec list is used until the encoders were probed, see probeEncoders()
+                    mProbeMimes = mimes;
+                    mProbeWidth = width;
+                    mProbeHeight = height;
+                    mProbeFps = fps;
+                    mProbeBitRate = bitRate;
+                    break;
+                }
+                best = EncoderProbe.selectBest(encoders, fps);
+                // H.265 only pays off on a hardware encoder
+                if (best != null && (best.isHardware() || Constants.MIME_TYPE.equals(candidate))) {
+                    mime = candidate;
+                    break;
+                }
+                best = null;
+            }
+            if (best != null) {
+                encoderName = best.getName();
+                mVideoEncoderFormat = best.getColorFormat();
+                mYuvFormat = YuvConverter.getFormatForColorFormat(mVideoEncoderFormat);
+            }
+        }
+        if (mime == null) {
+            mime = mIsHevcEnabled && hasHardwareEncoder(Constants.MIME_TYPE_HEVC)
+                    ? Constants.MIME_TYPE_HEVC : Constants.MIME_TYPE;
+        }
+        if (encoderName == null) {
+            MediaCodecInfo encoder = chooseVideoEncoder(mime);
+            encoderName = encoder != null ? encoder.getName() : null;
+        }
         try {
-            if (encoder != null) {
-                mMediaCodec = MediaCodec.createByCodecName(encoder.getName());
-            } else {
+            if (encoderName == null) {
                 Log.e(TAG, "The media codec can not be found ");
                 return false;
             }
-            MediaFormat videoFormat;
-            videoFormat = MediaFormat.createVideoFormat(Constants.MIME_TYPE, width, height);
-            videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, this.mVideoEncoderFormat);
-            videoFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
-            videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-            videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
-            videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
-            mMediaCodec.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-            mIsRunning = false;
+            MediaCodec mediaCodec = MediaCodec.createByCodecName(encoderName);
+            IVideoCodec codec = new MediaCodecAdapter(mediaCodec);
+            MediaFormat videoFormat = createVideoFormat(mime, width, height, fps, bitRate, iFrameInterval);
+            MediaCodecInfo.CodecCapabilities capabilities = mediaCodec.getCodecInfo().getCapabilitiesForType(mime);
+            int requested = 0;
+            if (mIsLowLatency) {
+                requested = LowLatencyFeatures.select(LowLatencyFeatures.getSupportedFeatures(capabilities));
+                LowLatencyFeatures.apply(videoFormat, requested, fps);
+            }
+            int[] profileLevel = null;
+            if (Constants.MIME_TYPE.equals(mime) && mAllowedProfiles.length > 0) {
+                profileLevel = AvcProfileSelector.select(getProfileLevels(capabilities), mAllowedProfiles,
+                        width, height, fps, bitRate);
+                if (profileLevel != null) {
+                    videoFormat.setInteger(MediaFormat.KEY_PROFILE, profileLevel[0]);
+                    videoFormat.setInteger(MediaFormat.KEY_LEVEL, profileLevel[1]);
+                }
+            }
+            if (setUpCodec(codec, videoFormat, mYuvFormat)) {
+                mLowLatencyFeatures = new LowLatencyFeatures(requested,
+                        LowLatencyFeatures.getHonored(requested, codec.getInputFormat()));
+                mProfile = profileLevel != null ? profileLevel[0] : -1;
+                mLevel = profileLevel != null ? profileLevel[1] : -1;
+                Log.i(TAG, encoderName + " profile " + mProfile + " level " + mLevel
+                        + ", low latency: " + mLowLatencyFeatures);
+                return true;
+            }
+            mLowLatencyFeatures = new LowLatencyFeatures(requested, 0);
+            mProfile = -1;
+            mLevel = -1;
+            if (requested == 0 && profileLevel == null) {
+                return false;
+            }
+            // some vendor codecs fail to configure with keys they do not know or a profile they advertise
+            Log.w(TAG, encoderName + " rejected the low latency or profile settings, configuring it without them");
+            codec = new MediaCodecAdapter(MediaCodec.createByCodecName(encoderName));
+            return setUpCodec(codec, createVideoFormat(mime, width, height, fps, bitRate, iFrameInterval), mYuvFormat);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Profile and level pairs in the layout of {@link EncoderInfo#getProfileLevels()}.
+     */
+    private static int[] getProfileLevels(MediaCodecInfo.CodecCapabilities capabilities) {
+        if (capabilities == null || capabilities.profileLevels == null) {
+            return new int[0];
+        }
+        int[] profileLevels = new int[capabilities.profileLevels.length * 2];
+        for (int i = 0; i < capabilities.profileLevels.length; i++) {
+            profileLevels[2 * i] = capabilities.profileLevels[i].profile;
+            profileLevels[2 * i + 1] = capabilities.profileLevels[i].level;
+        }
+        return profileLevels;
+    }
+
+    private MediaFormat createVideoFormat(String mime, int width, int height, int fps, int bitRate,
+                                          int iFrameInterval) {
+        MediaFormat videoFormat = MediaFormat.createVideoFormat(mime, width, height);
+        videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, this.mVideoEncoderFormat);
+        videoFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
+        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+        videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+        return videoFormat;
+    }
+
+    /**
+     * Configures an already created codec.
+     *
+     * @param yuvFormat the {@link YuvConverter} target matching the color format in the video format
+     */
+    public boolean setUpCodec(IVideoCodec codec, MediaFormat videoFormat, int yuvFormat) {
+        try {
+            if (mIsAsync) {
+                codec.setCallback(mCodecCallback);
+            }
+            codec.configure(videoFormat);
         } catch (Exception e) {
             e.printStackTrace();
+            codec.release();
             return false;
         }
+        mCodec = codec;
+        MediaFormat inputFormat = codec.getInputFormat();
+        mIsImageInput = mVideoEncoderFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+        mYuvFormat = mIsImageInput ? YuvConverter.getFormatForInputFormat(inputFormat) : yuvFormat;
+        mInputStride = YuvConverter.getPlaneLayout(inputFormat, MediaFormat.KEY_STRIDE);
+        mInputSliceHeight = YuvConverter.getPlaneLayout(inputFormat, MediaFormat.KEY_SLICE_HEIGHT);
+        mMime = videoFormat != null ? videoFormat.getString(MediaFormat.KEY_MIME) : Constants.MIME_TYPE;
+        mIsRunning = false;
         return true;
     }
 
+    /**
+     * Selects asynchronous (callback) or synchronous (polling) codec operation, takes effect on the next set up.
+     * In asynchronous mode output reaches {@link IH264Data#onH264Data} as soon as the codec produces it,
+     * instead of waiting for the next camera frame.
+     */
+    public void setAsyncMode(boolean async) {
+        mIsAsync = async;
+    }
+
+    public boolean isAsyncMode() {
+        return mIsAsync;
+    }
+
     public void reset() {
         synchronized (sLock) {
             mIsRunning = false;
-            if (mThread != null) {
-                mThread.interrupt();
-                try {
-                    mThread.join(2000);
-                } catch (InterruptedException e) {
-                    mThread.interrupt();
+            mIsPaused = false;
+            stopFeedThread();
+            synchronized (mCodecLock) {
+                if (mCodec != null) {
+                    mCodec.stop();
+                    mCodec.release();
+                    mCodec = null;
                 }
-                mThread = null;
-            }
-            if (mMediaCodec != null) {
-                mMediaCodec.stop();
-                mMediaCodec.release();
-                mMediaCodec = null;
             }
+            mFreeInputBuffers.clear();
             mRawQueue.clear();
             mIsH264ParametersSet = false;
         }
     }
 
-    public void putDataToNV21Queue(byte[] data) {
+    /**
+     * Queues a camera frame for encoding. The frame is retained until it has been copied into the codec.
+     */
+    public void putDataToNV21Queue(NV21Frame frame) {
         synchronized (sLock) {
             if (mIsRunning) {
-                try {
-                    mRawQueue.add(data);
-                } catch (IllegalStateException e) {
-                    e.printStackTrace();
-                }
+                mRawQueue.offer(frame.retain());
             }
         }
     }
 
+    /**
+     * Replaces the policy used when the encoder falls behind the camera. Must be called before {@link #start(boolean)}.
+     */
+    public void setRawQueue(FrameQueue queue) {
+        synchronized (sLock) {
+            if (mThread != null) {
+                throw new IllegalStateException("The raw queue can not be replaced while encoding");
+            }
+            mRawQueue.clear();
+            mRawQueue = queue;
+        }
+    }
+
+    public FrameQueue getRawQueue() {
+        return mRawQueue;
+    }
+
 
     public void start(boolean resetTs) {
         synchronized (sLock) {
-            if (mMediaCodec != null) {
+            if (mCodec != null) {
                 mIsH264ParametersSet = false;
+                mIsPaused = false;
                 if (resetTs) {
                     mPresentTimeUs = System.nanoTime() / 1000;
                 }
-                mMediaCodec.start();
-                //mBuffers to mBuffers
-                mThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        while (!Thread.interrupted()) {
-                            try {
-                                byte[] buffer = mRawQueue.take();
-                                getH264DataFromMediaCodec(buffer);
-                            } catch (InterruptedException e) {
-                                if (mThread != null) {
-                                    mThread.interrupt();
-                                }
-                            }
-                        }
-                    }
-                });
-                mThread.start();
+                mFreeInputBuffers.clear();
                 mIsRunning = true;
+                mCodec.start();
+                startFeedThread();
             } else {
                 Log.e(TAG, "VideoEncoder has not been initialized yet");
             }
         }
     }
 
-    private void getH264DataFromMediaCodec(byte[] buffer) {
-        int inIndex = mMediaCodec.dequeueInputBuffer(-1);
-        if (inIndex >= 0) {
-            ByteBuffer inBuffer = mMediaCodec.getInputBuffer(inIndex);
-            if (null != inBuffer) {
-                inBuffer.put(buffer, 0, buffer.length);
+    /**
+     * Stops feeding the codec and flushes it, but keeps it configured so {@link #resume()} is immediate.
+     */
+    public void pause() {
+        synchronized (sLock) {
+            if (!mIsRunning || mCodec == null) {
+                return;
+            }
+            mIsRunning = false;
+            stopFeedThread();
+            synchronized (mCodecLock) {
+                mCodec.flush();
+            }
+            mFreeInputBuffers.clear();
+            mRawQueue.clear();
+            mIsPaused = true;
+        }
+    }
+
+    /**
+     * Restarts a paused encoder and asks for a sync frame right away, so the stream resumes on an IDR.
+     *
+     * @return false if the encoder was not paused
+     */
+    public boolean resume() {
+        synchronized (sLock) {
+            if (!mIsPaused || mCodec == null) {
+                return false;
+            }
+            mIsPaused = false;
+            mResumeNs = System.nanoTime();
+            mIsAwaitingResumeOutput = true;
+            mIsRunning = true;
+            if (mIsAsync) {
+                //a flushed codec in asynchronous mode only hands out input buffers again after start()
+                mCodec.start();
+            }
+            requestSyncFrame();
+            startFeedThread();
+            return true;
+        }
+    }
+
+    public boolean isPaused() {
+        return mIsPaused;
+    }
+
+    /**
+     * Time from the last {@link #resume()} to the first encoded frame handed to the listener, in microseconds,
+     * -1 before the first resume.
+     */
+    public long getResumeLatencyUs() {
+        return mResumeLatencyUs;
+    }
+
+    /**
+     * Changes the target bitrate of the running encoder without reconfiguring it.
+     *
+     * @return false if the encoder is not running or rejected the change
+     */
+    public boolean setBitRate(int bitRate) {
+        synchronized (mCodecLock) {
+            if (mCodec == null || !mIsRunning) {
+                return false;
+            }
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+            try {
+                mCodec.setParameters(params);
+                return true;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Can not change the bitrate", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Asks the running encoder for a sync frame now, see {@link KeyFrameRequester} for the throttling.
+     */
+    @Override
+    public boolean requestKeyFrame() {
+        synchronized (mCodecLock) {
+            if (mCodec == null || !mIsRunning) {
+                return false;
+            }
+            try {
+                requestSyncFrame();
+                return true;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Can not request a sync frame", e);
+                return false;
+            }
+        }
+    }
+
+    private void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(params);
+    }
+
+    private void startFeedThread() {
+        //mBuffers to mBuffers
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.interrupted()) {
+                    try {
+                        if (mIsAsync) {
+                            feedFreeInputBuffer();
+                        } else {
+                            NV21Frame frame = mRawQueue.take();
+                            getH264DataFromMediaCodec(frame);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, "VideoEncoder");
+        mThread.start();
+    }
+
+    private void stopFeedThread() {
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join(2000);
+            } catch (InterruptedException e) {
+                mThread.interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    private final IVideoCodec.Callback mCodecCallback = new IVideoCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(int index) {
+            mFreeInputBuffers.offer(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+            synchronized (mCodecLock) {
+                if (mIsRunning && mCodec != null) {
+                    handleOutputBuffer(index, info);
+                }
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            synchronized (mCodecLock) {
+                if (mIsRunning) {
+                    handleOutputFormat(format);
+                }
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            Log.e(TAG, "Codec error", e);
+        }
+    };
+
+    /**
+     * Asynchronous mode: waits for a free input buffer first, then takes the freshest frame,
+     * so frames keep being replaced in the raw queue while the codec is busy.
+     */
+    private void feedFreeInputBuffer() throws InterruptedException {
+        int inIndex = mFreeInputBuffers.take();
+        NV21Frame frame = mRawQueue.take();
+        queueFrame(inIndex, frame);
+    }
+
+    private void queueFrame(int inIndex, NV21Frame frame) {
+        try {
+            int size = -1;
+            Image inImage = mIsImageInput ? mCodec.getInputImage(inIndex) : null;
+            if (null != inImage) {
+                size = YuvConverter.convert(frame, inImage);
+            } else {
+                ByteBuffer inBuffer = mCodec.getInputBuffer(inIndex);
+                if (null != inBuffer) {
+                    inBuffer.clear();
+                    size = YuvConverter.convert(frame, inBuffer, mYuvFormat, mInputStride, mInputSliceHeight);
+                }
+            }
+            if (size >= 0) {
                 long pts = System.nanoTime() / 1000 - mPresentTimeUs;
-                mMediaCodec.queueInputBuffer(inIndex, 0, buffer.length, pts, 0);
+                mCodec.queueInputBuffer(inIndex, size, pts, 0);
+                LatencyTracer tracer = mLatencyTracer;
+                if (tracer != null) {
+                    tracer.onCodecInput(pts, frame.getTimestampNs(), frame.getDequeuedNs(), System.nanoTime());
+                }
             }
+        } finally {
+            //the picture is in the codec now, the camera can reuse the buffer
+            frame.release();
+        }
+    }
+
+    private void getH264DataFromMediaCodec(NV21Frame frame) {
+        int inIndex = mCodec.dequeueInputBuffer(-1);
+        if (inIndex >= 0) {
+            queueFrame(inIndex, frame);
+        } else {
+            frame.release();
         }
         for (; ; ) {
-            int outIndex = mMediaCodec.dequeueOutputBuffer(mVideoInfo, 0);
+            int outIndex = mCodec.dequeueOutputBuffer(mVideoInfo, 0);
             if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat mediaFormat = mMediaCodec.getOutputFormat();
-                mH264DataListener.onParametersDecoded(mediaFormat.getByteBuffer("csd-0"), mediaFormat.getByteBuffer("csd-1"));
-                mIsH264ParametersSet = true;
+                handleOutputFormat(mCodec.getOutputFormat());
             } else if (outIndex >= 0) {
-                //This ByteBuffer is H264
-                ByteBuffer outBuffer = mMediaCodec.getOutputBuffer(outIndex);
-                if ((mVideoInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    if (outBuffer != null && !mIsH264ParametersSet) {
-                        Pair<ByteBuffer, ByteBuffer> buffers =
-                                decodeH264ParametersFromBuffer(outBuffer.duplicate(), mVideoInfo.size);
-                        if (buffers != null) {
-                            mH264DataListener.onParametersDecoded(buffers.first, buffers.second);
-                            mIsH264ParametersSet = true;
-                        }
-                    }
-                }
-                mVideoInfo.presentationTimeUs = System.nanoTime() / 1000 - mPresentTimeUs;
-                mH264DataListener.onH264Data(outBuffer, mVideoInfo);
-                mMediaCodec.releaseOutputBuffer(outIndex, false);
+                handleOutputBuffer(outIndex, mVideoInfo);
             } else {
                 break;
             }
         }
     }
 
-    /**
-     * Get H264 parameters (sps, pps) in case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED is not called.
-     */
-    private Pair<ByteBuffer, ByteBuffer> decodeH264ParametersFromBuffer(ByteBuffer outputBuffer, int length) {
-        byte[] mSPS = null, mPPS = null;
-        byte[] csd = new byte[length];
-        outputBuffer.get(csd, 0, length);
-        int i = 0;
-        int spsIndex = -1;
-        int ppsIndex = -1;
-        while (i < length - 4) {
-            if (csd[i] == 0 && csd[i + 1] == 0 && csd[i + 2] == 0 && csd[i + 3] == 1) {
-                if (spsIndex == -1) {
-                    spsIndex = i;
-                } else {
-                    ppsIndex = i;
-                    break;
+    private void handleOutputFormat(MediaFormat mediaFormat) {
+        if (isHevc()) {
+            // VPS, SPS and PPS are all in csd-0
+            ByteBuffer csd = mediaFormat.getByteBuffer("csd-0");
+            ByteBuffer[] buffers = decodeParametersFromBuffer(csd, csd.position(), csd.remaining());
+            if (buffers != null) {
+                mH264DataListener.onParametersDecoded(buffers[0], buffers[1], buffers[2]);
+                mIsH264ParametersSet = true;
+            }
+            return;
+        }
+        mH264DataListener.onParametersDecoded(null, mediaFormat.getByteBuffer("csd-0"),
+                mediaFormat.getByteBuffer("csd-1"));
+        mIsH264ParametersSet = true;
+    }
+
+    private boolean isHevc() {
+        return Constants.MIME_TYPE_HEVC.equalsIgnoreCase(mMime);
+    }
+
+    private void handleOutputBuffer(int outIndex, MediaCodec.BufferInfo info) {
+        //This ByteBuffer is H264
+        ByteBuffer outBuffer = mCodec.getOutputBuffer(outIndex);
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            if (outBuffer != null && !mIsH264ParametersSet) {
+                ByteBuffer[] buffers = decodeParametersFromBuffer(outBuffer, info.offset, info.size);
+                if (buffers != null) {
+                    mH264DataListener.onParametersDecoded(buffers[0], buffers[1], buffers[2]);
+                    mIsH264ParametersSet = true;
                 }
             }
-            i++;
         }
-        if (spsIndex != -1 && ppsIndex != -1) {
-            mSPS = new byte[ppsIndex];
-            System.arraycopy(csd, spsIndex, mSPS, 0, ppsIndex);
-            mPPS = new byte[length - ppsIndex];
-            System.arraycopy(csd, ppsIndex, mPPS, 0, length - ppsIndex);
+        long inputPtsUs = info.presentationTimeUs;
+        info.presentationTimeUs = System.nanoTime() / 1000 - mPresentTimeUs;
+        LatencyTracer tracer = mLatencyTracer;
+        if (tracer != null && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            tracer.onCodecOutput(inputPtsUs, info.presentationTimeUs, System.nanoTime());
+        }
+        mH264DataListener.onH264Data(outBuffer, info);
+        mCodec.releaseOutputBuffer(outIndex);
+        if (mIsAwaitingResumeOutput && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            mIsAwaitingResumeOutput = false;
+            mResumeLatencyUs = (System.nanoTime() - mResumeNs) / 1000;
+            Log.i(TAG, "first frame " + mResumeLatencyUs + " us after resume");
         }
-        if (mSPS != null && mPPS != null) {
-            return new Pair<>(ByteBuffer.wrap(mSPS), ByteBuffer.wrap(mPPS));
+    }
+
+    /**
+     * Get the parameter sets {vps, sps, pps} in case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED is not called,
+     * vps is null for H.264.
+     */
+    private ByteBuffer[] decodeParametersFromBuffer(ByteBuffer outputBuffer, int offset, int length) {
+        boolean isHevc = isHevc();
+        ByteBuffer vps = null, sps = null, pps = null;
+        int count = mScanner.scan(outputBuffer, offset, length);
+        for (int i = 0; i < count; i++) {
+            int nalOffset = mScanner.getNalOffset(i);
+            int nalLength = mScanner.getNalLength(i);
+            int header = outputBuffer.get(nalOffset);
+            int type = isHevc ? H265Packet.getNalTypeFromFirstByte(header) : header & 0x1F;
+            if (isHevc && type == H265Packet.NAL_VPS && vps == null) {
+                vps = copyNal(outputBuffer, nalOffset, nalLength);
+            } else if (type == (isHevc ? H265Packet.NAL_SPS : 7) && sps == null) {
+                sps = copyNal(outputBuffer, nalOffset, nalLength);
+            } else if (type == (isHevc ? H265Packet.NAL_PPS : 8) && pps == null) {
+                pps = copyNal(outputBuffer, nalOffset, nalLength);
+            }
+        }
+        if (sps != null && pps != null && (vps != null || !isHevc)) {
+            return new ByteBuffer[]{vps, sps, pps};
         }
         return null;
     }
 
+    /**
+     * Copies a NAL unit behind a 4 bytes start code, the layout of csd-0 and csd-1.
+     */
+    private static ByteBuffer copyNal(ByteBuffer src, int offset, int length) {
+        byte[] nal = new byte[length + 4];
+        nal[3] = 1;
+        for (int i = 0; i < length; i++) {
+            nal[4 + i] = src.get(offset + i);
+        }
+        return ByteBuffer.wrap(nal);
+    }
+
 
     /**
-     * Retrieve Media Codec Info that supports mine type: "video/adv" and color: "MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar"
+     * Retrieve Media Codec Info that supports mine type: "video/adv" with the color format which is the cheapest
+     * to convert NV21 camera frames to, see {@link YuvConverter#getConversionCost(int)}
      *
      * @param mime
      * @return
      */
-    private MediaCodecInfo chooseVideoEncoder(String mime, int mc_color) {
+    private MediaCodecInfo chooseVideoEncoder(String mime) {
         List<MediaCodecInfo> mediaCodecInfoList = getSupportedEncoders(mime);
+        MediaCodecInfo chosen = null;
+        int chosenCost = Integer.MAX_VALUE;
         for (MediaCodecInfo mci : mediaCodecInfoList) {
             MediaCodecInfo.CodecCapabilities codecCapabilities = mci.getCapabilitiesForType(mime);
             for (int color : codecCapabilities.colorFormats) {
-                if (color == mc_color) {
-                    this.mVideoEncoderFormat = Constants.MC_COLOR_FORMAT;
-                    return mci;
+                int yuvFormat = YuvConverter.getFormatForColorFormat(color);
+                int cost = YuvConverter.getConversionCost(yuvFormat);
+                if (cost < chosenCost) {
+                    chosen = mci;
+                    chosenCost = cost;
+                    this.mVideoEncoderFormat = color;
+                    this.mYuvFormat = yuvFormat;
                 }
             }
         }
-        return null;
+        return chosen;
+    }
+
+    /**
+     * True when an encoder of the mime type is not one of the platform software encoders.
+     */
+    private boolean hasHardwareEncoder(String mime) {
+        for (MediaCodecInfo mci : getSupportedEncoders(mime)) {
+            if (EncoderInfo.isHardware(mci.getName())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -0,0 +1,234 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.Image;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts NV21 camera frames to the layout the encoder expects, in a single pass straight into the codec input buffer
+ * or the planes of its input image.
+ * The chroma plane is processed 8 bytes at a time, rows are padded to the stride and slice height of the codec.
+ */
+
+public class YuvConverter {
+
+    public static final int FORMAT_NV12 = 0;
+    public static final int FORMAT_I420 = 1;
+    public static final int FORMAT_YV12 = 2;
+
+    private static final long EVEN_BYTES = 0x00FF00FF00FF00FFL;
+
+    /**
+     * Maps a MediaCodec color format to the converter target, -1 if the layout is not handled.
+     * COLOR_FormatYUV420Flexible, the only format of many recent encoders, is costed as I420, its input is written
+     * through the codec input image, see {@link #convert(NV21Frame, Image)}.
+     */
+    public static int getFormatForColorFormat(int colorFormat) {
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+                return FORMAT_NV12;
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible:
+                return FORMAT_I420;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Target for the input buffer of a codec configured with COLOR_FormatYUV420Flexible, used when it gives no input
+     * image: the layout of the color format in its input format after configure, else NV12 which most of them use.
+     * Such codecs usually report COLOR_FormatYUV420Flexible again, which tells nothing about the layout.
+     */
+    public static int getFormatForInputFormat(MediaFormat inputFormat) {
+        if (inputFormat != null && inputFormat.containsKey(MediaFormat.KEY_COLOR_FORMAT)) {
+            int colorFormat = inputFormat.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+            int format = getFormatForColorFormat(colorFormat);
+            if (format >= 0 && colorFormat != MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible) {
+                return format;
+            }
+        }
+        return FORMAT_NV12;
+    }
+
+    /**
+     * KEY_STRIDE or KEY_SLICE_HEIGHT of the input format of a configured codec, 0 if it does not report it,
+     * which {@link #convert(NV21Frame, ByteBuffer, int, int, int)} takes as tightly packed.
+     */
+    public static int getPlaneLayout(MediaFormat inputFormat, String key) {
+        return inputFormat != null && inputFormat.containsKey(key) ? inputFormat.getInteger(key) : 0;
+    }
+
+    /**
+     * Relative cost of converting NV21 to the target, lower is cheaper, Integer.MAX_VALUE if not supported.
+     * NV12 only swaps bytes in place while the planar targets also split the chroma plane in two.
+     */
+    public static int getConversionCost(int format) {
+        switch (format) {
+            case FORMAT_NV12:
+                return 1;
+            case FORMAT_I420:
+            case FORMAT_YV12:
+                return 2;
+            default:
+                return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Writes the NV21 frame to dst in the target format, starting at the position of dst.
+     * The position of dst is moved past the written picture.
+     *
+     * @return the number of bytes written
+     */
+    public static int convert(NV21Frame frame, ByteBuffer dst, int format) {
+        return convert(frame, dst, format, 0, 0);
+    }
+
+    /**
+     * Same as {@link #convert(NV21Frame, ByteBuffer, int)} for a codec which pads its rows to stride bytes and its
+     * luma plane to sliceHeight rows, e.g. 1080 lines aligned to 1088. Values below the frame size mean no padding.
+     *
+     * @return the number of bytes from the position of dst to the end of the last row written
+     */
+    public static int convert(NV21Frame frame, ByteBuffer dst, int format, int stride, int sliceHeight) {
+        return convert(frame.getData(), frame.getBuffer(), frame.getWidth(), frame.getHeight(), dst, format,
+                stride, sliceHeight);
+    }
+
+    /**
+     * @param src    the NV21 picture
+     * @param srcBuf a little endian ByteBuffer wrapping src, kept by the caller to avoid an allocation per frame
+     */
+    public static int convert(byte[] src, ByteBuffer srcBuf, int width, int height, ByteBuffer dst, int format,
+                              int stride, int sliceHeight) {
+        if (format != FORMAT_NV12 && format != FORMAT_I420 && format != FORMAT_YV12) {
+            throw new IllegalArgumentException("Unknown YUV format " + format);
+        }
+        stride = Math.max(stride, width);
+        sliceHeight = Math.max(sliceHeight, height);
+        int ySize = width * height;
+        int start = dst.position();
+        int chromaStart = start + stride * sliceHeight;
+        //without row padding each plane is written in one go
+        boolean isPacked = stride == width;
+        int yRows = isPacked ? 1 : height;
+        int chromaRows = isPacked ? 1 : height / 2;
+        int yLength = isPacked ? ySize : width;
+        int chromaLength = isPacked ? ySize / 2 : width;
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        for (int row = 0; row < yRows; row++) {
+            dst.position(start + row * stride);
+            dst.put(src, row * width, yLength);
+        }
+        int end;
+        if (format == FORMAT_NV12) {
+            for (int row = 0; row < chromaRows; row++) {
+                swapChroma(src, srcBuf, ySize + row * width, chromaLength, dst, chromaStart + row * stride);
+            }
+            end = chromaStart + stride * (height / 2 - 1) + width;
+        } else {
+            int chromaStride = stride / 2;
+            int secondPlane = chromaStart + chromaStride * (sliceHeight / 2);
+            int uOffset = format == FORMAT_I420 ? chromaStart : secondPlane;
+            int vOffset = format == FORMAT_I420 ? secondPlane : chromaStart;
+            for (int row = 0; row < chromaRows; row++) {
+                splitChroma(src, srcBuf, ySize + row * width, chromaLength, dst,
+                        vOffset + row * chromaStride, uOffset + row * chromaStride);
+            }
+            end = secondPlane + chromaStride * (height / 2 - 1) + width / 2;
+        }
+        dst.order(order);
+        dst.position(end);
+        return end - start;
+    }
+
+    /**
+     * Writes the NV21 frame to the planes of a codec input image, which is how COLOR_FormatYUV420Flexible codecs
+     * tell their actual layout, interleaved chroma having a pixel stride of 2.
+     *
+     * @return the number of bytes of the picture
+     */
+    public static int convert(NV21Frame frame, Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        return convert(frame, planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(),
+                planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride());
+    }
+
+    /**
+     * Writes the NV21 frame to YUV_420_888 planes, U and V share their row and pixel strides.
+     */
+    public static int convert(NV21Frame frame, ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                              int chromaRowStride, int chromaPixelStride) {
+        byte[] src = frame.getData();
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int ySize = width * height;
+        for (int row = 0; row < height; row++) {
+            y.position(row * yRowStride);
+            y.put(src, row * width, width);
+        }
+        int chromaWidth = width / 2;
+        for (int row = 0; row < height / 2; row++) {
+            int srcOffset = ySize + row * width;
+            int dstOffset = row * chromaRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                int dstIndex = dstOffset + col * chromaPixelStride;
+                v.put(dstIndex, src[srcOffset + 2 * col]);
+                u.put(dstIndex, src[srcOffset + 2 * col + 1]);
+            }
+        }
+        return ySize * 3 / 2;
+    }
+
+    /**
+     * VUVU... to UVUV..., each long holds four pairs which are swapped at once.
+     */
+    private static void swapChroma(byte[] src, ByteBuffer srcBuf, int srcOffset, int length, ByteBuffer dst, int dstOffset) {
+        int words = length & ~7;
+        for (int i = 0; i < words; i += 8) {
+            long vu = srcBuf.getLong(srcOffset + i);
+            dst.putLong(dstOffset + i, ((vu & EVEN_BYTES) << 8) | ((vu >>> 8) & EVEN_BYTES));
+        }
+        for (int i = words; i < length; i += 2) {
+            dst.put(dstOffset + i, src[srcOffset + i + 1]);
+            dst.put(dstOffset + i + 1, src[srcOffset + i]);
+        }
+    }
+
+    /**
+     * VUVU... to a V plane and a U plane, each long gives four bytes to each plane.
+     */
+    private static void splitChroma(byte[] src, ByteBuffer srcBuf, int srcOffset, int length, ByteBuffer dst,
+                                    int vOffset, int uOffset) {
+        int words = length & ~7;
+        for (int i = 0; i < words; i += 8) {
+            long vu = srcBuf.getLong(srcOffset + i);
+            int half = i >> 1;
+            dst.putInt(vOffset + half, packEvenBytes(vu));
+            dst.putInt(uOffset + half, packEvenBytes(vu >>> 8));
+        }
+        for (int i = words; i < length; i += 2) {
+            int half = i >> 1;
+            dst.put(vOffset + half, src[srcOffset + i]);
+            dst.put(uOffset + half, src[srcOffset + i + 1]);
+        }
+    }
+
+    /**
+     * Gathers bytes 0, 2, 4 and 6 of a little endian long into an int.
+     */
+    private static int packEvenBytes(long value) {
+        long x = value & EVEN_BYTES;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) x;
+    }
+
+}
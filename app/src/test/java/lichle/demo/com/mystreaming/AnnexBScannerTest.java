@@ -0,0 +1,115 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks NAL boundaries for mixed start code lengths. The scanner throughput is a {@link Benchmark}.
+ */
+public class AnnexBScannerTest {
+
+    @Test
+    public void scan_splitsAccessUnit() {
+        // AUD with a 4 bytes start code, SEI and two slices with 3 bytes start codes, trailing zeros after the SEI
+        byte[] au = {
+                0, 0, 0, 1, 0x09, (byte) 0xF0,
+                0, 0, 1, 0x06, 0x05, 0x01, 0x02, 0, 0,
+                0, 0, 1, 0x65, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, 0x00, 0x01,
+                0, 0, 1, 0x65, 0x12
+        };
+        ByteBuffer buffer = ByteBuffer.allocateDirect(au.length + 3);
+        buffer.position(3);
+        buffer.put(au);
+        AnnexBScanner scanner = new AnnexBScanner(1);
+
+        assertEquals(4, scanner.scan(buffer, 3, au.length));
+        assertNal(scanner, 0, 3 + 4, 2);
+        assertNal(scanner, 1, 3 + 9, 4);
+        assertNal(scanner, 2, 3 + 18, 10);
+        assertNal(scanner, 3, 3 + 31, 2);
+        assertEquals(0x65, buffer.get(scanner.getNalOffset(3)));
+    }
+
+    @Test
+    public void scan_findsStartCodesAtEveryAlignment() {
+        for (int shift = 0; shift < 16; shift++) {
+            byte[] data = new byte[40];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = 0x55;
+            }
+            data[shift] = 0;
+            data[shift + 1] = 0;
+            data[shift + 2] = 1;
+            data[shift + 20] = 0;
+            data[shift + 21] = 0;
+            data[shift + 22] = 1;
+            AnnexBScanner scanner = new AnnexBScanner();
+            assertEquals(2, scanner.scan(ByteBuffer.wrap(data), 0, data.length));
+            assertNal(scanner, 0, shift + 3, 17);
+            assertNal(scanner, 1, shift + 23, data.length - shift - 23);
+        }
+    }
+
+    @Test
+    public void scan_ignoresBufferWithoutStartCode() {
+        byte[] data = {0, 0, 2, 0, 0, 0, 0x65, 1};
+        assertEquals(0, new AnnexBScanner().scan(ByteBuffer.wrap(data), 0, data.length));
+        assertEquals(-1, AnnexBScanner.findStartCode(ByteBuffer.wrap(data), 0, data.length));
+    }
+
+    @Test
+    public void scan_findsEveryStartCodeInRandomSliceData() {
+        ByteBuffer buffer = randomSliceData();
+        AnnexBScanner scanner = new AnnexBScanner();
+        assertEquals(64, scanner.scan(buffer, 0, buffer.capacity()));
+        for (int i = 0; i < 64; i++) {
+            assertEquals(i * 64 * 1024 + 3, scanner.getNalOffset(i));
+        }
+    }
+
+    @Test
+    public void throughput() {
+        Benchmark.assumeEnabled();
+        ByteBuffer buffer = randomSliceData();
+        int length = buffer.capacity();
+        AnnexBScanner scanner = new AnnexBScanner();
+        for (int i = 0; i < 50; i++) {
+            scanner.scan(buffer, 0, length);
+        }
+        int iterations = 50;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            scanner.scan(buffer, 0, length);
+        }
+        long perScanNs = (System.nanoTime() - start) / iterations;
+        Benchmark.report(String.format("AnnexBScanner %d NALs in 4 MB: %.3f ms/scan, %.0f MB/s",
+                scanner.getNalCount(), perScanNs / 1e6, length * 1e3 / perScanNs));
+    }
+
+    /**
+     * 4 MB of random bytes with a start code every 64 KB.
+     */
+    private static ByteBuffer randomSliceData() {
+        // random slice data has a zero byte in about 3% of the words, like entropy coded video
+        byte[] data = new byte[4 * 1024 * 1024];
+        new Random(7).nextBytes(data);
+        for (int i = 0; i + 3 < data.length; i += 64 * 1024) {
+            data[i] = 0;
+            data[i + 1] = 0;
+            data[i + 2] = 1;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        return buffer;
+    }
+
+    private static void assertNal(AnnexBScanner scanner, int index, int offset, int length) {
+        assertEquals("offset of NAL " + index, offset, scanner.getNalOffset(index));
+        assertEquals("length of NAL " + index, length, scanner.getNalLength(index));
+    }
+
+}
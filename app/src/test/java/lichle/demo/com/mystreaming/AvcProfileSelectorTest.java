@@ -0,0 +1,57 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AvcProfileSelectorTest {
+
+    private static final int[] HIGH_AND_MAIN_41 = {
+            CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCLevel41,
+            CodecProfileLevel.AVCProfileMain, CodecProfileLevel.AVCLevel41,
+            CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel41};
+
+    @Test
+    public void requiredLevel_followsFrameSizeRateAndBitrate() {
+        assertEquals(CodecProfileLevel.AVCLevel3,
+                AvcProfileSelector.getRequiredLevel(CodecProfileLevel.AVCProfileMain, 640, 480, 30, 2000000));
+        // 8160 macroblocks at 30 fps
+        assertEquals(CodecProfileLevel.AVCLevel4,
+                AvcProfileSelector.getRequiredLevel(CodecProfileLevel.AVCProfileMain, 1920, 1080, 30, 8000000));
+        // 24 Mbit/s is above level 4 for Main, not for High
+        assertEquals(CodecProfileLevel.AVCLevel41,
+                AvcProfileSelector.getRequiredLevel(CodecProfileLevel.AVCProfileMain, 1920, 1080, 30, 24000000));
+        assertEquals(CodecProfileLevel.AVCLevel4,
+                AvcProfileSelector.getRequiredLevel(CodecProfileLevel.AVCProfileHigh, 1920, 1080, 30, 24000000));
+        assertEquals(-1,
+                AvcProfileSelector.getRequiredLevel(CodecProfileLevel.AVCProfileHigh, 7680, 4320, 60, 8000000));
+    }
+
+    @Test
+    public void select_takesTheBestAllowedProfile() {
+        assertArrayEquals(new int[]{CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel3},
+                AvcProfileSelector.select(HIGH_AND_MAIN_41, AvcProfileSelector.DEFAULT_PROFILES,
+                        640, 480, 30, 2000000));
+        // a server which can not take High
+        int[] noHigh = {CodecProfileLevel.AVCProfileMain, CodecProfileLevel.AVCProfileBaseline};
+        assertArrayEquals(new int[]{CodecProfileLevel.AVCProfileMain, CodecProfileLevel.AVCLevel3},
+                AvcProfileSelector.select(HIGH_AND_MAIN_41, noHigh, 640, 480, 30, 2000000));
+    }
+
+    @Test
+    public void select_skipsProfilesWithoutALevelHighEnough() {
+        int[] profileLevels = {
+                CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCLevel31,
+                CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel22};
+        assertArrayEquals(new int[]{CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCLevel3},
+                AvcProfileSelector.select(profileLevels, AvcProfileSelector.DEFAULT_PROFILES, 640, 480, 30, 2000000));
+        assertNull(AvcProfileSelector.select(profileLevels, AvcProfileSelector.DEFAULT_PROFILES,
+                1920, 1080, 30, 2000000));
+        assertNull(AvcProfileSelector.select(new int[0], AvcProfileSelector.DEFAULT_PROFILES, 640, 480, 30, 2000000));
+    }
+
+}
@@ -0,0 +1,26 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Assume;
+
+/**
+ * Benchmarks are skipped in the regular unit test run and only measure and print when asked for:
+ * ./gradlew testDebugUnitTest -Pbenchmark
+ */
+public class Benchmark {
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("benchmark");
+    }
+
+    /**
+     * Skips the calling test unless benchmarks were asked for.
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("benchmarks run with -Pbenchmark", isEnabled());
+    }
+
+    public static void report(String result) {
+        System.out.println(result);
+    }
+
+}
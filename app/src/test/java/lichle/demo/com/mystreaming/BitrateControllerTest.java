@@ -0,0 +1,196 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays link traces against the controller in simulated time: a bottleneck with a drop-tail queue, random loss,
+ * receiver reports every second and a controller update every {@link Constants#ABR_INTERVAL_MS}.
+ */
+public class BitrateControllerTest {
+
+    private static final int MIN = 250000;
+    private static final int MAX = 2000000;
+
+    @Test
+    public void capacityDrop_convergesBelowTheLinkAndRecovers() {
+        // 2.5 Mbit/s, 800 kbit/s for 30 s, then 2.5 Mbit/s again
+        Trace trace = new Trace(new long[]{0, 20000, 50000}, new int[]{2500000, 800000, 2500000},
+                new float[]{0, 0, 0});
+        Simulation simulation = new Simulation(trace, 42).run(110000);
+
+        float lowAverage = simulation.averageBitRate(40000, 50000);
+        assertTrue("average " + lowAverage, lowAverage < 800000 * 1.1f && lowAverage > 400000);
+        assertTrue(simulation.lossRate(40000, 50000) < 0.05f);
+        // a full queue of the link would add 600 ms
+        long maxRttMs = simulation.maxRttMs(40000, 50000);
+        assertTrue("max rtt " + maxRttMs, maxRttMs < 500);
+        assertEquals(MAX, simulation.bitRateAt(109999));
+    }
+
+    @Test
+    public void randomLoss_fallsToTheFloorAndClimbsBack() {
+        Trace trace = new Trace(new long[]{0, 10000, 40000}, new int[]{10000000, 10000000, 10000000},
+                new float[]{0, 0.3f, 0});
+        Simulation simulation = new Simulation(trace, 7).run(70000);
+        for (int bitRate : simulation.mBitRates) {
+            assertTrue(bitRate >= MIN && bitRate <= MAX);
+        }
+        assertEquals(MIN, simulation.bitRateAt(39999));
+        assertEquals(MAX, simulation.bitRateAt(69999));
+    }
+
+    @Test
+    public void moderateLoss_holdsTheBitrate() {
+        BitrateController controller = new BitrateController(MIN, MAX, 1000000, 100000);
+        controller.update(0, 0.05f, 50, 0, 0);
+        for (int t = 500; t <= 10000; t += 500) {
+            assertEquals(1000000, controller.update(t, t % 1000 == 0 ? 0.05f : -1, 50, 0, 0));
+        }
+    }
+
+    @Test
+    public void sendQueueAndPacingDelay_cutTheBitrate() {
+        BitrateController controller = new BitrateController(MIN, MAX, 1000000, 100000);
+        assertEquals(850000, controller.update(0, -1, -1, BitrateController.QUEUE_DEPTH_HIGH + 1, 0));
+        // held until the lower bitrate had time to show
+        assertEquals(850000, controller.update(500, -1, -1, BitrateController.QUEUE_DEPTH_HIGH + 1, 0));
+        assertEquals(722500, controller.update(1000, -1, -1, 0, BitrateController.PACING_DELAY_HIGH_MS + 1));
+        assertEquals(772500, controller.update(1500, -1, -1, 0, 0));
+        assertEquals(2, controller.getDecreaseCount());
+    }
+
+    @Test
+    public void sameTrace_sameBitrates() {
+        Trace trace = new Trace(new long[]{0, 5000, 15000}, new int[]{3000000, 600000, 3000000},
+                new float[]{0.01f, 0.05f, 0});
+        int[] first = new Simulation(trace, 1).run(30000).mBitRates;
+        int[] second = new Simulation(trace, 1).run(30000).mBitRates;
+        assertArrayEquals(first, second);
+    }
+
+    /**
+     * Link capacity and random loss, each segment starts at its time.
+     */
+    private static class Trace {
+        final long[] mStartMs;
+        final int[] mCapacity;
+        final float[] mLossRate;
+
+        Trace(long[] startMs, int[] capacity, float[] lossRate) {
+            mStartMs = startMs;
+            mCapacity = capacity;
+            mLossRate = lossRate;
+        }
+
+        int segment(long timeMs) {
+            int i = Arrays.binarySearch(mStartMs, timeMs);
+            return i >= 0 ? i : -i - 2;
+        }
+    }
+
+    private static class Simulation {
+        static final int STEP_MS = 10;
+        static final int PACKET_SIZE = 1200;
+        static final long BASE_RTT_MS = 50;
+        static final int QUEUE_LIMIT_BYTES = 60000;
+        static final long REPORT_INTERVAL_MS = 1000;
+
+        final Trace mTrace;
+        final Random mRandom;
+        final BitrateController mController = new BitrateController(MIN, MAX, 1000000, 100000);
+        int[] mBitRates;
+        long[] mRttMs;
+        int[] mSent, mLost;
+
+        Simulation(Trace trace, long seed) {
+            mTrace = trace;
+            mRandom = new Random(seed);
+        }
+
+        Simulation run(long durationMs) {
+            int steps = (int) (durationMs / STEP_MS);
+            mBitRates = new int[steps];
+            mRttMs = new long[steps];
+            mSent = new int[steps];
+            mLost = new int[steps];
+            double queueBytes = 0;
+            double pendingBytes = 0;
+            int reportSent = 0, reportLost = 0;
+            long rttMs = -1;
+            float lossRate = -1;
+            for (int step = 0; step < steps; step++) {
+                long now = (long) step * STEP_MS;
+                int segment = mTrace.segment(now);
+                int capacity = mTrace.mCapacity[segment];
+                int bitRate = mController.getBitRate();
+
+                pendingBytes += bitRate / 8.0 * STEP_MS / 1000;
+                while (pendingBytes >= PACKET_SIZE) {
+                    pendingBytes -= PACKET_SIZE;
+                    mSent[step]++;
+                    if (queueBytes + PACKET_SIZE > QUEUE_LIMIT_BYTES
+                            || mRandom.nextFloat() < mTrace.mLossRate[segment]) {
+                        mLost[step]++;
+                    } else {
+                        queueBytes += PACKET_SIZE;
+                    }
+                }
+                queueBytes = Math.max(0, queueBytes - capacity / 8.0 * STEP_MS / 1000);
+                mRttMs[step] = BASE_RTT_MS + (long) (queueBytes * 8 * 1000 / capacity);
+                reportSent += mSent[step];
+                reportLost += mLost[step];
+
+                if (now % REPORT_INTERVAL_MS == REPORT_INTERVAL_MS - STEP_MS) {
+                    // fraction lost is sent in 1/256
+                    lossRate = reportSent > 0 ? (reportLost * 256 / reportSent) / 256f : 0;
+                    rttMs = mRttMs[step];
+                    reportSent = 0;
+                    reportLost = 0;
+                }
+                if (now % Constants.ABR_INTERVAL_MS == 0) {
+                    mController.update(now, lossRate, rttMs, 0, 0);
+                    lossRate = -1;
+                }
+                mBitRates[step] = mController.getBitRate();
+            }
+            return this;
+        }
+
+        int bitRateAt(long timeMs) {
+            return mBitRates[(int) (timeMs / STEP_MS)];
+        }
+
+        float averageBitRate(long fromMs, long toMs) {
+            long sum = 0;
+            for (int i = (int) (fromMs / STEP_MS); i < toMs / STEP_MS; i++) {
+                sum += mBitRates[i];
+            }
+            return sum / (float) ((toMs - fromMs) / STEP_MS);
+        }
+
+        float lossRate(long fromMs, long toMs) {
+            int sent = 0, lost = 0;
+            for (int i = (int) (fromMs / STEP_MS); i < toMs / STEP_MS; i++) {
+                sent += mSent[i];
+                lost += mLost[i];
+            }
+            return sent > 0 ? lost / (float) sent : 0;
+        }
+
+        long maxRttMs(long fromMs, long toMs) {
+            long max = 0;
+            for (int i = (int) (fromMs / STEP_MS); i < toMs / STEP_MS; i++) {
+                max = Math.max(max, mRttMs[i]);
+            }
+            return max;
+        }
+    }
+
+}
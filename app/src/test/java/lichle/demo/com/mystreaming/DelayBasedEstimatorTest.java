@@ -0,0 +1,141 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the estimator against an emulated bottleneck, first in simulated time, then end to end over loopback with
+ * {@link FeedbackReceiver} as the server.
+ */
+public class DelayBasedEstimatorTest {
+
+    private static final int MIN = 100000;
+    private static final int MAX = 5000000;
+    private static final int PACKET_SIZE = 1200;
+
+    @Test
+    public void bottleneck_targetSettlesNearTheCapacity() {
+        DelayBasedEstimator estimator = new DelayBasedEstimator(MIN, MAX, 2000000);
+        simulate(estimator, 1000000, 0, 30000000);
+        assertTrue(estimator.getOveruseCount() > 0);
+        int target = estimator.getTargetBitRate();
+        assertTrue("target " + target, target > 600000 && target < 1200000);
+    }
+
+    @Test
+    public void moreCapacity_targetGrows() {
+        DelayBasedEstimator estimator = new DelayBasedEstimator(MIN, MAX, 500000);
+        long nowUs = simulate(estimator, 600000, 0, 20000000);
+        int before = estimator.getTargetBitRate();
+        simulate(estimator, 3000000, nowUs, 20000000);
+        int after = estimator.getTargetBitRate();
+        assertTrue(before + " -> " + after, after > before * 1.5);
+        assertTrue(after < 3000000 * 1.2);
+    }
+
+    @Test
+    public void unknownSequenceNumbers_areIgnored() {
+        DelayBasedEstimator estimator = new DelayBasedEstimator(MIN, MAX, 1000000);
+        TransportFeedback feedback = new TransportFeedback();
+        byte[] data = FeedbackReceiver.buildFeedback(1, 2, 100, new long[]{1000, 50000, 900000}, 0);
+        feedback.parse(data, 12, data.length);
+        estimator.onFeedback(feedback, 1000000);
+        assertEquals(-1, estimator.getAckedBitRate());
+        assertEquals(TrendlineEstimator.NORMAL, estimator.getState());
+    }
+
+    @Test
+    public void loopback_targetFollowsTheBottleneck() throws Exception {
+        int capacity = 800000;
+        RtpSocket socket = new RtpSocket();
+        socket.setSSRC(0x11223344);
+        socket.setClockFrequency(Constants.CLOCK_VIDEO_FREQUENCY);
+        socket.setBitRate(2000000);
+        socket.setTransportWideCc(true);
+        FeedbackReceiver receiver = new FeedbackReceiver(capacity, socket.getRtcpPort());
+        receiver.start();
+        try {
+            socket.setDestination("127.0.0.1", receiver.getPort(), receiver.getPort() + 1);
+            DelayBasedEstimator estimator = socket.getDelayBasedEstimator();
+            long startNs = System.nanoTime();
+            long nextSendNs = startNs;
+            // the "encoder" follows the target
+            while (System.nanoTime() - startNs < 8000000000L) {
+                long nowNs = System.nanoTime();
+                if (nowNs >= nextSendNs) {
+                    byte[] buffer = socket.requestBuffer();
+                    int headerLength = socket.getHeaderLength();
+                    assertEquals(Constants.RTP_HEADER_LENGTH + Constants.RTP_EXTENSION_LENGTH, headerLength);
+                    buffer[headerLength] = 1;
+                    socket.updateTimestamp(nowNs);
+                    socket.commitBuffer(PACKET_SIZE);
+                    nextSendNs = Math.max(nextSendNs, nowNs - 10000000L)
+                            + PACKET_SIZE * 8L * 1000000000L / estimator.getTargetBitRate();
+                } else {
+                    Thread.sleep(1);
+                }
+            }
+            int target = estimator.getTargetBitRate();
+            assertTrue(receiver.getReceivedPackets() > 100);
+            assertTrue(socket.getRtcpReceiver().getTransportFeedbackCount() > 10);
+            assertTrue("overuses " + estimator.getOveruseCount(), estimator.getOveruseCount() > 0);
+            assertTrue("target " + target, target > capacity * 0.5 && target < capacity * 1.3);
+        } finally {
+            receiver.stop();
+            socket.reset(false);
+            socket.close();
+        }
+    }
+
+    /**
+     * Sends packets at the target rate through a bottleneck with a 20 ms propagation delay and feeds back the
+     * arrival times every 50 ms.
+     *
+     * @return the time the simulation ended
+     */
+    private static long simulate(DelayBasedEstimator estimator, int capacity, long startUs, long durationUs) {
+        TransportFeedback feedback = new TransportFeedback();
+        long[] arrivalUs = new long[4096];
+        int sequence = (int) (startUs / 1000) & 0xFFFF;
+        int pending = 0, pendingBase = sequence;
+        long bottleneckFreeUs = startUs;
+        long nextSendUs = startUs;
+        long nextFeedbackUs = startUs + 50000;
+        int feedbackCount = 0;
+        long nowUs = startUs;
+        for (; nowUs < startUs + durationUs; nowUs += 1000) {
+            while (nextSendUs <= nowUs) {
+                estimator.onPacketSent(sequence, nextSendUs, PACKET_SIZE);
+                bottleneckFreeUs = Math.max(bottleneckFreeUs, nextSendUs) + PACKET_SIZE * 8L * 1000000 / capacity;
+                if (pending == 0) {
+                    pendingBase = sequence;
+                }
+                arrivalUs[pending++] = bottleneckFreeUs + 20000;
+                sequence = (sequence + 1) & 0xFFFF;
+                nextSendUs += PACKET_SIZE * 8L * 1000000 / estimator.getTargetBitRate();
+            }
+            if (nowUs >= nextFeedbackUs) {
+                nextFeedbackUs += 50000;
+                // the packets which arrived by now, the feedback takes another 20 ms back
+                int arrived = 0;
+                while (arrived < pending && arrivalUs[arrived] <= nowUs - 20000) {
+                    arrived++;
+                }
+                if (arrived > 0) {
+                    long[] reported = new long[arrived];
+                    System.arraycopy(arrivalUs, 0, reported, 0, arrived);
+                    byte[] data = FeedbackReceiver.buildFeedback(1, 2, pendingBase, reported, feedbackCount++);
+                    feedback.parse(data, 12, data.length);
+                    estimator.onFeedback(feedback, nowUs);
+                    System.arraycopy(arrivalUs, arrived, arrivalUs, 0, pending - arrived);
+                    pending -= arrived;
+                    pendingBase = (pendingBase + arrived) & 0xFFFF;
+                }
+            }
+        }
+        return nowUs;
+    }
+
+}
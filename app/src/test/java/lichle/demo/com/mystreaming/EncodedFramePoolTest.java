@@ -0,0 +1,113 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EncodedFramePoolTest {
+
+    //AUD, then an IDR slice of 6 bytes, behind 8 bytes the codec buffer starts with
+    private static final byte[] OUTPUT = {
+            9, 9, 9, 9, 9, 9, 9, 9,
+            0, 0, 0, 1, 0x09, (byte) 0xF0,
+            0, 0, 1, 0x65, 1, 2, 3, 4, 5};
+
+    @Test
+    public void copyOf_copiesTheDataOnceWithItsNalUnits() {
+        EncodedFramePool pool = new EncodedFramePool(2, 64);
+        EncodedFrame frame = pool.copyOf(codecBuffer(), info(MediaCodec.BUFFER_FLAG_KEY_FRAME));
+
+        assertEquals(OUTPUT.length - 8, frame.getSize());
+        assertEquals(0, frame.getInfo().offset);
+        assertEquals(0, frame.getBuffer().get(0));
+        assertTrue(frame.getBuffer().isDirect());
+        assertEquals(40000, frame.getPresentationTimeUs());
+        assertTrue(frame.isKeyFrame());
+        assertFalse(frame.isCodecConfig());
+        AnnexBScanner nals = frame.getNals();
+        assertEquals(2, nals.getNalCount());
+        assertEquals(4, nals.getNalOffset(0));
+        assertEquals(2, nals.getNalLength(0));
+        assertEquals(0x65, frame.getBuffer().get(nals.getNalOffset(1)));
+        assertEquals(6, nals.getNalLength(1));
+        assertEquals(1, pool.getHitCount());
+    }
+
+    @Test
+    public void frame_goesBackAfterTheLastConsumerReleasedIt() {
+        EncodedFramePool pool = new EncodedFramePool(1, 64);
+        EncodedFrame frame = pool.copyOf(codecBuffer(), info(0));
+        assertEquals(1, pool.getInUseCount());
+        // a recorder shares the frame with the packetizer
+        frame.retain();
+        frame.release();
+        assertEquals(0, pool.getFreeCount());
+        frame.release();
+        assertEquals(1, pool.getFreeCount());
+        try {
+            frame.release();
+            fail("released twice");
+        } catch (IllegalStateException expected) {
+            // over-release
+        }
+    }
+
+    @Test
+    public void exhaustedPool_countsMisses() {
+        EncodedFramePool pool = new EncodedFramePool(1, 64);
+        EncodedFrame frame = pool.copyOf(codecBuffer(), info(0));
+        assertNull(pool.copyOf(codecBuffer(), info(0)));
+        assertEquals(1, pool.getMissCount());
+        frame.release();
+        EncodedFrame again = pool.copyOf(codecBuffer(), info(0));
+        assertSame(frame, again);
+        again.release();
+    }
+
+    @Test
+    public void smallBuffer_grows() {
+        EncodedFramePool pool = new EncodedFramePool(1, 4);
+        EncodedFrame frame = pool.copyOf(codecBuffer(), info(0));
+        assertEquals(1, pool.getGrowCount());
+        assertEquals(OUTPUT.length - 8, frame.getSize());
+        assertEquals(5, frame.getBuffer().get(frame.getSize() - 1));
+        frame.release();
+        pool.copyOf(codecBuffer(), info(0)).release();
+        assertEquals(1, pool.getGrowCount());
+    }
+
+    @Test
+    public void frameHeldTooLong_isReportedAsLeaked() throws Exception {
+        EncodedFramePool pool = new EncodedFramePool(2, 64);
+        EncodedFrame frame = pool.copyOf(codecBuffer(), info(0));
+        Thread.sleep(5);
+        assertEquals(0, pool.getLeakedCount(1000));
+        assertEquals(1, pool.getLeakedCount(1));
+        frame.release();
+        assertEquals(0, pool.getLeakedCount(1));
+    }
+
+    private static ByteBuffer codecBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT.length);
+        buffer.put(OUTPUT);
+        // the codec leaves position and limit anywhere
+        buffer.position(3);
+        return buffer;
+    }
+
+    private static MediaCodec.BufferInfo info(int flags) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(8, OUTPUT.length - 8, 40000, flags);
+        return info;
+    }
+
+}
@@ -0,0 +1,117 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes probe results to a cache file and reads them back, without probing any codec.
+ */
+public class EncoderProbeTest {
+
+    private static final String MIME = Constants.MIME_TYPE;
+
+    private File mCacheFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheFile = File.createTempFile("encoders", ".properties");
+        mCacheFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mCacheFile.delete();
+    }
+
+    @Test
+    public void cache_readsBackWhatWasWritten() {
+        new EncoderProbe(mCacheFile, "build-1").putEncoders(MIME, 1280, 720, Arrays.asList(
+                new EncoderInfo("OMX.vendor.avc.encoder", new int[]{21, 2135033992}, new int[]{8, 512, 1, 256},
+                        21, 25000, 120.5f),
+                new EncoderInfo("c2.android.avc.encoder", new int[]{19}, new int[0], 19, -1, 0)));
+
+        EncoderProbe probe = new EncoderProbe(mCacheFile, "build-1");
+        List<EncoderInfo> encoders = probe.getCachedEncoders(MIME, 1280, 720);
+        assertEquals(2, encoders.size());
+        EncoderInfo info = encoders.get(0);
+        assertEquals("OMX.vendor.avc.encoder", info.getName());
+        assertArrayEquals(new int[]{21, 2135033992}, info.getColorFormats());
+        assertArrayEquals(new int[]{8, 512, 1, 256}, info.getProfileLevels());
+        assertEquals(21, info.getColorFormat());
+        assertEquals(25000, info.getLatencyUs());
+        assertEquals(120.5f, info.getFps(), 0);
+        info = encoders.get(1);
+        assertEquals(0, info.getProfileLevels().length);
+        assertFalse(info.isUsable());
+        // other sizes and mime types are probed on their own
+        assertNull(probe.getCachedEncoders(MIME, 640, 480));
+        assertNull(probe.getCachedEncoders(Constants.MIME_TYPE_HEVC, 1280, 720));
+        assertEquals("OMX.vendor.avc.encoder", EncoderProbe.selectBest(encoders, 30).getName());
+    }
+
+    @Test
+    public void cache_isDroppedOnAnotherBuild() {
+        List<EncoderInfo> encoders = Arrays.asList(
+                new EncoderInfo("OMX.vendor.avc.encoder", new int[]{21}, new int[0], 21, 25000, 120));
+        new EncoderProbe(mCacheFile, "build-1").putEncoders(MIME, 1280, 720, encoders);
+        assertEquals(1, new EncoderProbe(mCacheFile, "build-1").getCachedEncoders(MIME, 1280, 720).size());
+
+        EncoderProbe updated = new EncoderProbe(mCacheFile, "build-2");
+        assertNull(updated.getCachedEncoders(MIME, 1280, 720));
+        updated.putEncoders(MIME, 640, 480, encoders);
+        // the file now belongs to the new build
+        assertNull(new EncoderProbe(mCacheFile, "build-1").getCachedEncoders(MIME, 640, 480));
+        assertEquals(1, new EncoderProbe(mCacheFile, "build-2").getCachedEncoders(MIME, 640, 480).size());
+    }
+
+    @Test
+    public void failedEncoder_isOnlyKeptForTheSession() {
+        EncoderProbe probe = new EncoderProbe(mCacheFile, "build-1");
+        // the hardware encoder was busy, the software one was measured
+        List<EncoderInfo> encoders = Arrays.asList(
+                new EncoderInfo("OMX.vendor.avc.encoder", new int[]{21}, new int[0], 21, -1, 0),
+                new EncoderInfo("c2.android.avc.encoder", new int[]{19}, new int[0], 19, 40000, 45));
+        assertFalse(EncoderProbe.isComplete(encoders));
+        probe.keepResults(MIME, 1280, 720, encoders);
+        assertEquals(2, probe.getCachedEncoders(MIME, 1280, 720).size());
+        assertNull(new EncoderProbe(mCacheFile, "build-1").getCachedEncoders(MIME, 1280, 720));
+
+        // an encoder without a color format we can feed fails the same way on every start
+        List<EncoderInfo> complete = Arrays.asList(
+                new EncoderInfo("OMX.vendor.avc.encoder", new int[]{21}, new int[0], 21, 25000, 120),
+                new EncoderInfo("OMX.other.avc.encoder", new int[]{2130708361}, new int[0], -1, -1, 0));
+        assertTrue(EncoderProbe.isComplete(complete));
+        probe.keepResults(MIME, 640, 480, complete);
+        assertEquals(2, new EncoderProbe(mCacheFile, "build-1").getCachedEncoders(MIME, 640, 480).size());
+    }
+
+    @Test
+    public void softwareEncoders_areToldApartByTheirName() {
+        assertTrue(EncoderInfo.isHardware("OMX.qcom.video.encoder.hevc"));
+        assertTrue(EncoderInfo.isHardware("c2.exynos.hevc.encoder"));
+        assertFalse(EncoderInfo.isHardware("OMX.google.h264.encoder"));
+        assertFalse(EncoderInfo.isHardware("c2.android.hevc.encoder"));
+        assertFalse(EncoderInfo.isHardware("OMX.MTK.VIDEO.ENCODER.SW.AVC"));
+    }
+
+    @Test
+    public void corruptedCache_isProbedAgain() throws Exception {
+        FileOutputStream out = new FileOutputStream(mCacheFile);
+        out.write(("build=build-1\n" + MIME + ".1280x720.count=1\n" + MIME + ".1280x720.0.name=broken\n").getBytes());
+        out.close();
+        assertNull(new EncoderProbe(mCacheFile, "build-1").getCachedEncoders(MIME, 1280, 720));
+    }
+
+}
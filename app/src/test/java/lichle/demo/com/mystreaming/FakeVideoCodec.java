@@ -0,0 +1,217 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory codec for JVM tests. "Encoding" copies the first bytes of the input picture behind an Annex-B start code,
+ * after a configurable delay, and reports it either through the callback or through dequeueOutputBuffer.
+ */
+public class FakeVideoCodec implements IVideoCodec {
+
+    public static final int OUTPUT_SIZE = 16;
+
+    private final int mBufferCount;
+    private final long mEncodeDelayMs;
+    private final ByteBuffer[] mInputBuffers;
+    private final ByteBuffer[] mOutputBuffers;
+    private final long[] mOutputPts;
+    private final boolean[] mInputFree;
+    private final ArrayDeque<Integer> mReadyOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private Callback mCallback;
+    private volatile boolean mIsStarted;
+    public volatile int queuedInputCount, releasedOutputCount, flushCount, parameterUpdates;
+
+    public FakeVideoCodec(int bufferCount, long encodeDelayMs) {
+        mBufferCount = bufferCount;
+        mEncodeDelayMs = encodeDelayMs;
+        mInputBuffers = new ByteBuffer[bufferCount];
+        mOutputBuffers = new ByteBuffer[bufferCount];
+        mOutputPts = new long[bufferCount];
+        mInputFree = new boolean[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(1920 * 1080 * 3 / 2);
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(OUTPUT_SIZE);
+        }
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+    }
+
+    @Override
+    public synchronized void start() {
+        mIsStarted = true;
+        mReadyOutputs.clear();
+        mFreeOutputs.clear();
+        for (int i = 0; i < mBufferCount; i++) {
+            mInputFree[i] = true;
+            mFreeOutputs.add(i);
+            if (mCallback != null) {
+                final int index = i;
+                mInputFree[i] = false;
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onInputBufferAvailable(index);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        mIsStarted = false;
+    }
+
+    @Override
+    public synchronized void flush() {
+        flushCount++;
+        if (mCallback != null) {
+            // like MediaCodec, asynchronous mode needs start() again after a flush
+            mIsStarted = false;
+        } else {
+            start();
+        }
+    }
+
+    @Override
+    public void release() {
+        mIsStarted = false;
+        mExecutor.shutdownNow();
+        try {
+            mExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        for (int i = 0; i < mBufferCount; i++) {
+            if (mInputFree[i]) {
+                mInputFree[i] = false;
+                return i;
+            }
+        }
+        return MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public Image getInputImage(int index) {
+        return null;
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, int size, final long presentationTimeUs, int flags) {
+        queuedInputCount++;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sleep(mEncodeDelayMs);
+                encode(index, presentationTimeUs);
+            }
+        });
+    }
+
+    private void encode(final int inIndex, long pts) {
+        final int outIndex;
+        synchronized (this) {
+            if (!mIsStarted || mFreeOutputs.isEmpty()) {
+                return;
+            }
+            outIndex = mFreeOutputs.poll();
+            ByteBuffer out = mOutputBuffers[outIndex];
+            out.clear();
+            out.putInt(1);
+            out.put((byte) 0x65);
+            ByteBuffer in = mInputBuffers[inIndex].duplicate();
+            in.position(0);
+            in.limit(OUTPUT_SIZE - 5);
+            out.put(in);
+            out.flip();
+            mOutputPts[outIndex] = pts;
+            if (mCallback == null) {
+                mReadyOutputs.add(outIndex);
+                mInputFree[inIndex] = true;
+                return;
+            }
+        }
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 0;
+        info.size = OUTPUT_SIZE;
+        info.presentationTimeUs = pts;
+        info.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        mCallback.onOutputBufferAvailable(outIndex, info);
+        mCallback.onInputBufferAvailable(inIndex);
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        Integer index = mReadyOutputs.poll();
+        if (index == null) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        info.offset = 0;
+        info.size = OUTPUT_SIZE;
+        info.presentationTimeUs = mOutputPts[index];
+        info.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+        releasedOutputCount++;
+        mFreeOutputs.add(index);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return null;
+    }
+
+    @Override
+    public MediaFormat getInputFormat() {
+        return null;
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+        parameterUpdates++;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
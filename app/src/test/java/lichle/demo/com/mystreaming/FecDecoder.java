@@ -0,0 +1,139 @@
+package lichle.demo.com.mystreaming;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receiver side of {@link FecEncoder}: keeps the media and FEC packets of a stream and rebuilds a missing packet
+ * from any FEC packet missing only that one, until nothing more can be recovered.
+ */
+public class FecDecoder {
+
+    private final int mSsrc;
+    private final Map<Integer, byte[]> mMedia = new HashMap<>();
+    private final List<byte[]> mFec = new ArrayList<>();
+    private int mRecovered;
+
+    public FecDecoder(int mediaSsrc) {
+        mSsrc = mediaSsrc;
+    }
+
+    public void addMedia(byte[] packet, int length) {
+        mMedia.put(sequence(packet), copy(packet, length));
+    }
+
+    public void addFec(byte[] packet, int length) {
+        mFec.add(copy(packet, length));
+        recover();
+    }
+
+    public boolean has(int sequence) {
+        return mMedia.containsKey(sequence & 0xFFFF);
+    }
+
+    public byte[] get(int sequence) {
+        return mMedia.get(sequence & 0xFFFF);
+    }
+
+    public int getRecoveredCount() {
+        return mRecovered;
+    }
+
+    private void recover() {
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (byte[] fec : mFec) {
+                int[] protectedSequences = protectedSequences(fec);
+                int missing = -1, missingCount = 0;
+                for (int sequence : protectedSequences) {
+                    if (!mMedia.containsKey(sequence)) {
+                        missing = sequence;
+                        missingCount++;
+                    }
+                }
+                if (missingCount == 1) {
+                    mMedia.put(missing, rebuild(fec, protectedSequences, missing));
+                    mRecovered++;
+                    progress = true;
+                }
+            }
+        }
+    }
+
+    private byte[] rebuild(byte[] fec, int[] protectedSequences, int missing) {
+        int header = Constants.RTP_HEADER_LENGTH;
+        int flags = ((fec[header] & 0x3F) << 8) | (fec[header + 1] & 0xFF);
+        int timestamp = readInt(fec, header + 4);
+        int length = readShort(fec, header + 8);
+        int protectionLength = readShort(fec, header + FecEncoder.FEC_HEADER_LENGTH);
+        byte[] payload = new byte[protectionLength];
+        System.arraycopy(fec, FecEncoder.HEADER_LENGTH, payload, 0, protectionLength);
+        for (int sequence : protectedSequences) {
+            if (sequence == missing) {
+                continue;
+            }
+            byte[] media = mMedia.get(sequence);
+            flags ^= ((media[0] & 0x3F) << 8) | (media[1] & 0xFF);
+            timestamp ^= readInt(media, 4);
+            length ^= media.length - Constants.RTP_HEADER_LENGTH;
+            for (int i = 0; i < media.length - Constants.RTP_HEADER_LENGTH; i++) {
+                payload[i] ^= media[Constants.RTP_HEADER_LENGTH + i];
+            }
+        }
+        byte[] packet = new byte[Constants.RTP_HEADER_LENGTH + length];
+        packet[0] = (byte) (0x80 | (flags >> 8));
+        packet[1] = (byte) flags;
+        packet[2] = (byte) (missing >> 8);
+        packet[3] = (byte) missing;
+        writeInt(packet, 4, timestamp);
+        writeInt(packet, 8, mSsrc);
+        System.arraycopy(payload, 0, packet, Constants.RTP_HEADER_LENGTH, length);
+        return packet;
+    }
+
+    private static int[] protectedSequences(byte[] fec) {
+        int header = Constants.RTP_HEADER_LENGTH;
+        int base = readShort(fec, header + 2);
+        boolean longMask = (fec[header] & 0x40) != 0;
+        int ulp = header + FecEncoder.FEC_HEADER_LENGTH;
+        long mask = longMask ? ((long) readShort(fec, ulp + 2) << 32) | (readInt(fec, ulp + 4) & 0xFFFFFFFFL)
+                : (long) readShort(fec, ulp + 2) << 32;
+        int[] sequences = new int[Long.bitCount(mask)];
+        int count = 0;
+        for (int i = 0; i < FecEncoder.MAX_SPAN; i++) {
+            if ((mask & (1L << (FecEncoder.MAX_SPAN - 1 - i))) != 0) {
+                sequences[count++] = (base + i) & 0xFFFF;
+            }
+        }
+        return sequences;
+    }
+
+    private static int sequence(byte[] packet) {
+        return readShort(packet, 2);
+    }
+
+    private static byte[] copy(byte[] packet, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(packet, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (readShort(data, offset) << 16) | readShort(data, offset + 2);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+}
@@ -0,0 +1,184 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Encodes media packets, drops some of them and of the FEC packets, and counts what {@link FecDecoder} gets back.
+ */
+public class FecEncoderTest {
+
+    private static final int SSRC = 0x11223344;
+
+    @Test
+    public void rowParity_recoversOneLossPerRow() {
+        FecEncoder encoder = new FecEncoder(0x55667788, 100);
+        encoder.setGroups(4, 1);
+        FecDecoder decoder = new FecDecoder(SSRC);
+        Random random = new Random(3);
+        byte[][] media = new byte[8][];
+        for (int i = 0; i < 8; i++) {
+            media[i] = mediaPacket(65534 + i, random, i == 3);
+            int count = encoder.add(media[i], 0, media[i].length);
+            assertEquals(i % 4 == 3 ? 1 : 0, count);
+            if (i != 1 && i != 6) {
+                decoder.addMedia(media[i], media[i].length);
+            }
+            for (int j = 0; j < count; j++) {
+                byte[] fec = encoder.getPacket(j);
+                assertEquals(Constants.FEC_PAYLOAD_TYPE, fec[1] & 0x7F);
+                decoder.addFec(fec, encoder.getPacketLength(j));
+            }
+        }
+        assertEquals(2, decoder.getRecoveredCount());
+        // the marker, the payload and its length come back, across the sequence number wrap
+        assertArrayEquals(media[1], decoder.get(65535));
+        assertArrayEquals(media[6], decoder.get(4));
+        assertEquals(8, encoder.getMediaPacketCount());
+        assertEquals(2, encoder.getFecPacketCount());
+    }
+
+    @Test
+    public void columnParity_recoversABurst() {
+        FecEncoder encoder = new FecEncoder(0x55667788, 0);
+        encoder.setGroups(5, 4);
+        FecDecoder decoder = new FecDecoder(SSRC);
+        Random random = new Random(5);
+        byte[][] media = new byte[20][];
+        int fecCount = 0;
+        for (int i = 0; i < 20; i++) {
+            media[i] = mediaPacket(1000 + i, random, false);
+            int count = encoder.add(media[i], 0, media[i].length);
+            fecCount += count;
+            // a burst of one row
+            if (i < 7 || i > 11) {
+                decoder.addMedia(media[i], media[i].length);
+            }
+            for (int j = 0; j < count; j++) {
+                decoder.addFec(encoder.getPacket(j), encoder.getPacketLength(j));
+            }
+        }
+        // 4 rows and 5 columns
+        assertEquals(9, fecCount);
+        for (int i = 7; i <= 11; i++) {
+            assertArrayEquals(media[i], decoder.get(1000 + i));
+        }
+    }
+
+    @Test
+    public void randomLoss_recoveryRates() {
+        float plain = residualLoss(0, 1, 0.05f, 11);
+        float rows = residualLoss(10, 1, 0.05f, 11);
+        float rowsAndColumns = residualLoss(6, 6, 0.05f, 11);
+        assertTrue("without FEC " + plain, plain > 0.04f && plain < 0.06f);
+        assertTrue("rows of 10 " + rows, rows < 0.02f);
+        assertTrue("6x6 " + rowsAndColumns, rowsAndColumns < 0.005f);
+    }
+
+    @Test
+    public void setGroups_appliesFromTheNextBlock() {
+        FecEncoder encoder = new FecEncoder(1, 0);
+        encoder.setGroups(4, 1);
+        Random random = new Random(1);
+        int sequence = 0;
+        assertEquals(0, addPackets(encoder, random, sequence, 2));
+        sequence += 2;
+        encoder.setGroups(2, 1);
+        // the block of 4 is finished first
+        assertEquals(1, addPackets(encoder, random, sequence, 2));
+        sequence += 2;
+        assertEquals(2, addPackets(encoder, random, sequence, 4));
+        sequence += 4;
+        encoder.setGroups(0, 1);
+        // the block started after the last packet still has rows of 2
+        assertEquals(1, addPackets(encoder, random, sequence, 2));
+        sequence += 2;
+        assertEquals(0, addPackets(encoder, random, sequence, 10));
+    }
+
+    @Test
+    public void adaptToLoss_shortensTheGroupsWithTheLoss() {
+        FecEncoder encoder = new FecEncoder(1, 0);
+        encoder.adaptToLoss(0);
+        assertEquals(24, encoder.getRowLength());
+        assertEquals(1, encoder.getRows());
+        encoder.adaptToLoss(0.05f);
+        assertEquals(10, encoder.getRowLength());
+        assertEquals(1, encoder.getRows());
+        encoder.adaptToLoss(0.2f);
+        assertEquals(4, encoder.getRowLength());
+        assertEquals(4, encoder.getRows());
+    }
+
+    @Test
+    public void setGroups_rejectsGroupsBeyondTheMask() {
+        FecEncoder encoder = new FecEncoder(1, 0);
+        try {
+            encoder.setGroups(10, 6);
+            fail("column of 50 packets accepted");
+        } catch (IllegalArgumentException e) {
+            // 50 packets between the first and the last of a column
+        }
+        encoder.setGroups(8, 6);
+    }
+
+    /**
+     * Fraction of media packets lost after FEC recovery, with media and FEC packets lost at random.
+     */
+    private static float residualLoss(int rowLength, int rows, float lossRate, long seed) {
+        FecEncoder encoder = new FecEncoder(0x55667788, 0);
+        encoder.setGroups(rowLength, rows);
+        FecDecoder decoder = new FecDecoder(SSRC);
+        Random random = new Random(seed);
+        int packets = 6000;
+        for (int i = 0; i < packets; i++) {
+            byte[] media = mediaPacket(i, random, false);
+            int count = encoder.add(media, 0, media.length);
+            if (random.nextFloat() >= lossRate) {
+                decoder.addMedia(media, media.length);
+            }
+            for (int j = 0; j < count; j++) {
+                if (random.nextFloat() >= lossRate) {
+                    decoder.addFec(encoder.getPacket(j), encoder.getPacketLength(j));
+                }
+            }
+        }
+        int lost = 0;
+        for (int i = 0; i < packets; i++) {
+            if (!decoder.has(i)) {
+                lost++;
+            }
+        }
+        return lost / (float) packets;
+    }
+
+    private static int addPackets(FecEncoder encoder, Random random, int sequence, int count) {
+        int fec = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] media = mediaPacket(sequence + i, random, false);
+            fec += encoder.add(media, 0, media.length);
+        }
+        return fec;
+    }
+
+    private static byte[] mediaPacket(int sequence, Random random, boolean marker) {
+        byte[] packet = new byte[Constants.RTP_HEADER_LENGTH + 20 + random.nextInt(1000)];
+        random.nextBytes(packet);
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) (marker ? 0x80 | Constants.PAYLOAD_TYPE : Constants.PAYLOAD_TYPE);
+        packet[2] = (byte) (sequence >> 8);
+        packet[3] = (byte) sequence;
+        packet[8] = 0x11;
+        packet[9] = 0x22;
+        packet[10] = 0x33;
+        packet[11] = 0x44;
+        return packet;
+    }
+
+}
@@ -0,0 +1,221 @@
+package lichle.demo.com.mystreaming;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+/**
+ * Stand-in for a server sending transport-cc feedback: receives RTP on loopback, reads the transport-wide sequence
+ * number of each packet, delays it through an emulated bottleneck of a given capacity and reports the arrival times
+ * every {@link #FEEDBACK_INTERVAL_MS}.
+ */
+public class FeedbackReceiver implements Runnable {
+
+    public static final long FEEDBACK_INTERVAL_MS = 50;
+
+    private final DatagramSocket mSocket;
+    private final int mRtcpPort;
+    private volatile int mCapacity;
+    private Thread mThread;
+
+    //packets since the last feedback
+    private final int[] mSequences = new int[4096];
+    private final long[] mArrivalUs = new long[4096];
+    private int mCount;
+    private int mFeedbackCount;
+    //when the emulated bottleneck is done with the previous packet
+    private long mBottleneckFreeUs;
+    private volatile long mReceivedPackets;
+
+    public FeedbackReceiver(int capacity, int rtcpPort) throws SocketException {
+        mSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        mSocket.setSoTimeout((int) FEEDBACK_INTERVAL_MS);
+        mCapacity = capacity;
+        mRtcpPort = rtcpPort;
+    }
+
+    public int getPort() {
+        return mSocket.getLocalPort();
+    }
+
+    public long getReceivedPackets() {
+        return mReceivedPackets;
+    }
+
+    public void setCapacity(int capacity) {
+        mCapacity = capacity;
+    }
+
+    public void start() {
+        mThread = new Thread(this, "FeedbackReceiver");
+        mThread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        mThread.interrupt();
+        mThread.join();
+        mSocket.close();
+    }
+
+    @Override
+    public void run() {
+        DatagramPacket packet = new DatagramPacket(new byte[Constants.MTU], Constants.MTU);
+        long lastFeedbackUs = System.nanoTime() / 1000;
+        while (!Thread.interrupted()) {
+            try {
+                mSocket.receive(packet);
+                onPacket(packet.getData(), packet.getLength(), System.nanoTime() / 1000);
+            } catch (IOException e) {
+                // timeout, time to send the feedback
+            }
+            long nowUs = System.nanoTime() / 1000;
+            if (nowUs - lastFeedbackUs >= FEEDBACK_INTERVAL_MS * 1000 && mCount > 0) {
+                sendFeedback();
+                lastFeedbackUs = nowUs;
+            }
+        }
+    }
+
+    private void onPacket(byte[] data, int length, long nowUs) {
+        int sequence = readTransportSequence(data, length);
+        if (sequence < 0 || mCount == mSequences.length) {
+            return;
+        }
+        mReceivedPackets++;
+        mBottleneckFreeUs = Math.max(mBottleneckFreeUs, nowUs) + length * 8L * 1000000 / mCapacity;
+        mSequences[mCount] = sequence;
+        mArrivalUs[mCount] = mBottleneckFreeUs;
+        mCount++;
+    }
+
+    private void sendFeedback() {
+        // the packets arrive in order on loopback, sequence gaps are lost packets
+        int base = mSequences[0];
+        int count = ((mSequences[mCount - 1] - base) & 0xFFFF) + 1;
+        long[] arrivalUs = new long[count];
+        for (int i = 0; i < count; i++) {
+            arrivalUs[i] = -1;
+        }
+        for (int i = 0; i < mCount; i++) {
+            arrivalUs[(mSequences[i] - base) & 0xFFFF] = mArrivalUs[i];
+        }
+        byte[] feedback = buildFeedback(0x01020304, 0, base, arrivalUs, mFeedbackCount++);
+        try {
+            mSocket.send(new DatagramPacket(feedback, feedback.length, InetAddress.getLoopbackAddress(), mRtcpPort));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mCount = 0;
+    }
+
+    /**
+     * Transport sequence number of the one-byte header extension, -1 if the packet has none.
+     */
+    public static int readTransportSequence(byte[] data, int length) {
+        if ((data[0] & 0x10) == 0 || length < Constants.RTP_HEADER_LENGTH + 4) {
+            return -1;
+        }
+        int offset = Constants.RTP_HEADER_LENGTH;
+        if ((data[offset] & 0xFF) != 0xBE || (data[offset + 1] & 0xFF) != 0xDE) {
+            return -1;
+        }
+        int end = offset + 4 + 4 * (((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF));
+        offset += 4;
+        while (offset < end) {
+            int id = (data[offset] & 0xFF) >> 4;
+            int elementLength = (data[offset] & 0xF) + 1;
+            if (id == 0) {
+                offset++;
+                continue;
+            }
+            if (id == Constants.RTP_EXT_TRANSPORT_SEQUENCE_ID) {
+                return ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+            }
+            offset += 1 + elementLength;
+        }
+        return -1;
+    }
+
+    /**
+     * Builds a transport-cc RTPFB packet with two bit status vector chunks.
+     *
+     * @param arrivalUs arrival time of each packet from the base sequence number on, -1 if it was not received
+     */
+    public static byte[] buildFeedback(int senderSsrc, int mediaSsrc, int baseSequence, long[] arrivalUs,
+                                       int feedbackCount) {
+        int count = arrivalUs.length;
+        long firstUs = -1;
+        for (long us : arrivalUs) {
+            if (us >= 0) {
+                firstUs = us;
+                break;
+            }
+        }
+        long reference = firstUs >= 0 ? firstUs / TransportFeedback.REFERENCE_TIME_UNIT_US : 0;
+        int[] symbols = new int[count];
+        int[] deltas = new int[count];
+        long previousUs = reference * TransportFeedback.REFERENCE_TIME_UNIT_US;
+        int deltaBytes = 0;
+        for (int i = 0; i < count; i++) {
+            if (arrivalUs[i] < 0) {
+                symbols[i] = TransportFeedback.SYMBOL_NOT_RECEIVED;
+                continue;
+            }
+            // in delta units, rounded so the error does not add up
+            long units = (arrivalUs[i] - previousUs) / TransportFeedback.DELTA_UNIT_US;
+            previousUs += units * TransportFeedback.DELTA_UNIT_US;
+            deltas[i] = (int) units;
+            symbols[i] = units >= 0 && units <= 0xFF ? TransportFeedback.SYMBOL_SMALL_DELTA
+                    : TransportFeedback.SYMBOL_LARGE_DELTA;
+            deltaBytes += symbols[i];
+        }
+        int chunks = (count + 6) / 7;
+        int length = 12 + 8 + 2 * chunks + deltaBytes;
+        length = (length + 3) & ~3;
+        byte[] data = new byte[length];
+        data[0] = (byte) (0x80 | TransportFeedback.FMT);
+        data[1] = (byte) RtcpReceiver.PT_RTPFB;
+        writeShort(data, 2, length / 4 - 1);
+        writeInt(data, 4, senderSsrc);
+        writeInt(data, 8, mediaSsrc);
+        writeShort(data, 12, baseSequence);
+        writeShort(data, 14, count);
+        data[16] = (byte) (reference >> 16);
+        data[17] = (byte) (reference >> 8);
+        data[18] = (byte) reference;
+        data[19] = (byte) feedbackCount;
+        int offset = 20;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int value = 0xC000;
+            for (int i = 0; i < 7; i++) {
+                int index = chunk * 7 + i;
+                int symbol = index < count ? symbols[index] : 0;
+                value |= symbol << (2 * (6 - i));
+            }
+            writeShort(data, offset, value);
+            offset += 2;
+        }
+        for (int i = 0; i < count; i++) {
+            if (symbols[i] == TransportFeedback.SYMBOL_SMALL_DELTA) {
+                data[offset++] = (byte) deltas[i];
+            } else if (symbols[i] == TransportFeedback.SYMBOL_LARGE_DELTA) {
+                writeShort(data, offset, deltas[i]);
+                offset += 2;
+            }
+        }
+        return data;
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        writeShort(data, offset, value >> 16);
+        writeShort(data, offset + 2, value);
+    }
+
+}
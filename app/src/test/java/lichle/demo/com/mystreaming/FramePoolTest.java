@@ -0,0 +1,75 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class FramePoolTest {
+
+    @Test
+    public void acquire_handsOutPreallocatedFrames() {
+        FramePool pool = new FramePool(2, 4, 2);
+        NV21Frame frame = pool.acquire();
+        assertEquals(4 * 2 * 3 / 2, frame.getData().length);
+        assertEquals(frame.getData().length, frame.getSize());
+        assertEquals(1, frame.getRefCount());
+        assertSame(frame, pool.find(frame.getData()));
+        assertNull(pool.find(new byte[12]));
+        assertEquals(1, pool.getFreeCount());
+        assertEquals(1, pool.getHitCount());
+    }
+
+    @Test
+    public void frame_isRecycledAfterTheLastRelease() {
+        FramePool pool = new FramePool(1, 4, 2);
+        final int[] recycled = new int[1];
+        pool.setOnFrameRecycledListener(new FramePool.OnFrameRecycledListener() {
+            @Override
+            public void onFrameRecycled(FramePool pool) {
+                recycled[0]++;
+            }
+        });
+        NV21Frame frame = pool.acquire();
+        frame.retain();
+        frame.release();
+        assertEquals(0, pool.getFreeCount());
+        assertEquals(0, recycled[0]);
+        frame.release();
+        assertEquals(1, pool.getFreeCount());
+        assertEquals(1, recycled[0]);
+        assertSame(frame, pool.acquire());
+    }
+
+    @Test
+    public void doubleRelease_throws() {
+        FramePool pool = new FramePool(1, 4, 2);
+        NV21Frame frame = pool.acquire();
+        frame.release();
+        try {
+            frame.release();
+            fail("released twice");
+        } catch (IllegalStateException expected) {
+            // the frame is not recycled a second time
+        }
+        assertEquals(1, pool.getFreeCount());
+        assertEquals(0, frame.getRefCount());
+    }
+
+    @Test
+    public void exhaustedPool_countsMissesAndDrops() {
+        FramePool pool = new FramePool(1, 4, 2);
+        NV21Frame frame = pool.acquire();
+        assertNull(pool.acquire());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getDroppedCount());
+        pool.recordDropped(2);
+        assertEquals(3, pool.getDroppedCount());
+        frame.release();
+        pool.acquire().release();
+        assertEquals(2, pool.getHitCount());
+    }
+
+}
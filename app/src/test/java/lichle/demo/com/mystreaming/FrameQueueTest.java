@@ -0,0 +1,120 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Drop counts and ordering of each queue policy, and the pattern of the decimating queue on capture timestamps.
+ */
+public class FrameQueueTest {
+
+    private static final long MS = 1000000L;
+
+    private final FramePool mPool = new FramePool(16, 4, 2);
+
+    @Test
+    public void dropOldest_keepsTheNewestFramesInOrder() throws Exception {
+        FrameQueue queue = new DropOldestFrameQueue(2);
+        NV21Frame first = frame(1);
+        NV21Frame second = frame(2);
+        NV21Frame third = frame(3);
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(third);
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(0, first.getRefCount());
+        assertEquals(2, queue.size());
+        assertSame(second, queue.take());
+        assertSame(third, queue.take());
+        second.release();
+        third.release();
+        assertEquals(mPool.getPoolSize(), mPool.getFreeCount());
+    }
+
+    @Test
+    public void latestFrame_replacesTheWaitingFrame() throws Exception {
+        FrameQueue queue = new LatestFrameQueue();
+        for (int i = 1; i <= 5; i++) {
+            queue.offer(frame(i));
+        }
+        assertEquals(4, queue.getDroppedCount());
+        NV21Frame frame = queue.take();
+        assertEquals(5, frame.getTimestampNs() / MS);
+        assertEquals(0, queue.size());
+        frame.release();
+        assertEquals(mPool.getPoolSize(), mPool.getFreeCount());
+    }
+
+    @Test
+    public void clear_releasesEveryFrame() {
+        FrameQueue queue = new DropOldestFrameQueue(4);
+        queue.offer(frame(1));
+        queue.offer(frame(2));
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(mPool.getPoolSize(), mPool.getFreeCount());
+    }
+
+    @Test
+    public void decimate_halvesSixtyFps() throws Exception {
+        DecimatingFrameQueue queue = new DecimatingFrameQueue(30, new DropOldestFrameQueue(16));
+        StringBuilder pattern = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            offerAndRecord(queue, 1000 * MS + i * 1000 * MS / 60, pattern);
+        }
+        assertEquals("KDKDKDKD", pattern.toString());
+        assertEquals(4, queue.getDecimatedCount());
+        assertEquals(4, queue.getDroppedCount());
+        drain(queue);
+    }
+
+    @Test
+    public void decimate_keepsTwoOfThreeAtThirtyToTwenty() throws Exception {
+        DecimatingFrameQueue queue = new DecimatingFrameQueue(20, new DropOldestFrameQueue(16));
+        StringBuilder pattern = new StringBuilder();
+        for (int i = 0; i < 9; i++) {
+            offerAndRecord(queue, 1000 * MS + i * 1000 * MS / 30, pattern);
+        }
+        // on the 50 ms grid: 0 kept, 33 early, 67 and 100 kept, 133 early...
+        assertEquals("KDKKDKKDK", pattern.toString());
+        drain(queue);
+    }
+
+    @Test
+    public void decimate_resynchronizesAfterAGap() throws Exception {
+        DecimatingFrameQueue queue = new DecimatingFrameQueue(30, new DropOldestFrameQueue(16));
+        StringBuilder pattern = new StringBuilder();
+        offerAndRecord(queue, 1000 * MS, pattern);
+        // the camera stalled for half a second, the next frames are kept on a new grid
+        offerAndRecord(queue, 1500 * MS, pattern);
+        offerAndRecord(queue, 1510 * MS, pattern);
+        offerAndRecord(queue, 1534 * MS, pattern);
+        assertEquals("KKDK", pattern.toString());
+        drain(queue);
+    }
+
+    private NV21Frame frame(long timestampMs) {
+        NV21Frame frame = mPool.acquire();
+        frame.setTimestampNs(timestampMs * MS);
+        return frame;
+    }
+
+    private void offerAndRecord(DecimatingFrameQueue queue, long timestampNs, StringBuilder pattern) {
+        NV21Frame frame = mPool.acquire();
+        frame.setTimestampNs(timestampNs);
+        long decimated = queue.getDecimatedCount();
+        queue.offer(frame);
+        pattern.append(queue.getDecimatedCount() > decimated ? 'D' : 'K');
+    }
+
+    private void drain(FrameQueue queue) throws InterruptedException {
+        while (queue.size() > 0) {
+            queue.take().release();
+        }
+        assertEquals(mPool.getPoolSize(), mPool.getFreeCount());
+    }
+
+}
@@ -0,0 +1,166 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Packetizes access units over loopback and checks packet types, marker bits and aggregation statistics.
+ */
+public class H264PacketTest {
+
+    private DatagramSocket mReceiver;
+    private H264Packet mH264Packet;
+
+    @Before
+    public void setUp() throws Exception {
+        mReceiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        mReceiver.setSoTimeout(2000);
+        RtspClient rtspClient = new RtspClient();
+        rtspClient.setUrl("rtsp://127.0.0.1:554/live/test");
+        rtspClient.getVideoPorts()[0] = mReceiver.getLocalPort();
+        rtspClient.getVideoPorts()[1] = mReceiver.getLocalPort() + 1;
+        mH264Packet = new H264Packet(rtspClient);
+        mH264Packet.updateDestinationVideo();
+    }
+
+    @After
+    public void tearDown() {
+        mH264Packet.close();
+        mReceiver.close();
+    }
+
+    @Test
+    public void smallNals_areAggregatedInOneStapA() throws Exception {
+        mH264Packet.setAggregation(true);
+        mH264Packet.createAndSendPacket(accessUnit(2, 20, 100, 100, 100), bufferInfo(2 + 20 + 300 + 5 * 4));
+
+        DatagramPacket packet = receive();
+        byte[] data = packet.getData();
+        assertEquals(24, data[Constants.RTP_HEADER_LENGTH] & 0x1F);
+        assertTrue(isMarked(packet));
+        // 5 NAL units behind their 16 bits sizes
+        assertEquals(Constants.RTP_HEADER_LENGTH + 1 + 5 * 2 + 2 + 20 + 300, packet.getLength());
+        assertEquals(2, ((data[13] & 0xFF) << 8) | (data[14] & 0xFF));
+        assertEquals(0x09, data[15]);
+        assertEquals(5, mH264Packet.getNalCount());
+        assertEquals(1, mH264Packet.getPacketCount());
+        assertEquals(4, mH264Packet.getPacketsSaved());
+    }
+
+    @Test
+    public void withoutAggregation_markerIsOnLastNalOnly() throws Exception {
+        mH264Packet.setAggregation(false);
+        mH264Packet.createAndSendPacket(accessUnit(2, 20, 100), bufferInfo(2 + 20 + 100 + 3 * 4));
+
+        assertFalse(isMarked(receive()));
+        assertFalse(isMarked(receive()));
+        DatagramPacket last = receive();
+        assertEquals(1, last.getData()[Constants.RTP_HEADER_LENGTH] & 0x1F);
+        assertTrue(isMarked(last));
+        assertEquals(3, mH264Packet.getPacketCount());
+        assertEquals(0, mH264Packet.getPacketsSaved());
+    }
+
+    @Test
+    public void largeSlice_isFragmentedAfterAggregate() throws Exception {
+        mH264Packet.setAggregation(true);
+        mH264Packet.createAndSendPacket(accessUnit(2, 20, 3000), bufferInfo(2 + 20 + 3000 + 3 * 4));
+
+        DatagramPacket stapA = receive();
+        assertEquals(24, stapA.getData()[Constants.RTP_HEADER_LENGTH] & 0x1F);
+        assertFalse(isMarked(stapA));
+        int fragments = 0;
+        DatagramPacket packet;
+        do {
+            packet = receive();
+            assertEquals(28, packet.getData()[Constants.RTP_HEADER_LENGTH] & 0x1F);
+            fragments++;
+        } while (!isMarked(packet));
+        // end bit of the FU header
+        assertEquals(0x40, packet.getData()[Constants.RTP_HEADER_LENGTH + 1] & 0x40);
+        assertEquals(3, fragments);
+        assertEquals(1 + fragments, mH264Packet.getPacketCount());
+    }
+
+    @Test
+    public void pooledFrame_isSentWithItsNalBoundaries() throws Exception {
+        mH264Packet.setAggregation(false);
+        EncodedFramePool pool = new EncodedFramePool(1, 64);
+        EncodedFrame frame = pool.copyOf(accessUnit(2, 20, 100), bufferInfo(2 + 20 + 100 + 3 * 4));
+        mH264Packet.createAndSendPacket(frame);
+        frame.release();
+
+        assertEquals(0x09, receive().getData()[Constants.RTP_HEADER_LENGTH]);
+        assertEquals(0x06, receive().getData()[Constants.RTP_HEADER_LENGTH]);
+        DatagramPacket last = receive();
+        assertEquals(Constants.RTP_HEADER_LENGTH + 100, last.getLength());
+        assertTrue(isMarked(last));
+        assertEquals(3, mH264Packet.getNalCount());
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    /**
+     * Builds an access unit of an AUD followed by NAL units of the given sizes, all behind 4 bytes start codes.
+     * The second NAL unit is a SEI, the others are non-IDR slices.
+     */
+    private static ByteBuffer accessUnit(int... sizes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int n = 0; n < sizes.length; n++) {
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            int type = n == 0 ? 0x09 : n == 1 ? 0x06 : 0x41;
+            out.write(type);
+            for (int i = 1; i < sizes[n]; i++) {
+                out.write(0x80 | (i & 0x7F));
+            }
+        }
+        byte[] bytes = out.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void sdp_carriesTheProfileLevelIdOfTheSps() {
+        // High profile, no constraint flags, level 3.1
+        byte[] sps = {0x67, 0x64, 0x00, 0x1F, (byte) 0xAC};
+        assertEquals(0x64001F, H264Packet.getProfileLevelId(sps));
+        assertEquals(-1, H264Packet.getProfileLevelId(new byte[]{0x67, 0x64}));
+        String body = RtspClient.createVideoBody(1, "Z2QAH6w=", "aO4=", H264Packet.getProfileLevelId(sps));
+        assertTrue(body.contains("packetization-mode=1;profile-level-id=64001F;sprop-parameter-sets=Z2QAH6w=,aO4=;"));
+        assertFalse(RtspClient.createVideoBody(1, "Z2QAH6w=", "aO4=", -1).contains("profile-level-id"));
+    }
+
+    private static MediaCodec.BufferInfo bufferInfo(int size) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, size, 33333, 0);
+        return info;
+    }
+
+    private static boolean isMarked(DatagramPacket packet) {
+        return (packet.getData()[1] & 0x80) != 0;
+    }
+
+    private DatagramPacket receive() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[Constants.MTU], Constants.MTU);
+        mReceiver.receive(packet);
+        return packet;
+    }
+
+}
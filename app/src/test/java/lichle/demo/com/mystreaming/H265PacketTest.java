@@ -0,0 +1,114 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the RFC 7798 aggregation and fragmentation headers over loopback, and the H.265 SDP.
+ */
+public class H265PacketTest {
+
+    private static final byte[] VPS = {0x40, 0x01, 0x0C, 0x01};
+    private static final byte[] SPS = {0x42, 0x01, 0x01, 0x01, 0x60};
+    private static final byte[] PPS = {0x44, 0x01, (byte) 0xC1};
+
+    private DatagramSocket mReceiver;
+    private H265Packet mH265Packet;
+
+    @Before
+    public void setUp() throws Exception {
+        mReceiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        mReceiver.setSoTimeout(2000);
+        RtspClient rtspClient = new RtspClient();
+        rtspClient.setUrl("rtsp://127.0.0.1:554/live/test");
+        rtspClient.getVideoPorts()[0] = mReceiver.getLocalPort();
+        rtspClient.getVideoPorts()[1] = mReceiver.getLocalPort() + 1;
+        mH265Packet = new H265Packet(rtspClient);
+        mH265Packet.updateDestinationVideo();
+    }
+
+    @After
+    public void tearDown() {
+        mH265Packet.close();
+        mReceiver.close();
+    }
+
+    @Test
+    public void idrPicture_isPrecededByParameterSetsAndFragmented() throws Exception {
+        mH265Packet.setVPSandSPSandPPS(VPS, SPS, PPS);
+        // IDR_W_RADL (19), TID 1
+        byte[] au = new byte[4 + 3000];
+        au[3] = 1;
+        au[4] = 19 << 1;
+        au[5] = 0x01;
+        for (int i = 6; i < au.length; i++) {
+            au[i] = (byte) 0xAA;
+        }
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, au.length, 0, 0);
+        mH265Packet.createAndSendPacket(ByteBuffer.wrap(au), info);
+
+        DatagramPacket ap = receive();
+        byte[] data = ap.getData();
+        assertEquals(48, H265Packet.getNalTypeFromFirstByte(data[12]));
+        assertEquals(1, data[13]);
+        assertEquals(VPS.length, data[15]);
+        assertEquals(0x40, data[16]);
+        assertEquals(Constants.RTP_HEADER_LENGTH + 2 + 3 * 2 + VPS.length + SPS.length + PPS.length, ap.getLength());
+        assertFalse(isMarked(ap));
+
+        DatagramPacket first = receive();
+        assertEquals(49, H265Packet.getNalTypeFromFirstByte(first.getData()[12]));
+        assertEquals(1, first.getData()[13]);
+        assertEquals(0x80 | 19, first.getData()[14] & 0xFF);
+        DatagramPacket packet = first;
+        while (!isMarked(packet)) {
+            packet = receive();
+        }
+        assertEquals(0x40 | 19, packet.getData()[14] & 0xFF);
+    }
+
+    @Test
+    public void smallNals_areAggregated() throws Exception {
+        // two TRAIL_R (1) slices, TID 1
+        byte[] au = {0, 0, 0, 1, 0x02, 0x01, 0x11, 0, 0, 1, 0x02, 0x01, 0x22};
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, au.length, 0, 0);
+        mH265Packet.createAndSendPacket(ByteBuffer.wrap(au), info);
+
+        DatagramPacket ap = receive();
+        assertTrue(isMarked(ap));
+        assertEquals(Constants.RTP_HEADER_LENGTH + 2 + 2 * (2 + 3), ap.getLength());
+        assertEquals(1, mH265Packet.getPacketsSaved());
+    }
+
+    @Test
+    public void sdp_carriesParameterSets() {
+        String body = RtspClient.createVideoBody(1, "QAE=", "QgE=", "RAE=");
+        assertTrue(body.contains("H265/90000"));
+        assertTrue(body.contains("sprop-vps=QAE=;sprop-sps=QgE=;sprop-pps=RAE="));
+    }
+
+    private static boolean isMarked(DatagramPacket packet) {
+        return (packet.getData()[1] & 0x80) != 0;
+    }
+
+    private DatagramPacket receive() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[Constants.MTU], Constants.MTU);
+        mReceiver.receive(packet);
+        return packet;
+    }
+
+}
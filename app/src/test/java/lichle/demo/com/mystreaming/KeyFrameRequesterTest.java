@@ -0,0 +1,116 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds requests and encoded frames in simulated time to a source which turns each request into a keyframe on the
+ * next frame.
+ */
+public class KeyFrameRequesterTest {
+
+    private static final long INTERVAL_MS = 500;
+
+    @Test
+    public void firstRequest_goesThroughRightAway() {
+        Source source = new Source();
+        KeyFrameRequester requester = new KeyFrameRequester(source, INTERVAL_MS);
+        assertTrue(requester.request(KeyFrameRequester.REASON_API, 0));
+        assertEquals(1, source.mRequests);
+        assertFalse(requester.isPending());
+    }
+
+    @Test
+    public void requestStorm_isThrottledToTheInterval() {
+        Source source = new Source();
+        KeyFrameRequester requester = new KeyFrameRequester(source, INTERVAL_MS);
+        int keyFrames = 0;
+        long lastKeyFrameMs = -INTERVAL_MS;
+        // 30 fps for 3 s, a PLI every 10 ms
+        for (long nowMs = 0; nowMs < 3000; nowMs += 10) {
+            requester.request(KeyFrameRequester.REASON_PLI, nowMs);
+            if (nowMs % 33 == 0) {
+                boolean keyFrame = source.encode();
+                if (keyFrame) {
+                    assertTrue(nowMs - lastKeyFrameMs >= INTERVAL_MS);
+                    lastKeyFrameMs = nowMs;
+                    keyFrames++;
+                }
+                requester.onFrame(keyFrame, nowMs);
+            }
+        }
+        assertEquals(300, requester.getRequestCount(KeyFrameRequester.REASON_PLI));
+        assertTrue("keyframes " + keyFrames, keyFrames >= 5 && keyFrames <= 6);
+        assertEquals(keyFrames, requester.getSentCount());
+        assertTrue(requester.getCoalescedCount() > 250);
+    }
+
+    @Test
+    public void pendingRequest_isSentWithAFrameAfterTheInterval() {
+        Source source = new Source();
+        KeyFrameRequester requester = new KeyFrameRequester(source, INTERVAL_MS);
+        requester.request(KeyFrameRequester.REASON_CONNECT, 0);
+        requester.onFrame(source.encode(), 10);
+        assertFalse(requester.request(KeyFrameRequester.REASON_FIR, 100));
+        assertTrue(requester.isPending());
+        requester.onFrame(source.encode(), 400);
+        assertEquals(1, source.mRequests);
+        // 500 ms after the keyframe
+        requester.onFrame(source.encode(), 510);
+        assertEquals(2, source.mRequests);
+        assertFalse(requester.isPending());
+    }
+
+    @Test
+    public void regularKeyFrame_answersThePendingRequest() {
+        Source source = new Source();
+        KeyFrameRequester requester = new KeyFrameRequester(source, INTERVAL_MS);
+        requester.request(KeyFrameRequester.REASON_API, 0);
+        requester.onFrame(true, 10);
+        requester.request(KeyFrameRequester.REASON_DESTINATION, 100);
+        // the keyframe interval of the encoder comes first
+        requester.onFrame(true, 300);
+        assertFalse(requester.isPending());
+        requester.onFrame(false, 900);
+        assertEquals(1, source.mRequests);
+    }
+
+    @Test
+    public void refusedRequest_isRetriedWithTheNextFrame() {
+        Source source = new Source();
+        source.mIsRunning = false;
+        KeyFrameRequester requester = new KeyFrameRequester(source, INTERVAL_MS);
+        assertFalse(requester.request(KeyFrameRequester.REASON_API, 0));
+        assertTrue(requester.isPending());
+        source.mIsRunning = true;
+        requester.onFrame(false, 33);
+        assertEquals(1, requester.getSentCount());
+        assertFalse(requester.isPending());
+    }
+
+    private static class Source implements IKeyFrameSource {
+        boolean mIsRunning = true;
+        int mRequests;
+        boolean mIsKeyFrameNext;
+
+        @Override
+        public boolean requestKeyFrame() {
+            if (!mIsRunning) {
+                return false;
+            }
+            mRequests++;
+            mIsKeyFrameNext = true;
+            return true;
+        }
+
+        boolean encode() {
+            boolean keyFrame = mIsKeyFrameNext;
+            mIsKeyFrameNext = false;
+            return keyFrame;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyTracerTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void histogram_percentilesAreWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 50000 && p50 <= 50000 * 9 / 8);
+        long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 99000 && p99 <= 100000);
+        assertEquals(100000, histogram.getMax());
+        assertEquals(100, histogram.getCount());
+        histogram.reset();
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void histogram_bucketLimitsCoverEveryValue() {
+        for (long value = 0; value < 100000; value++) {
+            int bucket = LatencyHistogram.getBucket(value);
+            assertTrue(value <= LatencyHistogram.getBucketLimit(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.getBucketLimit(bucket - 1));
+        }
+    }
+
+    @Test
+    public void frame_isFollowedThroughEveryStage() {
+        LatencyTracer tracer = new LatencyTracer(8);
+        tracer.onCodecInput(1000, 100 * MS, 110 * MS, 115 * MS);
+        // the codec outputs it with another presentation time
+        tracer.onCodecOutput(1000, 40000, 135 * MS);
+        tracer.onPacketize(40000, 137 * MS);
+        long rtpTimestamp = LatencyTracer.getRtpTimestamp(40000);
+        tracer.onPacketSent(rtpTimestamp + 1, true, 138 * MS);
+        tracer.onPacketSent(rtpTimestamp, false, 140 * MS);
+        tracer.onPacketSent(rtpTimestamp, true, 143 * MS);
+
+        assertEquals(10000, tracer.getHistogram(LatencyTracer.STAGE_QUEUE).getMax());
+        assertEquals(5000, tracer.getHistogram(LatencyTracer.STAGE_CONVERT).getMax());
+        assertEquals(20000, tracer.getHistogram(LatencyTracer.STAGE_ENCODE).getMax());
+        assertEquals(2000, tracer.getHistogram(LatencyTracer.STAGE_HANDOFF).getMax());
+        assertEquals(3000, tracer.getHistogram(LatencyTracer.STAGE_PACKETIZE).getMax());
+        assertEquals(3000, tracer.getHistogram(LatencyTracer.STAGE_SEND).getMax());
+        assertEquals(43000, tracer.getHistogram(LatencyTracer.STAGE_TOTAL).getMax());
+        assertEquals(1, tracer.getHistogram(LatencyTracer.STAGE_TOTAL).getCount());
+        assertTrue(tracer.toString().contains("total: 1 frames, p50 43000 us"));
+    }
+
+    @Test
+    public void frameDroppedByTheCodec_isCountedWhenItsSlotIsReused() {
+        LatencyTracer tracer = new LatencyTracer(2);
+        tracer.onCodecInput(1000, MS, 2 * MS, 3 * MS);
+        tracer.onCodecInput(2000, MS, 2 * MS, 3 * MS);
+        tracer.onCodecOutput(2000, 2000, 4 * MS);
+        tracer.onCodecInput(3000, MS, 2 * MS, 3 * MS);
+        assertEquals(1, tracer.getLostCount());
+        tracer.reset();
+        assertEquals(0, tracer.getLostCount());
+    }
+
+    @Test
+    public void rtpSocket_reportsThePacketsOfATracedFrame() throws Exception {
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        receiver.setSoTimeout(2000);
+        RtspClient rtspClient = new RtspClient();
+        rtspClient.setUrl("rtsp://127.0.0.1:554/live/test");
+        rtspClient.getVideoPorts()[0] = receiver.getLocalPort();
+        rtspClient.getVideoPorts()[1] = receiver.getLocalPort() + 1;
+        H264Packet packetizer = new H264Packet(rtspClient);
+        try {
+            packetizer.updateDestinationVideo();
+            LatencyTracer tracer = new LatencyTracer(4);
+            packetizer.getRtpSocket().setLatencyTracer(tracer);
+            long now = System.nanoTime();
+            tracer.onCodecInput(5000, now, now, now);
+            tracer.onCodecOutput(5000, 123456, now);
+            tracer.onPacketize(123456, now);
+            // one slice fragmented over several packets
+            ByteBuffer slice = ByteBuffer.allocate(4 + 3000);
+            slice.put(3, (byte) 1).put(4, (byte) 0x41);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.set(0, slice.capacity(), 123456, 0);
+            packetizer.createAndSendPacket(slice, info);
+
+            DatagramPacket packet = new DatagramPacket(new byte[Constants.MTU], Constants.MTU);
+            do {
+                receiver.receive(packet);
+            } while ((packet.getData()[1] & 0x80) == 0);
+            long deadline = System.currentTimeMillis() + 1000;
+            LatencyHistogram total = tracer.getHistogram(LatencyTracer.STAGE_TOTAL);
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (tracer) {
+                    if (total.getCount() > 0) {
+                        break;
+                    }
+                }
+                Thread.sleep(2);
+            }
+            synchronized (tracer) {
+                assertEquals(1, total.getCount());
+            }
+        } finally {
+            packetizer.close();
+            receiver.close();
+        }
+    }
+
+}
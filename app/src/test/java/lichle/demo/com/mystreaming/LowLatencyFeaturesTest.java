@@ -0,0 +1,46 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LowLatencyFeaturesTest {
+
+    @Test
+    public void supportedFeatures_dependOnCapabilitiesAndOsVersion() {
+        int oreo = LowLatencyFeatures.getSupportedFeatures(false, false, false, 26);
+        assertEquals(LowLatencyFeatures.FEATURE_PRIORITY, oreo);
+        int q = LowLatencyFeatures.getSupportedFeatures(true, false, true, 29);
+        assertEquals(LowLatencyFeatures.FEATURE_PRIORITY | LowLatencyFeatures.FEATURE_INTRA_REFRESH
+                | LowLatencyFeatures.FEATURE_NO_B_FRAMES | LowLatencyFeatures.FEATURE_VBR, q);
+        int r = LowLatencyFeatures.getSupportedFeatures(true, true, true, 30);
+        assertTrue((r & LowLatencyFeatures.FEATURE_LATENCY) != 0);
+    }
+
+    @Test
+    public void select_prefersCbrAndFallsBackToVbr() {
+        int both = LowLatencyFeatures.select(LowLatencyFeatures.getSupportedFeatures(true, true, true, 30));
+        assertEquals(LowLatencyFeatures.FEATURE_INTRA_REFRESH | LowLatencyFeatures.FEATURE_LATENCY
+                | LowLatencyFeatures.FEATURE_PRIORITY | LowLatencyFeatures.FEATURE_NO_B_FRAMES
+                | LowLatencyFeatures.FEATURE_CBR, both);
+        int vbr = LowLatencyFeatures.select(LowLatencyFeatures.getSupportedFeatures(false, false, true, 26));
+        assertEquals(LowLatencyFeatures.FEATURE_PRIORITY | LowLatencyFeatures.FEATURE_VBR, vbr);
+        int neither = LowLatencyFeatures.select(LowLatencyFeatures.getSupportedFeatures(false, false, false, 26));
+        assertEquals(LowLatencyFeatures.FEATURE_PRIORITY, neither);
+    }
+
+    @Test
+    public void report_onlyHonorsRequestedFeatures() {
+        LowLatencyFeatures features = new LowLatencyFeatures(
+                LowLatencyFeatures.FEATURE_INTRA_REFRESH | LowLatencyFeatures.FEATURE_CBR,
+                LowLatencyFeatures.FEATURE_CBR | LowLatencyFeatures.FEATURE_LATENCY);
+        assertTrue(features.isHonored(LowLatencyFeatures.FEATURE_CBR));
+        assertFalse(features.isHonored(LowLatencyFeatures.FEATURE_INTRA_REFRESH));
+        assertFalse(features.isHonored(LowLatencyFeatures.FEATURE_LATENCY));
+        assertEquals("requested intra-refresh cbr, honored cbr", features.toString());
+        assertEquals("requested none, honored none", new LowLatencyFeatures(0, 0).toString());
+    }
+
+}
@@ -0,0 +1,94 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the box and bilinear paths of the scaler. The 1080p to 540p cost is a {@link Benchmark}.
+ */
+public class NV21ScalerTest {
+
+    @Test
+    public void boxFilter_averagesFourSamples() {
+        NV21Frame src = new FramePool(1, 4, 4).acquire();
+        byte[] data = src.getData();
+        for (int i = 0; i < 16; i++) {
+            data[i] = (byte) (i * 10);
+        }
+        // one V,U pair per 2x2 block: V = 10, 20, 30, 40 and U = 100
+        byte[] chroma = {10, 100, 20, 100, 30, 100, 40, 100};
+        System.arraycopy(chroma, 0, data, 16, chroma.length);
+        src.setTimestampNs(42);
+
+        NV21Scaler scaler = new NV21Scaler(2, 2);
+        NV21Frame dst = scaler.scale(src);
+        byte[] out = dst.getData();
+        assertEquals((0 + 10 + 40 + 50 + 2) / 4, out[0] & 0xFF);
+        assertEquals((100 + 110 + 140 + 150 + 2) / 4, out[3] & 0xFF);
+        assertEquals(25, out[4] & 0xFF);
+        assertEquals(100, out[5] & 0xFF);
+        assertEquals(42, dst.getTimestampNs());
+        dst.release();
+    }
+
+    @Test
+    public void bilinear_keepsFlatImageAndCrops() {
+        NV21Frame src = new FramePool(1, 64, 48).acquire();
+        byte[] data = src.getData();
+        for (int i = 0; i < data.length; i++) {
+            // left half 50, right half 200, for luma and chroma alike
+            int column = i < 64 * 48 ? i % 64 : (i - 64 * 48) % 64;
+            data[i] = (byte) (column < 32 ? 50 : 200);
+        }
+        NV21Scaler scaler = new NV21Scaler(20, 14);
+        NV21Frame dst = scaler.scale(src);
+        assertEquals(50, dst.getData()[0] & 0xFF);
+        assertEquals(200, dst.getData()[19] & 0xFF);
+        dst.release();
+
+        scaler.setCrop(0, 0, 30, 48);
+        dst = scaler.scale(src);
+        for (int i = 0; i < dst.getSize(); i++) {
+            assertEquals(50, dst.getData()[i] & 0xFF);
+        }
+        dst.release();
+    }
+
+    @Test
+    public void scale_returnsNullWhenPoolIsEmpty() {
+        NV21Frame src = new FramePool(1, 8, 8).acquire();
+        NV21Scaler scaler = new NV21Scaler(4, 4);
+        int poolSize = scaler.getFramePool().getPoolSize();
+        for (int i = 0; i < poolSize; i++) {
+            scaler.scale(src);
+        }
+        assertNull(scaler.scale(src));
+        assertEquals(1, scaler.getFramePool().getDroppedCount());
+    }
+
+    @Test
+    public void throughput() {
+        Benchmark.assumeEnabled();
+        NV21Frame src = new FramePool(1, 1920, 1080).acquire();
+        int[][] targets = {{960, 540}, {1280, 720}};
+        for (int[] target : targets) {
+            NV21Scaler scaler = new NV21Scaler(target[0], target[1]);
+            for (int i = 0; i < 100; i++) {
+                scaler.scale(src).release();
+            }
+            int iterations = 100;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                scaler.scale(src).release();
+            }
+            long perFrameNs = (System.nanoTime() - start) / iterations;
+            Benchmark.report(String.format("NV21Scaler 1920x1080 -> %dx%d: %.3f ms/frame",
+                    target[0], target[1], perFrameNs / 1e6));
+            assertTrue(perFrameNs > 0);
+        }
+    }
+
+}
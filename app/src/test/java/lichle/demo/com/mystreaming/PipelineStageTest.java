@@ -0,0 +1,192 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a stage over frames of a {@link FramePool}, whose free count shows every reference being released.
+ */
+public class PipelineStageTest {
+
+    private final FramePool mPool = new FramePool(8, 16, 16);
+    private final List<Integer> mProcessed = Collections.synchronizedList(new ArrayList<Integer>());
+    //the processor waits on it, so items pile up in the queue
+    private final CountDownLatch mGate = new CountDownLatch(1);
+    private PipelineStage<NV21Frame> mStage;
+
+    @After
+    public void tearDown() {
+        mGate.countDown();
+        if (mStage != null) {
+            mStage.stop();
+        }
+    }
+
+    @Test
+    public void dropOldest_keepsTheNewestItems() throws Exception {
+        mStage = createStage(PipelineStage.OVERFLOW_DROP_OLDEST);
+        final List<Integer> dropped = new ArrayList<>();
+        mStage.setOnDropListener(new PipelineStage.OnDropListener<NV21Frame>() {
+            @Override
+            public void onDrop(PipelineStage<NV21Frame> stage, NV21Frame item) {
+                dropped.add(item.getData()[0] & 0xFF);
+            }
+        });
+        mStage.start();
+        assertTrue(mStage.offer(frame(0)));
+        waitForOccupancy(0);
+        // 0 is held by the processor, 1 and 2 fill the queue
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(mStage.offer(frame(i)));
+        }
+        assertEquals(2, mStage.getOccupancy());
+        assertEquals(2, mStage.getDroppedCount());
+        assertEquals(2, dropped.size());
+        assertEquals(1, (int) dropped.get(0));
+        assertEquals(2, (int) dropped.get(1));
+
+        mGate.countDown();
+        waitForProcessed(3);
+        assertEquals(0, (int) mProcessed.get(0));
+        assertEquals(3, (int) mProcessed.get(1));
+        assertEquals(4, (int) mProcessed.get(2));
+        waitForPoolFull();
+        assertEquals(2, mStage.getMaxOccupancy());
+    }
+
+    @Test
+    public void dropNewest_refusesItemsWhenFull() throws Exception {
+        mStage = createStage(PipelineStage.OVERFLOW_DROP_NEWEST);
+        mStage.start();
+        mStage.offer(frame(0));
+        waitForOccupancy(0);
+        assertTrue(mStage.offer(frame(1)));
+        assertTrue(mStage.offer(frame(2)));
+        assertFalse(mStage.offer(frame(3)));
+        mGate.countDown();
+        waitForProcessed(3);
+        assertEquals(2, (int) mProcessed.get(2));
+        waitForPoolFull();
+    }
+
+    @Test
+    public void block_makesTheProducerWaitForRoom() throws Exception {
+        mStage = createStage(PipelineStage.OVERFLOW_BLOCK);
+        mStage.start();
+        mStage.offer(frame(0));
+        waitForOccupancy(0);
+        mStage.offer(frame(1));
+        mStage.offer(frame(2));
+        final NV21Frame last = frame(3);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mStage.offer(last);
+            }
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+        mGate.countDown();
+        producer.join(2000);
+        assertFalse(producer.isAlive());
+        waitForProcessed(4);
+        assertEquals(0, mStage.getDroppedCount());
+        assertTrue(mStage.getBlockedUs() > 0);
+        waitForPoolFull();
+    }
+
+    @Test
+    public void stop_releasesQueuedItems() throws Exception {
+        mStage = createStage(PipelineStage.OVERFLOW_DROP_OLDEST);
+        mStage.start();
+        mStage.offer(frame(0));
+        waitForOccupancy(0);
+        mStage.offer(frame(1));
+        mStage.offer(frame(2));
+        mGate.countDown();
+        mStage.stop();
+        waitForPoolFull();
+        // a stopped stage takes nothing
+        assertFalse(mStage.offer(frame(3)));
+        waitForPoolFull();
+    }
+
+    @Test
+    public void processor_canBeWrapped() throws Exception {
+        mGate.countDown();
+        mStage = createStage(PipelineStage.OVERFLOW_DROP_OLDEST);
+        final PipelineStage.Processor<NV21Frame> original = mStage.getProcessor();
+        final List<NV21Frame> recorded = new ArrayList<>();
+        mStage.setProcessor(new PipelineStage.Processor<NV21Frame>() {
+            @Override
+            public void process(NV21Frame item) {
+                recorded.add(item.retain());
+                original.process(item);
+            }
+        });
+        mStage.start();
+        mStage.offer(frame(5));
+        waitForProcessed(1);
+        // the recorder still holds its reference
+        assertEquals(mPool.getPoolSize() - 1, mPool.getFreeCount());
+        recorded.get(0).release();
+        waitForPoolFull();
+        assertTrue(mStage.toString().startsWith("Test: 0/2 queued"));
+    }
+
+    private PipelineStage<NV21Frame> createStage(int policy) {
+        return new PipelineStage<>("Test", 2, policy, new PipelineStage.Processor<NV21Frame>() {
+            @Override
+            public void process(NV21Frame item) {
+                try {
+                    mGate.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mProcessed.add(item.getData()[0] & 0xFF);
+            }
+        });
+    }
+
+    private NV21Frame frame(int value) {
+        NV21Frame frame = mPool.acquire();
+        frame.getData()[0] = (byte) value;
+        return frame;
+    }
+
+    private void waitForOccupancy(int occupancy) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (mStage.getOccupancy() != occupancy && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertEquals(occupancy, mStage.getOccupancy());
+    }
+
+    private void waitForProcessed(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mStage.getProcessedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertEquals(count, mStage.getProcessedCount());
+    }
+
+    private void waitForPoolFull() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (mPool.getFreeCount() != mPool.getPoolSize() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertEquals(mPool.getPoolSize(), mPool.getFreeCount());
+    }
+
+}
@@ -0,0 +1,245 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses hand made RTCP packets and checks the reports and feedback handed to the listener.
+ */
+public class RtcpReceiverTest {
+
+    private static final int OUR_SSRC = 0x11223344;
+    private static final int SERVER_SSRC = 0x55667788;
+
+    @Test
+    public void receiverReport_givesLossJitterAndRtt() {
+        RecordingListener listener = new RecordingListener();
+        RtcpReceiver receiver = new RtcpReceiver(Constants.CLOCK_VIDEO_FREQUENCY);
+        receiver.setListener(listener);
+
+        // our SR left 300 ms ago, the server held it 100 ms before reporting: 200 ms RTT
+        long nowNs = TimeUnit.SECONDS.toNanos(1000);
+        long lsr = RtcpSocket.toCompactNtp(nowNs - TimeUnit.MILLISECONDS.toNanos(300));
+        long dlsr = 65536 / 10;
+        ByteBuffer packet = ByteBuffer.allocate(64);
+        writeReceiverReport(packet, 64, -3, 0x00010010, 900, lsr, dlsr);
+        assertEquals(1, receiver.parse(packet.array(), 0, packet.position(), nowNs));
+
+        ReceptionReport report = receiver.getReport(OUR_SSRC);
+        assertNotNull(report);
+        assertEquals(1, listener.reports.size());
+        assertEquals(SERVER_SSRC, report.getReporterSsrc());
+        assertEquals(0.25f, report.getLossRate(), 1e-6);
+        assertEquals(-3, report.getCumulativeLost());
+        assertEquals(0x00010010, report.getHighestSequence());
+        assertEquals(10f, report.getJitterMs(), 1e-3);
+        assertTrue("rtt " + report.getRttUs(), Math.abs(report.getRttUs() - 200000) < 100);
+    }
+
+    @Test
+    public void receiverReport_withoutSenderReportHasNoRtt() {
+        RtcpReceiver receiver = new RtcpReceiver(Constants.CLOCK_VIDEO_FREQUENCY);
+        ByteBuffer packet = ByteBuffer.allocate(64);
+        writeReceiverReport(packet, 0, 0, 1, 0, 0, 0);
+        receiver.parse(packet.array(), 0, packet.position(), System.nanoTime());
+        assertEquals(-1, receiver.getReport(OUR_SSRC).getRttUs());
+    }
+
+    @Test
+    public void compoundPacket_reportsEveryFeedbackMessage() {
+        RecordingListener listener = new RecordingListener();
+        RtcpReceiver receiver = new RtcpReceiver(Constants.CLOCK_VIDEO_FREQUENCY);
+        receiver.setMediaSsrc(OUR_SSRC);
+        receiver.setListener(listener);
+
+        ByteBuffer packet = ByteBuffer.allocate(256);
+        writeReceiverReport(packet, 0, 0, 1, 0, 0, 0);
+        // SDES chunk with CNAME "srv": SSRC, item, null item = 10 bytes, padded to 12
+        packet.put((byte) 0x81).put((byte) RtcpReceiver.PT_SDES).putShort((short) 3);
+        packet.putInt(SERVER_SSRC).put((byte) 1).put((byte) 3).put("srv".getBytes()).put(new byte[3]);
+        // generic NACK for 100, the bitmask adds 102 and 116
+        packet.put((byte) (0x80 | RtcpReceiver.FMT_NACK)).put((byte) RtcpReceiver.PT_RTPFB).putShort((short) 3);
+        packet.putInt(SERVER_SSRC).putInt(OUR_SSRC).putShort((short) 100).putShort((short) 0x8002);
+        // PLI
+        packet.put((byte) (0x80 | RtcpReceiver.FMT_PLI)).put((byte) RtcpReceiver.PT_PSFB).putShort((short) 2);
+        packet.putInt(SERVER_SSRC).putInt(OUR_SSRC);
+        // FIR, the SSRC is in the FCI entry
+        packet.put((byte) (0x80 | RtcpReceiver.FMT_FIR)).put((byte) RtcpReceiver.PT_PSFB).putShort((short) 4);
+        packet.putInt(SERVER_SSRC).putInt(0).putInt(OUR_SSRC).putInt(7 << 24);
+        // BYE
+        packet.put((byte) 0x81).put((byte) RtcpReceiver.PT_BYE).putShort((short) 1).putInt(SERVER_SSRC);
+
+        assertEquals(6, receiver.parse(packet.array(), 0, packet.position(), System.nanoTime()));
+        assertEquals("srv", listener.cname);
+        assertEquals(OUR_SSRC, listener.nackSsrc);
+        assertArrayEquals(new int[]{100, 102, 116}, listener.nacks);
+        assertEquals(3, receiver.getNackCount());
+        assertEquals(2, receiver.getKeyFrameRequestCount());
+        assertEquals(1, listener.pli);
+        assertEquals(1, listener.fir);
+        assertEquals(SERVER_SSRC, listener.bye);
+    }
+
+    @Test
+    public void pliAndFir_reachTheKeyFrameRequester() {
+        final int[] requests = new int[1];
+        KeyFrameRequester requester = new KeyFrameRequester(new IKeyFrameSource() {
+            @Override
+            public boolean requestKeyFrame() {
+                requests[0]++;
+                return true;
+            }
+        }, 500);
+        RtcpReceiver receiver = new RtcpReceiver(Constants.CLOCK_VIDEO_FREQUENCY);
+        receiver.setMediaSsrc(OUR_SSRC);
+        receiver.setKeyFrameRequester(requester);
+
+        ByteBuffer packet = ByteBuffer.allocate(64);
+        packet.put((byte) (0x80 | RtcpReceiver.FMT_PLI)).put((byte) RtcpReceiver.PT_PSFB).putShort((short) 2);
+        packet.putInt(SERVER_SSRC).putInt(OUR_SSRC);
+        packet.put((byte) (0x80 | RtcpReceiver.FMT_FIR)).put((byte) RtcpReceiver.PT_PSFB).putShort((short) 4);
+        packet.putInt(SERVER_SSRC).putInt(0).putInt(OUR_SSRC).putInt(7 << 24);
+
+        assertEquals(2, receiver.parse(packet.array(), 0, packet.position(), System.nanoTime()));
+        // the FIR right after the PLI is merged into a pending request
+        assertEquals(1, requests[0]);
+        assertEquals(1, requester.getRequestCount(KeyFrameRequester.REASON_PLI));
+        assertEquals(1, requester.getRequestCount(KeyFrameRequester.REASON_FIR));
+        assertTrue(requester.isPending());
+    }
+
+    @Test
+    public void pliAndFirForAnotherSsrc_doNotAskForAKeyFrame() {
+        final int[] requests = new int[1];
+        KeyFrameRequester requester = new KeyFrameRequester(new IKeyFrameSource() {
+            @Override
+            public boolean requestKeyFrame() {
+                requests[0]++;
+                return true;
+            }
+        }, 0);
+        RecordingListener listener = new RecordingListener();
+        RtcpReceiver receiver = new RtcpReceiver(Constants.CLOCK_VIDEO_FREQUENCY);
+        receiver.setMediaSsrc(OUR_SSRC);
+        receiver.setKeyFrameRequester(requester);
+        receiver.setListener(listener);
+
+        // a PLI for the RTX stream and a FIR for someone else
+        ByteBuffer packet = ByteBuffer.allocate(64);
+        packet.put((byte) (0x80 | RtcpReceiver.FMT_PLI)).put((byte) RtcpReceiver.PT_PSFB).putShort((short) 2);
+        packet.putInt(SERVER_SSRC).putInt(OUR_SSRC + 1);
+        packet.put((byte) (0x80 | RtcpReceiver.FMT_FIR)).put((byte) RtcpReceiver.PT_PSFB).putShort((short) 4);
+        packet.putInt(SERVER_SSRC).putInt(0).putInt(OUR_SSRC + 2).putInt(7 << 24);
+
+        assertEquals(2, receiver.parse(packet.array(), 0, packet.position(), System.nanoTime()));
+        assertEquals(0, requests[0]);
+        assertEquals(0, requester.getRequestCount(KeyFrameRequester.REASON_PLI));
+        assertEquals(0, requester.getRequestCount(KeyFrameRequester.REASON_FIR));
+        assertEquals(0, receiver.getKeyFrameRequestCount());
+        // the listener still hears about them
+        assertEquals(1, listener.pli);
+        assertEquals(1, listener.fir);
+    }
+
+    @Test
+    public void truncatedPacket_isIgnored() {
+        RtcpReceiver receiver = new RtcpReceiver(Constants.CLOCK_VIDEO_FREQUENCY);
+        ByteBuffer packet = ByteBuffer.allocate(64);
+        writeReceiverReport(packet, 0, 0, 1, 0, 0, 0);
+        assertEquals(0, receiver.parse(packet.array(), 0, packet.position() - 4, System.nanoTime()));
+        assertNull(receiver.getReport(OUR_SSRC));
+    }
+
+    @Test
+    public void rtpSocket_receivesReportsOnItsRtcpPort() throws Exception {
+        RtpSocket rtpSocket = new RtpSocket();
+        DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        try {
+            final CountDownLatch received = new CountDownLatch(1);
+            RecordingListener listener = new RecordingListener() {
+                @Override
+                public void onReceptionReport(ReceptionReport report) {
+                    super.onReceptionReport(report);
+                    received.countDown();
+                }
+            };
+            rtpSocket.setRtcpListener(listener);
+            rtpSocket.setDestination("127.0.0.1", server.getLocalPort(), server.getLocalPort() + 1);
+
+            ByteBuffer packet = ByteBuffer.allocate(64);
+            writeReceiverReport(packet, 0, 0, 1, 0, 0, 0);
+            server.send(new DatagramPacket(packet.array(), packet.position(), InetAddress.getLoopbackAddress(),
+                    rtpSocket.getRtcpPort()));
+            assertTrue(received.await(2, TimeUnit.SECONDS));
+            assertEquals(OUR_SSRC, listener.reports.get(0).getSsrc());
+            assertNotNull(rtpSocket.getRtcpReceiver().getReport(OUR_SSRC));
+        } finally {
+            rtpSocket.close();
+            server.close();
+        }
+    }
+
+    private static void writeReceiverReport(ByteBuffer packet, int fractionLost, int cumulativeLost,
+                                            int highestSequence, int jitter, long lsr, long dlsr) {
+        packet.put((byte) 0x81).put((byte) RtcpReceiver.PT_RR).putShort((short) 7);
+        packet.putInt(SERVER_SSRC);
+        packet.putInt(OUR_SSRC);
+        packet.putInt((fractionLost << 24) | (cumulativeLost & 0xFFFFFF));
+        packet.putInt(highestSequence);
+        packet.putInt(jitter);
+        packet.putInt((int) lsr);
+        packet.putInt((int) dlsr);
+    }
+
+    private static class RecordingListener implements IRtcpListener {
+        final List<ReceptionReport> reports = new ArrayList<>();
+        int[] nacks;
+        int nackSsrc, pli, fir, bye;
+        String cname;
+
+        @Override
+        public void onReceptionReport(ReceptionReport report) {
+            reports.add(report);
+        }
+
+        @Override
+        public void onNack(int ssrc, int[] sequenceNumbers) {
+            nackSsrc = ssrc;
+            nacks = sequenceNumbers;
+        }
+
+        @Override
+        public void onKeyFrameRequest(int ssrc, boolean fullIntraRequest) {
+            if (fullIntraRequest) {
+                fir++;
+            } else {
+                pli++;
+            }
+        }
+
+        @Override
+        public void onSourceDescription(int ssrc, String cname) {
+            this.cname = cname;
+        }
+
+        @Override
+        public void onBye(int ssrc) {
+            bye = ssrc;
+        }
+    }
+
+}
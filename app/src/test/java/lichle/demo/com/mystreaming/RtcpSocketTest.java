@@ -0,0 +1,93 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the RFC 3550 report interval and the sender reports the shared scheduler sends.
+ */
+public class RtcpSocketTest {
+
+    private static final long MIN_INTERVAL_NS = Constants.RTCP_MIN_INTERVAL_MS * 1000000L;
+
+    @Test
+    public void interval_isTheMinimumRandomizedWhenBandwidthIsHigh() {
+        // 2 Mbit/s: 12.5 kB/s of RTCP, the bandwidth term is far below 5 s
+        double rtcpBandwidth = Constants.BIT_RATE / 8 * 0.05;
+        long low = RtcpSocket.computeIntervalNs(2, 1, true, rtcpBandwidth, 56, MIN_INTERVAL_NS, false, 0);
+        long high = RtcpSocket.computeIntervalNs(2, 1, true, rtcpBandwidth, 56, MIN_INTERVAL_NS, false, 0.999999);
+        assertEquals(MIN_INTERVAL_NS * 0.5 / (Math.E - 1.5), low, 1000);
+        assertEquals(MIN_INTERVAL_NS * 1.5 / (Math.E - 1.5), high, 10000);
+        long initial = RtcpSocket.computeIntervalNs(2, 1, true, rtcpBandwidth, 56, MIN_INTERVAL_NS, true, 0);
+        assertEquals(low / 2, initial, 1000);
+    }
+
+    @Test
+    public void interval_growsWhenBandwidthIsLow() {
+        // 16 bytes/s of RTCP and 200 bytes packets: 2 members take 25 s
+        long interval = RtcpSocket.computeIntervalNs(2, 1, true, 16, 200, MIN_INTERVAL_NS, false, 0.5);
+        assertEquals(25e9 / (Math.E - 1.5), interval, 1e6);
+        // a sender among many receivers only gets a quarter of the bandwidth but shares it with the other senders
+        long manyReceivers = RtcpSocket.computeIntervalNs(20, 1, true, 16, 200, MIN_INTERVAL_NS, false, 0.5);
+        assertEquals(50e9 / (Math.E - 1.5), manyReceivers, 1e6);
+    }
+
+    @Test
+    public void counters_wrapIndependently() {
+        RtcpSocket socket = new RtcpSocket();
+        try {
+            socket.update(0x7FFFFFFF, 0);
+            socket.update(0x7FFFFFFF, 0);
+            socket.update(4, 0);
+            assertEquals(3, socket.getPacketCount());
+            assertEquals(2, socket.getOctetCount());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void senderReports_keepComingWhenTheStreamStalls() throws Exception {
+        DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(2000);
+        RtcpSocket socket = new RtcpSocket();
+        try {
+            socket.setSSRC(0x11223344);
+            socket.setMinInterval(100);
+            for (int i = 0; i < 10; i++) {
+                socket.update(1000, 90000);
+            }
+            socket.setDestination(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            assertTrue(RtcpScheduler.getInstance().getSocketCount() > 0);
+            // no packet is sent any more, the reports still arrive with the same counts
+            long rtpTimestamp = 0;
+            for (int i = 0; i < 3; i++) {
+                byte[] data = new byte[RtcpSocket.MTU];
+                DatagramPacket packet = new DatagramPacket(data, data.length);
+                server.receive(packet);
+                ByteBuffer report = ByteBuffer.wrap(data, 0, packet.getLength());
+                assertEquals(RtcpSocket.PACKET_LENGTH, packet.getLength());
+                assertEquals(0x80, report.get(0) & 0xFF);
+                assertEquals(RtcpReceiver.PT_SR, report.get(1) & 0xFF);
+                assertEquals(0x11223344, report.getInt(4));
+                assertEquals(10, report.getInt(20));
+                assertEquals(10000, report.getInt(24));
+                // the RTP time of the report keeps running with the clock
+                long timestamp = report.getInt(16) & 0xFFFFFFFFL;
+                assertTrue(i == 0 || timestamp > rtpTimestamp);
+                rtpTimestamp = timestamp;
+            }
+        } finally {
+            socket.close();
+            server.close();
+        }
+    }
+
+}
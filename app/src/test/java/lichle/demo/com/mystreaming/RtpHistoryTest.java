@@ -0,0 +1,100 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RtpHistoryTest {
+
+    private static final long MS = 1000000L;
+    //room for the slots of every test below
+    private static final int LARGE = 64 * Constants.MTU;
+
+    @Test
+    public void get_copiesThePacketOfTheSequenceNumber() {
+        RtpHistory history = new RtpHistory(16, LARGE, 1000 * MS);
+        for (int i = 0; i < 10; i++) {
+            history.put(65530 + i, packet(i, 100), 0, 100, i * MS);
+        }
+        byte[] out = new byte[Constants.MTU];
+        // across the wrap of the sequence numbers
+        assertEquals(100, history.get(3, out, 10 * MS));
+        assertEquals(9, out[0]);
+        assertEquals(100, history.get(65530, out, 10 * MS));
+        assertEquals(0, out[0]);
+        assertEquals(-1, history.get(4, out, 10 * MS));
+        assertEquals(-1, history.get(65529, out, 10 * MS));
+    }
+
+    @Test
+    public void put_keepsTheNewestPacketsWithinCapacityBytesAndAge() {
+        RtpHistory history = new RtpHistory(10, LARGE, 50 * MS);
+        assertEquals(0, history.size());
+        // capacity rounded to 16 packets
+        for (int i = 0; i < 20; i++) {
+            history.put(i, packet(i, 10), 0, 10, 0);
+        }
+        assertEquals(16, history.size());
+        byte[] out = new byte[Constants.MTU];
+        assertEquals(-1, history.get(3, out, 0));
+        assertEquals(10, history.get(4, out, 0));
+
+        // age: older than 50 ms leave on the next put and are not returned
+        history.put(24, packet(24, 10), 0, 10, 60 * MS);
+        assertEquals(1, history.size());
+        assertEquals(-1, history.get(19, out, 60 * MS));
+        assertEquals(-1, history.get(24, out, 200 * MS));
+    }
+
+    @Test
+    public void put_keepsTheBytesWithinTheLimit() {
+        RtpHistory history = new RtpHistory(64, 8 * Constants.MTU, 1000 * MS);
+        for (int i = 0; i < 20; i++) {
+            history.put(i, packet(i, 1000), 0, 1000, 0);
+        }
+        // 8 MTU of memory make 8 slots
+        assertEquals(8, history.getCapacity());
+        assertEquals(8, history.size());
+        assertEquals(8000, history.getBytes());
+        assertEquals(-1, history.get(11, new byte[Constants.MTU], 0));
+        assertEquals(1000, history.get(12, new byte[Constants.MTU], 0));
+    }
+
+    @Test
+    public void slots_areBoundedByTheMaxBytes() {
+        RtpHistory history = new RtpHistory(1024, 512 * 1024, 1000 * MS);
+        assertTrue(history.getCapacity() * Constants.MTU <= 512 * 1024);
+        assertEquals(256, history.getCapacity());
+    }
+
+    @Test
+    public void put_outOfOrderKeepsTheOtherPackets() {
+        RtpHistory history = new RtpHistory(16, LARGE, 1000 * MS);
+        history.put(1, packet(1, 10), 0, 10, 0);
+        history.put(2, packet(2, 10), 0, 10, 0);
+        // from the other thread, after the next ones
+        history.put(5, packet(5, 10), 0, 10, 0);
+        history.put(3, packet(3, 10), 0, 10, 0);
+        history.put(100, packet(100, 10), 0, 10, 0);
+        assertEquals(5, history.size());
+        byte[] out = new byte[Constants.MTU];
+        assertEquals(10, history.get(2, out, 0));
+        assertEquals(10, history.get(3, out, 0));
+        assertEquals(3, out[0]);
+        assertEquals(-1, history.get(4, out, 0));
+        // 116 takes the slot of 100
+        history.put(116, packet(116, 10), 0, 10, 0);
+        assertEquals(-1, history.get(100, out, 0));
+        assertEquals(10, history.get(116, out, 0));
+        assertEquals(5, history.size());
+        assertEquals(50, history.getBytes());
+    }
+
+    private static byte[] packet(int id, int length) {
+        byte[] packet = new byte[length];
+        packet[0] = (byte) id;
+        return packet;
+    }
+
+}
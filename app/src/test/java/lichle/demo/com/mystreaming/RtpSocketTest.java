@@ -0,0 +1,394 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends RTP packets over loopback and checks what arrives.
+ */
+public class RtpSocketTest {
+
+    private DatagramSocket mReceiver;
+    private RtpSocket mRtpSocket;
+
+    @Before
+    public void setUp() throws Exception {
+        mReceiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        mReceiver.setSoTimeout(2000);
+        mRtpSocket = new RtpSocket();
+        mRtpSocket.setSSRC(0x11223344);
+        mRtpSocket.setClockFrequency(Constants.CLOCK_VIDEO_FREQUENCY);
+    }
+
+    @After
+    public void tearDown() {
+        mRtpSocket.reset(false);
+        mRtpSocket.close();
+        mReceiver.close();
+    }
+
+    @Test
+    public void zeroCopy_sendsHeaderAndPayloadSlice() throws Exception {
+        mRtpSocket.setZeroCopy(true);
+        assertTrue(mRtpSocket.isZeroCopy());
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+
+        ByteBuffer encoded = ByteBuffer.allocateDirect(64);
+        for (int i = 0; i < 64; i++) {
+            encoded.put((byte) i);
+        }
+        byte[] fuHeader = {0x7C, (byte) 0x85};
+        mRtpSocket.sendGather(fuHeader, 2, encoded, 10, 20, 1000000000L, true);
+
+        DatagramPacket packet = receive();
+        byte[] data = packet.getData();
+        assertEquals(Constants.RTP_HEADER_LENGTH + 2 + 20, packet.getLength());
+        assertEquals(0x80, data[0] & 0xFF);
+        assertEquals(Constants.PAYLOAD_TYPE | 0x80, data[1] & 0xFF);
+        assertEquals(1, ((data[2] & 0xFF) << 8) | (data[3] & 0xFF));
+        assertEquals(Constants.CLOCK_VIDEO_FREQUENCY, ByteBuffer.wrap(data, 4, 4).getInt());
+        assertEquals(0x11223344, ByteBuffer.wrap(data, 8, 4).getInt());
+        assertEquals(0x7C, data[12] & 0xFF);
+        assertEquals(0x85, data[13] & 0xFF);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(10 + i, data[14 + i]);
+        }
+    }
+
+    @Test
+    public void fifo_sendsCommittedBuffers() throws Exception {
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        for (int i = 0; i < 3; i++) {
+            byte[] buffer = mRtpSocket.requestBuffer();
+            buffer[Constants.RTP_HEADER_LENGTH] = (byte) i;
+            mRtpSocket.updateTimestamp(0);
+            mRtpSocket.commitBuffer(Constants.RTP_HEADER_LENGTH + 1);
+        }
+        for (int i = 0; i < 3; i++) {
+            DatagramPacket packet = receive();
+            assertEquals(Constants.RTP_HEADER_LENGTH + 1, packet.getLength());
+            assertEquals(i, packet.getData()[Constants.RTP_HEADER_LENGTH]);
+        }
+    }
+
+    @Test
+    public void pacing_spreadsBurstOverTokenBucketRate() throws Exception {
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        // 100 kB/s: after the 2 packets of the bucket, one 1000 bytes packet every 10 ms
+        mRtpSocket.setPacing(true, 800000, 1f);
+        assertFalse(mRtpSocket.isZeroCopy());
+        long[] gaps = sendBurstAndMeasureGaps(10, 1000 - Constants.RTP_HEADER_LENGTH);
+        long paced = 0;
+        for (int i = 2; i < gaps.length; i++) {
+            paced += gaps[i];
+        }
+        long averageGapUs = paced / (gaps.length - 2) / 1000;
+        assertTrue("average gap " + averageGapUs + " us", averageGapUs > 7000 && averageGapUs < 15000);
+        assertTrue("max queue depth " + mRtpSocket.getMaxQueueDepth(), mRtpSocket.getMaxQueueDepth() > 1);
+        // the last packet waits for the 8 paced before it, about 80 ms
+        long maxDelayUs = mRtpSocket.getMaxPacingDelayUs();
+        assertTrue("max delay " + maxDelayUs + " us", maxDelayUs > 50000 && maxDelayUs < 200000);
+    }
+
+    @Test
+    public void withoutPacing_burstLeavesBackToBack() throws Exception {
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        long[] gaps = sendBurstAndMeasureGaps(10, 1000 - Constants.RTP_HEADER_LENGTH);
+        long total = 0;
+        for (long gap : gaps) {
+            total += gap;
+        }
+        assertTrue("burst took " + total / 1000 + " us", total < 30000000L);
+    }
+
+    @Test
+    public void tryRequestBuffer_returnsNullWhenFifoIsFull() throws Exception {
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        // 1 kB/s keeps the sender thread on the first packets while the FIFO fills up
+        mRtpSocket.setPacing(true, 8000, 1f);
+        int committed = 0;
+        byte[] buffer;
+        while ((buffer = mRtpSocket.tryRequestBuffer()) != null) {
+            assertTrue(buffer == mRtpSocket.tryRequestBuffer());
+            mRtpSocket.updateTimestamp(0);
+            mRtpSocket.commitBuffer(Constants.RTP_HEADER_LENGTH + 1000);
+            committed++;
+        }
+        assertTrue("committed " + committed, committed >= 256);
+        assertTrue(mRtpSocket.getQueueDepth() >= committed - 3);
+    }
+
+    @Test
+    public void requestBuffer_throwsWhenInterrupted() throws Exception {
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        mRtpSocket.setPacing(true, 8000, 1f);
+        while (mRtpSocket.tryRequestBuffer() != null) {
+            mRtpSocket.updateTimestamp(0);
+            mRtpSocket.commitBuffer(Constants.RTP_HEADER_LENGTH + 1000);
+        }
+        Thread.currentThread().interrupt();
+        try {
+            mRtpSocket.requestBuffer();
+            fail("a buffer was returned although the FIFO is full");
+        } catch (InterruptedIOException expected) {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    /**
+     * Commits count packets at once and returns the receive time gaps, the first one is 0.
+     */
+    private long[] sendBurstAndMeasureGaps(int count, int payloadLength) throws Exception {
+        for (int i = 0; i < count; i++) {
+            mRtpSocket.requestBuffer();
+            mRtpSocket.updateTimestamp(0);
+            mRtpSocket.commitBuffer(Constants.RTP_HEADER_LENGTH + payloadLength);
+        }
+        long[] gaps = new long[count];
+        long last = 0;
+        for (int i = 0; i < count; i++) {
+            receive();
+            long now = System.nanoTime();
+            gaps[i] = i == 0 ? 0 : now - last;
+            last = now;
+        }
+        return gaps;
+    }
+
+    @Test
+    public void transportWideCc_stampsTheExtensionOnBothPaths() throws Exception {
+        mRtpSocket.setTransportWideCc(true);
+        mRtpSocket.setZeroCopy(true);
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        int headerLength = Constants.RTP_HEADER_LENGTH + Constants.RTP_EXTENSION_LENGTH;
+
+        byte[] buffer = mRtpSocket.requestBuffer();
+        assertEquals(headerLength, mRtpSocket.getHeaderLength());
+        buffer[headerLength] = 42;
+        mRtpSocket.updateTimestamp(1000000000L);
+        mRtpSocket.commitBuffer(headerLength + 1);
+        DatagramPacket packet = receive();
+        assertEquals(headerLength + 1, packet.getLength());
+        assertEquals(0x90, packet.getData()[0] & 0xFF);
+        assertEquals(0, FeedbackReceiver.readTransportSequence(packet.getData(), packet.getLength()));
+        assertEquals(42, packet.getData()[headerLength]);
+
+        ByteBuffer encoded = ByteBuffer.allocateDirect(8);
+        mRtpSocket.sendGather(new byte[]{0x7C, (byte) 0x85}, 2, encoded, 0, 8, 1000000000L, true);
+        packet = receive();
+        assertEquals(headerLength + 2 + 8, packet.getLength());
+        assertEquals(1, FeedbackReceiver.readTransportSequence(packet.getData(), packet.getLength()));
+        assertEquals(0x7C, packet.getData()[headerLength] & 0xFF);
+
+        mRtpSocket.setTransportWideCc(false);
+        mRtpSocket.sendGather(null, 0, encoded, 0, 8, 1000000000L, true);
+        packet = receive();
+        assertEquals(Constants.RTP_HEADER_LENGTH + 8, packet.getLength());
+        assertEquals(-1, FeedbackReceiver.readTransportSequence(packet.getData(), packet.getLength()));
+    }
+
+    @Test
+    public void nack_resendsOnTheRtxStream() throws Exception {
+        mRtpSocket.setRetransmission(true, true);
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        int[] sequences = new int[3];
+        for (int i = 0; i < 3; i++) {
+            byte[] buffer = mRtpSocket.requestBuffer();
+            buffer[Constants.RTP_HEADER_LENGTH] = (byte) (10 + i);
+            mRtpSocket.updateTimestamp(1000000000L);
+            mRtpSocket.commitBuffer(Constants.RTP_HEADER_LENGTH + 1);
+            byte[] data = receive().getData();
+            sequences[i] = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        }
+
+        // generic NACK of the first and the third packet
+        sendNack(sequences[0], 0x0002);
+        for (int i = 0; i < 3; i += 2) {
+            DatagramPacket packet = receive();
+            byte[] data = packet.getData();
+            assertEquals(Constants.RTP_HEADER_LENGTH + 2 + 1, packet.getLength());
+            assertEquals(Constants.RTX_PAYLOAD_TYPE, data[1] & 0x7F);
+            assertEquals(mRtpSocket.getRtxSsrc(), ByteBuffer.wrap(data, 8, 4).getInt());
+            assertEquals(Constants.CLOCK_VIDEO_FREQUENCY, ByteBuffer.wrap(data, 4, 4).getInt());
+            // original sequence number, then the payload
+            assertEquals(sequences[i], ((data[12] & 0xFF) << 8) | (data[13] & 0xFF));
+            assertEquals(10 + i, data[14]);
+        }
+        // unknown packets are counted as misses
+        sendNack((sequences[0] - 100) & 0xFFFF, 0);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mRtpSocket.getRetransmissionMissCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mRtpSocket.getRetransmissionMissCount());
+        assertEquals(2, mRtpSocket.getRetransmittedPacketCount());
+    }
+
+    @Test
+    public void nack_resendsThePacketUnchangedWithoutRtx() throws Exception {
+        mRtpSocket.setRetransmission(true, false);
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        byte[] buffer = mRtpSocket.requestBuffer();
+        buffer[Constants.RTP_HEADER_LENGTH] = 42;
+        mRtpSocket.updateTimestamp(1000000000L);
+        mRtpSocket.commitBuffer(Constants.RTP_HEADER_LENGTH + 1);
+        DatagramPacket original = receive();
+        byte[] sent = new byte[original.getLength()];
+        System.arraycopy(original.getData(), 0, sent, 0, sent.length);
+
+        sendNack(((sent[2] & 0xFF) << 8) | (sent[3] & 0xFF), 0);
+        DatagramPacket packet = receive();
+        byte[] resent = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), 0, resent, 0, resent.length);
+        assertArrayEquals(sent, resent);
+    }
+
+    @Test
+    public void fec_followsTheMediaPacketsItProtects() throws Exception {
+        mRtpSocket.setFec(3, 1);
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        FecDecoder decoder = new FecDecoder(0x11223344);
+        byte[] lost = null;
+        for (int i = 0; i < 3; i++) {
+            byte[] buffer = mRtpSocket.requestBuffer();
+            buffer[Constants.RTP_HEADER_LENGTH] = (byte) (20 + i);
+            mRtpSocket.updateTimestamp(1000000000L);
+            mRtpSocket.commitBuffer(Constants.RTP_HEADER_LENGTH + 1 + i);
+            DatagramPacket packet = receive();
+            if (i == 1) {
+                lost = new byte[packet.getLength()];
+                System.arraycopy(packet.getData(), 0, lost, 0, lost.length);
+            } else {
+                decoder.addMedia(packet.getData(), packet.getLength());
+            }
+        }
+        DatagramPacket fec = receive();
+        assertEquals(Constants.FEC_PAYLOAD_TYPE, fec.getData()[1] & 0x7F);
+        assertEquals(mRtpSocket.getFecEncoder().getSsrc(), ByteBuffer.wrap(fec.getData(), 8, 4).getInt());
+        decoder.addFec(fec.getData(), fec.getLength());
+        int sequence = ((lost[2] & 0xFF) << 8) | (lost[3] & 0xFF);
+        assertArrayEquals(lost, decoder.get(sequence));
+    }
+
+    @Test
+    public void everyPacket_leavesFromTheAnnouncedPort() throws Exception {
+        mRtpSocket.setRetransmission(true, true);
+        mRtpSocket.setFec(2, 1);
+        mRtpSocket.setZeroCopy(true);
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        int port = mRtpSocket.getLocalPort();
+
+        // gather path, then the FEC packet of both
+        for (int i = 0; i < 2; i++) {
+            mRtpSocket.sendGather(null, 0, ByteBuffer.allocateDirect(8), 0, 8, 1000000000L, true);
+            assertEquals(port, receive().getPort());
+        }
+        DatagramPacket packet = receive();
+        assertEquals(Constants.FEC_PAYLOAD_TYPE, packet.getData()[1] & 0x7F);
+        assertEquals(port, packet.getPort());
+
+        // fifo path
+        mRtpSocket.requestBuffer();
+        mRtpSocket.updateTimestamp(1000000000L);
+        mRtpSocket.commitBuffer(Constants.RTP_HEADER_LENGTH + 1);
+        packet = receive();
+        assertEquals(port, packet.getPort());
+        int sequence = ((packet.getData()[2] & 0xFF) << 8) | (packet.getData()[3] & 0xFF);
+
+        // retransmission
+        sendNack(sequence, 0);
+        packet = receive();
+        assertEquals(Constants.RTX_PAYLOAD_TYPE, packet.getData()[1] & 0x7F);
+        assertEquals(port, packet.getPort());
+    }
+
+    @Test
+    public void newDestination_asksForAKeyFrame() throws Exception {
+        final AtomicInteger keyFrames = new AtomicInteger();
+        KeyFrameRequester requester = new KeyFrameRequester(new IKeyFrameSource() {
+            @Override
+            public boolean requestKeyFrame() {
+                keyFrames.incrementAndGet();
+                return true;
+            }
+        }, 0);
+        mRtpSocket.setKeyFrameRequester(requester);
+        mRtpSocket.setZeroCopy(true);
+        // the first destination is covered by the keyframe of the connection
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        mRtpSocket.sendGather(null, 0, ByteBuffer.allocateDirect(8), 0, 8, 1000000000L, true);
+        receive();
+        assertEquals(0, keyFrames.get());
+
+        DatagramSocket other = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        other.setSoTimeout(2000);
+        try {
+            mRtpSocket.setDestination("127.0.0.1", other.getLocalPort(), other.getLocalPort() + 1);
+            assertEquals(1, keyFrames.get());
+            assertEquals(1, requester.getRequestCount(KeyFrameRequester.REASON_DESTINATION));
+            mRtpSocket.sendGather(null, 0, ByteBuffer.allocateDirect(8), 0, 8, 1000000000L, true);
+            DatagramPacket packet = new DatagramPacket(new byte[Constants.MTU], Constants.MTU);
+            other.receive(packet);
+            assertEquals(Constants.RTP_HEADER_LENGTH + 8, packet.getLength());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void firstPacketDelay_isMeasuredOnceFromTheArmedTime() throws Exception {
+        mRtpSocket.setDestination("127.0.0.1", mReceiver.getLocalPort(), mReceiver.getLocalPort() + 1);
+        assertEquals(-1, mRtpSocket.getFirstPacketDelayUs());
+        long startNs = System.nanoTime();
+        mRtpSocket.armFirstPacket(startNs);
+        Thread.sleep(20);
+        mRtpSocket.requestBuffer();
+        mRtpSocket.updateTimestamp(1000000000L);
+        mRtpSocket.commitBuffer(Constants.RTP_HEADER_LENGTH + 1);
+        receive();
+        // recorded by the sender thread right after the packet left
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mRtpSocket.getFirstPacketDelayUs() < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        long delayUs = mRtpSocket.getFirstPacketDelayUs();
+        assertTrue("delay " + delayUs + " us", delayUs >= 20000 && delayUs <= (System.nanoTime() - startNs) / 1000);
+
+        // the packets after the first one do not move it
+        mRtpSocket.setZeroCopy(true);
+        mRtpSocket.sendGather(null, 0, ByteBuffer.allocateDirect(8), 0, 8, 1000000000L, true);
+        receive();
+        assertEquals(delayUs, mRtpSocket.getFirstPacketDelayUs());
+    }
+
+    private void sendNack(int pid, int mask) throws Exception {
+        ByteBuffer nack = ByteBuffer.allocate(16);
+        nack.put((byte) (0x80 | RtcpReceiver.FMT_NACK)).put((byte) RtcpReceiver.PT_RTPFB).putShort((short) 3);
+        nack.putInt(0x55667788).putInt(0x11223344);
+        nack.putShort((short) pid).putShort((short) mask);
+        mReceiver.send(new DatagramPacket(nack.array(), 16, InetAddress.getLoopbackAddress(),
+                mRtpSocket.getRtcpPort()));
+    }
+
+    private DatagramPacket receive() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[Constants.MTU], Constants.MTU);
+        mReceiver.receive(packet);
+        return packet;
+    }
+
+}
@@ -0,0 +1,259 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks ordering and capacity of the ring. Comparing its throughput and handoff latency with the two-semaphore
+ * FIFO RtpSocket used before is a {@link Benchmark}.
+ */
+public class SpscRingTest {
+
+    private static final int CAPACITY = 512;
+    // spinning strategies only make sense with a core for each side, a single core host benchmarks parking alone
+    private static final boolean SINGLE_CORE = Runtime.getRuntime().availableProcessors() == 1;
+    private static final int FIRST_STRATEGY = SINGLE_CORE ? SpscRing.WAIT_PARK : SpscRing.WAIT_BUSY_SPIN;
+    private static final int THROUGHPUT_ITEMS = SINGLE_CORE ? 200000 : 2000000;
+    private static final int LATENCY_ITEMS = SINGLE_CORE ? 2000 : 20000;
+
+    @Test
+    public void claim_failsWhenFullAndResumesAfterRelease() {
+        SpscRing ring = new SpscRing(300, SpscRing.WAIT_BUSY_SPIN);
+        assertEquals(512, ring.getCapacity());
+        for (int i = 0; i < ring.getCapacity(); i++) {
+            assertEquals(i, ring.tryClaim());
+            ring.publish();
+        }
+        assertEquals(-1, ring.tryClaim());
+        assertEquals(512, ring.available());
+        ring.release(3);
+        assertEquals(512, ring.tryClaim());
+        assertEquals(0, ring.index(512));
+        assertEquals(509, ring.size());
+    }
+
+    @Test
+    public void consumer_seesItemsInOrder() throws Exception {
+        for (int strategy = FIRST_STRATEGY; strategy <= SpscRing.WAIT_PARK; strategy++) {
+            final SpscRing ring = new SpscRing(64, strategy);
+            final long[] slots = new long[ring.getCapacity()];
+            final int items = 200000;
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < items; i++) {
+                            long sequence = ring.claim();
+                            slots[ring.index(sequence)] = i;
+                            ring.publish();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            producer.start();
+            int expected = 0;
+            while (expected < items) {
+                int count = ring.waitFor(1000000000L);
+                assertTrue(count > 0);
+                long head = ring.getHead();
+                for (int i = 0; i < count; i++) {
+                    assertEquals(expected++, slots[ring.index(head + i)]);
+                }
+                ring.release(count);
+            }
+            producer.join();
+        }
+    }
+
+    @Test
+    public void waitFor_timesOutOnEmptyRing() throws Exception {
+        SpscRing ring = new SpscRing(16, SpscRing.WAIT_PARK);
+        long start = System.nanoTime();
+        assertEquals(0, ring.waitFor(20000000L));
+        assertTrue(System.nanoTime() - start >= 20000000L);
+    }
+
+    @Test
+    public void benchmark_againstSemaphoreFifo() throws Exception {
+        Benchmark.assumeEnabled();
+        String[] names = {"busy-spin", "yield", "park"};
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT
+            boolean print = round == 1;
+            report(print, "Semaphore FIFO", runThroughput(new SemaphoreFifo()), runLatency(new SemaphoreFifo()));
+            for (int strategy = FIRST_STRATEGY; strategy <= SpscRing.WAIT_PARK; strategy++) {
+                report(print, "SpscRing " + names[strategy],
+                        runThroughput(new RingFifo(strategy)), runLatency(new RingFifo(strategy)));
+            }
+        }
+    }
+
+    private static void report(boolean print, String name, double itemsPerSecond, long[] latencies) {
+        if (print) {
+            Benchmark.report(String.format("%s: %.2f M packets/s, handoff latency p50 %.1f us, p99 %.1f us",
+                    name, itemsPerSecond / 1e6, latencies[latencies.length / 2] / 1e3,
+                    latencies[latencies.length * 99 / 100] / 1e3));
+        }
+        assertTrue(itemsPerSecond > 0);
+    }
+
+    /**
+     * Producer and consumer run flat out, the consumer drains in batches where the FIFO allows it.
+     */
+    private static double runThroughput(final Fifo fifo) throws Exception {
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < THROUGHPUT_ITEMS; i++) {
+                    fifo.put(i);
+                }
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        int received = 0;
+        while (received < THROUGHPUT_ITEMS) {
+            received += fifo.drain(null);
+        }
+        long elapsed = System.nanoTime() - start;
+        producer.join();
+        return THROUGHPUT_ITEMS * 1e9 / elapsed;
+    }
+
+    /**
+     * One item at a time: the producer stamps it, the consumer records the time until it sees it.
+     */
+    private static long[] runLatency(final Fifo fifo) throws Exception {
+        final long[] latencies = new long[LATENCY_ITEMS];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int received = 0;
+                while (received < LATENCY_ITEMS) {
+                    received += fifo.drain(latencies);
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < LATENCY_ITEMS; i++) {
+            fifo.put(System.nanoTime());
+            while (fifo.size() > 0) {
+                if (SINGLE_CORE) {
+                    LockSupport.parkNanos(1000);
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+        consumer.join();
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private interface Fifo {
+        void put(long value);
+
+        /**
+         * Takes what is available, records now - value in latencies when not null, returns the item count.
+         */
+        int drain(long[] latencies);
+
+        int size();
+    }
+
+    /**
+     * The request/commit protocol of the former RtpSocket FIFO.
+     */
+    private static class SemaphoreFifo implements Fifo {
+        private final long[] mSlots = new long[CAPACITY];
+        private final Semaphore mRequested = new Semaphore(CAPACITY);
+        private final Semaphore mCommitted = new Semaphore(0);
+        private int mIn, mOut, mCount;
+
+        @Override
+        public void put(long value) {
+            mRequested.acquireUninterruptibly();
+            mSlots[mIn] = value;
+            if (++mIn >= CAPACITY) {
+                mIn = 0;
+            }
+            mCommitted.release();
+        }
+
+        @Override
+        public int drain(long[] latencies) {
+            mCommitted.acquireUninterruptibly();
+            long value = mSlots[mOut];
+            if (latencies != null) {
+                latencies[mCount] = System.nanoTime() - value;
+            }
+            mCount++;
+            if (++mOut >= CAPACITY) {
+                mOut = 0;
+            }
+            mRequested.release();
+            return 1;
+        }
+
+        @Override
+        public int size() {
+            return mCommitted.availablePermits();
+        }
+    }
+
+    private static class RingFifo implements Fifo {
+        private final SpscRing mRing;
+        private final long[] mSlots;
+        private int mCount;
+
+        RingFifo(int waitStrategy) {
+            mRing = new SpscRing(CAPACITY, waitStrategy);
+            mSlots = new long[mRing.getCapacity()];
+        }
+
+        @Override
+        public void put(long value) {
+            try {
+                long sequence = mRing.claim();
+                mSlots[mRing.index(sequence)] = value;
+                mRing.publish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public int drain(long[] latencies) {
+            try {
+                int count = mRing.waitFor(1000000000L);
+                long head = mRing.getHead();
+                if (latencies != null) {
+                    long now = System.nanoTime();
+                    for (int i = 0; i < count; i++) {
+                        latencies[mCount + i] = now - mSlots[mRing.index(head + i)];
+                    }
+                }
+                mCount += count;
+                mRing.release(count);
+                return count;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+
+        @Override
+        public int size() {
+            return mRing.size();
+        }
+    }
+
+}
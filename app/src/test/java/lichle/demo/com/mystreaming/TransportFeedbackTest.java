@@ -0,0 +1,61 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransportFeedbackTest {
+
+    @Test
+    public void parse_readsStatusVectorsAndDeltas() {
+        // packet 2 lost, packet 3 after a long gap, packet 9 reordered before its predecessor
+        long[] arrivalUs = {640000, 641000, -1, 741000, 741250, 742000, 743000, 744000, 745000, 744500};
+        byte[] data = FeedbackReceiver.buildFeedback(1, 2, 65534, arrivalUs, 7);
+        TransportFeedback feedback = new TransportFeedback();
+
+        assertTrue(feedback.parse(data, 12, data.length));
+        assertEquals(65534, feedback.getBaseSequence());
+        assertEquals(10, feedback.getCount());
+        assertEquals(7, feedback.getFeedbackCount());
+        assertEquals(65535, feedback.getSequence(1));
+        assertEquals(0, feedback.getSequence(2));
+        assertFalse(feedback.isReceived(2));
+        assertEquals(-1, feedback.getArrivalUs(2));
+        for (int i = 0; i < arrivalUs.length; i++) {
+            if (i != 2) {
+                assertTrue(feedback.isReceived(i));
+                assertEquals(arrivalUs[i], feedback.getArrivalUs(i));
+            }
+        }
+    }
+
+    @Test
+    public void parse_readsRunLengthAndOneBitChunks() {
+        byte[] data = {
+                // base 10, 5 packets, reference time 1 (64 ms), feedback 0
+                0, 10, 0, 5, 0, 0, 1, 0,
+                // run of 3 small deltas, then a 1 bit vector: received, lost
+                0x20, 3, (byte) 0xA0, 0,
+                // 1 ms each
+                4, 4, 4, 4};
+        TransportFeedback feedback = new TransportFeedback();
+
+        assertTrue(feedback.parse(data, 0, data.length));
+        assertEquals(5, feedback.getCount());
+        long[] expected = {65000, 66000, 67000, 68000, -1};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i] >= 0, feedback.isReceived(i));
+            assertEquals(expected[i], feedback.getArrivalUs(i));
+        }
+    }
+
+    @Test
+    public void parse_rejectsTruncatedFeedback() {
+        byte[] data = FeedbackReceiver.buildFeedback(1, 2, 0, new long[]{1000, 2000, 3000}, 0);
+        assertFalse(new TransportFeedback().parse(data, 12, 12 + 8));
+        assertFalse(new TransportFeedback().parse(data, 12, 12 + 10 + 1));
+    }
+
+}
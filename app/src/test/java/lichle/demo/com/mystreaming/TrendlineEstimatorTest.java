@@ -0,0 +1,58 @@
+package lichle.demo.com.mystreaming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Packet groups every 10 ms with the one-way delay growing, steady or shrinking.
+ */
+public class TrendlineEstimatorTest {
+
+    @Test
+    public void steadyDelay_staysNormal() {
+        TrendlineEstimator estimator = new TrendlineEstimator();
+        for (int i = 1; i <= 200; i++) {
+            // jitter of +-1 ms around a constant delay
+            assertEquals(TrendlineEstimator.NORMAL, estimator.update(i % 2 == 0 ? 1 : -1, 10, 10 * i));
+        }
+    }
+
+    @Test
+    public void growingDelay_isOveruse() {
+        TrendlineEstimator estimator = new TrendlineEstimator();
+        int state = TrendlineEstimator.NORMAL;
+        int i = 1;
+        for (; i <= 100 && state != TrendlineEstimator.OVERUSING; i++) {
+            // a queue grows by 2 ms per group
+            state = estimator.update(2, 10, 12 * i);
+        }
+        assertEquals(TrendlineEstimator.OVERUSING, state);
+        assertTrue(estimator.getTrend() > 0);
+        assertTrue("detected after " + i, i < 40);
+    }
+
+    @Test
+    public void drainingQueue_isUnderuse() {
+        TrendlineEstimator estimator = new TrendlineEstimator();
+        for (int i = 1; i <= 50; i++) {
+            estimator.update(2, 10, 12 * i);
+        }
+        int state = TrendlineEstimator.OVERUSING;
+        for (int i = 51; i <= 100 && state != TrendlineEstimator.UNDERUSING; i++) {
+            state = estimator.update(-3, 10, 600 + 7 * (i - 50));
+        }
+        assertEquals(TrendlineEstimator.UNDERUSING, state);
+    }
+
+    @Test
+    public void threshold_staysInItsBounds() {
+        TrendlineEstimator estimator = new TrendlineEstimator();
+        for (int i = 1; i <= 1000; i++) {
+            estimator.update(i % 2 == 0 ? 0.1 : -0.1, 10, 10 * i);
+        }
+        assertEquals(6, estimator.getThreshold(), 1e-9);
+    }
+
+}
@@ -0,0 +1,160 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the feed/drain engine of {@link VideoEncoder} against {@link FakeVideoCodec}.
+ */
+public class VideoEncoderTest {
+
+    private final FramePool mPool = new FramePool(4, 64, 48);
+    private final RecordingListener mListener = new RecordingListener();
+    private final VideoEncoder mEncoder = new VideoEncoder(mListener);
+
+    @After
+    public void tearDown() {
+        mEncoder.reset();
+    }
+
+    @Test
+    public void asyncMode_deliversOutputWithoutWaitingForNextFrame() throws Exception {
+        FakeVideoCodec codec = new FakeVideoCodec(4, 20);
+        mEncoder.setAsyncMode(true);
+        assertTrue(mEncoder.setUpCodec(codec, null, YuvConverter.FORMAT_NV12));
+        mEncoder.start(true);
+
+        mListener.expect(1);
+        putFrame((byte) 7);
+        // no second frame is queued, the output has to come from the callback alone
+        assertTrue(mListener.await());
+        assertEquals(7, mListener.lastFirstPixel);
+        waitForPoolFull();
+        // the listener is called before the output buffer goes back to the codec
+        long deadline = System.currentTimeMillis() + 1000;
+        while (codec.releasedOutputCount == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, codec.releasedOutputCount);
+    }
+
+    @Test
+    public void syncMode_drainsAfterEachInput() throws Exception {
+        FakeVideoCodec codec = new FakeVideoCodec(4, 0);
+        mEncoder.setAsyncMode(false);
+        assertTrue(mEncoder.setUpCodec(codec, null, YuvConverter.FORMAT_NV12));
+        mEncoder.start(true);
+
+        mListener.expect(1);
+        for (int i = 0; i < 5 && mListener.pending() > 0; i++) {
+            putFrame((byte) i);
+            Thread.sleep(30);
+        }
+        assertTrue(mListener.await());
+        waitForPoolFull();
+    }
+
+    @Test
+    public void pauseAndResume_keepCodecAndRequestSyncFrame() throws Exception {
+        FakeVideoCodec codec = new FakeVideoCodec(4, 5);
+        mEncoder.setAsyncMode(true);
+        assertTrue(mEncoder.setUpCodec(codec, null, YuvConverter.FORMAT_NV12));
+        mEncoder.start(true);
+
+        mEncoder.pause();
+        assertTrue(mEncoder.isPaused());
+        assertEquals(1, codec.flushCount);
+        assertEquals(-1, mEncoder.getResumeLatencyUs());
+        // frames are not accepted while paused
+        putFrame((byte) 1);
+        assertEquals(mPool.getPoolSize(), mPool.getFreeCount());
+
+        mListener.expect(1);
+        assertTrue(mEncoder.resume());
+        assertEquals(1, codec.parameterUpdates);
+        putFrame((byte) 2);
+        assertTrue(mListener.await());
+        long deadline = System.currentTimeMillis() + 1000;
+        while (mEncoder.getResumeLatencyUs() < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(mEncoder.getResumeLatencyUs() >= 0);
+    }
+
+    @Test
+    public void setBitRate_onlyReachesARunningCodec() {
+        FakeVideoCodec codec = new FakeVideoCodec(4, 0);
+        assertTrue(mEncoder.setUpCodec(codec, null, YuvConverter.FORMAT_NV12));
+        assertFalse(mEncoder.setBitRate(500000));
+        mEncoder.start(true);
+        assertTrue(mEncoder.setBitRate(500000));
+        assertEquals(1, codec.parameterUpdates);
+    }
+
+    @Test
+    public void requestKeyFrame_onlyReachesARunningCodec() {
+        FakeVideoCodec codec = new FakeVideoCodec(4, 0);
+        assertTrue(mEncoder.setUpCodec(codec, null, YuvConverter.FORMAT_NV12));
+        assertFalse(mEncoder.requestKeyFrame());
+        mEncoder.start(true);
+        assertTrue(mEncoder.requestKeyFrame());
+        assertEquals(1, codec.parameterUpdates);
+        mEncoder.pause();
+        assertFalse(mEncoder.requestKeyFrame());
+    }
+
+    private void putFrame(byte value) {
+        NV21Frame frame = mPool.acquire();
+        java.util.Arrays.fill(frame.getData(), value);
+        mEncoder.putDataToNV21Queue(frame);
+        frame.release();
+    }
+
+    private void waitForPoolFull() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (mPool.getFreeCount() != mPool.getPoolSize() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(mPool.getPoolSize(), mPool.getFreeCount());
+    }
+
+    private static class RecordingListener implements IH264Data {
+
+        private volatile CountDownLatch mLatch = new CountDownLatch(0);
+        volatile int lastFirstPixel = -1;
+
+        void expect(int count) {
+            mLatch = new CountDownLatch(count);
+        }
+
+        long pending() {
+            return mLatch.getCount();
+        }
+
+        boolean await() throws InterruptedException {
+            return mLatch.await(1, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void onParametersDecoded(ByteBuffer vps, ByteBuffer sps, ByteBuffer pps) {
+        }
+
+        @Override
+        public void onH264Data(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            lastFirstPixel = buffer.get(5);
+            mLatch.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,199 @@
+package lichle.demo.com.mystreaming;
+
+import android.media.MediaCodecInfo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks every conversion target against a byte-by-byte reference. The throughput of each target is a
+ * {@link Benchmark}.
+ */
+public class YuvConverterTest {
+
+    private static final int[][] RESOLUTIONS = {{640, 480}, {1280, 720}, {1920, 1080}};
+    private static final byte PADDING = 0x55;
+
+    @Test
+    public void flexibleColorFormat_isSupported() {
+        int flexible = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+        assertTrue(YuvConverter.getConversionCost(YuvConverter.getFormatForColorFormat(flexible)) < Integer.MAX_VALUE);
+        // a codec which gives no input image nor its layout gets the NV12 most of them use
+        assertEquals(YuvConverter.FORMAT_NV12, YuvConverter.getFormatForInputFormat(null));
+        assertEquals(0, YuvConverter.getPlaneLayout(null, "stride"));
+    }
+
+    @Test
+    public void conversions_matchReference() {
+        // 36x2 leaves a chroma tail which is not a multiple of 8 bytes
+        int[][] sizes = {{640, 480}, {36, 2}};
+        for (int[] size : sizes) {
+            NV21Frame frame = randomFrame(size[0], size[1]);
+            for (int format = YuvConverter.FORMAT_NV12; format <= YuvConverter.FORMAT_YV12; format++) {
+                ByteBuffer dst = ByteBuffer.allocateDirect(frame.getSize() + 16);
+                dst.position(16);
+                int written = YuvConverter.convert(frame, dst, format);
+                assertEquals(frame.getSize(), written);
+                assertEquals(16 + written, dst.position());
+                byte[] actual = new byte[written];
+                dst.position(16);
+                dst.get(actual);
+                assertArrayEquals("format " + format, reference(frame, format), actual);
+            }
+        }
+    }
+
+    @Test
+    public void paddedRows_matchReference() {
+        // rows aligned to 64 bytes and lines to 16, as codecs do, 360 lines becoming 368
+        int[][] layouts = {{36, 2, 64, 16}, {640, 360, 704, 368}};
+        for (int[] layout : layouts) {
+            NV21Frame frame = randomFrame(layout[0], layout[1]);
+            int stride = layout[2];
+            int sliceHeight = layout[3];
+            for (int format = YuvConverter.FORMAT_NV12; format <= YuvConverter.FORMAT_YV12; format++) {
+                byte[] expected = padded(frame, format, stride, sliceHeight);
+                ByteBuffer dst = ByteBuffer.allocateDirect(expected.length);
+                for (int i = 0; i < dst.capacity(); i++) {
+                    dst.put(i, PADDING);
+                }
+                int written = YuvConverter.convert(frame, dst, format, stride, sliceHeight);
+                assertEquals(written, dst.position());
+                // the codec reads up to the end of the last chroma row, which fits a padded buffer
+                assertTrue(written > frame.getSize() && written <= expected.length);
+                byte[] actual = new byte[expected.length];
+                dst.clear();
+                dst.get(actual);
+                assertArrayEquals("format " + format, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void imagePlanes_takeTheirStrides() {
+        NV21Frame frame = randomFrame(36, 2);
+        byte[] tight = reference(frame, YuvConverter.FORMAT_I420);
+        int ySize = 36 * 2;
+        int rowStride = 64;
+        // semi-planar: U and V interleaved in one buffer, V one byte after U
+        ByteBuffer y = ByteBuffer.allocate(rowStride * 2);
+        ByteBuffer chroma = ByteBuffer.allocate(rowStride);
+        ByteBuffer u = chroma.duplicate();
+        chroma.position(1);
+        ByteBuffer v = chroma.slice();
+        assertEquals(frame.getSize(), YuvConverter.convert(frame, y, rowStride, u, v, rowStride, 2));
+        for (int row = 0; row < 2; row++) {
+            for (int col = 0; col < 36; col++) {
+                assertEquals(tight[row * 36 + col], y.get(row * rowStride + col));
+            }
+        }
+        for (int col = 0; col < 18; col++) {
+            assertEquals(tight[ySize + col], chroma.get(2 * col));
+            assertEquals(tight[ySize + ySize / 4 + col], chroma.get(2 * col + 1));
+        }
+
+        // planar with padded rows
+        u = ByteBuffer.allocate(rowStride / 2);
+        v = ByteBuffer.allocate(rowStride / 2);
+        YuvConverter.convert(frame, y, rowStride, u, v, rowStride / 2, 1);
+        for (int col = 0; col < 18; col++) {
+            assertEquals(tight[ySize + col], u.get(col));
+            assertEquals(tight[ySize + ySize / 4 + col], v.get(col));
+        }
+    }
+
+    @Test
+    public void throughput() {
+        Benchmark.assumeEnabled();
+        for (int[] size : RESOLUTIONS) {
+            NV21Frame frame = randomFrame(size[0], size[1]);
+            ByteBuffer dst = ByteBuffer.allocateDirect(frame.getSize());
+            for (int format = YuvConverter.FORMAT_NV12; format <= YuvConverter.FORMAT_YV12; format++) {
+                for (int i = 0; i < 200; i++) {
+                    dst.clear();
+                    YuvConverter.convert(frame, dst, format);
+                }
+                int iterations = 200;
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    dst.clear();
+                    YuvConverter.convert(frame, dst, format);
+                }
+                long perFrameNs = (System.nanoTime() - start) / iterations;
+                Benchmark.report(String.format("YuvConverter %dx%d format %d: %.3f ms/frame, %.0f MB/s",
+                        size[0], size[1], format, perFrameNs / 1e6, frame.getSize() * 1e3 / perFrameNs));
+            }
+        }
+    }
+
+    private static NV21Frame randomFrame(int width, int height) {
+        NV21Frame frame = new FramePool(1, width, height).acquire();
+        new Random(width * 31 + height).nextBytes(frame.getData());
+        return frame;
+    }
+
+    /**
+     * The reference layout with rows padded to stride and the luma plane to sliceHeight rows, padding untouched.
+     */
+    private static byte[] padded(NV21Frame frame, int format, int stride, int sliceHeight) {
+        byte[] tight = reference(frame, format);
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int ySize = width * height;
+        byte[] out = new byte[stride * sliceHeight * 3 / 2];
+        Arrays.fill(out, PADDING);
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(tight, row * width, out, row * stride, width);
+        }
+        int chromaStart = stride * sliceHeight;
+        if (format == YuvConverter.FORMAT_NV12) {
+            for (int row = 0; row < height / 2; row++) {
+                System.arraycopy(tight, ySize + row * width, out, chromaStart + row * stride, width);
+            }
+        } else {
+            int planeSize = stride / 2 * (sliceHeight / 2);
+            for (int plane = 0; plane < 2; plane++) {
+                for (int row = 0; row < height / 2; row++) {
+                    System.arraycopy(tight, ySize + plane * ySize / 4 + row * width / 2,
+                            out, chromaStart + plane * planeSize + row * stride / 2, width / 2);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static byte[] reference(NV21Frame frame, int format) {
+        byte[] src = frame.getData();
+        int ySize = frame.getWidth() * frame.getHeight();
+        int quarter = ySize / 4;
+        byte[] out = new byte[ySize * 3 / 2];
+        System.arraycopy(src, 0, out, 0, ySize);
+        for (int i = 0; i < quarter; i++) {
+            byte v = src[ySize + 2 * i];
+            byte u = src[ySize + 2 * i + 1];
+            switch (format) {
+                case YuvConverter.FORMAT_NV12:
+                    out[ySize + 2 * i] = u;
+                    out[ySize + 2 * i + 1] = v;
+                    break;
+                case YuvConverter.FORMAT_I420:
+                    out[ySize + i] = u;
+                    out[ySize + quarter + i] = v;
+                    break;
+                default:
+                    out[ySize + i] = v;
+                    out[ySize + quarter + i] = u;
+                    break;
+            }
+        }
+        return out;
+    }
+
+}